@@ -99,6 +99,71 @@ var activityListAction = function (initializer, skipPush) {
         }
     }
 
+    /* Loads a bug report or hierarchy export from the device. The proxy pulls it and serves it
+       with Range support, so that only the parts which are used are read. */
+    const openDeviceFile = function() {
+        const offset = $(this).offset();
+        const popupEvent = {pageX: offset.left, pageY: offset.top + $(this).height()};
+        showInputPopup(popupEvent, localStorage.devicePullPath || "/sdcard/", "Path of a file on the device")
+            .on("value_input", function(e, path) {
+                path = path.trim();
+                if (!path || path.endsWith("/")) {
+                    this.showError("Enter the path of a file");
+                    return;
+                }
+                localStorage.devicePullPath = path;
+                this.hideMenu();
+                progress.show();
+                adbDevice.pullFile(path).then(file => {
+                    if (!file) {
+                        progress.hide();
+                        toast("Update the proxy to open device files");
+                        return;
+                    }
+                    loadHierarchyFile(file);
+                }).catch(e => {
+                    progress.hide();
+                    toast(e);
+                });
+            });
+    }
+
+    /* Lists the hierarchies kept in the proxy's snapshot archive, newest first, to load one */
+    const showSnapshots = async function() {
+        const offset = $(this).offset();
+        const popupEvent = {pageX: offset.left, pageY: offset.top + $(this).height()};
+        let snapshots;
+        try {
+            snapshots = await adbDevice.listSnapshots();
+        } catch (e) {
+            toast(e);
+            return;
+        }
+        if (snapshots == null) {
+            toast("Start the proxy with --snapshots to keep saved hierarchies");
+            return;
+        }
+        if (snapshots.length == 0) {
+            toast("No saved snapshots yet");
+            return;
+        }
+
+        const menu = [
+            { text: "Saved snapshots", disabled: true },
+            ...snapshots.reverse().map(s => ({ text: `${s.title} (${new Date(s.time).toLocaleString()})`, index: s.index }))
+        ];
+        showContext(menu, function () {
+            const index = this.index;
+            adbDevice.openSnapshots().then(file => {
+                if (!file) {
+                    return;
+                }
+                file.snapshot = index;
+                loadHierarchyFile(file);
+            }).catch(e => toast(e));
+        }, popupEvent);
+    }
+
     const renderActivities = function(container, list) {
         const buttonbar = $("<div class='button-bar'>").appendTo(container);
         if (list.use_new_api) {
@@ -109,6 +174,12 @@ var activityListAction = function (initializer, skipPush) {
         }
         if (adbDevice) {
             $("<div>").css({flexGrow: 1}).appendTo(buttonbar);
+            if (adbDevice.pullFile) {
+                $("<button>").text("Open device file").css({marginRight: "10px"}).appendTo(buttonbar).click(openDeviceFile);
+            }
+            if (adbDevice.listSnapshots) {
+                $("<button>").text("Saved snapshots").css({marginRight: "10px"}).appendTo(buttonbar).click(showSnapshots);
+            }
             $("<div>").addClass("button-group").appendTo(buttonbar)
                 .append($("<button>").text("Mirror Display").click(e => deviceMirrorAction()))
                 .append($("<button>").html("&#58821;")
@@ -1,3 +1,16 @@
+/**
+ * Stream options for large transfers where fewer, larger messages matter more than latency
+ */
+const BULK_STREAM = {frame: "bulk"};
+
+/**
+ * Stream options for H.264 video, which is already compressed and skips websocket compression.
+ * Every message is one access unit, and viewers of the same device share a single encoder. When
+ * the client falls behind the proxy skips ahead to the next key frame, and reports the lag
+ * through onLag.
+ */
+const VIDEO_STREAM = {frame: "au", compress: false, drop: "idr", lag: true};
+
 /**
  * Merger to read all data as text
  */
@@ -16,7 +29,11 @@ class TextResponseMerger {
 
 class BaseAdbDevice {
 
-    openStream(command) {
+    /**
+     * @param {string} command adb service to open
+     * @param {Object=} options transport specific stream options, ignored when not supported
+     */
+    openStream(command, options) {
         // TODO Implement
     }
 
@@ -80,7 +97,11 @@ class BaseAdbDevice {
 class BaseAdbStream {
 
     onClose = null;
+    /** Called with {lagMs, queued, dropped} for streams opened with the lag option */
+    onLag = null;
     keepOpen = false;
+    /** Bytes received which no reader has taken yet */
+    bufferedLength = 0;
 
     #pending = [];
     #pendingRead = null;
@@ -113,10 +134,16 @@ class BaseAdbStream {
         }
         if (data && data.length) {
             this.#pending.push(data);
+            this.bufferedLength += data.byteLength;
         }
         this.#doRead();
     }
 
+    /**
+     * Called once buffered data has been taken by a reader
+     */
+    onRead() { }
+
     read(length) {
         if (this.#pendingRead) {
             throw new Error("double callback");
@@ -161,6 +188,8 @@ class BaseAdbStream {
         if (result) {
             var callback = this.#pendingRead;
             this.#pendingRead = null;
+            this.bufferedLength -= result.byteLength;
+            this.onRead();
             callback.accept(result);
         }
     }
@@ -181,6 +210,9 @@ class BaseAdbStream {
         }.bind(this);
 
         this.#pending.forEach(this.onReceiveWrite);
+        this.#pending = [];
+        this.bufferedLength = 0;
+        this.onRead();
         this.onClose = function () {
             result.accept(responseMerger.result);
         }
@@ -15,8 +15,30 @@
 const WEB_PROXY_VERSION = 1;
 const STANDARD_ERROR_CODE = 4010;
 
+// Multiplexing protocol, see MuxSession in the proxy
+const MUX_VERSION = 1;
+const MUX_HELLO = 0;
+const MUX_OPEN = 1;
+const MUX_OKAY = 2;
+const MUX_FAIL = 3;
+const MUX_DATA = 4;
+const MUX_WINDOW = 5;
+const MUX_CLOSE = 6;
+const MUX_HEADER_SIZE = 5;
+// Data the proxy may send on a stream ahead of the client, and the largest message sent
+const MUX_RECEIVE_WINDOW = 1 << 20;
+const MUX_MAX_DATA = 65536;
+// Connections to try when the mux socket drops before the proxy says hello, and the wait between them
+const MUX_CONNECT_ATTEMPTS = 3;
+const MUX_RETRY_DELAY_MS = 500;
+
 class WebProxyDevice extends BaseAdbDevice {
 
+    /** Carry streams over a single websocket, turned off when the proxy doesn't support it */
+    multiplex = true;
+
+    #mux = null;
+
     constructor(device) {
         super()
         this.device = device;
@@ -24,8 +46,16 @@ class WebProxyDevice extends BaseAdbDevice {
         this.nextLocalId = 5;
     }
 
-    openStream(command) {
-        const stream = new WebSocketStream(new WebSocket("ws://localhost:8000/" + this.device.serial + "/" + command, [this.device.authKey]))
+    /**
+     * @param {string} command adb service to open
+     * @param {Object=} options per-stream proxy options, eg {frame: "bulk"} to coalesce
+     *     adb output into fewer, larger messages
+     */
+    openStream(command, options) {
+        // Video keeps its own socket, for the proxy's drop policy and so that it can't hold up input
+        const stream = this.multiplex && !(options && options.drop)
+            ? this.#openMuxStream(command, options)
+            : this.#openSocketStream(command, options);
         const localId = this.nextLocalId++;
         this.streams[localId] = stream;
         stream.onReceiveCloseInternal = this.#clearStream.bind(this, localId)
@@ -40,6 +70,183 @@ class WebProxyDevice extends BaseAdbDevice {
                 this.streams[i].close();
             }
         }
+        if (this.#mux) {
+            this.#mux.close();
+            this.#mux = null;
+        }
+    }
+
+    /**
+     * Pushes through the proxy, which skips the transfer if the device already has the file
+     */
+    async sendFile(targetPath, sourcePath) {
+        if (!crypto.subtle) {
+            return super.sendFile(targetPath, sourcePath);
+        }
+        const data = new Uint8Array(await doXhr(sourcePath, "arraybuffer"));
+        const hash = Array.from(new Uint8Array(await crypto.subtle.digest("SHA-256", data)),
+            b => b.toString(16).padStart(2, "0")).join("");
+
+        const stream = this.#openSocketStream(`webhv:push:${hash}:${data.length}:755:${targetPath}`);
+        const closed = deferred();
+        stream.onClose = () => closed.accept(null);
+        let reply = await Promise.race([stream.read(4), closed]);
+        if (reply && ab2str(reply) == "SEND") {
+            stream.write(data);
+            reply = await Promise.race([stream.read(4), closed]);
+        }
+        stream.close();
+        if (!reply) {
+            // Proxies without the push service pass it on to adb, which refuses it
+            return super.sendFile(targetPath, sourcePath);
+        }
+        if ("OKAY" != ab2str(reply)) {
+            throw "Transfer failed";
+        }
+    }
+
+    /**
+     * Pulls a file into the proxy, which serves it over HTTP with Range support so that it can be
+     * read in slices. Resolves to {url, size, close}, where close releases the proxy's copy, or
+     * to null if the proxy doesn't support pulling.
+     */
+    pullFile(path) {
+        return this.#openServedFile("webhv:pull:" + encodeURIComponent(path), "Pull failed: ");
+    }
+
+    /**
+     * Opens the proxy's archive of saved hierarchies, as it is now, for file_load_worker.js to
+     * load single snapshots from. Resolves like pullFile, or to null if the proxy doesn't keep
+     * snapshots.
+     */
+    openSnapshots() {
+        return this.#openServedFile("webhv:snapshot:open", "Unable to open snapshots: ");
+    }
+
+    /**
+     * Lists the snapshots in the proxy's archive, oldest first, as {index, time, title}. Resolves
+     * to null if the proxy doesn't keep snapshots.
+     */
+    async listSnapshots() {
+        const stream = this.#openSocketStream("webhv:snapshot:list");
+        const closed = deferred();
+        stream.onClose = () => closed.accept(null);
+        const reply = await Promise.race([stream.read(), closed]);
+        stream.close();
+        if (!reply) {
+            return null;
+        }
+        const text = new TextDecoder().decode(reply);
+        if (!text.startsWith("OKAY")) {
+            throw "Unable to list snapshots: " + text.substring(4);
+        }
+        return text.substring(4).split("\n").filter(line => line).map((line, index) => {
+            const p = line.indexOf(" ");
+            return { index: index, time: parseInt(line.substring(0, p)), title: line.substring(p + 1) };
+        });
+    }
+
+    async #openServedFile(command, failMessage) {
+        const stream = this.#openSocketStream(command);
+        const closed = deferred();
+        stream.onClose = () => closed.accept(null);
+        const reply = await Promise.race([stream.read(), closed]);
+        if (!reply) {
+            return null;
+        }
+        const text = ab2str(reply);
+        if (!text.startsWith("OKAY")) {
+            stream.close();
+            throw failMessage + text.substring(4);
+        }
+        const [size, urlPath] = text.substring(4).split(" ");
+        return { url: "http://localhost:8000" + urlPath, size: parseInt(size), close: () => stream.close() };
+    }
+
+    /**
+     * Adds a saved hierarchy to the proxy's snapshot archive, which stores what consecutive
+     * snapshots have in common once. Resolves to the index of the snapshot, or to null if the
+     * proxy doesn't keep snapshots.
+     * @param {Uint8Array} data the zip file of the hierarchy
+     */
+    async saveSnapshot(data, title) {
+        const stream = this.#openSocketStream(`webhv:snapshot:save:${data.length}:${encodeURIComponent(title)}`);
+        const closed = deferred();
+        stream.onClose = () => closed.accept(null);
+        let reply = await Promise.race([stream.read(), closed]);
+        if (reply && ab2str(reply) == "SEND") {
+            stream.write(data);
+            reply = await Promise.race([stream.read(), closed]);
+        }
+        stream.close();
+        if (!reply) {
+            return null;
+        }
+        const text = ab2str(reply);
+        if (!text.startsWith("OKAY")) {
+            throw "Unable to save snapshot: " + text.substring(4);
+        }
+        return parseInt(text.substring(4));
+    }
+
+    /**
+     * Dumps the view hierarchy of a window with the view server, decoded by the proxy. Resolves
+     * to the tree which parser_columnar.js reads, or to null if the proxy can't decode hierarchies.
+     */
+    dumpViewTree(windowId) {
+        return this.#readViewTree(this.#openSocketStream("webhv:viewtree:dump:" + encodeURIComponent(windowId)));
+    }
+
+    /**
+     * Decodes a hierarchy dump in the proxy, "v1" for the view server's text format or "v2" for
+     * the binary one. Resolves like dumpViewTree.
+     * @param {Uint8Array} data
+     */
+    decodeViewTree(data, format) {
+        return this.#readViewTree(this.#openSocketStream(`webhv:viewtree:${format}:${data.length}`), data);
+    }
+
+    async #readViewTree(stream, data) {
+        const closed = deferred();
+        stream.onClose = () => closed.accept(null);
+        let reply = await Promise.race([stream.read(), closed]);
+        if (reply && data && ab2str(reply.subarray(0, 4)) == "SEND") {
+            stream.write(data);
+            reply = await Promise.race([stream.read(), closed]);
+        }
+        stream.close();
+        if (!reply) {
+            // Proxies without the service pass it on to adb, which refuses it
+            return null;
+        }
+        const status = ab2str(reply.subarray(0, 4));
+        if (status == "FAIL") {
+            throw "Unable to load view hierarchy: " + ab2str(reply.subarray(4));
+        }
+        return status == "TREE" ? reply : null;
+    }
+
+    #openSocketStream(command, options) {
+        return new WebSocketStream(new WebSocket("ws://localhost:8000/" + this.device.serial
+            + streamOptions(options) + "/" + command, [this.device.authKey]));
+    }
+
+    #openMuxStream(command, options) {
+        if (!this.#mux) {
+            const mux = new MuxConnection(this.device);
+            mux.onUnsupported = streams => {
+                console.log("Proxy does not support multiplexing, using a socket per stream");
+                this.multiplex = false;
+                streams.forEach(s => s.useFallback(this.#openSocketStream(s.command, s.options)));
+            };
+            mux.onDisconnect = () => {
+                if (this.#mux == mux) {
+                    this.#mux = null;
+                }
+            };
+            this.#mux = mux;
+        }
+        return this.#mux.openStream(command, options);
     }
 
     #clearStream(localId) {
@@ -47,6 +254,267 @@ class WebProxyDevice extends BaseAdbDevice {
     }
 }
 
+/**
+ * Returns the options in the form the proxy expects after the serial
+ */
+function streamOptions(options) {
+    let result = "";
+    for (const key in options || {}) {
+        result += ";" + key + "=" + encodeURIComponent(options[key]);
+    }
+    return result;
+}
+
+/**
+ * A single websocket carrying many streams of a device
+ */
+class MuxConnection {
+
+    /** Called with the streams opened so far if the proxy turns out not to support multiplexing */
+    onUnsupported = null;
+    onDisconnect = null;
+
+    #device;
+    #socket;
+    #streams = new Map();
+    #nextId = 1;
+    #ready = false;
+    #attempts = 0;
+    #closed = false;
+
+    constructor(device) {
+        this.#device = device;
+        this.#connect();
+    }
+
+    openStream(command, options) {
+        const stream = new MuxStream(this, this.#nextId++, command, options);
+        this.#streams.set(stream.id, stream);
+        if (this.#ready) {
+            this.#open(stream);
+        }
+        return stream;
+    }
+
+    send(type, id, payload) {
+        const message = new Uint8Array(MUX_HEADER_SIZE + (payload ? payload.byteLength : 0));
+        const view = new DataView(message.buffer);
+        view.setUint8(0, type);
+        view.setInt32(1, id);
+        if (payload) {
+            message.set(payload, MUX_HEADER_SIZE);
+        }
+        if (this.#socket.readyState == WebSocket.OPEN) {
+            this.#socket.send(message);
+        }
+    }
+
+    sendInt(type, id, value) {
+        const payload = new Uint8Array(4);
+        new DataView(payload.buffer).setInt32(0, value);
+        this.send(type, id, payload);
+    }
+
+    remove(id) {
+        this.#streams.delete(id);
+    }
+
+    close() {
+        this.#closed = true;
+        this.#socket.close();
+    }
+
+    #connect() {
+        this.#attempts++;
+        this.#socket = new WebSocket("ws://localhost:8000/" + this.#device.serial + "/webhv:mux:" + MUX_VERSION,
+            [this.#device.authKey]);
+        this.#socket.binaryType = "arraybuffer";
+        this.#socket.onmessage = this.#onMessage.bind(this);
+        this.#socket.onclose = this.#onClose.bind(this);
+    }
+
+    #open(stream) {
+        const path = new TextEncoder().encode(streamOptions(stream.options) + "/" + encodeURIComponent(stream.command));
+        const payload = new Uint8Array(4 + path.length);
+        new DataView(payload.buffer).setInt32(0, MUX_RECEIVE_WINDOW);
+        payload.set(path, 4);
+        this.send(MUX_OPEN, stream.id, payload);
+    }
+
+    #onMessage(event) {
+        const view = new DataView(event.data);
+        const type = view.getUint8(0);
+        if (type == MUX_HELLO) {
+            this.#ready = true;
+            this.#streams.forEach(s => this.#open(s));
+            return;
+        }
+        const stream = this.#streams.get(view.getInt32(1));
+        if (!stream) {
+            return;
+        }
+        const payload = new Uint8Array(event.data, MUX_HEADER_SIZE);
+        switch (type) {
+            case MUX_OKAY:
+                stream.onOpen(view.getInt32(MUX_HEADER_SIZE));
+                break;
+            case MUX_DATA:
+                stream.onData(payload);
+                break;
+            case MUX_WINDOW:
+                stream.onWindow(view.getInt32(MUX_HEADER_SIZE));
+                break;
+            case MUX_FAIL:
+                console.log("Stream failed", stream.command, new TextDecoder().decode(payload));
+                // Fall through
+            case MUX_CLOSE:
+                this.remove(stream.id);
+                stream.onReceiveClose();
+                break;
+        }
+    }
+
+    #onClose(event) {
+        if (!this.#ready && !this.#closed && event.code != STANDARD_ERROR_CODE
+                && this.#attempts < MUX_CONNECT_ATTEMPTS) {
+            // Dropped before the proxy answered, which doesn't say whether it supports multiplexing.
+            // None of the streams were opened yet, so they carry over to the next connection.
+            setTimeout(() => this.#closed ? this.#onClose(event) : this.#connect(), MUX_RETRY_DELAY_MS);
+            return;
+        }
+        const streams = [...this.#streams.values()];
+        this.#streams.clear();
+        if (this.onDisconnect) {
+            this.onDisconnect();
+        }
+        if (!this.#ready && event.code == STANDARD_ERROR_CODE && this.onUnsupported) {
+            // Older proxies treat the session as an adb service, which adb refuses
+            this.onUnsupported(streams);
+        } else {
+            streams.forEach(s => s.onReceiveClose());
+        }
+    }
+}
+
+class MuxStream extends BaseAdbStream {
+
+    #connection;
+    #sendWindow = 0;
+    #pendingWrites = [];
+    // Bytes received, and those of them acknowledged to the proxy
+    #received = 0;
+    #acknowledged = 0;
+    #closed = false;
+    #fallback = null;
+
+    constructor(connection, id, command, options) {
+        super()
+        this.#connection = connection;
+        this.id = id;
+        this.command = command;
+        this.options = options;
+    }
+
+    async write(data) {
+        if (this.#fallback) {
+            return this.#fallback.write(data);
+        }
+        if (typeof data == "string") {
+            data = new TextEncoder().encode(data);
+        } else if (!(data instanceof Uint8Array)) {
+            data = ArrayBuffer.isView(data)
+                ? new Uint8Array(data.buffer, data.byteOffset, data.byteLength)
+                : new Uint8Array(data);
+        }
+        this.#pendingWrites.push(data);
+        this.#flush();
+    }
+
+    close() {
+        if (this.#fallback) {
+            this.#fallback.close();
+            return;
+        }
+        if (this.#closed) {
+            return;
+        }
+        this.#connection.send(MUX_CLOSE, this.id);
+        this.#connection.remove(this.id);
+        this.onReceiveClose();
+    }
+
+    onOpen(window) {
+        this.onWindow(window);
+    }
+
+    onData(data) {
+        this.#received += data.byteLength;
+        this.onReceiveWrite(data);
+        this.#acknowledge();
+    }
+
+    onRead() {
+        this.#acknowledge();
+    }
+
+    onWindow(credit) {
+        this.#sendWindow += credit;
+        this.#flush();
+    }
+
+    onReceiveClose() {
+        if (this.#closed) {
+            return;
+        }
+        this.#closed = true;
+        this.onReceiveCloseInternal();
+        super.onReceiveClose();
+    }
+
+    onReceiveCloseInternal() { }
+
+    /**
+     * Continues on a websocket of its own, when the proxy doesn't support multiplexing
+     */
+    useFallback(stream) {
+        this.#fallback = stream;
+        stream.onReceiveWrite = data => this.onReceiveWrite(data);
+        stream.onLag = report => this.onLag && this.onLag(report);
+        stream.onClose = () => this.onReceiveClose();
+        this.#pendingWrites.forEach(data => stream.write(data));
+        this.#pendingWrites = [];
+    }
+
+    /**
+     * Returns credit for the data the consumer has taken. Data still buffered in the stream isn't
+     * acknowledged, so that the proxy stops sending once a slow reader falls a window behind.
+     */
+    #acknowledge() {
+        if (this.#fallback || this.#closed) {
+            return;
+        }
+        const consumed = this.#received - this.bufferedLength - this.#acknowledged;
+        if (consumed >= MUX_RECEIVE_WINDOW / 2) {
+            this.#connection.sendInt(MUX_WINDOW, this.id, consumed);
+            this.#acknowledged += consumed;
+        }
+    }
+
+    #flush() {
+        while (this.#pendingWrites.length && this.#sendWindow > 0 && !this.#closed) {
+            const data = this.#pendingWrites[0];
+            const count = Math.min(data.byteLength, this.#sendWindow, MUX_MAX_DATA);
+            this.#connection.send(MUX_DATA, this.id, data.subarray(0, count));
+            this.#sendWindow -= count;
+            if (count == data.byteLength) {
+                this.#pendingWrites.shift();
+            } else {
+                this.#pendingWrites[0] = data.subarray(count);
+            }
+        }
+    }
+}
+
 class WebSocketStream extends BaseAdbStream {
 
     #isOpen = deferred()
@@ -77,6 +545,13 @@ class WebSocketStream extends BaseAdbStream {
     #onMessage(event) {
         // console.log("Data received:", event.data);
         // console.log(new TextDecoder("utf-8").decode(event.data));
+        if (typeof event.data == "string") {
+            // Text messages are lag reports from the proxy, data is always binary
+            if (this.onLag) {
+                this.onLag(JSON.parse(event.data));
+            }
+            return;
+        }
         this.onReceiveWrite(new Uint8Array(event.data));
     }
 
@@ -40,6 +40,8 @@ const CMD_PARSE_OLD_DATA = 2;
 const CMD_USE_PROPERTY_MAP = 4;
 const CMD_DEFLATE_STRING = 8;
 const CMD_SKIP_8_BITS = 16;
+// Hierarchy decoded by the proxy, see parser_columnar.js
+const CMD_COLUMNAR = 32;
 
 const VIEW_VISIBLE = 0;
 const VIEW_CAPTURE_REGEX = /.*\.vc/
@@ -503,7 +503,14 @@ class ViewServiceController {
         }
     }
     async loadViewList() {
-        const stream = this.device.openStream("tcp:4939");
+        const tree = this.device.dumpViewTree ? await this.device.dumpViewTree(this.id) : null;
+        if (tree) {
+            const result = deferred();
+            parseViewData(tree, CMD_COLUMNAR | CMD_USE_PROPERTY_MAP, result);
+            return await result;
+        }
+
+        const stream = this.device.openStream("tcp:4939", BULK_STREAM);
 
         // Sometime the stream doesn't close, so close forcefully
         let responseMerger = new TextResponseMerger();
@@ -515,7 +522,7 @@ class ViewServiceController {
         return await result;
     }
     captureView(viewName) {
-        const stream = this.device.openStream("tcp:4939");
+        const stream = this.device.openStream("tcp:4939", BULK_STREAM);
         stream.write("CAPTURE " + this.id + " " + viewName + "\n");
         return stream.readAll(new ByteResponseMerger());
     }
@@ -573,7 +580,14 @@ class JdwpController {
         const reader = await this.jdwp.writeChunk("VURT", req);
         throwIfFail(reader);
         const result = deferred();
-        parseViewData(reader.data, cmd, result);
+        // The reply starts with the chunk's type and length
+        const tree = this.device.decodeViewTree
+            ? await this.device.decodeViewTree(reader.data.subarray(8), this.use_new_api ? "v2" : "v1") : null;
+        if (tree) {
+            parseViewData(tree, CMD_COLUMNAR | (this.use_new_api ? 0 : CMD_USE_PROPERTY_MAP), result);
+        } else {
+            parseViewData(reader.data, cmd, result);
+        }
         return await result;
     }
     async captureView(viewName) {
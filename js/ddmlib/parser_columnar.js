@@ -0,0 +1,91 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// Reads a view hierarchy which the proxy already decoded. Nodes come in pre-order with their
+// properties sorted, and every string is stored once, see ViewTree in the proxy for the layout.
+
+const COLUMNAR_MAGIC = "TREE";
+const COLUMNAR_VERSION = 1;
+const COLUMNAR_FORMAT_V2 = 2;
+const COLUMNAR_HEADER_SIZE = 36;
+
+const parseNode = function(data) {
+    if (data.byteOffset % 4 != 0) {
+        data = data.slice();
+    }
+    if (String.fromCharCode.apply(null, data.subarray(0, 4)) != COLUMNAR_MAGIC) {
+        throw "Invalid data";
+    }
+    const [version, format, nodeCount, propertyCount, stringCount, stringBytes, windowX, windowY] =
+        new Int32Array(data.buffer, data.byteOffset + 4, 8);
+    if (version != COLUMNAR_VERSION) {
+        throw "Unsupported version " + version;
+    }
+
+    let offset = data.byteOffset + COLUMNAR_HEADER_SIZE;
+    const column = function(length) {
+        const result = new Int32Array(data.buffer, offset, length);
+        offset += 4 * length;
+        return result;
+    }
+    const parents = column(nodeCount);
+    const names = column(nodeCount);
+    const propertyStarts = column(nodeCount + 1);
+    const keys = column(propertyCount);
+    const values = column(propertyCount);
+    const stringEnds = column(stringCount);
+    const text = new Uint8Array(data.buffer, offset, stringBytes);
+
+    const decoder = new TextDecoder();
+    const strings = new Array(stringCount);
+    let start = 0;
+    for (let i = 0; i < stringCount; i++) {
+        strings[i] = decoder.decode(text.subarray(start, stringEnds[i]));
+        start = stringEnds[i];
+    }
+    // The binary format keeps numbers as numbers, which the proxy wrote out like toString does
+    const typedValues = format == COLUMNAR_FORMAT_V2
+        ? strings.map(s => s != "" && String(Number(s)) == s ? Number(s) : s)
+        : strings;
+
+    // Keys are split into type and name once, properties only copy them
+    const templates = [];
+    const nodes = new Array(nodeCount);
+    for (let i = 0; i < nodeCount; i++) {
+        const node = new ViewNode(strings[names[i]]);
+        for (let p = propertyStarts[i]; p < propertyStarts[i + 1]; p++) {
+            const template = templates[keys[p]] || (templates[keys[p]] = new VN_Property(strings[keys[p]]));
+            const property = {
+                name: template.name,
+                value: typedValues[values[p]],
+                type: template.type,
+                fullname: template.fullname
+            };
+            node.properties.push(property);
+            node.namedProperties[property.name] = property;
+        }
+        node.loadCommonProperties(commonProps);
+        nodes[i] = node;
+        if (parents[i] >= 0) {
+            nodes[parents[i]].children.push(node);
+        }
+    }
+
+    const root = nodes[0];
+    if (windowX != INT_MIN_VALUE && windowY != INT_MIN_VALUE) {
+        root.windowX = windowX;
+        root.windowY = windowY;
+    }
+    return root;
+}
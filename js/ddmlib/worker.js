@@ -20,6 +20,7 @@ const CMD_PARSE_OLD_DATA = 2;
 const CMD_USE_PROPERTY_MAP = 4;
 const CMD_DEFLATE_STRING = 8;
 const CMD_SKIP_8_BITS = 16;
+const CMD_COLUMNAR = 32;
 
 let commonProps = null;
 
@@ -73,7 +74,9 @@ self.onmessage = function(e) {
         }
     }
 
-    if ((cmd & CMD_PARSE_OLD_DATA) != 0) {
+    if ((cmd & CMD_COLUMNAR) != 0) {
+        importScripts("parser_columnar.js");
+    } else if ((cmd & CMD_PARSE_OLD_DATA) != 0) {
         importScripts("parser_v1.js");
     } else {
         importScripts("DataInputStream.js");
@@ -233,6 +233,8 @@ const deviceMirrorAction = async function(extendDisplay) {
     const playerContainer = $("#dmirrorview .frame").empty()
     const videoMessage = $("<div>").text("If the video does not apper, try redrawing the screen by interacting with the device")
         .appendTo(playerContainer)
+    const lagMessage = $("<div>").text("Connection is slow, skipping ahead to catch up").hide()
+        .appendTo(playerContainer)
     // playerContainer.find("video, canvas").remove()
     const player = window.VideoDecoder ? createDecoderPlayer(playerContainer) : createJmuxPlayer(playerContainer);
 
@@ -338,6 +340,10 @@ const deviceMirrorAction = async function(extendDisplay) {
     }
     $(window).resize(player.onMetadata);
 
+    function onLag(report) {
+        lagMessage.toggle(report.lagMs >= 1000);
+    }
+
     player.onFirstFrame = function() {
         $("#main-progress").hide();
         videoMessage.remove();
@@ -377,12 +383,13 @@ const deviceMirrorAction = async function(extendDisplay) {
                 return;
             }
             console.log("Connecting to device stream");
-            const stream = adbDevice.openStream(`shell:screenrecord ${sizeArg} --output-format=h264 - `);
+            const stream = adbDevice.openStream(`shell:screenrecord ${sizeArg} --output-format=h264 - `, VIDEO_STREAM);
             stream.onReceiveWrite = function (frameData) {
                 stream.sendReady();
                 player.feed(frameData);
             };
 
+            stream.onLag = onLag;
             stream.onClose = connectStream;
             stream.sendReady();
         }
@@ -400,12 +407,13 @@ const deviceMirrorAction = async function(extendDisplay) {
                 return;
             }
             console.log("Connecting to device stream");
-            result.stream = adbDevice.openStream(`shell:export CLASSPATH=/data/local/tmp/inputserver.jar;exec app_process /system/bin DisplayServer ${extendDisplay.width} ${extendDisplay.height} ${extendDisplay.dpi}`);
+            result.stream = adbDevice.openStream(`shell:export CLASSPATH=/data/local/tmp/inputserver.jar;exec app_process /system/bin DisplayServer ${extendDisplay.width} ${extendDisplay.height} ${extendDisplay.dpi}`, VIDEO_STREAM);
             result.stream.onReceiveWrite = function (frameData) {
                 result.stream.sendReady();
                 player.feed(frameData);
             };
 
+            result.stream.onLag = onLag;
             result.stream.onClose = connectStream;
             result.stream.sendReady();
         }
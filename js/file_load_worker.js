@@ -17,17 +17,65 @@ importScripts("constants.js");
 importScripts("utils.js")
 
 self.onmessage = function(e) {
+    const onError = function(e) {
+        postMessage({type: TYPE_ERROR, message: e + ""});
+    };
+    if (e.data.url && e.data.snapshot !== undefined) {
+        // Snapshot archive of the proxy, see WebProxyDevice.openSnapshots
+        loadArchivedSnapshot(e.data).catch(onError);
+        return;
+    }
+    if (e.data.url) {
+        // File pulled through the proxy, see WebProxyDevice.pullFile
+        loadPulledFile(e.data).catch(onError);
+        return;
+    }
     const reader = new FileReader();
     reader.onload = function () {
-        handleLoadFile(reader).catch(function(e) {
-            postMessage({type: TYPE_ERROR, message: e + ""});
-        });
+        handleLoadFile(new JSZip(reader.result), async () => reader.result).catch(onError);
     }
     reader.readAsArrayBuffer(e.data);
 }
 
-async function handleLoadFile(reader) {
-    const zip = new JSZip(reader.result);
+/**
+ * Loads a file served with Range support, only fetching the archive entries which are used
+ */
+async function loadPulledFile(file) {
+    let zip;
+    try {
+        zip = await RemoteZip.open(file.url, file.size);
+    } catch (e) {
+        // Let JSZip have a go at the whole file
+        const data = await fetchRange(file.url, 0, file.size);
+        return handleLoadFile(new JSZip(data), async () => data);
+    }
+    await zip.prefetch(isUsedEntry);
+    return handleLoadFile(zip, () => fetchRange(file.url, 0, file.size));
+}
+
+/**
+ * Loads one snapshot of the proxy's snapshot archive, only fetching the records it is made of
+ */
+async function loadArchivedSnapshot(file) {
+    const archive = await SnapshotArchive.open(file.url, file.size);
+    const zip = await archive.load(file.snapshot);
+    return handleLoadFile(zip, async () => zip.generate({ type: "arraybuffer" }));
+}
+
+/**
+ * Returns whether handleLoadFile reads the contents of an archive entry
+ */
+function isUsedEntry(name) {
+    const traceDir = WM_TRACE_DIR + "/";
+    return name == "visible_windows.zip" || name == "config.json" || /^bugreport/.test(name)
+        || (name.startsWith(traceDir) && VIEW_CAPTURE_REGEX.test(name.substring(traceDir.length)));
+}
+
+/**
+ * @param zip JSZip, or a RemoteZip with the used entries prefetched
+ * @param loadAll returns the whole file as an ArrayBuffer
+ */
+async function handleLoadFile(zip, loadAll) {
 
     // Try loading as bug report
     {
@@ -63,13 +111,11 @@ async function handleLoadFile(reader) {
     }
 
     const config = JSON.parse(zip.file("config.json").asText());
-    const appInfo = { type: TYPE_ZIP, data: reader.result, config: config, name: config.title };
-
     if (config.version != 1 || !config.title || zip.file("hierarchy.txt") == null) {
         throw "Missing data"
     }
 
-    postMessage(appInfo);
+    postMessage({ type: TYPE_ZIP, data: await loadAll(), config: config, name: config.title });
 }
 
 function loadTimeLapseFiles(zip, list) {
@@ -262,3 +308,396 @@ function newLiner(data /* array buffer */) {
         next: consumeNextLine
     }
 }
+
+
+async function fetchRange(url, start, end) {
+    if (start >= end) {
+        return new ArrayBuffer(0);
+    }
+    const response = await fetch(url, { headers: { Range: `bytes=${start}-${end - 1}` } });
+    if (response.status != 206 && response.status != 200) {
+        throw "Unable to read file: " + response.status;
+    }
+    const data = await response.arrayBuffer();
+    // The whole file comes back if the range was ignored
+    return response.status == 200 ? data.slice(start, end) : data;
+}
+
+/**
+ * Reads a zip file over HTTP Range requests, fetching the central directory and then only the
+ * entries asked for. Supports the part of the JSZip API used above, for prefetched entries.
+ */
+class RemoteZip {
+
+    #url;
+    #entries;
+
+    constructor(url, entries) {
+        this.#url = url;
+        this.#entries = entries;
+    }
+
+    static async open(url, size) {
+        // The end of central directory record is last, followed by a comment of up to 64k
+        const tailStart = Math.max(0, size - 22 - 0xffff);
+        const tail = new DataView(await fetchRange(url, tailStart, size));
+        let pos = tail.byteLength - 22;
+        while (pos >= 0 && tail.getUint32(pos, true) != 0x06054b50) {
+            pos--;
+        }
+        if (pos < 0) {
+            throw "Not a zip file";
+        }
+        const count = tail.getUint16(pos + 10, true);
+        const dirSize = tail.getUint32(pos + 12, true);
+        const dirOffset = tail.getUint32(pos + 16, true);
+        if (count == 0xffff || dirOffset == 0xffffffff) {
+            throw "Zip64 is not supported";
+        }
+
+        const dir = new DataView(await fetchRange(url, dirOffset, dirOffset + dirSize));
+        const decoder = new TextDecoder();
+        const entries = [];
+        pos = 0;
+        for (let i = 0; i < count; i++) {
+            if (dir.getUint32(pos, true) != 0x02014b50) {
+                throw "Invalid central directory";
+            }
+            const nameLength = dir.getUint16(pos + 28, true);
+            entries.push(new RemoteZipEntry(
+                decoder.decode(new Uint8Array(dir.buffer, pos + 46, nameLength)),
+                dir.getUint16(pos + 10, true),
+                dir.getUint32(pos + 20, true),
+                dir.getUint32(pos + 42, true)));
+            pos += 46 + nameLength + dir.getUint16(pos + 30, true) + dir.getUint16(pos + 32, true);
+        }
+        return new RemoteZip(url, entries);
+    }
+
+    /**
+     * Fetches the data of all entries whose name passes the filter
+     */
+    prefetch(filter) {
+        return Promise.all(this.#entries.filter(e => filter(e.name)).map(e => e.load(this.#url)));
+    }
+
+    file(name) {
+        if (name instanceof RegExp) {
+            return this.#entries.filter(e => !e.name.endsWith("/") && name.test(e.name));
+        }
+        return this.#entries.find(e => e.name == name) || null;
+    }
+
+    folder(name) {
+        const root = name + "/";
+        return {
+            file: regex => this.#entries.filter(e => e.name.startsWith(root) && !e.name.endsWith("/")
+                && regex.test(e.name.substring(root.length)))
+        };
+    }
+}
+
+class RemoteZipEntry {
+
+    #data = null;
+
+    constructor(name, method, compressedSize, offset) {
+        this.name = name;
+        this.method = method;
+        this.compressedSize = compressedSize;
+        this.offset = offset;
+    }
+
+    async load(url) {
+        // The local header repeats the name, and can have a different extra field
+        const header = new DataView(await fetchRange(url, this.offset, this.offset + 30));
+        const start = this.offset + 30 + header.getUint16(26, true) + header.getUint16(28, true);
+        const data = new Uint8Array(await fetchRange(url, start, start + this.compressedSize));
+        if (this.method == 0) {
+            this.#data = data;
+        } else if (this.method == 8) {
+            this.#data = JSZip.compressions.DEFLATE.uncompress(data);
+        } else {
+            throw "Unsupported compression in " + this.name;
+        }
+    }
+
+    asUint8Array() {
+        if (!this.#data) {
+            throw "Not loaded: " + this.name;
+        }
+        return this.#data;
+    }
+
+    asArrayBuffer() {
+        const data = this.asUint8Array();
+        return data.byteOffset == 0 && data.byteLength == data.buffer.byteLength ? data.buffer : data.slice().buffer;
+    }
+
+    asText() {
+        return new TextDecoder().decode(this.asUint8Array());
+    }
+}
+
+/**
+ * Reads hierarchies saved in the proxy's snapshot archive over HTTP Range requests, fetching the
+ * footer which lists the snapshots and then only the records of the snapshot asked for. See
+ * SnapshotArchive in the proxy for the format.
+ */
+class SnapshotArchive {
+
+    static #TRAILER_SIZE = 16;
+    static #HASH_SIZE = 16;
+    // Records this close are fetched in one request. Those of a snapshot are spread over the
+    // snapshots which added them, so a larger gap mostly fetches records of other snapshots.
+    static #MERGE_GAP = 4 * 1024;
+
+    #url;
+    #dictionary = null;
+
+    constructor(url, snapshots) {
+        this.#url = url;
+        /** {time, title} of every snapshot, oldest first */
+        this.snapshots = snapshots;
+    }
+
+    static async open(url, size) {
+        // The footer is small, so that it mostly comes with the trailer
+        const tailStart = Math.max(0, size - 65536);
+        const tail = new Uint8Array(await fetchRange(url, tailStart, size));
+        const trailer = new ByteReader(tail);
+        trailer.pos = tail.length - SnapshotArchive.#TRAILER_SIZE;
+        if (trailer.pos < 0) {
+            throw "Not a snapshot archive";
+        }
+        const footerOffset = trailer.int64();
+        const version = trailer.int32();
+        if (version != 1 || new TextDecoder().decode(trailer.bytes(4)) != "WHSA") {
+            throw "Not a snapshot archive";
+        }
+        const footerEnd = size - SnapshotArchive.#TRAILER_SIZE;
+        const footer = new ByteReader(footerOffset >= tailStart
+            ? tail.subarray(footerOffset - tailStart, footerEnd - tailStart)
+            : new Uint8Array(await fetchRange(url, footerOffset, footerEnd)));
+
+        const dictionary = [footer.varint(), footer.varint()];
+        const snapshots = [];
+        for (let count = footer.varint(); count > 0; count--) {
+            snapshots.push({
+                time: footer.int64(),
+                title: footer.string(),
+                manifest: [footer.varint(), footer.varint()]
+            });
+        }
+        const archive = new SnapshotArchive(url, snapshots);
+        if (dictionary[1] > 0) {
+            [archive.#dictionary] = await archive.#fetchRecords([dictionary]);
+        }
+        return archive;
+    }
+
+    /**
+     * Rebuilds a snapshot as the zip file it was saved as
+     */
+    async load(index) {
+        const snapshot = this.snapshots[index];
+        if (!snapshot) {
+            throw "No snapshot " + index;
+        }
+        const [manifestData] = await this.#fetchRecords([snapshot.manifest]);
+        const manifest = new ByteReader(manifestData);
+        const hierarchy = new Uint8Array(manifest.varint());
+        const roots = SnapshotArchive.#readPieces(manifest, 0);
+        const files = [];
+        for (let count = manifest.varint(); count > 0; count--) {
+            files.push({ name: manifest.string(), record: [manifest.varint(), manifest.varint()] });
+        }
+
+        const fileData = this.#fetchRecords(files.map(f => f.record));
+        // Node records list their children, so the tree is fetched a level at a time
+        for (let level = roots; level.length > 0; ) {
+            const data = await this.#fetchRecords(level.map(p => p.record));
+            const next = [];
+            level.forEach((piece, i) => {
+                piece.data = data[i];
+                if (piece.node) {
+                    const reader = new ByteReader(data[i]);
+                    piece.line = reader.bytes(reader.varint());
+                    piece.children = SnapshotArchive.#readPieces(reader, piece.indent);
+                    next.push(...piece.children);
+                }
+            });
+            level = next;
+        }
+
+        // A last line without newline was saved with one, which is cut off by the known size
+        let pos = 0;
+        const indent = count => {
+            const end = Math.min(hierarchy.length, pos + count);
+            hierarchy.fill(32, pos, end);
+            pos = end;
+        };
+        const put = bytes => {
+            const count = Math.min(bytes.length, hierarchy.length - pos);
+            hierarchy.set(bytes.subarray(0, count), pos);
+            pos += count;
+        };
+        const write = piece => {
+            if (piece.node) {
+                indent(piece.indent);
+                put(piece.line);
+                put(new Uint8Array([10]));
+                piece.children.forEach(write);
+                return;
+            }
+            for (let start = 0; start < piece.data.length; ) {
+                const end = piece.data.indexOf(10, start) + 1;
+                if (end == 0) {
+                    throw "Invalid data";
+                }
+                indent(piece.indent);
+                put(piece.data.subarray(start, end));
+                start = end;
+            }
+        };
+        roots.forEach(write);
+        if (pos != hierarchy.length) {
+            throw "Invalid data";
+        }
+
+        const zip = new JSZip();
+        zip.file("hierarchy.txt", hierarchy);
+        (await fileData).forEach((data, i) => zip.file(files[i].name, data));
+        return zip;
+    }
+
+    static #readPieces(reader, indent) {
+        const pieces = [];
+        for (let count = reader.varint(); count > 0; count--) {
+            const pieceIndent = indent + reader.varint();
+            const offset = reader.varint();
+            const lengthAndKind = reader.varint();
+            pieces.push({
+                indent: pieceIndent,
+                record: [offset, Math.floor(lengthAndKind / 2)],
+                node: lengthAndKind % 2 == 1
+            });
+        }
+        return pieces;
+    }
+
+    /**
+     * Fetches and inflates records given as [offset, length], in the same order
+     */
+    async #fetchRecords(records) {
+        const order = records.map((r, i) => i).sort((a, b) => records[a][0] - records[b][0]);
+        const ranges = [];
+        for (const i of order) {
+            const [offset, length] = records[i];
+            const last = ranges[ranges.length - 1];
+            if (last && offset <= last.end + SnapshotArchive.#MERGE_GAP) {
+                last.end = Math.max(last.end, offset + length);
+                last.records.push(i);
+            } else {
+                ranges.push({ start: offset, end: offset + length, records: [i] });
+            }
+        }
+        const result = new Array(records.length);
+        await Promise.all(ranges.map(async range => {
+            const data = new Uint8Array(await fetchRange(this.#url, range.start, range.end));
+            for (const i of range.records) {
+                const start = records[i][0] - range.start;
+                result[i] = this.#decodeRecord(data.subarray(start, start + records[i][1]));
+            }
+        }));
+        return result;
+    }
+
+    #decodeRecord(record) {
+        const reader = new ByteReader(record);
+        reader.pos = 1 + SnapshotArchive.#HASH_SIZE;
+        const size = reader.varint();
+        const data = reader.bytes(reader.varint());
+        let result;
+        if (record[0] == 0) {
+            result = data;
+        } else if (record[0] == 8) {
+            result = inflateWithDictionary(data, this.#dictionary);
+        } else {
+            throw "Unsupported record";
+        }
+        if (result.length != size) {
+            throw "Invalid data";
+        }
+        return result;
+    }
+}
+
+/**
+ * Inflates raw deflate data compressed with a preset dictionary. The inflater takes no
+ * dictionary, so it is put in front as a stored block instead, and cut from the output.
+ */
+function inflateWithDictionary(data, dictionary) {
+    if (!dictionary || dictionary.length == 0) {
+        return JSZip.compressions.DEFLATE.uncompress(data);
+    }
+    const input = new Uint8Array(5 + dictionary.length + data.length);
+    // Block header of a stored block which isn't the last, then its length and the complement
+    input[1] = dictionary.length & 0xff;
+    input[2] = dictionary.length >> 8;
+    input[3] = ~input[1];
+    input[4] = ~input[2];
+    input.set(dictionary, 5);
+    input.set(data, 5 + dictionary.length);
+    return JSZip.compressions.DEFLATE.uncompress(input).subarray(dictionary.length);
+}
+
+/**
+ * Reads little-endian values and varints from a Uint8Array
+ */
+class ByteReader {
+
+    constructor(data) {
+        this.data = data;
+        this.pos = 0;
+    }
+
+    varint() {
+        let result = 0;
+        let scale = 1;
+        let b;
+        do {
+            if (this.pos >= this.data.length) {
+                throw "Invalid data";
+            }
+            b = this.data[this.pos++];
+            result += (b & 0x7f) * scale;
+            scale *= 128;
+        } while (b & 0x80);
+        return result;
+    }
+
+    int32() {
+        const bytes = this.bytes(4);
+        return new DataView(bytes.buffer, bytes.byteOffset, 4).getInt32(0, true);
+    }
+
+    int64() {
+        const bytes = this.bytes(8);
+        const view = new DataView(bytes.buffer, bytes.byteOffset, 8);
+        return view.getUint32(0, true) + view.getInt32(4, true) * 2 ** 32;
+    }
+
+    bytes(length) {
+        if (length > this.data.length - this.pos) {
+            throw "Invalid data";
+        }
+        const result = this.data.subarray(this.pos, this.pos + length);
+        this.pos += length;
+        return result;
+    }
+
+    string() {
+        return new TextDecoder().decode(this.bytes(this.varint()));
+    }
+}
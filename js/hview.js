@@ -1412,6 +1412,12 @@ $(function () {
         let title = currentAppInfo.name.split(".");
         title = title[title.length - 1];
         saveFile(title + "-hierarchy.zip", createUrl(zip.generate({ type: "blob" })));
+
+        if (viewController && viewController.device && viewController.device.saveSnapshot) {
+            // Also keep it in the proxy's archive, where consecutive snapshots take little space
+            viewController.device.saveSnapshot(zip.generate({ type: "uint8array" }), currentAppInfo.name)
+                .catch(e => console.log("Unable to archive snapshot", e));
+        }
     };
 
     /** ********************** Tabs ********************** */
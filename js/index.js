@@ -25,29 +25,7 @@ $(function () {
 		if (!this.files || this.files.length < 1) {
 			return;
 		}
-		progress.show();
-		const w = createWorker("js/file_load_worker.js");
-		w.onerror = function(e) {
-			progress.hide();
-			toast("Not a valid view hierarchy file: " + e.message);
-		};
-		w.onmessage = function (e) {
-			if (e.data.type == TYPE_BUG_REPORT) {
-				activityListAction(function(callbacks) {
-					callbacks.windowsLoaded(e.data.list);
-				})
-			} else if (e.data.type == TYPE_ZIP) {
-				const appInfo = e.data;
-				appInfo.data = new JSZip(appInfo.data);
-				hViewAction(appInfo);
-			} else if (e.data.type == TYPE_ERROR) {
-				w.onerror(e.data);
-			} else {
-				progress.hide();
-				toast("Unknown response " + e.data.type);
-			}
-		}
-		w.postMessage(this.files[0]);
+		loadHierarchyFile(this.files[0]);
 	}
 	$("#hierarchy-picker-input").on("change", loadFile);
 	const pickerButton = $("#hierarchy-picker")
@@ -109,8 +87,34 @@ function trackProxyDevices() {
 		trackingSocketConnection.close();
 	}
 
-	var w = new WebSocket("ws://localhost:8000/track-devices", [authKey]);
-	w.onmessage = refreshProxyDevices.bind(null, authKey);
+	// The messages form a stream of full device lists, each prefixed by its length in hex. A
+	// message can carry several lists, or only part of one, so only complete lists are shown.
+	var w = new WebSocket("ws://localhost:8000/track-devices-l", [authKey]);
+	w.binaryType = "arraybuffer";
+	var pending = new Uint8Array(0);
+	w.onmessage = function (e) {
+		const data = new Uint8Array(e.data);
+		const buffer = new Uint8Array(pending.length + data.length);
+		buffer.set(pending);
+		buffer.set(data, pending.length);
+
+		let offset = 0;
+		let latest = null;
+		while (buffer.length - offset >= 4) {
+			const length = parseInt(new TextDecoder().decode(buffer.subarray(offset, offset + 4)), 16);
+			if (isNaN(length)) {
+				w.close();
+				return;
+			}
+			if (buffer.length - offset - 4 < length) break;
+			latest = buffer.subarray(offset + 4, offset + 4 + length);
+			offset += 4 + length;
+		}
+		pending = buffer.slice(offset);
+		if (latest) {
+			showProxyDevices(authKey, new TextDecoder().decode(latest));
+		}
+	}
 
 	var howProxyHelp = function() {
 		$("#proxy-devices").empty();
@@ -128,11 +132,8 @@ function trackProxyDevices() {
 	trackingSocketConnection = w;
 }
 
-async function refreshProxyDevices(authKey) {
-	var s = new WebSocketStream(new WebSocket("ws://localhost:8000/devices-l", [authKey]));
-	var response = await s.readAll();
-
-	var devices = response.substring(4).split("\n");
+function showProxyDevices(authKey, list) {
+	var devices = list.split("\n");
 
 	const container = $("#proxy-devices").empty();
 	$("#proxy_input, #proxy-devices-title").hide();
@@ -277,4 +278,43 @@ function isDarkTheme() {
 $.fn.showError = function(msg) {
   $("#main-progress").hide();
   return this.empty().removeClass("hide").removeClass("hidden").append($("<span>").text(msg).addClass("error"));
-}
\ No newline at end of file
+}
+/**
+ * Loads a view hierarchy export or bug report
+ * @param file a File, or a file pulled with WebProxyDevice.pullFile which is then only read
+ *     in the parts that are used, and released once loaded. The snapshot archive opened with
+ *     WebProxyDevice.openSnapshots is read the same way, with the index of a snapshot set as
+ *     file.snapshot.
+ */
+function loadHierarchyFile(file) {
+	progress.show();
+	const w = createWorker("js/file_load_worker.js");
+	const release = function() {
+		if (file.close) {
+			file.close();
+		}
+	};
+	w.onerror = function(e) {
+		release();
+		progress.hide();
+		toast("Not a valid view hierarchy file: " + e.message);
+	};
+	w.onmessage = function (e) {
+		release();
+		if (e.data.type == TYPE_BUG_REPORT) {
+			activityListAction(function(callbacks) {
+				callbacks.windowsLoaded(e.data.list);
+			})
+		} else if (e.data.type == TYPE_ZIP) {
+			const appInfo = e.data;
+			appInfo.data = new JSZip(appInfo.data);
+			hViewAction(appInfo);
+		} else if (e.data.type == TYPE_ERROR) {
+			w.onerror(e.data);
+		} else {
+			progress.hide();
+			toast("Unknown response " + e.data.type);
+		}
+	}
+	w.postMessage(file.url ? { url: file.url, size: file.size, snapshot: file.snapshot } : file);
+}
@@ -0,0 +1,304 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in for the adb server, which runs in-process for benchmarks or on its own with
+ * {@link #main} so that a proxy can be pointed at it. Lists a fixed number of devices, accepts
+ * a transport to any serial and supports these services:
+ * <ul>
+ *     <li>{@code echo}: sends back everything it receives</li>
+ *     <li>{@code bulk:<bytes>}: sends the given number of zero bytes and closes the stream</li>
+ *     <li>{@code text:<bytes>}: sends the given number of bytes of dump-like text and closes
+ *     the stream</li>
+ *     <li>{@code video:<fps>:<bytes>}: sends H.264-like access units at a fixed rate until the
+ *     stream is closed, see {@link #sendVideo}</li>
+ *     <li>{@code shell:<command>}: sends a line of output after {@link #SHELL_MILLIS}, standing in
+ *     for the command running on the device, and closes the stream</li>
+ *     <li>{@code tcp:4939}: the view server, which answers {@code DUMP <nodes>} with the text
+ *     dump of a generated hierarchy of that many nodes, see {@link HierarchyGenerator}</li>
+ * </ul>
+ */
+class FakeAdbServer implements Closeable {
+
+    /** Offset of the send time in every video access unit, after the NAL and slice headers */
+    static final int VIDEO_STAMP_OFFSET = 6;
+    /** Bytes of the send time, see {@link #stampAge} */
+    static final int VIDEO_STAMP_SIZE = 8;
+    /** Key frames are this many times the size of other frames */
+    static final int KEY_FRAME_SCALE = 4;
+    /** Time a shell command takes */
+    static final int SHELL_MILLIS = 5;
+
+    private static final byte[] OKAY = "OKAY".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+    private static final byte[] TEXT = ProxyBenchmark.randomText(65536);
+
+    private final ServerSocket server;
+    // Device line in long format, keyed by serial
+    private final Map<String, String> devices = new LinkedHashMap<>();
+    private final AtomicLong connections = new AtomicLong();
+    // View server dumps by node count
+    private final Map<Integer, byte[]> dumps = new ConcurrentHashMap<>();
+
+    FakeAdbServer() throws IOException {
+        this(0, 1);
+    }
+
+    FakeAdbServer(int port, int deviceCount) throws IOException {
+        for (int i = 1; i <= deviceCount; i++) {
+            devices.put("fake-" + i, "fake-" + i + " device product:fake model:fake device:fake");
+        }
+        server = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+        Thread acceptThread = new Thread(this::acceptLoop, "fake-adb");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Serves on the given port, 5037 by default, until killed
+     */
+    public static void main(String[] args) throws Exception {
+        int port = ProxyServer.ADB_PORT;
+        int deviceCount = 1;
+        for (String arg : args) {
+            if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--devices=")) {
+                deviceCount = Integer.parseInt(arg.substring("--devices=".length()));
+            } else {
+                System.out.println("Usage: FakeAdbServer [--port=N] [--devices=N]");
+                return;
+            }
+        }
+        FakeAdbServer adb = new FakeAdbServer(port, deviceCount);
+        System.out.println("Fake adb server at " + adb.getPort() + " with " + deviceCount + " devices");
+        Thread.currentThread().join();
+    }
+
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Returns the number of connections accepted so far, which is the load on a real adb server
+     */
+    long getConnections() {
+        return connections.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+
+    private void acceptLoop() {
+        try {
+            while (true) {
+                Socket socket = server.accept();
+                connections.incrementAndGet();
+                Thread thread = new Thread(() -> serve(socket), "fake-adb-stream");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException e) {
+            // Closed
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+            String command = readRequest(in);
+            if (command == null) {
+                return;
+            }
+            if (command.startsWith("host:transport:")) {
+                out.write(OKAY);
+                out.flush();
+                command = readRequest(in);
+                if (command == null) {
+                    return;
+                }
+            } else if (command.startsWith("host:")) {
+                serveHost(command.substring("host:".length()), in, out);
+                return;
+            }
+
+            if (command.equals("echo")) {
+                out.write(OKAY);
+                out.flush();
+                in.transferTo(out);
+            } else if (command.startsWith("bulk:")) {
+                out.write(OKAY);
+                sendBulk(out, new byte[65536], Long.parseLong(command.substring("bulk:".length())));
+            } else if (command.startsWith("text:")) {
+                out.write(OKAY);
+                sendBulk(out, TEXT, Long.parseLong(command.substring("text:".length())));
+            } else if (command.startsWith("video:")) {
+                String[] parts = command.split(":");
+                out.write(OKAY);
+                out.flush();
+                sendVideo(out, Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+            } else if (command.startsWith("shell:")) {
+                out.write(OKAY);
+                out.flush();
+                Thread.sleep(SHELL_MILLIS);
+                out.write((command.substring("shell:".length()) + ": fake output\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            } else if (command.equals("tcp:4939")) {
+                out.write(OKAY);
+                out.flush();
+                String request = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)).readLine();
+                if (request != null && request.startsWith("DUMP ")) {
+                    int nodes = Integer.parseInt(request.substring("DUMP ".length()).trim());
+                    out.write(dumps.computeIfAbsent(nodes, n -> new HierarchyGenerator(n, n).v1()));
+                    out.flush();
+                }
+            } else {
+                fail(out, "unknown service " + command);
+            }
+        } catch (IOException | RuntimeException | InterruptedException e) {
+            // Stream closed by the proxy, or a malformed request
+        }
+    }
+
+    private void serveHost(String command, InputStream in, OutputStream out) throws IOException {
+        switch (command) {
+            case "devices":
+            case "devices-l":
+            case "track-devices":
+            case "track-devices-l":
+                String list = DeviceTracker.format(devices, command.endsWith("-l"));
+                out.write(("OKAY" + ProxyServer.prefixLength(list)).getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                if (command.startsWith("track-")) {
+                    // The list never changes
+                    while (in.read() != -1);
+                }
+                return;
+            default:
+                fail(out, "unknown host service " + command);
+        }
+    }
+
+    private static void sendBulk(OutputStream out, byte[] data, long remaining) throws IOException {
+        while (remaining > 0) {
+            int count = (int) Math.min(data.length, remaining);
+            out.write(data, 0, count);
+            remaining -= count;
+        }
+        out.flush();
+    }
+
+    /**
+     * Sends an access unit every 1/fps seconds. Every second starts with a key frame access unit
+     * of {@link #KEY_FRAME_SCALE} times {@code size} bytes, holding SPS, PPS and IDR NAL units, and
+     * the rest are {@code size} byte non-IDR slices. Every access unit holds {@link System#nanoTime}
+     * at the time it is written at {@link #VIDEO_STAMP_OFFSET}, so that a client in the same
+     * process can measure latency by counting bytes. A slow reader delays the
+     * following frames, which are then sent back to back until the schedule is met again.
+     */
+    static void sendVideo(OutputStream out, int fps, int size) throws IOException {
+        size = Math.max(size, 32);
+        byte[] keyFrame = accessUnit(true, size * KEY_FRAME_SCALE);
+        byte[] frame = accessUnit(false, size);
+        out = new BufferedOutputStream(out, keyFrame.length);
+        long period = 1_000_000_000L / fps;
+        long next = System.nanoTime();
+        for (long index = 0; ; index++) {
+            long delay = next - System.nanoTime();
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay / 1_000_000, (int) (delay % 1_000_000));
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            byte[] unit = index % fps == 0 ? keyFrame : frame;
+            long now = System.nanoTime();
+            for (int i = 0; i < VIDEO_STAMP_SIZE; i++) {
+                unit[VIDEO_STAMP_OFFSET + i] = (byte) (0x80 | now >>> 7 * (VIDEO_STAMP_SIZE - 1 - i) & 0x7f);
+            }
+            out.write(unit);
+            out.flush();
+            next += period;
+        }
+    }
+
+    /**
+     * Returns the time since a stamp was written, given its bytes in big endian order. Stamps
+     * carry 7 bits per byte with the top bit set, so that they never contain a start code.
+     */
+    static long stampAge(byte[] stamp, int offset, long nanos) {
+        long value = 0;
+        for (int i = 0; i < VIDEO_STAMP_SIZE; i++) {
+            value = value << 7 | stamp[offset + i] & 0x7f;
+        }
+        return nanos - value & (1L << 7 * VIDEO_STAMP_SIZE) - 1;
+    }
+
+    private static byte[] accessUnit(boolean key, int size) {
+        byte[] unit = new byte[size];
+        // Filler without zero bytes, so that it never looks like a start code
+        Arrays.fill(unit, (byte) 0x5a);
+        ByteBuffer buffer = ByteBuffer.wrap(unit);
+        if (key) {
+            // SPS carrying the time stamp, PPS, then the IDR slice fills the rest
+            buffer.put(START_CODE).put((byte) 0x67).put((byte) 0x42).position(VIDEO_STAMP_OFFSET + 12);
+            buffer.put(START_CODE).put((byte) 0x68).put((byte) 0xce).put((byte) 0x3c);
+            buffer.put(START_CODE).put((byte) 0x65).put((byte) 0x88);
+        } else {
+            // Slice header starting with first_mb_in_slice 0, a new picture
+            buffer.put(START_CODE).put((byte) 0x41).put((byte) 0x9a);
+        }
+        return unit;
+    }
+
+    private static void fail(OutputStream out, String message) throws IOException {
+        out.write(("FAIL" + ProxyServer.prefixLength(message)).getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static String readRequest(InputStream in) throws IOException {
+        byte[] size = in.readNBytes(4);
+        if (size.length < 4) {
+            return null;
+        }
+        byte[] data = in.readNBytes(Integer.parseInt(new String(size, StandardCharsets.US_ASCII), 16));
+        return new String(data, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,251 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import static com.webhv.AdbdTransport.AUTH_RSAPUBLICKEY;
+import static com.webhv.AdbdTransport.AUTH_SIGNATURE;
+import static com.webhv.AdbdTransport.AUTH_TOKEN;
+import static com.webhv.AdbdTransport.A_AUTH;
+import static com.webhv.AdbdTransport.A_CLSE;
+import static com.webhv.AdbdTransport.A_CNXN;
+import static com.webhv.AdbdTransport.A_OKAY;
+import static com.webhv.AdbdTransport.A_OPEN;
+import static com.webhv.AdbdTransport.A_WRTE;
+import static com.webhv.AdbdTransport.HEADER_SIZE;
+import static com.webhv.AdbdTransport.VERSION;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * In-process stand-in for adbd on a network attached device, for the proxy's direct transport.
+ * Asks every connection to authenticate, and accepts a token signed by the trusted key or, like
+ * a user allowing the prompt, any public key. Streams are bridged to a {@link FakeAdbServer}, so
+ * the same services are available.
+ */
+class FakeAdbd implements Closeable {
+
+    private static final int MAX_DATA = 64 * 1024;
+    private static final byte[] BANNER = ("device::ro.product.name=fake;ro.product.model=Fake adbd;"
+            + "ro.product.device=fake;features=shell_v2\0").getBytes(StandardCharsets.UTF_8);
+
+    private final FakeAdbServer services;
+    private final AdbKey trusted;
+    private final ServerSocket server;
+
+    FakeAdbd(FakeAdbServer services, AdbKey trusted) throws IOException {
+        this.services = services;
+        this.trusted = trusted;
+        server = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+        Thread acceptThread = new Thread(this::acceptLoop, "fake-adbd");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Returns the serial the proxy connects to this device by
+     */
+    String getSerial() {
+        return server.getInetAddress().getHostAddress() + ":" + server.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+
+    private void acceptLoop() {
+        try {
+            while (true) {
+                Connection connection = new Connection(server.accept());
+                Thread thread = new Thread(connection::serve, "fake-adbd-connection");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException e) {
+            // Closed
+        }
+    }
+
+    private class Connection {
+
+        private final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private final Map<Integer, Bridge> bridges = new ConcurrentHashMap<>();
+        private int nextId = 1000;
+
+        // Last message read
+        private int command;
+        private int arg0;
+        private int arg1;
+        private byte[] payload;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+            out = new BufferedOutputStream(socket.getOutputStream(), HEADER_SIZE + MAX_DATA);
+        }
+
+        void serve() {
+            try {
+                read();
+                if (command != A_CNXN) {
+                    return;
+                }
+                authenticate();
+                while (true) {
+                    read();
+                    if (command == A_OPEN) {
+                        open(arg0, new String(payload, 0, Math.max(0, payload.length - 1), StandardCharsets.UTF_8));
+                        continue;
+                    }
+                    Bridge bridge = bridges.get(arg1);
+                    if (bridge == null) {
+                        continue;
+                    }
+                    if (command == A_WRTE) {
+                        bridge.service.getOutputStream().write(payload);
+                        send(A_OKAY, bridge.localId, bridge.remoteId, new byte[0], 0);
+                    } else if (command == A_OKAY) {
+                        bridge.writable.release();
+                    } else if (command == A_CLSE) {
+                        bridges.remove(bridge.localId);
+                        ProxyServer.closeSafely(bridge.service);
+                        bridge.writable.release();
+                    }
+                }
+            } catch (IOException e) {
+                // Proxy went away
+            } finally {
+                ProxyServer.closeSafely(socket);
+            }
+            for (Bridge bridge : bridges.values()) {
+                ProxyServer.closeSafely(bridge.service);
+            }
+        }
+
+        private void authenticate() throws IOException {
+            byte[] token = new byte[20];
+            SecureRandom random = new SecureRandom();
+            while (true) {
+                random.nextBytes(token);
+                send(A_AUTH, AUTH_TOKEN, 0, token, token.length);
+                read();
+                if (command == A_AUTH && (arg0 == AUTH_SIGNATURE && trusted.verify(token, payload)
+                        || arg0 == AUTH_RSAPUBLICKEY)) {
+                    send(A_CNXN, VERSION, MAX_DATA, BANNER, BANNER.length);
+                    return;
+                }
+            }
+        }
+
+        private void open(int remoteId, String service) throws IOException {
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), services.getPort());
+            InputStream serviceIn = socket.getInputStream();
+            OutputStream serviceOut = socket.getOutputStream();
+            serviceOut.write(ProxyServer.prefixLength("host:transport:fake").getBytes(StandardCharsets.UTF_8));
+            serviceOut.write(ProxyServer.prefixLength(service).getBytes(StandardCharsets.UTF_8));
+            serviceOut.flush();
+            if (!"OKAY".equals(new String(serviceIn.readNBytes(4), StandardCharsets.UTF_8))
+                    || !"OKAY".equals(new String(serviceIn.readNBytes(4), StandardCharsets.UTF_8))) {
+                ProxyServer.closeSafely(socket);
+                send(A_CLSE, 0, remoteId, new byte[0], 0);
+                return;
+            }
+            Bridge bridge = new Bridge(nextId++, remoteId, socket);
+            bridges.put(bridge.localId, bridge);
+            send(A_OKAY, bridge.localId, remoteId, new byte[0], 0);
+            Thread thread = new Thread(bridge::relayFromService, "fake-adbd-stream");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void read() throws IOException {
+            command = Integer.reverseBytes(in.readInt());
+            arg0 = Integer.reverseBytes(in.readInt());
+            arg1 = Integer.reverseBytes(in.readInt());
+            int length = Integer.reverseBytes(in.readInt());
+            in.readInt();
+            in.readInt();
+            payload = new byte[length];
+            in.readFully(payload);
+        }
+
+        private void send(int command, int arg0, int arg1, byte[] data, int length) throws IOException {
+            int check = 0;
+            for (int i = 0; i < length; i++) {
+                check += data[i] & 0xff;
+            }
+            synchronized (out) {
+                header.clear();
+                header.putInt(command).putInt(arg0).putInt(arg1).putInt(length).putInt(check).putInt(~command);
+                out.write(header.array());
+                out.write(data, 0, length);
+                out.flush();
+            }
+        }
+
+        private class Bridge {
+
+            final int localId;
+            final int remoteId;
+            final Socket service;
+            // Released by every OKAY for a WRTE
+            final Semaphore writable = new Semaphore(0);
+
+            Bridge(int localId, int remoteId, Socket service) {
+                this.localId = localId;
+                this.remoteId = remoteId;
+                this.service = service;
+            }
+
+            void relayFromService() {
+                byte[] buffer = new byte[MAX_DATA];
+                try {
+                    InputStream serviceIn = service.getInputStream();
+                    int count;
+                    while ((count = serviceIn.read(buffer)) != -1) {
+                        send(A_WRTE, localId, remoteId, buffer, count);
+                        writable.acquire();
+                    }
+                    if (bridges.remove(localId) != null) {
+                        send(A_CLSE, localId, remoteId, new byte[0], 0);
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // Closed by the proxy
+                }
+                ProxyServer.closeSafely(service);
+            }
+        }
+    }
+}
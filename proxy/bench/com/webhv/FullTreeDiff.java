@@ -0,0 +1,143 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * compareNodes of js/diff.js ported as it is, walking both trees in full over nodes shaped like
+ * those of the viewer, to measure {@link HierarchyDiff} against and to check that it finds the
+ * same differences.
+ */
+class FullTreeDiff {
+
+    static class Node {
+        final int index;
+        final String treeDisplayName;
+        final String[] boxStylePos;
+        final List<Node> children = new ArrayList<>();
+
+        Node(int index, String treeDisplayName, String[] boxStylePos) {
+            this.index = index;
+            this.treeDisplayName = treeDisplayName;
+            this.boxStylePos = boxStylePos;
+        }
+    }
+
+    final List<Integer> newParents = new ArrayList<>();
+    final List<Integer> newChildren = new ArrayList<>();
+    final List<Integer> removedParents = new ArrayList<>();
+    final List<Integer> removedChildren = new ArrayList<>();
+    final List<Integer> moved = new ArrayList<>();
+    final List<Integer> reordered = new ArrayList<>();
+
+    /**
+     * Builds the tree of a frame with names and box positions as formatProperties sets them
+     */
+    static Node tree(ViewCaptureFrame frame, StringTable strings) {
+        Node[] nodes = new Node[frame.size()];
+        double[][] placements = new double[frame.size()][];
+        double maxW = frame.width(0);
+        double maxH = frame.height(0);
+        for (int i = 0; i < frame.size(); i++) {
+            int parent = frame.parent(i);
+            double[] placement = parent < 0 ? new double[] {0, 0, 1, 1} : placements[parent];
+            boolean root = i == 0;
+            double nodeScaleX = root ? 1 : frame.scaleX(i);
+            double nodeScaleY = root ? 1 : frame.scaleY(i);
+            double newScaleX = placement[2] * nodeScaleX;
+            double newScaleY = placement[3] * nodeScaleY;
+            double l = placement[0] + (frame.left(i) + (root ? 0 : (double) frame.translationX(i))) * placement[2]
+                    + frame.width(i) * (placement[2] - newScaleX) / 2;
+            double t = placement[1] + (frame.top(i) + (root ? 0 : (double) frame.translationY(i))) * placement[3]
+                    + frame.height(i) * (placement[3] - newScaleY) / 2;
+            String[] box = {
+                ViewTreeService.formatNumber(l * 100 / maxW) + "%",
+                ViewTreeService.formatNumber(t * 100 / maxH) + "%",
+                ViewTreeService.formatNumber(frame.width(i) * newScaleX * 100 / maxW) + "%",
+                ViewTreeService.formatNumber(frame.height(i) * newScaleY * 100 / maxH) + "%"};
+            placements[i] = new double[] {l - frame.scrollX(i), t - frame.scrollY(i), newScaleX, newScaleY};
+
+            String name = (frame.className(i) < 0 ? "undefined" : strings.get(frame.className(i))) + "@"
+                    + frame.hashcode(i);
+            nodes[i] = new Node(i, name.substring(name.lastIndexOf('.') + 1), box);
+            if (parent >= 0) {
+                nodes[parent].children.add(nodes[i]);
+            }
+        }
+        return nodes[0];
+    }
+
+    static FullTreeDiff compareNodes(Node newRoot, Node oldRoot) {
+        FullTreeDiff diff = new FullTreeDiff();
+        diff.inner(newRoot, oldRoot);
+        return diff;
+    }
+
+    private void inner(Node newNode, Node oldNode) {
+        List<Node> finalOrderedChildren = new ArrayList<>();
+        Map<String, Node> newChildrenMap = new LinkedHashMap<>();
+        for (Node child : newNode.children) {
+            newChildrenMap.put(child.treeDisplayName, child);
+        }
+
+        for (Node child : oldNode.children) {
+            Node match = newChildrenMap.get(child.treeDisplayName);
+            if (match == null) {
+                removedParents.add(newNode.index);
+                removedChildren.add(child.index);
+            } else {
+                inner(match, child);
+                newChildrenMap.remove(child.treeDisplayName);
+                finalOrderedChildren.add(child);
+            }
+        }
+        for (Node child : newChildrenMap.values()) {
+            newParents.add(newNode.index);
+            newChildren.add(child.index);
+            finalOrderedChildren.add(child);
+        }
+        for (int i = 0; i < finalOrderedChildren.size(); i++) {
+            if (!finalOrderedChildren.get(i).treeDisplayName.equals(newNode.children.get(i).treeDisplayName)) {
+                reordered.add(newNode.index);
+                break;
+            }
+        }
+        if (!Arrays.equals(newNode.boxStylePos, oldNode.boxStylePos)) {
+            moved.add(newNode.index);
+        }
+    }
+
+    boolean sameAs(HierarchyDiff.Result result) {
+        return same(newParents, result.newParents) && same(newChildren, result.newChildren)
+                && same(removedParents, result.removedParents) && same(removedChildren, result.removedChildren)
+                && same(moved, result.moved) && same(reordered, result.reordered);
+    }
+
+    private static boolean same(List<Integer> list, int[] array) {
+        return list.equals(Arrays.stream(array).boxed().collect(Collectors.toList()));
+    }
+
+    @Override
+    public String toString() {
+        return "new " + newChildren.size() + ", removed " + removedChildren.size() + ", moved " + moved.size()
+                + ", reordered " + reordered.size();
+    }
+}
@@ -0,0 +1,270 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates view hierarchy dumps shaped like those of a busy launcher: a few dozen view classes,
+ * nested around ten deep, each node with a few dozen properties whose values mostly repeat.
+ */
+class HierarchyGenerator {
+
+    private static final String[] CLASSES = {"android.widget.FrameLayout", "android.widget.LinearLayout",
+            "android.widget.TextView", "android.widget.ImageView", "androidx.recyclerview.widget.RecyclerView",
+            "androidx.constraintlayout.widget.ConstraintLayout", "com.android.launcher3.BubbleTextView",
+            "com.android.launcher3.CellLayout", "com.android.launcher3.Workspace",
+            "androidx.compose.ui.platform.ComposeView", "androidx.compose.ui.platform.AndroidComposeView",
+            "android.view.View", "android.widget.Button", "com.android.launcher3.folder.FolderIcon"};
+    private static final String[] VISIBILITY = {"VISIBLE", "VISIBLE", "VISIBLE", "GONE", "INVISIBLE"};
+    private static final int EXTRA_PROPERTIES = 40;
+
+    // The view server names properties after the fields and getters they are read from
+    private static final Map<String, String> V1_NAMES = new LinkedHashMap<>();
+    static {
+        V1_NAMES.put("id", "mID");
+        V1_NAMES.put("layout:left", "layout:mLeft");
+        V1_NAMES.put("layout:top", "layout:mTop");
+        V1_NAMES.put("layout:width", "layout:getWidth()");
+        V1_NAMES.put("layout:height", "layout:getHeight()");
+        V1_NAMES.put("scrolling:scrollX", "scrolling:mScrollX");
+        V1_NAMES.put("scrolling:scrollY", "scrolling:mScrollY");
+        V1_NAMES.put("drawing:willNotDraw", "drawing:willNotDraw()");
+        V1_NAMES.put("drawing:clipChildren", "drawing:getClipChildren()");
+        V1_NAMES.put("drawing:translationX", "drawing:getTranslationX()");
+        V1_NAMES.put("drawing:translationY", "drawing:getTranslationY()");
+        V1_NAMES.put("drawing:scaleX", "drawing:getScaleX()");
+        V1_NAMES.put("drawing:scaleY", "drawing:getScaleY()");
+        V1_NAMES.put("drawing:alpha", "drawing:getAlpha()");
+        V1_NAMES.put("accessibility:contentDescription", "accessibility:getContentDescription()");
+        V1_NAMES.put("text:text", "text:getText()");
+        V1_NAMES.put("misc:visibility", "misc:getVisibility()");
+    }
+
+    private final Random random;
+    private final List<Node> nodes = new ArrayList<>();
+
+    private static class Node {
+        final int depth;
+        final String className;
+        final int hash;
+        final Map<String, Object> properties = new LinkedHashMap<>();
+        final List<Node> children = new ArrayList<>();
+
+        Node(int depth, String className, int hash) {
+            this.depth = depth;
+            this.className = className;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Generates a tree of exactly {@code size} nodes
+     */
+    HierarchyGenerator(int size, long seed) {
+        random = new Random(seed);
+        Node root = newNode(0);
+        List<Node> open = new ArrayList<>();
+        open.add(root);
+        while (nodes.size() < size) {
+            // Grow wide near the top and narrow further down, like lists of items
+            Node parent = open.get(random.nextInt(open.size()));
+            Node child = newNode(parent.depth + 1);
+            parent.children.add(child);
+            if (child.depth < 12) {
+                open.add(child);
+            }
+        }
+    }
+
+    /**
+     * Moves, fades or relabels {@code changes} random views and adds or removes a leaf, as
+     * between two captures of the same screen
+     */
+    void mutate(int changes) {
+        for (int i = 0; i < changes; i++) {
+            Node node = nodes.get(random.nextInt(nodes.size()));
+            switch (random.nextInt(3)) {
+                case 0:
+                    node.properties.put("drawing:translationY", random.nextFloat() * 100);
+                    break;
+                case 1:
+                    node.properties.put("drawing:alpha", random.nextInt(10) / 10f);
+                    break;
+                default:
+                    node.properties.put("text:text", "Label " + random.nextInt(500));
+            }
+        }
+        Node parent = nodes.get(random.nextInt(nodes.size()));
+        if (parent.depth < 12 && random.nextBoolean()) {
+            parent.children.add(newNode(parent.depth + 1));
+        } else if (!parent.children.isEmpty()) {
+            Node child = parent.children.get(parent.children.size() - 1);
+            if (child.children.isEmpty()) {
+                parent.children.remove(child);
+                nodes.remove(child);
+            }
+        }
+    }
+
+    private Node newNode(int depth) {
+        Node node = new Node(depth, CLASSES[random.nextInt(CLASSES.length)], random.nextInt());
+        int width = 24 * random.nextInt(45);
+        int height = 24 * random.nextInt(30);
+        node.properties.put("id", random.nextInt(4) == 0 ? "id/item_" + random.nextInt(20) : "NO_ID");
+        node.properties.put("layout:left", 8 * random.nextInt(50));
+        node.properties.put("layout:top", 8 * random.nextInt(80));
+        node.properties.put("layout:width", width);
+        node.properties.put("layout:height", height);
+        node.properties.put("scrolling:scrollX", 0);
+        node.properties.put("scrolling:scrollY", random.nextInt(10) == 0 ? random.nextInt(2000) : 0);
+        node.properties.put("drawing:willNotDraw", random.nextBoolean());
+        node.properties.put("drawing:clipChildren", true);
+        node.properties.put("drawing:translationX", 0f);
+        node.properties.put("drawing:translationY", random.nextInt(8) == 0 ? random.nextFloat() * 100 : 0f);
+        node.properties.put("drawing:scaleX", 1f);
+        node.properties.put("drawing:scaleY", 1f);
+        node.properties.put("drawing:alpha", random.nextInt(5) == 0 ? 0.5f : 1f);
+        node.properties.put("accessibility:contentDescription", random.nextInt(6) == 0 ? "Item " + nodes.size() : "null");
+        node.properties.put("text:text", random.nextInt(4) == 0 ? "Label " + random.nextInt(500) : "");
+        node.properties.put("misc:visibility", VISIBILITY[random.nextInt(VISIBILITY.length)]);
+        for (int i = 0; i < EXTRA_PROPERTIES; i++) {
+            node.properties.put("layout:property" + i, random.nextInt(3) == 0 ? random.nextInt(100) : 0);
+        }
+        nodes.add(node);
+        return node;
+    }
+
+    /**
+     * Returns the view server's text dump of the tree, ending with DONE.
+     */
+    byte[] v1() {
+        StringBuilder out = new StringBuilder();
+        for (Node node : preOrder()) {
+            out.append(" ".repeat(node.depth)).append(node.className).append('@')
+                    .append(Integer.toHexString(node.hash));
+            for (Map.Entry<String, Object> property : node.properties.entrySet()) {
+                String key = V1_NAMES.getOrDefault(property.getKey(),
+                        property.getKey().replace("layout:property", "layout:mProperty"));
+                String value = String.valueOf(property.getValue());
+                out.append(' ').append(key).append('=').append(value.length()).append(',').append(value);
+            }
+            out.append('\n');
+        }
+        out.append("DONE.\n");
+        return out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the hierarchy encoder's binary dump of the tree
+     */
+    byte[] v2() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Map<String, Integer> ids = new LinkedHashMap<>();
+        try {
+            writeNode(out, nodes.get(0), ids);
+            writeId(out, id(ids, "window:left"));
+            out.writeByte('I');
+            out.writeInt(0);
+            writeId(out, id(ids, "window:top"));
+            out.writeByte('I');
+            out.writeInt(63);
+
+            out.writeByte('M');
+            for (Map.Entry<String, Integer> entry : ids.entrySet()) {
+                writeId(out, entry.getValue());
+                writeString(out, entry.getKey());
+            }
+            writeId(out, 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void writeNode(DataOutputStream out, Node node, Map<String, Integer> ids) throws IOException {
+        out.writeByte('M');
+        writeId(out, id(ids, "meta:__name__"));
+        writeString(out, node.className);
+        writeId(out, id(ids, "meta:__hash__"));
+        out.writeByte('I');
+        out.writeInt(node.hash);
+        for (Map.Entry<String, Object> property : node.properties.entrySet()) {
+            writeId(out, id(ids, property.getKey()));
+            Object value = property.getValue();
+            if (value instanceof Integer) {
+                out.writeByte('I');
+                out.writeInt((Integer) value);
+            } else if (value instanceof Float) {
+                out.writeByte('F');
+                out.writeFloat((Float) value);
+            } else if (value instanceof Boolean) {
+                out.writeByte('Z');
+                out.writeByte((Boolean) value ? 1 : 0);
+            } else {
+                writeString(out, (String) value);
+            }
+        }
+        writeId(out, id(ids, "meta:__childCount__"));
+        out.writeByte('S');
+        out.writeShort(node.children.size());
+        for (int i = 0; i < node.children.size(); i++) {
+            writeId(out, id(ids, "meta:__child__" + i));
+            writeNode(out, node.children.get(i), ids);
+        }
+        writeId(out, 0);
+    }
+
+    private static int id(Map<String, Integer> ids, String name) {
+        // Zero ends a map
+        return ids.computeIfAbsent(name, n -> ids.size() + 1);
+    }
+
+    private static void writeId(DataOutputStream out, int id) throws IOException {
+        out.writeByte('S');
+        out.writeShort(id);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeByte('R');
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private List<Node> preOrder() {
+        List<Node> result = new ArrayList<>();
+        List<Node> stack = new ArrayList<>();
+        stack.add(nodes.get(0));
+        while (!stack.isEmpty()) {
+            Node node = stack.remove(stack.size() - 1);
+            result.add(node);
+            for (int i = node.children.size() - 1; i >= 0; i--) {
+                stack.add(node.children.get(i));
+            }
+        }
+        return result;
+    }
+}
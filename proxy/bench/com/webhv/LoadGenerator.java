@@ -0,0 +1,570 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import static com.webhv.FakeAdbServer.KEY_FRAME_SCALE;
+import static com.webhv.FakeAdbServer.VIDEO_STAMP_OFFSET;
+import static com.webhv.FakeAdbServer.VIDEO_STAMP_SIZE;
+import static com.webhv.FakeAdbServer.stampAge;
+import static com.webhv.ProxyServer.closeSafely;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Scale test for the proxy, run with {@code gradle loadTest}.
+ *
+ * Starts a {@link FakeAdbServer} in this process and the proxy in a child process, so that the
+ * CPU time and memory of the proxy can be measured on their own. Then, for every scenario and
+ * number of concurrent streams, opens that many websocket clients, lets them run for a while and
+ * measures them for a fixed time. The scenarios are:
+ * <ul>
+ *     <li>{@code echo}: every client sends a 64 byte message and waits for it to come back,
+ *     latency is the round trip</li>
+ *     <li>{@code video}: every client receives 30 fps of H.264-like video, latency is the time
+ *     from the fake adb server writing an access unit to the client reading its time stamp</li>
+ *     <li>{@code text}: every client opens a 4 MiB text dump and reads it to the end, over and
+ *     over, latency is the time for a whole dump</li>
+ *     <li>{@code fanout}: like video, but every client watches the same device with
+ *     {@code frame=au}, so the proxy runs one video stream for all of them and sends every access
+ *     unit as one message</li>
+ *     <li>{@code open}: every client opens a stream which sends a few bytes and closes, over and
+ *     over, latency is the time from connecting to the end of the stream</li>
+ *     <li>{@code shell}: like open, but every client runs the same getprop query, which the
+ *     proxy's shell cache can answer</li>
+ * </ul>
+ * Results are printed and written as tab separated values to the file given as first argument.
+ * Further arguments are {@code --mode=threads|virtual|nio}, {@code --streams=10,100,1000},
+ * {@code --seconds=10}, {@code --scenarios=echo,video,text,fanout,open,shell}, {@code --pool=N}, the proxy's
+ * transport pool size, which is left at its default unless given, and {@code --shell-cache=true}
+ * to turn on the proxy's shell cache. The load on the adb server is counted as the connections
+ * it accepts. Memory is the peak resident set
+ * size, which is only available on Linux.
+ */
+public class LoadGenerator {
+
+    private static final long WARMUP_NANOS = 2_000_000_000L;
+    private static final long SAMPLE_MILLIS = 100;
+    private static final long STARTUP_MILLIS = 10_000;
+
+    private static final int ECHO_SIZE = 64;
+    private static final int VIDEO_FPS = 30;
+    private static final int VIDEO_FRAME_SIZE = 2048;
+    private static final int TEXT_SIZE = 4 << 20;
+    private static final int OPEN_SIZE = 24;
+    private static final String SHELL_QUERY = "getprop ro.build.version.sdk";
+
+    private final Process proxy;
+    private final FakeAdbServer adb;
+    private final int port;
+    private final String protocol;
+    private final PrintWriter results;
+
+    private volatile boolean running;
+    private volatile boolean measuring;
+
+    private LoadGenerator(Process proxy, FakeAdbServer adb, int port, String protocol, PrintWriter results) {
+        this.proxy = proxy;
+        this.adb = adb;
+        this.port = port;
+        this.protocol = protocol;
+        this.results = results;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String mode = "threads";
+        int[] streams = {10, 100, 1000};
+        int seconds = 10;
+        String[] scenarios = {"echo", "video", "text"};
+        String pool = null;
+        boolean shellCache = false;
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("--mode=")) {
+                mode = arg.substring("--mode=".length());
+            } else if (arg.startsWith("--streams=")) {
+                streams = Arrays.stream(arg.substring("--streams=".length()).split(","))
+                        .mapToInt(Integer::parseInt).toArray();
+            } else if (arg.startsWith("--seconds=")) {
+                seconds = Integer.parseInt(arg.substring("--seconds=".length()));
+            } else if (arg.startsWith("--scenarios=")) {
+                scenarios = arg.substring("--scenarios=".length()).split(",");
+            } else if (arg.startsWith("--pool=")) {
+                pool = arg.substring("--pool=".length());
+            } else if (arg.startsWith("--shell-cache=")) {
+                shellCache = Boolean.parseBoolean(arg.substring("--shell-cache=".length()));
+            } else {
+                System.out.println("Usage: LoadGenerator <results.tsv> [--mode=threads|virtual|nio]"
+                        + " [--streams=N,...] [--seconds=N] [--scenarios=echo,video,text,fanout,open,shell]"
+                        + " [--pool=N] [--shell-cache=true|false]");
+                return;
+            }
+        }
+
+        int port;
+        try (ServerSocket free = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = free.getLocalPort();
+        }
+        Path home = Files.createTempDirectory("webhv-load");
+        try (FakeAdbServer adb = new FakeAdbServer();
+                PrintWriter results = new PrintWriter(new FileWriter(args[0]))) {
+            List<String> command = new ArrayList<>(Arrays.asList(
+                    Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-Xmx1g", "-Duser.home=" + home, "-cp", System.getProperty("java.class.path"),
+                    ProxyServer.class.getName(), "--mode=" + mode, "--port=" + port,
+                    "--adb-port=" + adb.getPort(), "--no-device-cache"));
+            if (pool != null) {
+                command.add("--transport-pool=" + pool);
+            }
+            if (shellCache) {
+                command.add("--shell-cache");
+            }
+            Process proxy = new ProcessBuilder(command)
+                    .redirectErrorStream(true)
+                    .start();
+            try {
+                LoadGenerator generator = new LoadGenerator(proxy, adb, port, awaitProxy(proxy, port), results);
+                results.println("# " + System.getProperty("java.vm.name") + " " + System.getProperty("java.version")
+                        + ", mode " + mode + (pool != null ? ", transport pool " + pool : "")
+                        + (shellCache ? ", shell cache" : "") + ", " + Runtime.getRuntime().availableProcessors()
+                        + " cpus");
+                results.println("scenario\tstreams\tops/s\tMB/s\tp50 ms\tp99 ms\tproxy cpu %\tproxy rss MB\t"
+                        + "adb conn/s\terrors");
+                System.out.printf("%-8s %8s %10s %8s %8s %8s %12s %13s %11s %7s%n", "scenario", "streams", "ops/s",
+                        "MB/s", "p50 ms", "p99 ms", "proxy cpu %", "proxy rss MB", "adb conn/s", "errors");
+                for (String scenario : scenarios) {
+                    for (int count : streams) {
+                        generator.run(scenario, count, seconds * 1_000_000_000L);
+                    }
+                }
+            } finally {
+                proxy.destroy();
+                proxy.waitFor();
+            }
+        } finally {
+            File[] files = home.toFile().listFiles();
+            for (File file : files == null ? new File[0] : files) {
+                file.delete();
+            }
+            home.toFile().delete();
+        }
+    }
+
+    /**
+     * Waits for the proxy to accept connections, forwarding its output, and returns the websocket
+     * protocol carrying its handshake key
+     */
+    private static String awaitProxy(Process proxy, int port) throws Exception {
+        BufferedReader output = new BufferedReader(
+                new InputStreamReader(proxy.getInputStream(), StandardCharsets.UTF_8));
+        String key = null;
+        String line;
+        while ((line = output.readLine()) != null && !line.startsWith("Starting server")) {
+            if (line.startsWith("Handshake key: ")) {
+                key = line.substring("Handshake key: ".length());
+            }
+        }
+        if (line == null || key == null) {
+            throw new IOException("Proxy failed to start");
+        }
+        Thread forward = new Thread(() -> {
+            try {
+                for (String next; (next = output.readLine()) != null; ) {
+                    System.out.println("proxy: " + next);
+                }
+            } catch (IOException e) {
+                // Proxy stopped
+            }
+        }, "proxy-output");
+        forward.setDaemon(true);
+        forward.start();
+
+        // The server may print before it binds
+        long deadline = System.currentTimeMillis() + STARTUP_MILLIS;
+        while (true) {
+            Socket probe;
+            try {
+                probe = new Socket(InetAddress.getLoopbackAddress(), port);
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline || !proxy.isAlive()) {
+                    throw e;
+                }
+                Thread.sleep(SAMPLE_MILLIS);
+                continue;
+            }
+            closeSafely(probe);
+            return "1-" + key;
+        }
+    }
+
+    /**
+     * Runs one scenario with the given number of concurrent streams, and reports it
+     */
+    private void run(String scenario, int streams, long measureNanos) throws Exception {
+        running = true;
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < streams; i++) {
+            Worker worker;
+            switch (scenario) {
+                case "echo":
+                    worker = new EchoWorker();
+                    break;
+                case "video":
+                    worker = new VideoWorker();
+                    break;
+                case "text":
+                    worker = new TextWorker();
+                    break;
+                case "fanout":
+                    worker = new FanoutWorker();
+                    break;
+                case "open":
+                    worker = new OpenWorker();
+                    break;
+                case "shell":
+                    worker = new ShellWorker();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown scenario " + scenario);
+            }
+            // Open streams one by one, so that the proxy's accept backlog doesn't overflow
+            worker.start();
+            worker.started.await();
+            workers.add(worker);
+        }
+
+        Thread.sleep(WARMUP_NANOS / 1_000_000);
+        long cpuStart = cpuNanos();
+        long connectionsStart = adb.getConnections();
+        long start = System.nanoTime();
+        measuring = true;
+        long peakResident = residentBytes();
+        for (long now = start; now < start + measureNanos; now = System.nanoTime()) {
+            Thread.sleep(Math.min(SAMPLE_MILLIS, (start + measureNanos - now) / 1_000_000 + 1));
+            peakResident = Math.max(peakResident, residentBytes());
+        }
+        measuring = false;
+        long elapsed = System.nanoTime() - start;
+        long cpu = cpuNanos() - cpuStart;
+        long connections = adb.getConnections() - connectionsStart;
+
+        running = false;
+        for (Worker worker : workers) {
+            worker.stopStream();
+        }
+        long ops = 0;
+        long bytes = 0;
+        int errors = 0;
+        int latencyCount = 0;
+        for (Worker worker : workers) {
+            worker.join();
+            ops += worker.ops;
+            bytes += worker.bytes;
+            errors += worker.errors;
+            latencyCount += worker.latencyCount;
+        }
+        long[] latencies = new long[latencyCount];
+        int position = 0;
+        for (Worker worker : workers) {
+            System.arraycopy(worker.latencies, 0, latencies, position, worker.latencyCount);
+            position += worker.latencyCount;
+        }
+        Arrays.sort(latencies);
+
+        double seconds = elapsed / 1e9;
+        String cpuPercent = cpuStart < 0 ? "-" : String.format("%.1f", cpu * 100.0 / elapsed);
+        String resident = peakResident < 0 ? "-" : String.format("%.1f", peakResident / 1e6);
+        String[] row = {scenario, Integer.toString(streams), String.format("%.1f", ops / seconds),
+                String.format("%.1f", bytes / seconds / 1e6), percentile(latencies, 0.5),
+                percentile(latencies, 0.99), cpuPercent, resident, String.format("%.1f", connections / seconds),
+                Integer.toString(errors)};
+        System.out.printf("%-8s %8s %10s %8s %8s %8s %12s %13s %11s %7s%n", (Object[]) row);
+        results.println(String.join("\t", row));
+        results.flush();
+    }
+
+    private static String percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return "-";
+        }
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return String.format("%.2f", sorted[Math.max(0, index)] / 1e6);
+    }
+
+    /**
+     * Returns the CPU time the proxy used so far, or -1 if not available
+     */
+    private long cpuNanos() {
+        return proxy.info().totalCpuDuration().map(Duration::toNanos).orElse(-1L);
+    }
+
+    /**
+     * Returns the resident set size of the proxy, or -1 if not available
+     */
+    private long residentBytes() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc", Long.toString(proxy.pid()), "status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("\\D", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not Linux
+        }
+        return -1;
+    }
+
+    /**
+     * Client thread which keeps a stream open, or reopens it after each operation, until the
+     * scenario ends. Only operations which complete while measuring are counted.
+     */
+    private abstract class Worker extends Thread {
+
+        final CountDownLatch started = new CountDownLatch(1);
+
+        long ops;
+        long bytes;
+        int errors;
+        long[] latencies = new long[1024];
+        int latencyCount;
+
+        private volatile ProxyBenchmark.Client client;
+        // When the current stream was requested
+        long openNanos;
+
+        Worker() {
+            super("load-client");
+            setDaemon(true);
+        }
+
+        abstract String path();
+
+        /**
+         * Uses the stream until the scenario ends, or until the operation is done for streams
+         * which are opened for every operation
+         */
+        abstract void serve(ProxyBenchmark.Client client) throws IOException;
+
+        @Override
+        public void run() {
+            while (running) {
+                openNanos = System.nanoTime();
+                try (ProxyBenchmark.Client c = new ProxyBenchmark.Client(port, path(), protocol)) {
+                    client = c;
+                    started.countDown();
+                    serve(c);
+                } catch (IOException e) {
+                    if (measuring) {
+                        errors++;
+                    }
+                    try {
+                        // Don't spin if the proxy is gone
+                        Thread.sleep(10);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+                started.countDown();
+            }
+        }
+
+        void stopStream() {
+            ProxyBenchmark.Client c = client;
+            if (c != null) {
+                c.close();
+            }
+        }
+
+        void record(long latencyNanos, long byteCount) {
+            if (!measuring) {
+                return;
+            }
+            ops++;
+            bytes += byteCount;
+            if (latencyCount == latencies.length) {
+                latencies = Arrays.copyOf(latencies, latencyCount * 2);
+            }
+            latencies[latencyCount++] = latencyNanos;
+        }
+    }
+
+    private class EchoWorker extends Worker {
+
+        private final byte[] message = ProxyBenchmark.maskedFrame(ProxyBenchmark.randomText(ECHO_SIZE));
+
+        @Override
+        String path() {
+            return "device/echo";
+        }
+
+        @Override
+        void serve(ProxyBenchmark.Client client) throws IOException {
+            while (running) {
+                long start = System.nanoTime();
+                client.out.write(message);
+                // The reply may be split across frames
+                for (int received = 0; received < ECHO_SIZE; ) {
+                    int length = client.readFrame();
+                    if (length < 0) {
+                        throw new EOFException();
+                    }
+                    received += length;
+                }
+                record(System.nanoTime() - start, ECHO_SIZE);
+            }
+        }
+    }
+
+    private class VideoWorker extends Worker {
+
+        // Larger than any frame the proxy sends by default, so no time stamp is skipped
+        private final byte[] payload = new byte[65536];
+
+        @Override
+        String path() {
+            return "device/video:" + VIDEO_FPS + ":" + VIDEO_FRAME_SIZE;
+        }
+
+        @Override
+        void serve(ProxyBenchmark.Client client) throws IOException {
+            // Access units have known sizes, so time stamps are found by counting bytes
+            long position = 0;
+            long unitStart = 0;
+            long index = 0;
+            byte[] stamp = new byte[VIDEO_STAMP_SIZE];
+            int stampRead = 0;
+            while (running) {
+                int length = client.readFrame(payload);
+                if (length < 0) {
+                    throw new EOFException();
+                }
+                long received = System.nanoTime();
+                long end = position + Math.min(length, payload.length);
+                for (long at; (at = unitStart + VIDEO_STAMP_OFFSET + stampRead) < end; ) {
+                    if (at >= position) {
+                        stamp[stampRead++] = payload[(int) (at - position)];
+                    }
+                    if (at < position || stampRead == VIDEO_STAMP_SIZE) {
+                        if (stampRead == VIDEO_STAMP_SIZE) {
+                            record(stampAge(stamp, 0, received), 0);
+                        }
+                        unitStart += index++ % VIDEO_FPS == 0 ? VIDEO_FRAME_SIZE * KEY_FRAME_SCALE : VIDEO_FRAME_SIZE;
+                        stampRead = 0;
+                    }
+                }
+                position += length;
+                if (measuring) {
+                    bytes += length;
+                }
+            }
+        }
+    }
+
+    private class FanoutWorker extends Worker {
+
+        private final byte[] payload = new byte[VIDEO_FRAME_SIZE * KEY_FRAME_SCALE];
+
+        @Override
+        String path() {
+            return "device;frame=au/video:" + VIDEO_FPS + ":" + VIDEO_FRAME_SIZE;
+        }
+
+        @Override
+        void serve(ProxyBenchmark.Client client) throws IOException {
+            while (running) {
+                int length = client.readFrame(payload);
+                if (length < 0) {
+                    throw new EOFException();
+                }
+                long received = System.nanoTime();
+                if (length != VIDEO_FRAME_SIZE && length != VIDEO_FRAME_SIZE * KEY_FRAME_SCALE) {
+                    throw new IOException("Message is not one access unit");
+                }
+                record(stampAge(payload, VIDEO_STAMP_OFFSET, received), length);
+            }
+        }
+    }
+
+    private class TextWorker extends Worker {
+
+        @Override
+        String path() {
+            return "device;frame=bulk/text:" + TEXT_SIZE;
+        }
+
+        @Override
+        void serve(ProxyBenchmark.Client client) throws IOException {
+            int size = client.readUntilClose();
+            if (size != TEXT_SIZE) {
+                throw new EOFException("Dump cut short");
+            }
+            // Includes the handshake, as opening the stream is part of every dump
+            record(System.nanoTime() - openNanos, size);
+        }
+    }
+
+    private class OpenWorker extends Worker {
+
+        @Override
+        String path() {
+            return "device/bulk:" + OPEN_SIZE;
+        }
+
+        @Override
+        void serve(ProxyBenchmark.Client client) throws IOException {
+            int size = client.readUntilClose();
+            if (size != OPEN_SIZE) {
+                throw new EOFException("Stream cut short");
+            }
+            record(System.nanoTime() - openNanos, size);
+        }
+    }
+
+    private class ShellWorker extends Worker {
+
+        private final int size = (SHELL_QUERY + ": fake output\n").length();
+
+        @Override
+        String path() {
+            return "device/shell:" + URLEncoder.encode(SHELL_QUERY, StandardCharsets.UTF_8).replace("+", "%20");
+        }
+
+        @Override
+        void serve(ProxyBenchmark.Client client) throws IOException {
+            if (client.readUntilClose() != size) {
+                throw new EOFException("Output cut short");
+            }
+            record(System.nanoTime() - openNanos, size);
+        }
+    }
+}
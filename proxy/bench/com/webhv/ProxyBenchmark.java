@@ -0,0 +1,857 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Micro benchmarks for the proxy hot paths, run with {@code gradle benchmark}.
+ *
+ * Every benchmark is warmed up and then measured over several fixed-length iterations. Results
+ * are printed and written as tab separated values to the file given as first argument, so that
+ * runs before and after a change can be compared. An optional second argument selects the
+ * benchmarks to run by regular expression.
+ */
+public class ProxyBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURE_ITERATIONS = 5;
+    private static final long ITERATION_NANOS = 1_000_000_000L;
+
+    private static final int[] PAYLOAD_SIZES = {125, 4096, 16384, 65536};
+
+    private static volatile int sink;
+    private static final FrameFound FOUND = new FrameFound();
+
+    private final Pattern filter;
+    private final PrintWriter results;
+
+    private ProxyBenchmark(Pattern filter, PrintWriter results) {
+        this.filter = filter;
+        this.results = results;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Pattern filter = Pattern.compile(args.length > 1 ? args[1] : ".*");
+        try (PrintWriter results = new PrintWriter(new FileWriter(args[0]))) {
+            results.println("# " + System.getProperty("java.vm.name") + " " + System.getProperty("java.version"));
+            results.println("benchmark\tns/op\terror\tMB/s\tB/op");
+            System.out.printf("%-32s %14s %10s %10s %10s%n", "benchmark", "ns/op", "error", "MB/s", "B/op");
+
+            ProxyBenchmark benchmark = new ProxyBenchmark(filter, results);
+            benchmark.runFraming();
+            benchmark.runDecoding();
+            benchmark.runProtocol();
+            benchmark.runViewTree();
+            benchmark.runViewCapture();
+            benchmark.runHierarchyDiff();
+            benchmark.runSnapshotArchive();
+            benchmark.runRelay();
+            benchmark.runAdbd();
+        }
+    }
+
+    private void runFraming() throws Exception {
+        Metrics.Traffic traffic = new Metrics.Traffic("benchmark");
+        for (int length : new int[] {125, 65535, 65536}) {
+            ProxyServer.AdbToWebMapper mapper = new ProxyServer.AdbToWebMapper(null, 65536, 0, false, traffic, null);
+            bench("encode " + length, 0, () -> mapper.encode(length));
+        }
+
+        for (int size : PAYLOAD_SIZES) {
+            byte[] payload = randomText(size);
+            ByteArrayInputStream in = new ByteArrayInputStream(payload);
+            OutputStream out = OutputStream.nullOutputStream();
+
+            ProxyServer.AdbToWebMapper plain = new ProxyServer.AdbToWebMapper(null, size, 0, false, traffic, null);
+            bench("adbToWeb " + size, size, () -> {
+                in.reset();
+                plain.map(in, out);
+                return 0;
+            });
+
+            ProxyServer.AdbToWebMapper deflate = new ProxyServer.AdbToWebMapper(null, size, 0, true, traffic, null);
+            bench("adbToWeb deflate " + size, size, () -> {
+                in.reset();
+                deflate.map(in, out);
+                return 0;
+            });
+        }
+    }
+
+    private void runDecoding() throws Exception {
+        for (int size : PAYLOAD_SIZES) {
+            byte[] frame = maskedFrame(new byte[size]);
+            WebSocketDecoder decoder = new WebSocketDecoder();
+            CountingSink counter = new CountingSink();
+            // Unmasking in place flips the payload on every run, which doesn't matter here
+            bench("decode " + size, size, () -> {
+                decoder.decode(frame, 0, frame.length, counter);
+                return counter.count;
+            });
+        }
+    }
+
+    private void runProtocol() throws Exception {
+        bench("prefixLength", 0, () -> ProxyServer.prefixLength("host:transport:emulator-5554").length());
+        bench("encodeClose", 0, () -> ProxyServer.encodeClose(ProxyServer.SAFE_CLOSE_CODE, "Safe close").length);
+
+        ProxyServer proxy = new ProxyServer("benchmark-key", Runnable::run, Thread::new);
+        byte[] request = upgradeRequest("emulator-5554;frame=bulk/shell:dumpsys%20window",
+                proxy.handshakeKey);
+        OutputStream out = OutputStream.nullOutputStream();
+        bench("handshake", 0, () -> {
+            InputStream in = new BufferedInputStream(new ByteArrayInputStream(request), HttpRequest.MAX_SIZE);
+            return proxy.doWebsocketHandshake(in, out).response.length;
+        });
+    }
+
+    /**
+     * Runs the thread per direction relay against an in-process adb server over loopback
+     */
+    private void runViewTree() throws Exception {
+        HierarchyGenerator hierarchy = new HierarchyGenerator(5000, 1);
+        byte[] v1 = hierarchy.v1();
+        byte[] v2 = hierarchy.v2();
+        bench("viewtree v1 5000", v1.length, () -> ViewTreeService.parseV1(new BufferedReader(
+                new InputStreamReader(new ByteArrayInputStream(v1), StandardCharsets.UTF_8)), new StringTable()).size());
+        bench("viewtree v2 5000", v2.length, () ->
+                ViewTreeService.parseV2(new ByteArrayInputStream(v2), new StringTable()).size());
+        ViewTree tree = ViewTreeService.parseV2(new ByteArrayInputStream(v2), new StringTable());
+        bench("viewtree encode 5000", 0, () -> tree.encode().length);
+    }
+
+    /**
+     * Decodes generated ViewCapture exports of 16 MB and 1 GB, which take as much heap as each
+     * other since only one frame is decoded at a time. Then seeks to random times in the export
+     * and in a {@link ViewCaptureStore} of it, and plays the store from start to end.
+     */
+    private void runViewCapture() throws Exception {
+        StringTable strings = new StringTable();
+        for (long size : new long[] {16L << 20, 1L << 30}) {
+            String suffix = " " + (size >> 20) + "M";
+            String[] names = {"viewcapture" + suffix, "viewcapture seek raw" + suffix,
+                    "viewcapture seek" + suffix, "viewcapture play" + suffix};
+            if (Arrays.stream(names).noneMatch(name -> filter.matcher(name).find())) {
+                continue;
+            }
+            Path file = Files.createTempFile("webhv-bench", ".vc");
+            Path storeFile = Files.createTempFile("webhv-bench", ".vcst");
+            try {
+                new ViewCaptureGenerator(500, 1).write(file, size);
+                long length = Files.size(file);
+                Op decode = () -> {
+                    int[] nodes = new int[1];
+                    ViewCaptureReader reader = ViewCaptureReader.open(file, strings);
+                    reader.read((window, index, frame) -> nodes[0] += frame.size());
+                    return nodes[0];
+                };
+                bench(names[0], length, decode);
+                if (filter.matcher(names[0]).find()) {
+                    reportPeakHeap(names[0], decode);
+                }
+
+                ViewCaptureReader reader = ViewCaptureReader.open(file, strings);
+                long start = System.nanoTime();
+                ViewCaptureStore.write(reader, strings, storeFile, ViewCaptureStore.DEFAULT_KEYFRAME_INTERVAL);
+                report(String.format("viewcapture store%s %.1f MB from %.1f MB in %.1f s", suffix,
+                        Files.size(storeFile) / 1e6, length / 1e6, (System.nanoTime() - start) / 1e9));
+                ViewCaptureStore store = ViewCaptureStore.open(storeFile, strings);
+                Random random = new Random(1);
+
+                // Without an index, frames are decoded from the start of the window until the
+                // one shown at the time
+                bench(names[1], 0, () -> {
+                    int window = random.nextInt(store.windowCount());
+                    long time = randomTime(store, window, random);
+                    try {
+                        reader.readWindow(window, (w, index, frame) -> {
+                            if (frame.timestamp > time) {
+                                throw FOUND;
+                            }
+                        });
+                    } catch (FrameFound e) {
+                        // Stopped at the frame after
+                    }
+                    return 0;
+                }, false);
+                bench(names[2], 0, () -> {
+                    int window = random.nextInt(store.windowCount());
+                    return store.readFrame(window, store.frameAt(window, randomTime(store, window, random))).size();
+                });
+                int[] next = new int[1];
+                bench(names[3], 0, () -> {
+                    ViewCaptureFrame frame = store.readFrame(0, next[0]);
+                    next[0] = (next[0] + 1) % store.frameCount(0);
+                    return frame.size();
+                });
+            } finally {
+                Files.delete(file);
+                Files.delete(storeFile);
+            }
+        }
+    }
+
+    /**
+     * Compares consecutive frames of a generated capture with 5000 node trees, with the hashed
+     * diff and with compareNodes of js/diff.js ported as it is
+     */
+    private void runHierarchyDiff() throws Exception {
+        String[] names = {"hierarchydiff full 5000", "hierarchydiff merkle 5000", "hierarchydiff merkle 5000 same",
+                "hierarchydiff hash 5000"};
+        if (Arrays.stream(names).noneMatch(name -> filter.matcher(name).find())) {
+            return;
+        }
+        StringTable strings = new StringTable();
+        List<ViewCaptureFrame> frames = new ArrayList<>();
+        Path file = Files.createTempFile("webhv-bench", ".vc");
+        try {
+            new ViewCaptureGenerator(5000, 1).write(file, 48L << 20);
+            ViewCaptureReader.open(file, strings).readWindow(0, (window, index, frame) -> {
+                ViewCaptureFrame copy = new ViewCaptureFrame();
+                for (int node = 0; node < frame.size(); node++) {
+                    copy.copyNode(frame, node, frame.parent(node));
+                }
+                frames.add(copy);
+            });
+        } finally {
+            Files.delete(file);
+        }
+
+        HierarchyDiff engine = new HierarchyDiff(strings);
+        List<HierarchyDiff.Tree> trees = new ArrayList<>();
+        List<FullTreeDiff.Node> fullTrees = new ArrayList<>();
+        long visited = 0;
+        for (ViewCaptureFrame frame : frames) {
+            trees.add(engine.tree(frame));
+            fullTrees.add(FullTreeDiff.tree(frame, strings));
+        }
+        // ProxyTest checks that both find the same differences
+        for (int i = 1; i < frames.size(); i++) {
+            visited += engine.diff(trees.get(i), trees.get(i - 1)).visited;
+        }
+        report(String.format("hierarchydiff 5000 visits %d of %d nodes per diff over %d frames",
+                visited / (frames.size() - 1), frames.get(0).size(), frames.size()));
+
+        int[] next = new int[1];
+        bench(names[0], 0, () -> {
+            int i = next[0] = next[0] % (frames.size() - 1) + 1;
+            return FullTreeDiff.compareNodes(fullTrees.get(i), fullTrees.get(i - 1)).moved.size();
+        });
+        bench(names[1], 0, () -> {
+            int i = next[0] = next[0] % (frames.size() - 1) + 1;
+            return engine.diff(trees.get(i), trees.get(i - 1)).moved.length;
+        });
+        bench(names[2], 0, () -> engine.diff(trees.get(1), trees.get(1)).moved.length);
+        bench(names[3], 0, () -> {
+            next[0] = (next[0] + 1) % frames.size();
+            return engine.tree(frames.get(next[0])).frame.size();
+        });
+    }
+
+    /**
+     * Saves 100 consecutive snapshots of a 5000 view hierarchy both as zip files and in a
+     * {@link SnapshotArchive}, reports the disk used by each, and loads single snapshots back.
+     */
+    private void runSnapshotArchive() throws Exception {
+        String[] names = {"snapshot zip load 5000", "snapshot deflated zip load 5000", "snapshot archive load 5000"};
+        if (Arrays.stream(names).noneMatch(name -> filter.matcher(name).find())) {
+            return;
+        }
+        int count = 100;
+        SnapshotGenerator generator = new SnapshotGenerator(5000, 1);
+        Path directory = Files.createTempDirectory("webhv-bench");
+        Path archiveFile = directory.resolve("snapshots");
+        try {
+            long zipped = 0;
+            long deflated = 0;
+            long raw = 0;
+            long addNanos = 0;
+            try (SnapshotArchive archive = SnapshotArchive.open(archiveFile)) {
+                for (int i = 0; i < count; i++) {
+                    Map<String, byte[]> files = generator.next();
+                    byte[] zip = SnapshotGenerator.zip(files, ZipEntry.STORED);
+                    Files.write(directory.resolve(i + ".zip"), zip);
+                    zipped += zip.length;
+                    byte[] deflatedZip = SnapshotGenerator.zip(files, ZipEntry.DEFLATED);
+                    Files.write(directory.resolve(i + ".deflated.zip"), deflatedZip);
+                    deflated += deflatedZip.length;
+                    raw += files.get(SnapshotArchive.HIERARCHY).length;
+                    long start = System.nanoTime();
+                    archive.add("snapshot " + i, i, files);
+                    addNanos += System.nanoTime() - start;
+                }
+            }
+
+            SnapshotArchive archive = SnapshotArchive.open(archiveFile);
+            try {
+                for (int i = 0; i < count; i++) {
+                    if (!sameFiles(archive.read(i), readZip(directory.resolve(i + ".zip")))) {
+                        throw new IllegalStateException("Snapshot " + i + " differs");
+                    }
+                }
+                report(String.format("snapshot %d x 5000 views, %.1f MB of hierarchies: zip %.1f MB, deflated zip"
+                        + " %.1f MB, archive %.1f MB, %.1f ms per add", count, raw / 1e6, zipped / 1e6, deflated / 1e6,
+                        Files.size(archiveFile) / 1e6, addNanos / 1e6 / count));
+
+                Random random = new Random(1);
+                bench(names[0], 0, () -> readZip(directory.resolve(random.nextInt(count) + ".zip")).size());
+                bench(names[1], 0, () -> readZip(directory.resolve(random.nextInt(count) + ".deflated.zip")).size());
+                bench(names[2], 0, () -> archive.read(random.nextInt(count)).size());
+            } finally {
+                archive.close();
+            }
+        } finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    private static Map<String, byte[]> readZip(Path file) throws IOException {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        try (ZipInputStream zip = new ZipInputStream(Files.newInputStream(file))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                files.put(entry.getName(), zip.readAllBytes());
+            }
+        }
+        return files;
+    }
+
+    private static boolean sameFiles(Map<String, byte[]> files, Map<String, byte[]> expected) {
+        return files.keySet().equals(expected.keySet())
+                && files.keySet().stream().allMatch(name -> Arrays.equals(files.get(name), expected.get(name)));
+    }
+
+    private static long randomTime(ViewCaptureStore store, int window, Random random) {
+        long first = store.timestamp(window, 0);
+        long last = store.timestamp(window, store.frameCount(window) - 1);
+        return first + (long) (random.nextDouble() * (last - first));
+    }
+
+    /**
+     * Runs the operation once more and reports the most heap in use meanwhile
+     */
+    private void reportPeakHeap(String name, Op op) throws Exception {
+        List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+        System.gc();
+        long before = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        for (MemoryPoolMXBean pool : pools) {
+            pool.resetPeakUsage();
+        }
+        op.run();
+        long peak = 0;
+        for (MemoryPoolMXBean pool : pools) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        report(String.format("%s peak heap %.1f MB, %.1f MB in use before", name, peak / 1e6, before / 1e6));
+    }
+
+    /**
+     * Prints a result which doesn't fit the table, and writes it as a comment
+     */
+    private void report(String line) {
+        System.out.println("# " + line);
+        results.println("# " + line);
+        results.flush();
+    }
+
+    private void runRelay() throws Exception {
+        try (FakeAdbServer adb = new FakeAdbServer();
+                ServerSocket server = new ServerSocket(0, 128, InetAddress.getLoopbackAddress())) {
+            ProxyServer proxy = new ProxyServer("benchmark-key", Executors.newCachedThreadPool(), Thread::new);
+            proxy.adbHost = InetAddress.getLoopbackAddress().getHostAddress();
+            proxy.adbPort = adb.getPort();
+            startProxy(proxy, server);
+
+            int port = server.getLocalPort();
+            bench("relay open", 0, () -> {
+                try (Client client = new Client(port, "device/bulk:0", proxy.handshakeKey)) {
+                    return client.readUntilClose();
+                }
+            }, false);
+
+            proxy.transportPool = new TransportPool(proxy.adbHost, proxy.adbPort, 2);
+            bench("relay open pooled", 0, () -> {
+                try (Client client = new Client(port, "device/bulk:0", proxy.handshakeKey)) {
+                    return client.readUntilClose();
+                }
+            }, false);
+            proxy.transportPool = null;
+
+            try (Client client = new Client(port, "device/echo", proxy.handshakeKey)) {
+                byte[] message = maskedFrame(randomText(64));
+                bench("relay echo 64", 64, () -> {
+                    client.out.write(message);
+                    // The reply may be split across frames
+                    int received = 0;
+                    while (received < 64) {
+                        received += client.readFrame();
+                    }
+                    return received;
+                }, false);
+            }
+
+            // One hierarchy load: a few properties, the window service, then the view server's
+            // window list and dump, each opened once the previous one is done
+            String[] hierarchy = {"bulk:24", "bulk:24", "bulk:24", "bulk:180", "bulk:2048", "bulk:262144"};
+            bench("hierarchy plain", 0, () -> {
+                int total = 0;
+                for (String command : hierarchy) {
+                    try (Client client = new Client(port, "device/" + command, proxy.handshakeKey)) {
+                        total += client.readUntilClose();
+                    }
+                }
+                return total;
+            }, false);
+            bench("hierarchy mux", 0, () -> {
+                try (Client client = new Client(port, "device/" + MuxSession.SERVICE + MuxSession.VERSION,
+                        proxy.handshakeKey)) {
+                    int total = 0;
+                    for (int i = 0; i < hierarchy.length; i++) {
+                        total += client.readMuxStream(i + 1, hierarchy[i]);
+                    }
+                    return total;
+                }
+            }, false);
+
+            // A large hierarchy, as the browser reads it from the view server or decoded by the proxy
+            proxy.viewTreeService = new ViewTreeService(proxy);
+            byte[] dump = maskedFrame("DUMP 5000\n".getBytes(StandardCharsets.UTF_8));
+            bench("viewtree dump 5000 relayed", 0, () -> {
+                try (Client client = new Client(port, "device;frame=bulk/tcp:4939", proxy.handshakeKey)) {
+                    client.out.write(dump);
+                    return client.readUntilClose();
+                }
+            }, false);
+            bench("viewtree dump 5000 decoded", 0, () -> {
+                try (Client client = new Client(port, "device/" + ViewTreeService.SERVICE + "dump:5000",
+                        proxy.handshakeKey)) {
+                    return client.readUntilClose();
+                }
+            }, false);
+
+            int bulkSize = 64 << 20;
+            for (String options : new String[] {"", ";frame=bulk"}) {
+                bench("relay bulk" + options, bulkSize, () -> {
+                    try (Client client = new Client(port, "device" + options + "/bulk:" + bulkSize,
+                            proxy.handshakeKey)) {
+                        return client.readUntilClose();
+                    }
+                }, false);
+            }
+
+            // The same amount of data split across streams which are read at the same time, as
+            // several tabs would, so that contention between relays shows up in the throughput
+            int streams = 4;
+            ExecutorService readers = Executors.newFixedThreadPool(streams);
+            try {
+                bench("relay bulk x" + streams + ";frame=bulk", bulkSize, () -> {
+                    List<Future<Integer>> reads = new ArrayList<>();
+                    for (int i = 0; i < streams; i++) {
+                        reads.add(readers.submit(() -> {
+                            try (Client client = new Client(port,
+                                    "device;frame=bulk/bulk:" + bulkSize / streams, proxy.handshakeKey)) {
+                                return client.readUntilClose();
+                            }
+                        }));
+                    }
+                    int total = 0;
+                    for (Future<Integer> read : reads) {
+                        total += read.get();
+                    }
+                    return total;
+                }, false);
+            } finally {
+                readers.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Runs the thread per direction relay over a direct transport to an in-process adbd, which
+     * bridges streams to the services of the fake adb server
+     */
+    private void runAdbd() throws Exception {
+        if (!filter.matcher("adbd").find()) {
+            return;
+        }
+        AdbKey key = AdbKey.generate();
+        try (FakeAdbServer services = new FakeAdbServer();
+                FakeAdbd adbd = new FakeAdbd(services, key);
+                ServerSocket server = new ServerSocket(0, 128, InetAddress.getLoopbackAddress())) {
+            ProxyServer proxy = new ProxyServer("benchmark-key", Executors.newCachedThreadPool(), Thread::new);
+            proxy.adbdDevices = new AdbdTransport.Devices(List.of(adbd.getSerial()), key, this::report);
+            startProxy(proxy, server);
+
+            int port = server.getLocalPort();
+            String device = adbd.getSerial();
+            bench("adbd open", 0, () -> {
+                try (Client client = new Client(port, device + "/bulk:0", proxy.handshakeKey)) {
+                    return client.readUntilClose();
+                }
+            }, false);
+
+            try (Client client = new Client(port, device + "/echo", proxy.handshakeKey)) {
+                byte[] message = maskedFrame(randomText(64));
+                bench("adbd echo 64", 64, () -> {
+                    client.out.write(message);
+                    int received = 0;
+                    while (received < 64) {
+                        received += client.readFrame();
+                    }
+                    return received;
+                }, false);
+            }
+
+            int bulkSize = 64 << 20;
+            bench("adbd bulk;frame=bulk", bulkSize, () -> {
+                try (Client client = new Client(port, device + ";frame=bulk/bulk:" + bulkSize,
+                        proxy.handshakeKey)) {
+                    return client.readUntilClose();
+                }
+            }, false);
+        }
+    }
+
+    private static void startProxy(ProxyServer proxy, ServerSocket server) {
+        Thread serverThread = new Thread(() -> {
+            try {
+                proxy.doServerLoop(server);
+            } catch (IOException e) {
+                // Closed at the end of the benchmark
+            }
+        }, "benchmark-proxy");
+        serverThread.setDaemon(true);
+        serverThread.start();
+    }
+
+    private void bench(String name, long bytesPerOp, Op op) throws Exception {
+        bench(name, bytesPerOp, op, true);
+    }
+
+    /**
+     * Runs a single benchmark. Allocation is only reported for benchmarks which do all of their
+     * work on the calling thread.
+     */
+    private void bench(String name, long bytesPerOp, Op op, boolean countAllocation) throws Exception {
+        if (!filter.matcher(name).find()) {
+            return;
+        }
+
+        // Size batches to take around 100us, so that reading the clock doesn't skew the result
+        int batch = 1;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            long ops = iterate(op, batch);
+            batch = (int) Math.max(1, Math.min(Integer.MAX_VALUE, ops / 10_000));
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocation = countAllocation
+                && threads instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean) threads : null;
+        long threadId = Thread.currentThread().getId();
+
+        double[] nanosPerOp = new double[MEASURE_ITERATIONS];
+        long totalOps = 0;
+        long allocated = allocation == null ? 0 : allocation.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURE_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            long ops = iterate(op, batch);
+            nanosPerOp[i] = (double) (System.nanoTime() - start) / ops;
+            totalOps += ops;
+        }
+        if (allocation != null) {
+            allocated = allocation.getThreadAllocatedBytes(threadId) - allocated;
+        }
+
+        double mean = 0;
+        for (double value : nanosPerOp) {
+            mean += value / MEASURE_ITERATIONS;
+        }
+        double variance = 0;
+        for (double value : nanosPerOp) {
+            variance += (value - mean) * (value - mean) / (MEASURE_ITERATIONS - 1);
+        }
+        double error = Math.sqrt(variance);
+        String throughput = bytesPerOp > 0 ? String.format("%.1f", bytesPerOp * 1e3 / mean) : "-";
+        String bytes = allocation != null ? Long.toString(allocated / totalOps) : "-";
+
+        System.out.printf("%-32s %14.1f %10.1f %10s %10s%n", name, mean, error, throughput, bytes);
+        results.printf("%s\t%.1f\t%.1f\t%s\t%s%n", name, mean, error, throughput, bytes);
+        results.flush();
+    }
+
+    /**
+     * Runs batches of the operation for one iteration and returns the number of operations
+     */
+    private static long iterate(Op op, int batch) throws Exception {
+        long end = System.nanoTime() + ITERATION_NANOS;
+        long ops = 0;
+        int result = 0;
+        do {
+            for (int i = 0; i < batch; i++) {
+                result += op.run();
+            }
+            ops += batch;
+        } while (System.nanoTime() < end);
+        sink = result;
+        return ops;
+    }
+
+    static byte[] randomText(int size) {
+        // Roughly as compressible as dumpsys and view hierarchy output
+        String[] words = {"android", "view", "id", "0x7f0a", "visibility", "=", "true", "false",
+                "mLeft", "mTop", "{", "}", "\n", "  ", "com.example", "LinearLayout", "TextView"};
+        Random random = new Random(size);
+        byte[] result = new byte[size];
+        int pos = 0;
+        while (pos < size) {
+            byte[] word = words[random.nextInt(words.length)].getBytes(StandardCharsets.US_ASCII);
+            int count = Math.min(word.length, size - pos);
+            System.arraycopy(word, 0, result, pos, count);
+            pos += count;
+        }
+        return result;
+    }
+
+    /**
+     * Returns a masked final binary frame, as sent by a browser
+     */
+    static byte[] maskedFrame(byte[] payload) {
+        int length = payload.length;
+        int lengthSize = length <= 125 ? 0 : length <= 65535 ? 2 : 8;
+        byte[] frame = new byte[2 + lengthSize + 4 + length];
+        frame[0] = (byte) (128 | WebSocketDecoder.OP_BINARY);
+        if (lengthSize == 0) {
+            frame[1] = (byte) (128 | length);
+        } else if (lengthSize == 2) {
+            frame[1] = (byte) (128 | 126);
+            frame[2] = (byte) (length >> 8);
+            frame[3] = (byte) length;
+        } else {
+            frame[1] = (byte) (128 | 127);
+            for (int i = 0; i < 8; i++) {
+                frame[2 + i] = (byte) ((long) length >> (56 - 8 * i));
+            }
+        }
+        byte[] mask = {0x12, 0x34, 0x56, 0x78};
+        int maskStart = 2 + lengthSize;
+        System.arraycopy(mask, 0, frame, maskStart, 4);
+        for (int i = 0; i < length; i++) {
+            frame[maskStart + 4 + i] = (byte) (payload[i] ^ mask[i & 3]);
+        }
+        return frame;
+    }
+
+    static byte[] upgradeRequest(String path, String protocol) {
+        return ("GET /" + path + " HTTP/1.1\r\n"
+                + "Host: localhost:8000\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Pragma: no-cache\r\n"
+                + "Cache-Control: no-cache\r\n"
+                + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko)"
+                + " Chrome/120.0.0.0 Safari/537.36\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Origin: https://example.com\r\n"
+                + "Sec-WebSocket-Version: 13\r\n"
+                + "Accept-Encoding: gzip, deflate, br\r\n"
+                + "Accept-Language: en-US,en;q=0.9\r\n"
+                + "Sec-WebSocket-Key: " + Base64.getEncoder().encodeToString(new byte[16]) + "\r\n"
+                + "Sec-WebSocket-Protocol: " + protocol + "\r\n"
+                + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private interface Op {
+
+        /**
+         * Runs the operation once, returning a value derived from its result so that the work
+         * can't be optimized away
+         */
+        int run() throws Exception;
+    }
+
+    /**
+     * Stops reading a capture once the frame which was looked for is passed
+     */
+    private static class FrameFound extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    private static class CountingSink implements WebSocketDecoder.Sink {
+
+        int count;
+
+        @Override
+        public void onData(byte[] data, int offset, int length) {
+            count += length;
+        }
+
+        @Override
+        public void onControl(int opcode, byte[] payload, int length) { }
+    }
+
+    /**
+     * Minimal websocket client which reads frames without keeping their payload
+     */
+    static class Client implements AutoCloseable {
+
+        private final Socket socket;
+        private final DataInputStream in;
+        final OutputStream out;
+        private final byte[] skipBuffer = new byte[65536];
+
+        Client(int port, String path, String protocol) throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+            out = socket.getOutputStream();
+            out.write(upgradeRequest(path, protocol));
+            HttpRequest.read(in);
+        }
+
+        /**
+         * Reads a single frame, returning its payload length or -1 for a close frame
+         */
+        int readFrame() throws IOException {
+            return readFrame(null);
+        }
+
+        /**
+         * Reads a single frame, keeping the start of its payload in {@code start} if given
+         */
+        int readFrame(byte[] start) throws IOException {
+            int opcode = in.readUnsignedByte() & 15;
+            long length = in.readUnsignedByte() & 127;
+            if (length == 126) {
+                length = in.readUnsignedShort();
+            } else if (length == 127) {
+                length = in.readLong();
+            }
+            long remaining = length;
+            if (start != null) {
+                int count = (int) Math.min(start.length, length);
+                in.readFully(start, 0, count);
+                remaining -= count;
+            }
+            while (remaining > 0) {
+                int count = in.read(skipBuffer, 0, (int) Math.min(skipBuffer.length, remaining));
+                if (count < 0) {
+                    throw new IOException("Connection closed");
+                }
+                remaining -= count;
+            }
+            return opcode == WebSocketDecoder.OP_CLOSE ? -1 : (int) length;
+        }
+
+        /**
+         * Reads frames until the proxy closes the stream, returning the payload size
+         */
+        int readUntilClose() throws IOException {
+            int total = 0;
+            try {
+                for (int length; (length = readFrame()) >= 0; ) {
+                    total += length;
+                }
+            } catch (EOFException e) {
+                // The proxy closes the socket without a close frame once adb is done
+            }
+            return total;
+        }
+
+        /**
+         * Opens a stream on a mux session and reads it until the proxy closes it, returning the
+         * payload size
+         */
+        int readMuxStream(int id, String command) throws IOException {
+            int window = 65536;
+            byte[] path = ("/" + command).getBytes(StandardCharsets.UTF_8);
+            out.write(maskedFrame(ByteBuffer.allocate(MuxSession.HEADER_SIZE + 4 + path.length)
+                    .put(MuxSession.OPEN).putInt(id).putInt(window).put(path).array()));
+
+            byte[] head = new byte[MuxSession.HEADER_SIZE];
+            int total = 0;
+            int unacknowledged = 0;
+            while (true) {
+                int length = readFrame(head);
+                if (head[0] == MuxSession.CLOSE) {
+                    return total;
+                } else if (head[0] == MuxSession.FAIL) {
+                    throw new IOException("Stream failed");
+                } else if (head[0] == MuxSession.DATA) {
+                    total += length - MuxSession.HEADER_SIZE;
+                    unacknowledged += length - MuxSession.HEADER_SIZE;
+                    if (unacknowledged >= window / 2) {
+                        out.write(maskedFrame(ByteBuffer.allocate(MuxSession.HEADER_SIZE + 4)
+                                .put(MuxSession.WINDOW).putInt(id).putInt(unacknowledged).array()));
+                        unacknowledged = 0;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            ProxyServer.closeSafely(socket);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates consecutive hierarchies saved from the viewer, with the files of its zip export:
+ * config.json, hierarchy.txt and images of the views which were captured. From one snapshot to
+ * the next a few views change and a leaf comes or goes, the images of a few views change, and
+ * every tenth time the image of the whole window.
+ */
+class SnapshotGenerator {
+
+    private static final byte[] CONFIG = ("{\"version\":1,\"title\":\"" + ViewCaptureGenerator.PACKAGE
+            + "\",\"density\":420,\"sdk_version\":34,\"use_new_api\":false}").getBytes(StandardCharsets.UTF_8);
+    private static final String WINDOW_IMAGE = "img/com.android.internal.policy.DecorView@6f3a2b1.png";
+    private static final int WINDOW_IMAGE_SIZE = 256 * 1024;
+    private static final int VIEW_IMAGES = 40;
+    private static final int CHANGES = 50;
+    private static final int CHANGED_IMAGES = 3;
+
+    private final HierarchyGenerator hierarchy;
+    private final Random random;
+    private final Map<String, byte[]> images = new LinkedHashMap<>();
+    private int count = 0;
+
+    SnapshotGenerator(int size, long seed) {
+        hierarchy = new HierarchyGenerator(size, seed);
+        random = new Random(seed);
+        images.put(WINDOW_IMAGE, image(WINDOW_IMAGE_SIZE));
+        for (int i = 0; i < VIEW_IMAGES; i++) {
+            images.put("img/android.widget.ImageView@" + Integer.toHexString(random.nextInt()) + ".png",
+                    image(2048 + random.nextInt(30 * 1024)));
+        }
+    }
+
+    /**
+     * Returns the files of the next snapshot, named as in the zip file
+     */
+    Map<String, byte[]> next() {
+        if (count++ > 0) {
+            hierarchy.mutate(CHANGES);
+            String[] names = images.keySet().toArray(new String[0]);
+            for (int i = 0; i < CHANGED_IMAGES; i++) {
+                String name = names[1 + random.nextInt(names.length - 1)];
+                images.put(name, image(images.get(name).length));
+            }
+            if (count % 10 == 0) {
+                images.put(WINDOW_IMAGE, image(WINDOW_IMAGE_SIZE));
+            }
+        }
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put("config.json", CONFIG);
+        // The viewer saves the tree without the view server's end marker
+        byte[] v1 = hierarchy.v1();
+        files.put(SnapshotArchive.HIERARCHY, Arrays.copyOf(v1, v1.length - "DONE.\n".length()));
+        files.putAll(images);
+        return files;
+    }
+
+    /**
+     * Random bytes standing in for a PNG file, which doesn't compress any further either
+     */
+    private byte[] image(int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Returns a zip file of the files, stored as the viewer saves them or deflated
+     */
+    static byte[] zip(Map<String, byte[]> files, int method) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.setMethod(method);
+            for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                ZipEntry entry = new ZipEntry(file.getKey());
+                if (method == ZipEntry.STORED) {
+                    CRC32 crc = new CRC32();
+                    crc.update(file.getValue());
+                    entry.setSize(file.getValue().length);
+                    entry.setCrc(crc.getValue());
+                }
+                zip.putNextEntry(entry);
+                zip.write(file.getValue());
+                zip.closeEntry();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,360 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates ViewCapture exports in the magic_number format, shaped like a launcher recording:
+ * a few windows, each with thousands of frames of the same tree in which a few views animate
+ * from frame to frame and views are now and then added or removed.
+ */
+class ViewCaptureGenerator {
+
+    static final String PACKAGE = "com.google.android.apps.nexuslauncher";
+    private static final String[] TITLES = {"/com.android.launcher3.Launcher", "/Taskbar", "/AllApps"};
+    private static final String[] CLASSES = {"android.widget.FrameLayout", "android.widget.LinearLayout",
+            "android.widget.TextView", "android.widget.ImageView", "androidx.recyclerview.widget.RecyclerView",
+            "com.android.launcher3.BubbleTextView", "com.android.launcher3.CellLayout",
+            "com.android.launcher3.Workspace", "com.android.launcher3.ShortcutAndWidgetContainer",
+            "com.android.launcher3.folder.FolderIcon", "com.android.launcher3.views.ScrimView",
+            "com.android.launcher3.taskbar.TaskbarView", "android.view.View"};
+    private static final long MAGIC_NUMBER = 0x6865827365906578L;
+    private static final long FRAME_NANOS = 16_666_666L;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final int size;
+    private final Random random;
+
+    private static class Node {
+        int className;
+        int hash;
+        String id;
+        int left;
+        int top;
+        int width;
+        int height;
+        int scrollY;
+        float translationX;
+        float translationY;
+        float alpha = 1;
+        boolean willNotDraw;
+        int visibility;
+        final List<Node> children = new ArrayList<>();
+        // Encoded size, updated before every frame is written
+        int encodedSize;
+    }
+
+    /**
+     * Generates frames of around {@code size} nodes
+     */
+    ViewCaptureGenerator(int size, long seed) {
+        this.size = size;
+        random = new Random(seed);
+    }
+
+    /**
+     * Writes an export of at least {@code bytes} bytes, split evenly between the windows
+     */
+    void write(Path file, long bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+                Output out = new Output(channel)) {
+            out.tag(1, 1);
+            out.fixed64(MAGIC_NUMBER);
+            for (String title : TITLES) {
+                out.tag(2, 2);
+                // The length of a window is only known once it is written, so it is patched in
+                long lengthPosition = out.position();
+                out.paddedLength(0);
+                long start = out.position();
+                Node root = newTree();
+                long timestamp = 1_000_000_000L;
+                for (int frame = 0; out.position() - start < bytes / TITLES.length; frame++) {
+                    animate(root, frame);
+                    encodedSize(root);
+                    out.tag(1, 2);
+                    out.varint(frameSize(timestamp, root));
+                    out.tag(1, 0);
+                    out.varint(timestamp);
+                    out.tag(2, 2);
+                    out.varint(root.encodedSize);
+                    writeNode(out, root);
+                    timestamp += FRAME_NANOS;
+                }
+                out.tag(2, 2);
+                out.string(title);
+                out.patchLength(lengthPosition, out.position() - start);
+            }
+            out.tag(3, 2);
+            out.string(PACKAGE);
+            for (String className : CLASSES) {
+                out.tag(4, 2);
+                out.string(className);
+            }
+        }
+    }
+
+    private Node newTree() {
+        Node root = newNode(0, 0, 1080, 2400);
+        List<Node> open = new ArrayList<>();
+        open.add(root);
+        for (int count = 1; count < size; count++) {
+            Node parent = open.get(random.nextInt(open.size()));
+            Node child = newNode(parent.left + 8 * random.nextInt(40), parent.top + 8 * random.nextInt(80),
+                    24 * random.nextInt(45), 24 * random.nextInt(30));
+            parent.children.add(child);
+            if (open.size() < size / 4) {
+                open.add(child);
+            }
+        }
+        return root;
+    }
+
+    private Node newNode(int left, int top, int width, int height) {
+        Node node = new Node();
+        node.className = random.nextInt(CLASSES.length);
+        node.hash = random.nextInt();
+        node.id = random.nextInt(4) == 0 ? "item_" + random.nextInt(20) : "NO_ID";
+        node.left = left;
+        node.top = top;
+        node.width = width;
+        node.height = height;
+        node.willNotDraw = random.nextBoolean();
+        node.visibility = random.nextInt(8) == 0 ? 8 : 0;
+        return node;
+    }
+
+    /**
+     * Moves a few views and fades some, and every so often adds, removes, reparents or reorders
+     * views
+     */
+    private void animate(Node root, int frame) {
+        for (int i = 0; i < 8; i++) {
+            Node node = randomNode(root);
+            node.translationY = (float) Math.sin(frame / 10.0) * 40;
+            node.alpha = (frame % 30) / 30f;
+        }
+        if (frame % 50 == 0) {
+            randomNode(root).scrollY += 24;
+        }
+        if (frame % 100 == 0) {
+            // Only leaves are removed, so that the tree keeps its size
+            Node parent = randomNode(root);
+            int child = parent.children.isEmpty() ? -1 : random.nextInt(parent.children.size());
+            if (child >= 0 && parent.children.get(child).children.isEmpty() && random.nextBoolean()) {
+                parent.children.remove(child);
+            } else {
+                parent.children.add(newNode(parent.left, parent.top, 96, 96));
+            }
+        }
+        if (frame % 100 == 50) {
+            Node parent = randomNode(root);
+            if (!parent.children.isEmpty()) {
+                Node child = parent.children.remove(random.nextInt(parent.children.size()));
+                randomNode(root).children.add(child);
+            }
+        }
+        if (frame % 100 == 75) {
+            Node parent = randomNode(root);
+            if (parent.children.size() > 1) {
+                parent.children.add(parent.children.remove(0));
+            }
+        }
+    }
+
+    /**
+     * Picks a node, mostly far from the root, as views which animate are mostly small
+     */
+    private Node randomNode(Node root) {
+        Node node = root;
+        while (!node.children.isEmpty() && random.nextInt(16) != 0) {
+            node = node.children.get(random.nextInt(node.children.size()));
+        }
+        return node;
+    }
+
+    private static int frameSize(long timestamp, Node root) {
+        return 1 + varintSize(timestamp) + 1 + varintSize(root.encodedSize) + root.encodedSize;
+    }
+
+    private static int encodedSize(Node node) {
+        int size = 1 + varintSize(node.className) + 1 + varintSize(node.hash);
+        for (Node child : node.children) {
+            int childSize = encodedSize(child);
+            size += 1 + varintSize(childSize) + childSize;
+        }
+        size += 1 + varintSize(node.id.length()) + node.id.length();
+        size += 1 + varintSize(node.left) + 1 + varintSize(node.top) + 1 + varintSize(node.width)
+                + 1 + varintSize(node.height) + 1 + 1 + 1 + varintSize(node.scrollY);
+        // Five floats with one byte tags, two bools and visibility with two byte tags, elevation
+        size += 5 * 5 + 3 * 3 + 6;
+        node.encodedSize = size;
+        return size;
+    }
+
+    private static void writeNode(Output out, Node node) throws IOException {
+        out.tag(1, 0);
+        out.varint(node.className);
+        out.tag(2, 0);
+        out.varint(node.hash);
+        for (Node child : node.children) {
+            out.tag(3, 2);
+            out.varint(child.encodedSize);
+            writeNode(out, child);
+        }
+        out.tag(4, 2);
+        out.string(node.id);
+        out.tag(5, 0);
+        out.varint(node.left);
+        out.tag(6, 0);
+        out.varint(node.top);
+        out.tag(7, 0);
+        out.varint(node.width);
+        out.tag(8, 0);
+        out.varint(node.height);
+        out.tag(9, 0);
+        out.varint(0);
+        out.tag(10, 0);
+        out.varint(node.scrollY);
+        out.tag(11, 5);
+        out.float32(node.translationX);
+        out.tag(12, 5);
+        out.float32(node.translationY);
+        out.tag(13, 5);
+        out.float32(1);
+        out.tag(14, 5);
+        out.float32(1);
+        out.tag(15, 5);
+        out.float32(node.alpha);
+        out.tag(16, 0);
+        out.varint(node.willNotDraw ? 1 : 0);
+        out.tag(17, 0);
+        out.varint(1);
+        out.tag(18, 0);
+        out.varint(node.visibility);
+        out.tag(19, 5);
+        out.float32(0);
+    }
+
+    /**
+     * Size of an int32 or int64 varint, negative numbers take ten bytes
+     */
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Buffered protobuf writer which can go back to fill in a length
+     */
+    private static class Output implements AutoCloseable {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private long flushed = 0;
+
+        Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        long position() {
+            return flushed + buffer.position();
+        }
+
+        void tag(int field, int type) throws IOException {
+            varint(field << 3 | type);
+        }
+
+        void varint(long value) throws IOException {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                buffer.put((byte) (value | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte) value);
+        }
+
+        /**
+         * Writes a length as a five byte varint, which protobuf parsers accept
+         */
+        void paddedLength(long length) throws IOException {
+            ensure(5);
+            buffer.put(padded(length));
+        }
+
+        void patchLength(long position, long length) throws IOException {
+            flush();
+            channel.write(ByteBuffer.wrap(padded(length)), position);
+        }
+
+        private static byte[] padded(long length) {
+            byte[] bytes = new byte[5];
+            for (int i = 0; i < 5; i++) {
+                bytes[i] = (byte) ((length >>> (7 * i)) & 0x7f | (i < 4 ? 0x80 : 0));
+            }
+            return bytes;
+        }
+
+        void fixed64(long value) throws IOException {
+            ensure(8);
+            buffer.putLong(value);
+        }
+
+        void float32(float value) throws IOException {
+            ensure(4);
+            buffer.putFloat(value);
+        }
+
+        void string(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            varint(bytes.length);
+            ensure(bytes.length);
+            buffer.put(bytes);
+        }
+
+        private void ensure(int count) throws IOException {
+            if (buffer.remaining() < count) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                flushed += channel.write(buffer, flushed);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
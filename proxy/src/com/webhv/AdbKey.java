@@ -0,0 +1,148 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.RSAKeyGenParameterSpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Base64;
+
+/**
+ * RSA key which the proxy authenticates to adbd with. The adb server's key is used when there is
+ * one, so that devices which trust the adb server also trust the proxy.
+ */
+class AdbKey {
+
+    // DigestInfo of a SHA-1 digest, which adbd expects the token to be signed as
+    private static final byte[] SHA1_PREFIX = {0x30, 0x21, 0x30, 0x09, 0x06, 0x05, 0x2b, 0x0e, 0x03, 0x02,
+            0x1a, 0x05, 0x00, 0x04, 0x14};
+    private static final int MODULUS_BITS = 2048;
+    private static final int MODULUS_WORDS = MODULUS_BITS / 32;
+
+    private final PrivateKey privateKey;
+    final RSAPublicKey publicKey;
+    /** Public key in the format of adbkey.pub, as sent to devices which don't know it yet */
+    final String encodedPublicKey;
+
+    private AdbKey(PrivateKey privateKey, RSAPublicKey publicKey) {
+        this.privateKey = privateKey;
+        this.publicKey = publicKey;
+        this.encodedPublicKey = encodePublicKey(publicKey) + " webhv-proxy";
+    }
+
+    /**
+     * Loads a PKCS#8 private key as written by adb, or creates a key which only lasts as long as
+     * the proxy if there is none
+     */
+    static AdbKey load(File file) {
+        if (file.exists()) {
+            try {
+                String pem = new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII);
+                byte[] der = Base64.getMimeDecoder().decode(pem.replaceAll("-----[A-Z ]+-----", ""));
+                KeyFactory factory = KeyFactory.getInstance("RSA");
+                RSAPrivateCrtKey key = (RSAPrivateCrtKey) factory.generatePrivate(new PKCS8EncodedKeySpec(der));
+                RSAPublicKey publicKey = (RSAPublicKey) factory.generatePublic(
+                        new RSAPublicKeySpec(key.getModulus(), key.getPublicExponent()));
+                return new AdbKey(key, publicKey);
+            } catch (IOException | GeneralSecurityException | IllegalArgumentException | ClassCastException e) {
+                System.out.println("Unable to read adb key " + file + ": " + e);
+            }
+        }
+        System.out.println("Using a new adb key, which devices will ask to accept");
+        return generate();
+    }
+
+    static AdbKey generate() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(new RSAKeyGenParameterSpec(MODULUS_BITS, RSAKeyGenParameterSpec.F4));
+            KeyPair pair = generator.generateKeyPair();
+            return new AdbKey(pair.getPrivate(), (RSAPublicKey) pair.getPublic());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Signs an AUTH token from adbd
+     */
+    byte[] sign(byte[] token) throws IOException {
+        try {
+            Signature signature = Signature.getInstance("NONEwithRSA");
+            signature.initSign(privateKey);
+            signature.update(SHA1_PREFIX);
+            signature.update(token);
+            return signature.sign();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to sign token", e);
+        }
+    }
+
+    /**
+     * Returns true if the signature is one made by {@link #sign} for this key
+     */
+    boolean verify(byte[] token, byte[] signed) {
+        try {
+            Signature signature = Signature.getInstance("NONEwithRSA");
+            signature.initVerify(publicKey);
+            signature.update(SHA1_PREFIX);
+            signature.update(token);
+            return signature.verify(signed);
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Encodes a key as the base64 of the little endian structure adbd reads: the modulus size in
+     * words, -1/n mod 2^32, the modulus, (2^2048)^2 mod n and the exponent
+     */
+    private static String encodePublicKey(RSAPublicKey key) {
+        BigInteger n = key.getModulus();
+        BigInteger word = BigInteger.ONE.shiftLeft(32);
+        BigInteger n0inv = word.subtract(n.modInverse(word));
+        BigInteger rr = BigInteger.ONE.shiftLeft(MODULUS_BITS * 2).mod(n);
+
+        ByteBuffer buffer = ByteBuffer.allocate(12 + MODULUS_WORDS * 8).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MODULUS_WORDS).putInt(n0inv.intValue());
+        putLittleEndian(buffer, n);
+        putLittleEndian(buffer, rr);
+        buffer.putInt(key.getPublicExponent().intValue());
+        return Base64.getEncoder().encodeToString(buffer.array());
+    }
+
+    private static void putLittleEndian(ByteBuffer buffer, BigInteger value) {
+        byte[] bigEndian = value.toByteArray();
+        for (int i = 0; i < MODULUS_WORDS * 4; i++) {
+            int index = bigEndian.length - 1 - i;
+            buffer.put(index >= 0 ? bigEndian[index] : 0);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Client for the adb sync protocol, spoken on a socket opened with the sync: service. Requests
+ * and replies are an ASCII id followed by little endian ints.
+ */
+class AdbSync implements Closeable {
+
+    /** Largest chunk of file data in a single DATA request */
+    static final int MAX_DATA = 64 * 1024;
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+
+    AdbSync(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = socket.getInputStream();
+        // Requests go out whole on flush, so that adb doesn't wait for the rest of a request
+        this.out = new BufferedOutputStream(socket.getOutputStream(), MAX_DATA + 8);
+    }
+
+    /**
+     * Returns the mode, size and modification time of a remote file. The mode is 0 if the file
+     * doesn't exist.
+     */
+    Stat stat(String path) throws IOException {
+        writeRequest("STAT", path);
+        ByteBuffer reply = readHeader(16);
+        if (!"STAT".equals(id(reply))) {
+            throw new IOException("Unexpected sync reply");
+        }
+        return new Stat(reply.getInt(4), reply.getInt(8) & 0xffffffffL, reply.getInt(12));
+    }
+
+    /**
+     * Writes {@code length} bytes of {@code data} to a remote file, with the given permission
+     * bits and modification time in seconds
+     */
+    void send(String path, int mode, byte[] data, int length, int mtime) throws IOException {
+        writeRequest("SEND", path + "," + mode);
+        for (int offset = 0; offset < length; offset += MAX_DATA) {
+            int count = Math.min(MAX_DATA, length - offset);
+            writeHeader("DATA", count);
+            out.write(data, offset, count);
+        }
+        writeHeader("DONE", mtime);
+        out.flush();
+
+        ByteBuffer reply = readHeader(8);
+        if ("FAIL".equals(id(reply))) {
+            throw new IOException(new String(in.readNBytes(reply.getInt(4)), StandardCharsets.UTF_8));
+        } else if (!"OKAY".equals(id(reply))) {
+            throw new IOException("Unexpected sync reply");
+        }
+    }
+
+    /**
+     * Copies a remote file to {@code target} and returns the number of bytes copied
+     */
+    long receive(String path, OutputStream target) throws IOException {
+        writeRequest("RECV", path);
+        byte[] buffer = new byte[MAX_DATA];
+        long total = 0;
+        while (true) {
+            ByteBuffer reply = readHeader(8);
+            String id = id(reply);
+            int length = reply.getInt(4);
+            if ("DONE".equals(id)) {
+                return total;
+            } else if ("FAIL".equals(id)) {
+                throw new IOException(new String(in.readNBytes(length), StandardCharsets.UTF_8));
+            } else if (!"DATA".equals(id) || length < 0 || length > MAX_DATA) {
+                throw new IOException("Unexpected sync reply");
+            }
+            if (in.readNBytes(buffer, 0, length) < length) {
+                throw new IOException("Sync connection closed");
+            }
+            target.write(buffer, 0, length);
+            total += length;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            writeHeader("QUIT", 0);
+            out.flush();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        ProxyServer.closeSafely(socket);
+    }
+
+    private void writeRequest(String id, String path) throws IOException {
+        byte[] data = path.getBytes(StandardCharsets.UTF_8);
+        writeHeader(id, data.length);
+        out.write(data);
+        out.flush();
+    }
+
+    private void writeHeader(String id, int value) throws IOException {
+        header.clear();
+        header.put(id.getBytes(StandardCharsets.US_ASCII)).putInt(value);
+        out.write(header.array(), 0, 8);
+    }
+
+    private ByteBuffer readHeader(int size) throws IOException {
+        byte[] data = in.readNBytes(size);
+        if (data.length < size) {
+            throw new IOException("Sync connection closed");
+        }
+        return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static String id(ByteBuffer reply) {
+        return new String(reply.array(), 0, 4, StandardCharsets.US_ASCII);
+    }
+
+    static class Stat {
+
+        final int mode;
+        final long size;
+        /** Modification time in seconds */
+        final int mtime;
+
+        Stat(int mode, long size, int mtime) {
+            this.mode = mode;
+            this.size = size;
+            this.mtime = mtime;
+        }
+
+        boolean exists() {
+            return mode != 0;
+        }
+    }
+}
@@ -0,0 +1,575 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketImpl;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Connection to adbd on a network attached device, which streams are opened on directly instead
+ * of through the adb server. This is the protocol js/adb/adb.js speaks over USB: every message is
+ * a 24 byte little endian header of command, two arguments, payload length, payload checksum and
+ * inverted command, followed by the payload. After CNXN and AUTH, any number of streams are
+ * opened with OPEN and share the connection.
+ *
+ * Flow control is per stream, as in adb: after a WRTE, the sender waits for an OKAY before
+ * sending the next one on that stream. Device output is acknowledged as soon as it is queued, up
+ * to {@link #STREAM_WINDOW} bytes per stream, so that a slow reader only holds up its own stream.
+ *
+ * Streams are {@link Socket}s, so that they are relayed the same way as adb server streams.
+ */
+class AdbdTransport implements Closeable {
+
+    static final int A_CNXN = 0x4e584e43;
+    static final int A_AUTH = 0x48545541;
+    static final int A_OPEN = 0x4e45504f;
+    static final int A_OKAY = 0x59414b4f;
+    static final int A_CLSE = 0x45534c43;
+    static final int A_WRTE = 0x45545257;
+
+    static final int AUTH_TOKEN = 1;
+    static final int AUTH_SIGNATURE = 2;
+    static final int AUTH_RSAPUBLICKEY = 3;
+
+    /** Protocol version which doesn't checksum stream data */
+    static final int VERSION = 0x01000001;
+    static final int MAX_DATA = 256 * 1024;
+    static final int HEADER_SIZE = 24;
+
+    /** Device output queued for a stream before it is no longer acknowledged */
+    static final int STREAM_WINDOW = 1 << 20;
+
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    // Time for the user to accept the proxy's key on the device
+    private static final int AUTH_TIMEOUT_MS = 60_000;
+    private static final byte[] IDENTITY = "host::webhv-proxy\0".getBytes(StandardCharsets.UTF_8);
+
+    final String serial;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger(1);
+
+    // Guarded by out
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    private final boolean checksum;
+    private final int maxPayload;
+    /** Line for the device list in long format */
+    final String deviceLine;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Connects to adbd at {@code host:port}, authenticating with {@code key}. Blocks while the
+     * device asks the user to accept the key, which is reported to {@code status}.
+     */
+    static AdbdTransport connect(String serial, AdbKey key, Consumer<String> status) throws IOException {
+        int colon = serial.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IOException("Invalid device address " + serial);
+        }
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(serial.substring(0, colon),
+                    Integer.parseInt(serial.substring(colon + 1))), CONNECT_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            return new AdbdTransport(serial, socket, key, status);
+        } catch (IOException | RuntimeException e) {
+            ProxyServer.closeSafely(socket);
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+    }
+
+    private AdbdTransport(String serial, Socket socket, AdbKey key, Consumer<String> status)
+            throws IOException {
+        this.serial = serial;
+        this.socket = socket;
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+        this.out = new BufferedOutputStream(socket.getOutputStream(), HEADER_SIZE + MAX_DATA);
+
+        socket.setSoTimeout(AUTH_TIMEOUT_MS);
+        send(A_CNXN, VERSION, MAX_DATA, IDENTITY, 0, IDENTITY.length, true);
+        boolean signed = false;
+        while (true) {
+            int command = Integer.reverseBytes(in.readInt());
+            int arg0 = Integer.reverseBytes(in.readInt());
+            int arg1 = Integer.reverseBytes(in.readInt());
+            byte[] payload = readPayload(command);
+            if (command == A_CNXN) {
+                checksum = arg0 < VERSION;
+                maxPayload = Math.max(1, Math.min(arg1, MAX_DATA));
+                deviceLine = deviceLine(serial, new String(payload, StandardCharsets.UTF_8));
+                break;
+            } else if (command == A_AUTH && arg0 == AUTH_TOKEN) {
+                if (!signed) {
+                    byte[] signature = key.sign(payload);
+                    send(A_AUTH, AUTH_SIGNATURE, 0, signature, 0, signature.length, true);
+                    signed = true;
+                } else {
+                    // The device doesn't know the key, and asks the user whether to accept it
+                    status.accept("Accept the proxy's key on " + serial);
+                    byte[] publicKey = (key.encodedPublicKey + "\0").getBytes(StandardCharsets.UTF_8);
+                    send(A_AUTH, AUTH_RSAPUBLICKEY, 0, publicKey, 0, publicKey.length, true);
+                }
+            } else {
+                throw new IOException("Unexpected message from " + serial);
+            }
+        }
+        socket.setSoTimeout(0);
+
+        Thread reader = new Thread(this::readLoop, "adbd:" + serial);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Returns the device list line for a connect banner like
+     * {@code device::ro.product.name=x;ro.product.model=y;ro.product.device=z;features=...}
+     */
+    private static String deviceLine(String serial, String banner) {
+        StringBuilder line = new StringBuilder(serial).append(" device");
+        int properties = banner.indexOf("::");
+        if (properties >= 0) {
+            for (String property : banner.substring(properties + 2).split(";")) {
+                String[] parts = property.trim().split("=", 2);
+                String name = parts.length < 2 ? null : parts[0].equals("ro.product.name") ? "product"
+                        : parts[0].equals("ro.product.model") ? "model"
+                        : parts[0].equals("ro.product.device") ? "device" : null;
+                if (name != null) {
+                    line.append(' ').append(name).append(':').append(parts[1].trim().replace(' ', '_'));
+                }
+            }
+        }
+        return line.toString();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Opens a stream for an adb service, like shell:ls or tcp:8080
+     */
+    Stream open(String service) throws IOException {
+        Stream stream = new Stream(nextId.getAndIncrement());
+        streams.put(stream.localId, stream);
+        if (closed) {
+            // Lost before the stream was registered
+            stream.onClose();
+        }
+        try {
+            byte[] data = (service + "\0").getBytes(StandardCharsets.UTF_8);
+            send(A_OPEN, stream.localId, 0, data, 0, data.length, false);
+            stream.awaitOpen();
+            return stream;
+        } catch (IOException e) {
+            stream.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        ProxyServer.closeSafely(socket);
+        for (Stream stream : streams.values()) {
+            stream.onClose();
+        }
+    }
+
+    private void readLoop() {
+        try {
+            while (true) {
+                int command = Integer.reverseBytes(in.readInt());
+                int arg0 = Integer.reverseBytes(in.readInt());
+                int arg1 = Integer.reverseBytes(in.readInt());
+                byte[] payload = readPayload(command);
+                Stream stream = streams.get(arg1);
+                if (command == A_OKAY) {
+                    if (stream != null) {
+                        stream.onOkay(arg0);
+                    }
+                } else if (command == A_WRTE) {
+                    if (stream != null) {
+                        stream.onWrite(payload);
+                    } else {
+                        send(A_CLSE, 0, arg0, null, 0, 0, false);
+                    }
+                } else if (command == A_CLSE) {
+                    if (stream != null) {
+                        stream.onClose();
+                    }
+                } else if (command == A_CNXN) {
+                    // adbd restarted
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // Connection lost
+        }
+        close();
+    }
+
+    /**
+     * Reads the rest of a message header after its arguments, then the payload
+     */
+    private byte[] readPayload(int command) throws IOException {
+        int length = Integer.reverseBytes(in.readInt());
+        in.readInt();
+        int magic = Integer.reverseBytes(in.readInt());
+        if (magic != ~command || length < 0 || length > MAX_DATA) {
+            throw new IOException("Invalid message from " + serial);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    private void send(int command, int arg0, int arg1, byte[] data, int offset, int length, boolean sum)
+            throws IOException {
+        int check = 0;
+        if (sum || checksum) {
+            for (int i = offset; i < offset + length; i++) {
+                check += data[i] & 0xff;
+            }
+        }
+        synchronized (out) {
+            header.clear();
+            header.putInt(command).putInt(arg0).putInt(arg1).putInt(length).putInt(check).putInt(~command);
+            out.write(header.array(), 0, HEADER_SIZE);
+            if (length > 0) {
+                out.write(data, offset, length);
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Stream to a device service. Only the socket methods which the proxy uses are supported.
+     */
+    class Stream extends Socket {
+
+        final int localId;
+
+        // Guarded by this
+        private int remoteId = 0;
+        private boolean opened = false;
+        private boolean remoteClosed = false;
+        private boolean closed = false;
+        private boolean writable = false;
+        private boolean ackPending = false;
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+        private int chunkOffset = 0;
+        private int buffered = 0;
+        private int timeoutMillis = 0;
+
+        private final InputStream input = new InputStream() {
+
+            @Override
+            public int read() throws IOException {
+                byte[] data = new byte[1];
+                return read(data, 0, 1) == -1 ? -1 : data[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] data, int offset, int length) throws IOException {
+                return Stream.this.read(data, offset, length);
+            }
+
+            @Override
+            public int available() {
+                synchronized (Stream.this) {
+                    return buffered;
+                }
+            }
+
+            @Override
+            public void close() {
+                Stream.this.close();
+            }
+        };
+
+        private final OutputStream output = new OutputStream() {
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] data, int offset, int length) throws IOException {
+                Stream.this.write(data, offset, length);
+            }
+
+            @Override
+            public void close() {
+                Stream.this.close();
+            }
+        };
+
+        Stream(int localId) throws SocketException {
+            super((SocketImpl) null);
+            this.localId = localId;
+        }
+
+        synchronized void awaitOpen() throws IOException {
+            while (!opened && !remoteClosed && !closed) {
+                await(0);
+            }
+            if (!opened) {
+                // adbd closes streams it can't open without saying why
+                throw new IOException("ADB connection error");
+            }
+        }
+
+        private int read(byte[] data, int offset, int length) throws IOException {
+            int count = 0;
+            boolean acknowledge;
+            synchronized (this) {
+                long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+                while (chunks.isEmpty()) {
+                    if (closed) {
+                        throw new SocketException("Socket closed");
+                    } else if (remoteClosed) {
+                        return -1;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (timeoutMillis > 0 && remaining <= 0) {
+                        throw new SocketTimeoutException("Read timed out");
+                    }
+                    await(timeoutMillis > 0 ? Math.max(1, remaining / 1_000_000L) : 0);
+                }
+                while (count < length && !chunks.isEmpty()) {
+                    byte[] chunk = chunks.peek();
+                    int copied = Math.min(length - count, chunk.length - chunkOffset);
+                    System.arraycopy(chunk, chunkOffset, data, offset + count, copied);
+                    count += copied;
+                    chunkOffset += copied;
+                    if (chunkOffset == chunk.length) {
+                        chunks.poll();
+                        chunkOffset = 0;
+                    }
+                }
+                buffered -= count;
+                acknowledge = ackPending && buffered < STREAM_WINDOW;
+                if (acknowledge) {
+                    ackPending = false;
+                }
+            }
+            if (acknowledge) {
+                send(A_OKAY, localId, remoteId, null, 0, 0, false);
+            }
+            return count;
+        }
+
+        private void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                int count = Math.min(length, maxPayload);
+                synchronized (this) {
+                    while (!writable && !closed && !remoteClosed) {
+                        await(0);
+                    }
+                    if (closed || remoteClosed) {
+                        throw new SocketException("Socket closed");
+                    }
+                    writable = false;
+                }
+                send(A_WRTE, localId, remoteId, data, offset, count, false);
+                offset += count;
+                length -= count;
+            }
+        }
+
+        private void await(long millis) throws InterruptedIOException {
+            try {
+                wait(millis);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        synchronized void onOkay(int remoteId) {
+            if (!opened) {
+                this.remoteId = remoteId;
+                opened = true;
+            }
+            writable = true;
+            notifyAll();
+        }
+
+        void onWrite(byte[] data) throws IOException {
+            boolean acknowledge;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                if (data.length > 0) {
+                    chunks.add(data);
+                    buffered += data.length;
+                    notifyAll();
+                }
+                acknowledge = buffered < STREAM_WINDOW;
+                ackPending = !acknowledge;
+            }
+            if (acknowledge) {
+                send(A_OKAY, localId, remoteId, null, 0, 0, false);
+            }
+        }
+
+        synchronized void onClose() {
+            remoteClosed = true;
+            streams.remove(localId);
+            notifyAll();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return input;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return output;
+        }
+
+        @Override
+        public void close() {
+            boolean sendClose;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                sendClose = opened && !remoteClosed;
+                chunks.clear();
+                notifyAll();
+            }
+            streams.remove(localId);
+            if (sendClose && !AdbdTransport.this.closed) {
+                try {
+                    send(A_CLSE, localId, remoteId, null, 0, 0, false);
+                } catch (IOException e) {
+                    // Transport lost
+                }
+            }
+        }
+
+        @Override
+        public synchronized boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public synchronized void setSoTimeout(int timeout) {
+            timeoutMillis = timeout;
+        }
+
+        @Override
+        public synchronized int getSoTimeout() {
+            return timeoutMillis;
+        }
+
+        @Override
+        public void setTcpNoDelay(boolean on) {
+            // Messages are always sent right away
+        }
+
+        @Override
+        public void setSendBufferSize(int size) { }
+
+        @Override
+        public String toString() {
+            return "AdbdTransport.Stream[" + serial + ", " + localId + "]";
+        }
+    }
+
+    /**
+     * Devices which are connected to directly, each over a single transport which is opened on
+     * first use and again after it is lost
+     */
+    static class Devices {
+
+        private final AdbKey key;
+        private final Consumer<String> status;
+        // Locks held while connecting, keyed by serial
+        private final Map<String, Object> serials = new LinkedHashMap<>();
+        private final Map<String, AdbdTransport> transports = new ConcurrentHashMap<>();
+
+        Devices(Collection<String> serials, AdbKey key, Consumer<String> status) {
+            this.key = key;
+            this.status = status;
+            for (String serial : serials) {
+                this.serials.put(serial, new Object());
+            }
+        }
+
+        boolean contains(String serial) {
+            return serials.containsKey(serial);
+        }
+
+        AdbdTransport transport(String serial) throws IOException {
+            synchronized (serials.get(serial)) {
+                AdbdTransport transport = transports.get(serial);
+                if (transport == null || transport.isClosed()) {
+                    transport = connect(serial, key, status);
+                    transports.put(serial, transport);
+                }
+                return transport;
+            }
+        }
+
+        /**
+         * Returns the devices in long format, keyed by serial. Devices which weren't connected
+         * to yet are listed without properties.
+         */
+        Map<String, String> list() {
+            Map<String, String> result = new LinkedHashMap<>();
+            for (String serial : serials.keySet()) {
+                AdbdTransport transport = transports.get(serial);
+                result.put(serial, transport != null && !transport.isClosed()
+                        ? transport.deviceLine : serial + " device");
+            }
+            return result;
+        }
+    }
+}
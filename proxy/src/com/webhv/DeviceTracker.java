@@ -0,0 +1,209 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import static com.webhv.ProxyServer.prefixLength;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Keeps a single host:track-devices-l subscription open with the adb server, so that device
+ * list requests from any number of browser tabs can be answered from memory.
+ */
+class DeviceTracker extends Thread {
+
+    private static final long RETRY_DELAY_MS = 2000;
+
+    private final String adbHost;
+    private final int adbPort;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    // Device line in long format, keyed by serial. Null while not connected to adb.
+    private volatile Map<String, String> devices = null;
+
+    DeviceTracker(String adbHost, int adbPort) {
+        super("device-tracker");
+        setDaemon(true);
+        this.adbHost = adbHost;
+        this.adbPort = adbPort;
+    }
+
+    /**
+     * Returns the last device list, or null if the adb server is not being tracked right now
+     */
+    Map<String, String> getDevices() {
+        return devices;
+    }
+
+    /**
+     * Returns the device list in the format of host:devices or host:devices-l
+     */
+    static String format(Map<String, String> devices, boolean longFormat) {
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<String, String> entry : devices.entrySet()) {
+            if (longFormat) {
+                result.append(entry.getValue());
+            } else {
+                String[] parts = entry.getValue().trim().split("\\s+");
+                result.append(entry.getKey()).append('\t').append(parts.length > 1 ? parts[1] : "");
+            }
+            result.append('\n');
+        }
+        return result.toString();
+    }
+
+    /**
+     * Returns the change between two device lists, one line per device. Added or changed devices
+     * are prefixed with '+' followed by the long format line, removed devices with '-' followed
+     * by the serial.
+     */
+    static String delta(Map<String, String> before, Map<String, String> after) {
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<String, String> entry : after.entrySet()) {
+            if (!entry.getValue().equals(before.get(entry.getKey()))) {
+                result.append('+').append(entry.getValue()).append('\n');
+            }
+        }
+        for (String serial : before.keySet()) {
+            if (!after.containsKey(serial)) {
+                result.append('-').append(serial).append('\n');
+            }
+        }
+        return result.toString();
+    }
+
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try (Socket socket = new Socket(adbHost, adbPort)) {
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                out.write(prefixLength("host:track-devices-l").getBytes());
+                out.flush();
+                if (!new String(in.readNBytes(4)).equalsIgnoreCase("OKAY")) {
+                    throw new IOException("ADB connection error");
+                }
+                while (true) {
+                    byte[] size = in.readNBytes(4);
+                    if (size.length < 4) {
+                        throw new IOException("ADB connection closed");
+                    }
+                    byte[] data = in.readNBytes(Integer.parseInt(new String(size), 16));
+                    update(parse(new String(data, StandardCharsets.UTF_8)));
+                }
+            } catch (Exception e) {
+                // adb server not running or restarted
+            }
+            if (devices != null) {
+                // No device can be reached until adb is back, which clients see as an empty list
+                update(Collections.emptyMap());
+            }
+            devices = null;
+
+            try {
+                Thread.sleep(RETRY_DELAY_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void update(Map<String, String> newDevices) {
+        Map<String, String> oldDevices = devices;
+        devices = newDevices;
+        for (Listener listener : listeners) {
+            listener.onDevicesChanged(oldDevices == null ? Collections.emptyMap() : oldDevices, newDevices);
+        }
+    }
+
+    /**
+     * Parses a device list in the format of host:devices-l
+     */
+    static Map<String, String> parse(String list) {
+        Map<String, String> result = new LinkedHashMap<>();
+        for (String line : list.split("\n")) {
+            String[] parts = line.trim().split("\\s+", 2);
+            if (!parts[0].isEmpty()) {
+                result.put(parts[0], line);
+            }
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    interface Listener {
+
+        void onDevicesChanged(Map<String, String> before, Map<String, String> after);
+    }
+
+    /**
+     * Listener which keeps the latest device list for a thread of its own to send, so that a
+     * slow client holds up neither the tracker nor other clients. Lists which change faster
+     * than they are sent are skipped, only the latest one is sent.
+     */
+    static class Subscription implements Listener {
+
+        // Guarded by this
+        private Map<String, String> latest = null;
+        private boolean closed = false;
+
+        @Override
+        public synchronized void onDevicesChanged(Map<String, String> before, Map<String, String> after) {
+            latest = after;
+            notifyAll();
+        }
+
+        /**
+         * Sets the list to send first, unless the tracker already passed a newer one
+         */
+        synchronized void offer(Map<String, String> devices) {
+            if (latest == null) {
+                latest = devices;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Waits for a list other than the one which was sent last, returns null once closed
+         */
+        synchronized Map<String, String> next(Map<String, String> sent) throws InterruptedException {
+            while (!closed && (latest == null || latest == sent)) {
+                wait();
+            }
+            return closed ? null : latest;
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,402 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares two frames of a view hierarchy the way compareNodes in js/diff.js does, finding the
+ * children which are new, removed or reordered and the nodes whose box moved, but without
+ * walking the parts of the trees which are the same.
+ *
+ * Every subtree is hashed bottom-up over the fields of its nodes and the hashes of their
+ * children in order. Matched nodes with the same hash, whose ancestors place their boxes the
+ * same way, have the same subtree, so nothing below them can differ and they are skipped
+ * without looking at their children. A diff then takes time in proportion to the changed nodes
+ * and their siblings, after the hashing which is done once per frame.
+ *
+ * Like compareNodes, children are matched by their name in the tree, the short class name and
+ * the hash code, and the roots are always matched. Results are listed in the same order.
+ */
+class HierarchyDiff {
+
+    private static final long PRIME = 0x9E3779B97F4A7C15L;
+
+    private final StringTable strings;
+    // Index of the short class name of each class name, or -1 if not looked up yet
+    private int[] shortNames = new int[0];
+    private final int undefinedName;
+
+    HierarchyDiff(StringTable strings) {
+        this.strings = strings;
+        // What the viewer names nodes whose class isn't in the class table
+        undefinedName = strings.intern("undefined");
+    }
+
+    /**
+     * A frame prepared for comparing, which must not change while the tree is used
+     */
+    static class Tree {
+
+        final ViewCaptureFrame frame;
+        // Short class name in the high half and hash code in the low half
+        private final long[] keys;
+        // End of the subtree of each node, exclusive
+        private final int[] ends;
+        private final long[] hashes;
+
+        private Tree(ViewCaptureFrame frame, long[] keys, int[] ends, long[] hashes) {
+            this.frame = frame;
+            this.keys = keys;
+            this.ends = ends;
+            this.hashes = hashes;
+        }
+    }
+
+    /**
+     * Differences from an older tree to a newer one. Nodes are indexes in the newer tree, except
+     * for removed children which are indexes in the older one.
+     */
+    static class Result {
+
+        /** New children, each with its parent, grouped by parent */
+        final int[] newParents;
+        final int[] newChildren;
+        /** Removed children, each with the parent in the newer tree, grouped by parent */
+        final int[] removedParents;
+        final int[] removedChildren;
+        final int[] moved;
+        final int[] reordered;
+        /** Number of pairs of nodes which were compared */
+        final int visited;
+
+        private Result(Ints newParents, Ints newChildren, Ints removedParents, Ints removedChildren, Ints moved,
+                Ints reordered, int visited) {
+            this.newParents = newParents.toArray();
+            this.newChildren = newChildren.toArray();
+            this.removedParents = removedParents.toArray();
+            this.removedChildren = removedChildren.toArray();
+            this.moved = moved.toArray();
+            this.reordered = reordered.toArray();
+            this.visited = visited;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Result)) {
+                return false;
+            }
+            Result result = (Result) other;
+            return Arrays.equals(newParents, result.newParents) && Arrays.equals(newChildren, result.newChildren)
+                    && Arrays.equals(removedParents, result.removedParents)
+                    && Arrays.equals(removedChildren, result.removedChildren)
+                    && Arrays.equals(moved, result.moved) && Arrays.equals(reordered, result.reordered);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(moved) * 31 + Arrays.hashCode(newChildren);
+        }
+
+        @Override
+        public String toString() {
+            return "new " + newChildren.length + ", removed " + removedChildren.length + ", moved " + moved.length
+                    + ", reordered " + reordered.length + ", visited " + visited;
+        }
+    }
+
+    /**
+     * Prepares a frame for comparing, which hashes all of its subtrees
+     */
+    Tree tree(ViewCaptureFrame frame) {
+        int size = frame.size();
+        long[] keys = new long[size];
+        int[] ends = new int[size];
+        long[] hashes = new long[size];
+        for (int node = 0; node < size; node++) {
+            keys[node] = (long) shortName(frame.className(node)) << 32 | (frame.hashcode(node) & 0xffffffffL);
+            ends[node] = node + 1;
+        }
+        // Children come after their parent, so going backwards finishes every child first
+        for (int node = size - 1; node >= 0; node--) {
+            int parent = frame.parent(node);
+            if (parent >= 0 && ends[node] > ends[parent]) {
+                ends[parent] = ends[node];
+            }
+        }
+        for (int node = size - 1; node >= 0; node--) {
+            long hash = nodeHash(frame, node);
+            for (int child = node + 1; child < ends[node]; child = ends[child]) {
+                hash = mix(hash + hashes[child] * PRIME);
+            }
+            hashes[node] = hash;
+        }
+        return new Tree(frame, keys, ends, hashes);
+    }
+
+    private int shortName(int className) {
+        if (className == ViewCaptureFrame.NO_STRING) {
+            return undefinedName;
+        }
+        if (className >= shortNames.length) {
+            int oldLength = shortNames.length;
+            shortNames = Arrays.copyOf(shortNames, Math.max(className + 1, oldLength * 2));
+            Arrays.fill(shortNames, oldLength, shortNames.length, -1);
+        }
+        if (shortNames[className] < 0) {
+            String name = strings.get(className);
+            shortNames[className] = strings.intern(name, name.lastIndexOf('.') + 1, name.length());
+        }
+        return shortNames[className];
+    }
+
+    private static long nodeHash(ViewCaptureFrame frame, int node) {
+        long hash = mix(frame.className(node) * PRIME + frame.hashcode(node));
+        hash = mix(hash + frame.id(node) * PRIME);
+        hash = mix(hash + ((long) frame.left(node) << 32 | (frame.top(node) & 0xffffffffL)));
+        hash = mix(hash + ((long) frame.width(node) << 32 | (frame.height(node) & 0xffffffffL)));
+        hash = mix(hash + ((long) frame.scrollX(node) << 32 | (frame.scrollY(node) & 0xffffffffL)));
+        hash = mix(hash + ((long) frame.visibility(node) << 32 | frame.flags(node)));
+        hash = mix(hash + floatBits(frame.translationX(node), frame.translationY(node)));
+        hash = mix(hash + floatBits(frame.scaleX(node), frame.scaleY(node)));
+        return mix(hash + floatBits(frame.alpha(node), frame.elevation(node)));
+    }
+
+    private static long floatBits(float high, float low) {
+        return (long) Float.floatToRawIntBits(high) << 32 | (Float.floatToRawIntBits(low) & 0xffffffffL);
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Compares a newer tree with an older one
+     */
+    Result diff(Tree newer, Tree older) {
+        return new Comparison(newer, older).run();
+    }
+
+    /**
+     * Where a parent places the boxes of its children: the offset of their position and the
+     * scale of their size, as in formatProperties of js/ddmlib/property_formatter.js
+     */
+    private static class Placement {
+        final double left;
+        final double top;
+        final double scaleX;
+        final double scaleY;
+
+        Placement(double left, double top, double scaleX, double scaleY) {
+            this.left = left;
+            this.top = top;
+            this.scaleX = scaleX;
+            this.scaleY = scaleY;
+        }
+
+        boolean sameAs(Placement other) {
+            return same(left, other.left) && same(top, other.top) && same(scaleX, other.scaleX)
+                    && same(scaleY, other.scaleY);
+        }
+    }
+
+    /**
+     * Returns true if both numbers show the same, like the box percentages which the viewer
+     * compares as strings
+     */
+    private static boolean same(double a, double b) {
+        return a == b || (Double.isNaN(a) && Double.isNaN(b));
+    }
+
+    private static class Comparison {
+
+        private final Tree newer;
+        private final Tree older;
+        private final double newWidth;
+        private final double newHeight;
+        private final double oldWidth;
+        private final double oldHeight;
+        private final boolean sameSize;
+
+        private final Ints newParents = new Ints();
+        private final Ints newChildren = new Ints();
+        private final Ints removedParents = new Ints();
+        private final Ints removedChildren = new Ints();
+        private final Ints moved = new Ints();
+        private final Ints reordered = new Ints();
+        private int visited = 0;
+
+        Comparison(Tree newer, Tree older) {
+            this.newer = newer;
+            this.older = older;
+            newWidth = newer.frame.size() > 0 ? newer.frame.width(0) : 0;
+            newHeight = newer.frame.size() > 0 ? newer.frame.height(0) : 0;
+            oldWidth = older.frame.size() > 0 ? older.frame.width(0) : 0;
+            oldHeight = older.frame.size() > 0 ? older.frame.height(0) : 0;
+            sameSize = newWidth == oldWidth && newHeight == oldHeight;
+        }
+
+        Result run() {
+            if (newer.frame.size() > 0 && older.frame.size() > 0) {
+                Placement start = new Placement(0, 0, 1, 1);
+                compare(0, start, 0, start);
+            }
+            return new Result(newParents, newChildren, removedParents, removedChildren, moved, reordered, visited);
+        }
+
+        private void compare(int newNode, Placement newPlacement, int oldNode, Placement oldPlacement) {
+            visited++;
+            boolean samePlacement = sameSize && newPlacement.sameAs(oldPlacement);
+            if (samePlacement && newer.hashes[newNode] == older.hashes[oldNode]) {
+                return;
+            }
+
+            double[] newBox = new double[4];
+            double[] oldBox = new double[4];
+            Placement newChildPlacement = place(newer.frame, newNode, newPlacement, newBox);
+            Placement oldChildPlacement = place(older.frame, oldNode, oldPlacement, oldBox);
+
+            if (!compareChildrenInOrder(newNode, newChildPlacement, oldNode, oldChildPlacement)) {
+                compareChildren(newNode, newChildPlacement, oldNode, oldChildPlacement);
+            }
+
+            if (!same(newBox[0] * 100 / newWidth, oldBox[0] * 100 / oldWidth)
+                    || !same(newBox[1] * 100 / newHeight, oldBox[1] * 100 / oldHeight)
+                    || !same(newBox[2] * 100 / newWidth, oldBox[2] * 100 / oldWidth)
+                    || !same(newBox[3] * 100 / newHeight, oldBox[3] * 100 / oldHeight)) {
+                moved.add(newNode);
+            }
+        }
+
+        /**
+         * Compares children pairwise if both nodes have children with the same names in the same
+         * order, which is the common case. Returns false without comparing otherwise.
+         */
+        private boolean compareChildrenInOrder(int newNode, Placement newPlacement, int oldNode,
+                Placement oldPlacement) {
+            int newChild = newNode + 1;
+            int oldChild = oldNode + 1;
+            while (newChild < newer.ends[newNode] && oldChild < older.ends[oldNode]) {
+                if (newer.keys[newChild] != older.keys[oldChild]) {
+                    return false;
+                }
+                newChild = newer.ends[newChild];
+                oldChild = older.ends[oldChild];
+            }
+            if (newChild < newer.ends[newNode] || oldChild < older.ends[oldNode]) {
+                return false;
+            }
+            for (newChild = newNode + 1, oldChild = oldNode + 1; newChild < newer.ends[newNode];
+                    newChild = newer.ends[newChild], oldChild = older.ends[oldChild]) {
+                compare(newChild, newPlacement, oldChild, oldPlacement);
+            }
+            return true;
+        }
+
+        /**
+         * Matches children by name like compareNodes: old children in order take the last new
+         * child with their name, the new children left over are new in the order in which their
+         * names first appear, and the order is changed if the matched children followed by the
+         * new ones are named differently from the new children.
+         */
+        private void compareChildren(int newNode, Placement newPlacement, int oldNode, Placement oldPlacement) {
+            List<Integer> children = new ArrayList<>();
+            Map<Long, Integer> byName = new HashMap<>();
+            List<Long> names = new ArrayList<>();
+            for (int child = newNode + 1; child < newer.ends[newNode]; child = newer.ends[child]) {
+                children.add(child);
+                if (byName.put(newer.keys[child], child) == null) {
+                    names.add(newer.keys[child]);
+                }
+            }
+
+            List<Long> finalOrder = new ArrayList<>();
+            for (int child = oldNode + 1; child < older.ends[oldNode]; child = older.ends[child]) {
+                long name = older.keys[child];
+                Integer match = byName.remove(name);
+                if (match == null) {
+                    removedParents.add(newNode);
+                    removedChildren.add(child);
+                } else {
+                    compare(match, newPlacement, child, oldPlacement);
+                    finalOrder.add(name);
+                }
+            }
+            for (long name : names) {
+                Integer child = byName.get(name);
+                if (child != null) {
+                    newParents.add(newNode);
+                    newChildren.add(child);
+                    finalOrder.add(name);
+                }
+            }
+            for (int i = 0; i < finalOrder.size(); i++) {
+                if (finalOrder.get(i) != newer.keys[children.get(i)]) {
+                    reordered.add(newNode);
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Computes the box of a node, and returns where it places its children. The root isn't
+         * scaled or translated.
+         */
+        private static Placement place(ViewCaptureFrame frame, int node, Placement placement, double[] box) {
+            boolean root = node == 0;
+            double nodeScaleX = root ? 1 : frame.scaleX(node);
+            double nodeScaleY = root ? 1 : frame.scaleY(node);
+            double translationX = root ? 0 : frame.translationX(node);
+            double translationY = root ? 0 : frame.translationY(node);
+            double width = frame.width(node);
+            double height = frame.height(node);
+
+            double scaleX = placement.scaleX * nodeScaleX;
+            double scaleY = placement.scaleY * nodeScaleY;
+            double left = placement.left + (frame.left(node) + translationX) * placement.scaleX
+                    + width * (placement.scaleX - scaleX) / 2;
+            double top = placement.top + (frame.top(node) + translationY) * placement.scaleY
+                    + height * (placement.scaleY - scaleY) / 2;
+            box[0] = left;
+            box[1] = top;
+            box[2] = width * scaleX;
+            box[3] = height * scaleY;
+            return new Placement(left - frame.scrollX(node), top - frame.scrollY(node), scaleX, scaleY);
+        }
+    }
+
+    private static class Ints {
+
+        private int[] values = new int[16];
+        private int size = 0;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
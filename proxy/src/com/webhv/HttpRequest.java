@@ -0,0 +1,142 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Minimal parser for the request line and headers of an HTTP/1.1 request
+ */
+class HttpRequest {
+
+    /** Largest accepted request head, including the request line */
+    static final int MAX_SIZE = 8192;
+
+    final String method;
+    final String target;
+
+    // Keyed by lower case header name
+    private final Map<String, String> headers = new HashMap<>();
+
+    private HttpRequest(String method, String target) {
+        this.method = method;
+        this.target = target;
+    }
+
+    /**
+     * Returns the value of a header, {@code name} must be lower case
+     */
+    String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    /**
+     * Reads the request head from a stream which supports mark/reset, leaving the stream
+     * positioned right after it so that any websocket frames sent along can still be read.
+     */
+    static HttpRequest read(InputStream in) throws IOException {
+        // Browser upgrade requests are well below 1 KiB
+        byte[] data = new byte[1024];
+        int length = 0;
+        in.mark(MAX_SIZE);
+        while (length < MAX_SIZE) {
+            if (length == data.length) {
+                data = Arrays.copyOf(data, Math.min(data.length * 2, MAX_SIZE));
+            }
+            int count = in.read(data, length, data.length - length);
+            if (count < 0) {
+                throw new EOFException("Incomplete request");
+            }
+            int searchFrom = Math.max(0, length - 3);
+            length += count;
+            int end = findHeaderEnd(data, searchFrom, length);
+            if (end >= 0) {
+                in.reset();
+                in.readNBytes(end + 4);
+                return parse(data, end);
+            }
+        }
+        throw new IOException("Request too large");
+    }
+
+    /**
+     * Returns the index of the blank line ending the request head, or -1
+     */
+    static int findHeaderEnd(byte[] data, int from, int length) {
+        for (int i = from; i + 3 < length; i++) {
+            if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses a request head of {@code length} bytes, without the terminating blank line
+     */
+    static HttpRequest parse(byte[] data, int length) throws IOException {
+        int lineEnd = indexOf(data, '\r', 0, length);
+        int methodEnd = indexOf(data, ' ', 0, lineEnd);
+        int targetEnd = indexOf(data, ' ', methodEnd + 1, lineEnd);
+        if (methodEnd <= 0 || targetEnd <= methodEnd + 1) {
+            throw new IOException("Invalid request line");
+        }
+        HttpRequest request = new HttpRequest(
+                string(data, 0, methodEnd), string(data, methodEnd + 1, targetEnd));
+
+        int pos = lineEnd + 2;
+        while (pos < length) {
+            int end = indexOf(data, '\r', pos, length);
+            int colon = indexOf(data, ':', pos, end);
+            if (colon > pos) {
+                int valueStart = colon + 1;
+                while (valueStart < end && (data[valueStart] == ' ' || data[valueStart] == '\t')) {
+                    valueStart++;
+                }
+                int valueEnd = end;
+                while (valueEnd > valueStart && (data[valueEnd - 1] == ' ' || data[valueEnd - 1] == '\t')) {
+                    valueEnd--;
+                }
+                for (int i = pos; i < colon; i++) {
+                    if (data[i] >= 'A' && data[i] <= 'Z') {
+                        data[i] += 'a' - 'A';
+                    }
+                }
+                request.headers.put(string(data, pos, colon), string(data, valueStart, valueEnd));
+            }
+            pos = end + 2;
+        }
+        return request;
+    }
+
+    private static int indexOf(byte[] data, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == c) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private static String string(byte[] data, int from, int to) {
+        return new String(data, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+}
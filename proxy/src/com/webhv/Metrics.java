@@ -0,0 +1,370 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Proxy counters and latency histograms, served in the Prometheus text format.
+ *
+ * Recording only updates {@link LongAdder}s, so relay threads never contend with each other or
+ * with a scrape. Traffic is broken down by command type, the service name without arguments,
+ * which keeps the number of series small.
+ */
+class Metrics {
+
+    // Reasons for a connection to end
+    static final String CLOSE_HANDSHAKE_FAILED = "handshake_failed";
+    static final String CLOSE_ADB_UNAVAILABLE = "adb_unavailable";
+    static final String CLOSE_ADB_REFUSED = "adb_refused";
+    static final String CLOSE_ADB = "adb_closed";
+    static final String CLOSE_CLIENT = "client_closed";
+    static final String CLOSE_ERROR = "error";
+
+    private static final int MAX_COMMAND_TYPES = 64;
+
+    final Histogram handshake = new Histogram("webhv_handshake_seconds",
+            "Time from accepting a connection to completing the websocket upgrade");
+    final Histogram adbConnect = new Histogram("webhv_adb_connect_seconds",
+            "Time to connect to the adb server");
+    final Histogram adbOkay = new Histogram("webhv_adb_okay_seconds",
+            "Time from the first adb request to the OKAY opening the stream");
+
+    private final LongAdder activeStreams = new LongAdder();
+    private final Map<String, Traffic> traffic = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> closes = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> pushes = new ConcurrentHashMap<>();
+    private final LongAdder pushSkippedBytes = new LongAdder();
+    private final LongAdder pulledBytes = new LongAdder();
+    private final LongAdder pullServedBytes = new LongAdder();
+    private final LongAdder pooledStreams = new LongAdder();
+    private final Map<String, LongAdder> shellQueries = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> viewTrees = new ConcurrentHashMap<>();
+    private final LongAdder viewTreeNodes = new LongAdder();
+    private final LongAdder snapshotsSaved = new LongAdder();
+    private final LongAdder snapshotReceivedBytes = new LongAdder();
+    private final LongAdder snapshotStoredBytes = new LongAdder();
+    private final LongAdder snapshotServedBytes = new LongAdder();
+    private final LongAdder snapshotsPruned = new LongAdder();
+
+    /**
+     * Counts a new relayed stream and returns the counters for its traffic
+     */
+    Traffic openStream(StreamRequest request) {
+        String type = commandType(request);
+        Traffic result = traffic.get(type);
+        if (result == null) {
+            if (traffic.size() >= MAX_COMMAND_TYPES) {
+                type = "other";
+            }
+            result = traffic.computeIfAbsent(type, Traffic::new);
+        }
+        result.streams.increment();
+        activeStreams.increment();
+        return result;
+    }
+
+    /**
+     * Records the end of a stream returned by {@link #openStream}
+     */
+    void closeStream(String reason) {
+        activeStreams.decrement();
+        closed(reason);
+    }
+
+    /**
+     * Records a connection which ended before its stream was opened
+     */
+    void closed(String reason) {
+        closes.computeIfAbsent(reason, r -> new LongAdder()).increment();
+    }
+
+    /**
+     * Records a push request and the bytes it didn't need to send
+     */
+    void pushed(String result, long skippedBytes) {
+        pushes.computeIfAbsent(result, r -> new LongAdder()).increment();
+        pushSkippedBytes.add(skippedBytes);
+    }
+
+    /**
+     * Records the size of a file pulled into a spool file
+     */
+    void pulled(long bytes) {
+        pulledBytes.add(bytes);
+    }
+
+    /**
+     * Records bytes of a pulled file served over HTTP
+     */
+    void pullServed(long bytes) {
+        pullServedBytes.add(bytes);
+    }
+
+    /**
+     * Counts a stream opened on a connection taken from the {@link TransportPool}
+     */
+    void pooledStream() {
+        pooledStreams.increment();
+    }
+
+    /**
+     * Records a query answered by the {@link ShellCache}, by how it was answered
+     */
+    void shellCache(String result) {
+        shellQueries.computeIfAbsent(result, r -> new LongAdder()).increment();
+    }
+
+    /**
+     * Records a view hierarchy decoded by the {@link ViewTreeService}, by dump format
+     */
+    void viewTree(String format, int nodes) {
+        viewTrees.computeIfAbsent(format, f -> new LongAdder()).increment();
+        viewTreeNodes.add(nodes);
+    }
+
+    /**
+     * Records a hierarchy added to the {@link SnapshotArchive}, by the size of the zip file it
+     * came as and by how much the archive grew
+     */
+    void snapshotSaved(long receivedBytes, long storedBytes) {
+        snapshotsSaved.increment();
+        snapshotReceivedBytes.add(receivedBytes);
+        snapshotStoredBytes.add(storedBytes);
+    }
+
+    /**
+     * Records snapshots dropped from the archive to keep it under its maximum size
+     */
+    void snapshotsPruned(int count) {
+        snapshotsPruned.add(count);
+    }
+
+    /**
+     * Records bytes of the snapshot archive served over HTTP
+     */
+    void snapshotServed(long bytes) {
+        snapshotServedBytes.add(bytes);
+    }
+
+    /**
+     * Serves the metrics at /metrics on the given port
+     */
+    void startServer(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = format().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        System.out.println("Serving metrics at " + port);
+    }
+
+    String format() {
+        StringBuilder out = new StringBuilder();
+        handshake.format(out);
+        adbConnect.format(out);
+        adbOkay.format(out);
+        header(out, "webhv_pooled_streams_total", "counter",
+                "Streams opened on a pooled connection which had already selected the device");
+        out.append("webhv_pooled_streams_total ").append(pooledStreams.sum()).append('\n');
+
+        header(out, "webhv_streams_active", "gauge", "Streams currently relayed between a client and adb");
+        out.append("webhv_streams_active ").append(activeStreams.sum()).append('\n');
+
+        Map<String, Traffic> sorted = new TreeMap<>(traffic);
+        header(out, "webhv_streams_total", "counter", "Streams opened, by command type");
+        for (Traffic t : sorted.values()) {
+            sample(out, "webhv_streams_total", "command=\"" + t.command + "\"", t.streams);
+        }
+        header(out, "webhv_bytes_total", "counter", "Payload bytes relayed, by command type and direction");
+        for (Traffic t : sorted.values()) {
+            sample(out, "webhv_bytes_total", t.labels("adb_to_web"), t.adbToWebBytes);
+            sample(out, "webhv_bytes_total", t.labels("web_to_adb"), t.webToAdbBytes);
+        }
+        header(out, "webhv_frames_total", "counter", "Websocket data frames relayed, by command type and direction");
+        for (Traffic t : sorted.values()) {
+            sample(out, "webhv_frames_total", t.labels("adb_to_web"), t.adbToWebFrames);
+            sample(out, "webhv_frames_total", t.labels("web_to_adb"), t.webToAdbFrames);
+        }
+
+        header(out, "webhv_dropped_bytes_total", "counter", "Video bytes skipped for clients which fell behind");
+        for (Traffic t : sorted.values()) {
+            sample(out, "webhv_dropped_bytes_total", "command=\"" + t.command + "\"", t.droppedBytes);
+        }
+
+        header(out, "webhv_closes_total", "counter", "Connections ended, by reason");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(closes).entrySet()) {
+            sample(out, "webhv_closes_total", "reason=\"" + entry.getKey() + "\"", entry.getValue());
+        }
+
+        header(out, "webhv_pushes_total", "counter", "File pushes, by whether the device already had the file");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(pushes).entrySet()) {
+            sample(out, "webhv_pushes_total", "result=\"" + entry.getKey() + "\"", entry.getValue());
+        }
+        header(out, "webhv_push_skipped_bytes_total", "counter", "File bytes not pushed as the device already had them");
+        out.append("webhv_push_skipped_bytes_total ").append(pushSkippedBytes.sum()).append('\n');
+
+        header(out, "webhv_shell_cache_total", "counter",
+                "Cacheable shell queries, by whether they were answered from the cache, waited for the same"
+                + " query, ran on the device or bypassed the cache");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(shellQueries).entrySet()) {
+            sample(out, "webhv_shell_cache_total", "result=\"" + entry.getKey() + "\"", entry.getValue());
+        }
+
+        header(out, "webhv_view_trees_total", "counter", "View hierarchies decoded for the client, by dump format");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(viewTrees).entrySet()) {
+            sample(out, "webhv_view_trees_total", "format=\"" + entry.getKey() + "\"", entry.getValue());
+        }
+        header(out, "webhv_view_tree_nodes_total", "counter", "Nodes in decoded view hierarchies");
+        out.append("webhv_view_tree_nodes_total ").append(viewTreeNodes.sum()).append('\n');
+
+        header(out, "webhv_pull_bytes_total", "counter", "File bytes pulled from devices into spool files");
+        out.append("webhv_pull_bytes_total ").append(pulledBytes.sum()).append('\n');
+        header(out, "webhv_pull_served_bytes_total", "counter", "Bytes of pulled files served over HTTP");
+        out.append("webhv_pull_served_bytes_total ").append(pullServedBytes.sum()).append('\n');
+
+        header(out, "webhv_snapshots_saved_total", "counter", "Hierarchies added to the snapshot archive");
+        out.append("webhv_snapshots_saved_total ").append(snapshotsSaved.sum()).append('\n');
+        header(out, "webhv_snapshot_received_bytes_total", "counter", "Bytes of zip files saved as snapshots");
+        out.append("webhv_snapshot_received_bytes_total ").append(snapshotReceivedBytes.sum()).append('\n');
+        header(out, "webhv_snapshot_stored_bytes_total", "counter", "Bytes the snapshot archive grew by");
+        out.append("webhv_snapshot_stored_bytes_total ").append(snapshotStoredBytes.sum()).append('\n');
+        header(out, "webhv_snapshot_served_bytes_total", "counter",
+                "Bytes of the snapshot archive served over HTTP");
+        out.append("webhv_snapshot_served_bytes_total ").append(snapshotServedBytes.sum()).append('\n');
+        header(out, "webhv_snapshots_pruned_total", "counter", "Snapshots dropped to keep the archive small");
+        out.append("webhv_snapshots_pruned_total ").append(snapshotsPruned.sum()).append('\n');
+        return out.toString();
+    }
+
+    /**
+     * Returns the service name of the request without any arguments, e.g. shell or host:devices
+     */
+    static String commandType(StreamRequest request) {
+        String command = request.command;
+        int end = 0;
+        while (end < command.length() && end < 32) {
+            char c = command.charAt(end);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_') {
+                break;
+            }
+            end++;
+        }
+        String type = end == 0 ? "other" : command.substring(0, end);
+        return request.device == null ? "host:" + type : type;
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, LongAdder value) {
+        out.append(name).append('{').append(labels).append("} ").append(value.sum()).append('\n');
+    }
+
+    /**
+     * Per command type traffic counters, shared by all streams of that type
+     */
+    static class Traffic {
+
+        final String command;
+        final LongAdder streams = new LongAdder();
+        final LongAdder adbToWebBytes = new LongAdder();
+        final LongAdder adbToWebFrames = new LongAdder();
+        final LongAdder webToAdbBytes = new LongAdder();
+        final LongAdder webToAdbFrames = new LongAdder();
+        final LongAdder droppedBytes = new LongAdder();
+
+        Traffic(String command) {
+            this.command = command;
+        }
+
+        private String labels(String direction) {
+            return "command=\"" + command + "\",direction=\"" + direction + "\"";
+        }
+    }
+
+    /**
+     * Latency histogram with fixed buckets from 0.5 ms to 5 s
+     */
+    static class Histogram {
+
+        private static final double[] BOUNDS =
+                {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5};
+        private static final long[] BOUND_NANOS = new long[BOUNDS.length];
+        static {
+            for (int i = 0; i < BOUNDS.length; i++) {
+                BOUND_NANOS[i] = (long) (BOUNDS[i] * 1e9);
+            }
+        }
+
+        private final String name;
+        private final String help;
+        // The last bucket counts values above every bound
+        private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram(String name, String help) {
+            this.name = name;
+            this.help = help;
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void observe(long nanos) {
+            int i = 0;
+            while (i < BOUND_NANOS.length && nanos > BOUND_NANOS[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            sumNanos.add(nanos);
+        }
+
+        /**
+         * Records the time elapsed since {@code startNanos}, a value of {@link System#nanoTime}
+         */
+        void observeSince(long startNanos) {
+            observe(System.nanoTime() - startNanos);
+        }
+
+        private void format(StringBuilder out) {
+            header(out, name, "histogram", help);
+            long count = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                count += buckets[i].sum();
+                String bound = i < BOUNDS.length ? BigDecimal.valueOf(BOUNDS[i]).toPlainString() : "+Inf";
+                out.append(name).append("_bucket{le=\"").append(bound).append("\"} ").append(count).append('\n');
+            }
+            out.append(name).append("_sum ").append(sumNanos.sum() / 1e9).append('\n');
+            out.append(name).append("_count ").append(count).append('\n');
+        }
+    }
+}
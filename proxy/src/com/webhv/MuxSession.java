@@ -0,0 +1,398 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import static com.webhv.ProxyServer.MAX_HEADER_SIZE;
+import static com.webhv.ProxyServer.STANDARD_ERROR_CODE;
+import static com.webhv.ProxyServer.closeSafely;
+import static com.webhv.ProxyServer.encodeClose;
+import static com.webhv.ProxyServer.sendFrame;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Many adb streams carried over a single websocket, so that opening a stream doesn't cost a new
+ * connection and handshake.
+ *
+ * A session is requested with the service {@code webhv:mux:<version>} on a device, and starts
+ * with a HELLO message carrying the version. Every websocket message holds one mux message: a
+ * type byte, a big endian stream id chosen by the client, and a payload depending on the type:
+ * <ul>
+ *     <li>OPEN, client to proxy: the receive window as int, followed by the stream in the same
+ *     {@code [;option=value...]/command} form and encoding as a websocket path</li>
+ *     <li>OKAY, proxy to client: the stream is open, with the client's send window as int</li>
+ *     <li>FAIL, proxy to client: the stream could not be opened, with a UTF-8 message</li>
+ *     <li>DATA, either way: stream data, never more than the window granted by the receiver</li>
+ *     <li>WINDOW, either way: number of bytes to grow the sender's window by, as int</li>
+ *     <li>CLOSE, either way: the stream is closed. Stream ids are never reused.</li>
+ * </ul>
+ * Every stream has its own window, so a stream whose reader falls behind only pauses itself
+ * rather than the whole websocket. The queue options of a websocket path don't apply here.
+ */
+class MuxSession implements WebSocketDecoder.Sink {
+
+    static final String SERVICE = "webhv:mux:";
+    static final int VERSION = 1;
+
+    static final byte HELLO = 0;
+    static final byte OPEN = 1;
+    static final byte OKAY = 2;
+    static final byte FAIL = 3;
+    static final byte DATA = 4;
+    static final byte WINDOW = 5;
+    static final byte CLOSE = 6;
+
+    static final int HEADER_SIZE = 5;
+
+    /** Client data buffered for each stream while adb catches up */
+    static final int RECEIVE_WINDOW = 256 << 10;
+
+    private static final int MAX_STREAMS = 256;
+    private static final int MAX_MESSAGE_SIZE = HEADER_SIZE + (1 << 20);
+    private static final int CHUNK_SIZE = 16384;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final ProxyServer proxy;
+    private final OutputStream webOut;
+    private final ProxyServer.Handshake handshake;
+
+    private final WebSocketDecoder decoder = new WebSocketDecoder();
+    private final byte[] readBuffer = new byte[8192];
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+
+    private byte[] message = new byte[1024];
+    private int messageLength = 0;
+    private int lastId = 0;
+    private boolean closeRequested = false;
+
+    MuxSession(ProxyServer proxy, OutputStream webOut, ProxyServer.Handshake handshake) {
+        this.proxy = proxy;
+        this.webOut = webOut;
+        this.handshake = handshake;
+        if (handshake.deflate) {
+            decoder.enableInflate();
+        }
+    }
+
+    /**
+     * Relays streams until the client closes the websocket
+     */
+    void serve(InputStream webIn) throws IOException {
+        String version = handshake.request.command.substring(SERVICE.length());
+        if (!version.equals(Integer.toString(VERSION))) {
+            closeWithError("Unsupported mux version " + version + ", re-download webhv-proxy");
+            return;
+        }
+
+        try {
+            send(HELLO, 0, ByteBuffer.allocate(4).putInt(VERSION).array());
+            while (!closeRequested) {
+                int count = webIn.read(readBuffer);
+                if (count == -1) {
+                    break;
+                }
+                decoder.decode(readBuffer, 0, count, this);
+            }
+        } catch (ProtocolException e) {
+            closeWithError(e.getMessage());
+        } finally {
+            for (Stream stream : new ArrayList<>(streams.values())) {
+                stream.close(Metrics.CLOSE_CLIENT, false);
+            }
+        }
+    }
+
+    @Override
+    public void onData(byte[] data, int offset, int length) throws IOException {
+        if (messageLength + length > message.length) {
+            if (messageLength + length > MAX_MESSAGE_SIZE) {
+                throw new ProtocolException("Message too large");
+            }
+            message = Arrays.copyOf(message, Math.min(MAX_MESSAGE_SIZE,
+                    Math.max(messageLength + length, message.length * 2)));
+        }
+        System.arraycopy(data, offset, message, messageLength, length);
+        messageLength += length;
+    }
+
+    @Override
+    public void onMessageEnd() throws IOException {
+        if (messageLength < HEADER_SIZE) {
+            throw new ProtocolException("Message too short");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(message, 0, messageLength);
+        byte type = buffer.get();
+        int id = buffer.getInt();
+        Stream stream = streams.get(id);
+        switch (type) {
+            case OPEN:
+                open(id, getInt(buffer), StandardCharsets.UTF_8.decode(buffer).toString());
+                break;
+            case DATA:
+                // Messages for streams which have just been closed are ignored
+                if (stream != null) {
+                    stream.receive(buffer);
+                }
+                break;
+            case WINDOW:
+                int credit = getInt(buffer);
+                if (stream != null) {
+                    stream.grant(credit);
+                }
+                break;
+            case CLOSE:
+                if (stream != null) {
+                    stream.close(Metrics.CLOSE_CLIENT, false);
+                }
+                break;
+            default:
+                throw new ProtocolException("Unknown message type " + type);
+        }
+        messageLength = 0;
+    }
+
+    @Override
+    public void onControl(int opcode, byte[] payload, int length) throws IOException {
+        if (ProxyServer.answerControl(webOut, opcode, payload, length)) {
+            closeRequested = true;
+        }
+    }
+
+    private void open(int id, int window, String path) throws IOException {
+        if (id <= lastId) {
+            throw new ProtocolException("Stream id " + id + " reused");
+        }
+        lastId = id;
+        if (streams.size() >= MAX_STREAMS) {
+            sendQuietly(FAIL, id, "Too many streams".getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+
+        String device = handshake.request.device;
+        if (!path.startsWith(";") && !path.startsWith("/")) {
+            path = "/" + path;
+        }
+        Stream stream = new Stream(id, new StreamRequest((device == null ? "" : device) + path), window);
+        streams.put(id, stream);
+        proxy.relayThreads.newThread(stream::relayFromAdb).start();
+    }
+
+    private static int getInt(ByteBuffer buffer) throws ProtocolException {
+        if (buffer.remaining() < 4) {
+            throw new ProtocolException("Message too short");
+        }
+        return buffer.getInt();
+    }
+
+    private void send(byte type, int id, byte[] payload) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        data.put(type).putInt(id).put(payload);
+        sendFrame(webOut, data.array());
+    }
+
+    private void sendQuietly(byte type, int id, byte[] payload) {
+        try {
+            send(type, id, payload);
+        } catch (IOException e) {
+            // The session is going away, which the reader notices
+        }
+    }
+
+    private void closeWithError(String message) {
+        try {
+            synchronized (webOut) {
+                webOut.write(encodeClose(STANDARD_ERROR_CODE, message));
+                webOut.flush();
+            }
+        } catch (IOException e) { }
+    }
+
+    /**
+     * A single adb stream of the session. Adb output is read on one thread, as far as the
+     * client's window allows, and client data is written to adb from a queue on another.
+     */
+    private class Stream {
+
+        final int id;
+        final StreamRequest request;
+        // Client data waiting for adb, at most the window granted to the client
+        final RelayQueue received;
+
+        // Guarded by this
+        private int sendWindow;
+        private int receiveWindow = 0;
+        private boolean closed = false;
+        private Socket adbSocket;
+        private Metrics.Traffic traffic;
+        private SessionRecorder.Stream recording;
+
+        Stream(int id, StreamRequest request, int sendWindow) {
+            this.id = id;
+            this.request = request;
+            this.sendWindow = sendWindow;
+            this.received = new RelayQueue(CHUNK_SIZE, 0, RECEIVE_WINDOW, 0, false, null);
+        }
+
+        void relayFromAdb() {
+            Socket socket;
+            try {
+                socket = proxy.openAdbStream(request);
+            } catch (IOException e) {
+                streams.remove(id);
+                sendQuietly(FAIL, id, String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+
+            synchronized (this) {
+                if (closed) {
+                    // Closed by the client while opening
+                    closeSafely(socket);
+                    return;
+                }
+                adbSocket = socket;
+                traffic = proxy.metrics.openStream(request);
+                recording = proxy.record(request);
+                receiveWindow = RECEIVE_WINDOW;
+            }
+
+            String reason = Metrics.CLOSE_ERROR;
+            try {
+                send(OKAY, id, ByteBuffer.allocate(4).putInt(RECEIVE_WINDOW).array());
+                proxy.relayThreads.newThread(this::relayToAdb).start();
+
+                InputStream in = recording == null ? socket.getInputStream() : recording.tee(socket.getInputStream());
+                ProxyServer.AdbToWebMapper mapper = new ProxyServer.AdbToWebMapper(socket,
+                        HEADER_SIZE + request.maxFrame, 0, handshake.deflate, traffic, null);
+                ByteBuffer frame = ByteBuffer.allocate(MAX_HEADER_SIZE + HEADER_SIZE + request.maxFrame);
+                frame.put(MAX_HEADER_SIZE, DATA).putInt(MAX_HEADER_SIZE + 1, id);
+                while (true) {
+                    int count = in.read(frame.array(), MAX_HEADER_SIZE + HEADER_SIZE,
+                            Math.min(awaitWindow(), request.maxFrame));
+                    if (count == -1) {
+                        reason = Metrics.CLOSE_ADB;
+                        break;
+                    }
+                    synchronized (this) {
+                        sendWindow -= count;
+                    }
+                    mapper.writeFrame(webOut, frame, HEADER_SIZE + count);
+                }
+            } catch (IOException e) { }
+            close(reason, true);
+        }
+
+        void relayToAdb() {
+            try {
+                OutputStream out = adbSocket.getOutputStream();
+                if (recording != null) {
+                    out = recording.tee(out);
+                }
+                int credit = 0;
+                RelayQueue.Chunk chunk;
+                while ((chunk = received.take()) != null) {
+                    out.write(chunk.data, 0, chunk.length);
+                    out.flush();
+                    credit += chunk.length;
+                    received.recycle(chunk);
+
+                    // Return the window in batches rather than for every chunk
+                    if (credit >= RECEIVE_WINDOW / 4 || received.isEmpty()) {
+                        synchronized (this) {
+                            receiveWindow += credit;
+                        }
+                        send(WINDOW, id, ByteBuffer.allocate(4).putInt(credit).array());
+                        credit = 0;
+                    }
+                }
+            } catch (IOException e) { }
+            close(Metrics.CLOSE_ERROR, true);
+        }
+
+        /**
+         * Queues client data for adb, called on the session's reader thread
+         */
+        void receive(ByteBuffer data) throws IOException {
+            int length = data.remaining();
+            synchronized (this) {
+                if (length > receiveWindow) {
+                    throw new ProtocolException("Stream " + id + " sent more than its window");
+                }
+                receiveWindow -= length;
+            }
+            if (length > 0) {
+                traffic.webToAdbBytes.add(length);
+                traffic.webToAdbFrames.increment();
+                received.offer(data);
+            }
+        }
+
+        synchronized void grant(int credit) {
+            sendWindow = (int) Math.min(Integer.MAX_VALUE, (long) sendWindow + credit);
+            notifyAll();
+        }
+
+        private synchronized int awaitWindow() throws IOException {
+            while (sendWindow <= 0 && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            return sendWindow;
+        }
+
+        /**
+         * Ends the stream, telling the client unless it asked for the close itself
+         */
+        void close(String reason, boolean notifyClient) {
+            Socket socket;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                socket = adbSocket;
+                notifyAll();
+            }
+            streams.remove(id);
+            received.close();
+            if (socket != null) {
+                closeSafely(socket);
+                proxy.metrics.closeStream(reason);
+                if (recording != null) {
+                    recording.close();
+                }
+            }
+            if (notifyClient) {
+                sendQuietly(CLOSE, id, EMPTY);
+            }
+        }
+    }
+}
@@ -0,0 +1,834 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import static com.webhv.ProxyServer.HANDSHAKE_TIMEOUT_MS;
+import static com.webhv.ProxyServer.MAX_HEADER_SIZE;
+import static com.webhv.ProxyServer.SAFE_CLOSE_CODE;
+import static com.webhv.ProxyServer.STANDARD_ERROR_CODE;
+import static com.webhv.ProxyServer.closeSafely;
+import static com.webhv.ProxyServer.encodeClose;
+import static com.webhv.ProxyServer.prefixLength;
+import static com.webhv.ProxyServer.putFrameHeader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking variant of {@link ProxyServer}. A fixed number of event loops handle the websocket
+ * handshake, the adb negotiation and both relay directions for all connections.
+ */
+class NioProxyServer {
+
+    private static final int HANDSHAKE_LIMIT = HttpRequest.MAX_SIZE;
+    private static final int BUFFER_SIZE = 16384;
+    private static final int NEGOTIATION_BUFFER_SIZE = 1024;
+
+    // Room for the handshake response, control frames and any data received with the adb OKAY
+    private static final int WEB_OUT_SIZE = HANDSHAKE_LIMIT + NEGOTIATION_BUFFER_SIZE;
+
+    private final ProxyServer proxy;
+    private final EventLoop[] loops;
+
+    NioProxyServer(ProxyServer proxy, int loopCount) {
+        this.proxy = proxy;
+        this.loops = new EventLoop[loopCount];
+    }
+
+    void doServerLoop(int portNumber) {
+        System.out.println("Starting server at " + portNumber + " with " + loops.length + " event loops");
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(i);
+                loops[i].start();
+            }
+            server.bind(new InetSocketAddress(portNumber));
+
+            int next = 0;
+            while (true) {
+                SocketChannel client = server.accept();
+                loops[next].register(client);
+                next = (next + 1) % loops.length;
+            }
+        } catch (IOException e) {
+            System.out.println("Closing server");
+        }
+    }
+
+    private class EventLoop extends Thread {
+
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+
+        // Connections holding a partial frame, waiting for more adb data
+        private final List<Connection> holding = new ArrayList<>();
+
+        // Connections leaving the event loop to be served by blocking code
+        private final List<Connection> handOffs = new ArrayList<>();
+
+        // Connections waiting for the upgrade request, in order of their deadline
+        private final Queue<Connection> handshakes = new ArrayDeque<>();
+
+        EventLoop(int index) throws IOException {
+            super("nio-loop-" + index);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    long timeout = nextDeadline() - System.nanoTime();
+                    if (holding.isEmpty() && handshakes.isEmpty()) {
+                        selector.select();
+                    } else if (timeout > 0) {
+                        selector.select(Math.max(1, timeout / 1_000_000L));
+                    } else {
+                        selector.selectNow();
+                    }
+                } catch (IOException e) {
+                    System.out.println("Event loop failed " + e);
+                    return;
+                }
+
+                // The select above has deregistered the cancelled keys of these channels
+                for (Connection connection : handOffs) {
+                    connection.completeHandOff();
+                }
+                handOffs.clear();
+
+                SocketChannel channel;
+                while ((channel = pending.poll()) != null) {
+                    try {
+                        new Connection(this, channel);
+                    } catch (IOException e) {
+                        closeSafely(channel);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        connection.handle(key);
+                    } catch (Exception e) {
+                        connection.closeAll();
+                    }
+                }
+                releaseExpiredHolds();
+                closeExpiredHandshakes();
+            }
+        }
+
+        void handOff(Connection connection) {
+            handOffs.add(connection);
+            selector.wakeup();
+        }
+
+        void hold(Connection connection) {
+            holding.add(connection);
+        }
+
+        private long nextDeadline() {
+            long deadline = Long.MAX_VALUE;
+            for (Connection c : holding) {
+                deadline = Math.min(deadline, c.holdDeadline);
+            }
+            Connection first = handshakes.peek();
+            if (first != null) {
+                deadline = Math.min(deadline, first.handshakeDeadline);
+            }
+            return deadline;
+        }
+
+        private void closeExpiredHandshakes() {
+            long now = System.nanoTime();
+            Connection connection;
+            while ((connection = handshakes.peek()) != null
+                    && (!connection.inHandshake() || connection.handshakeDeadline - now <= 0)) {
+                handshakes.remove();
+                if (connection.inHandshake()) {
+                    connection.closeAll();
+                }
+            }
+        }
+
+        private void releaseExpiredHolds() {
+            long now = System.nanoTime();
+            Iterator<Connection> it = holding.iterator();
+            while (it.hasNext()) {
+                Connection connection = it.next();
+                if (!connection.holding) {
+                    it.remove();
+                } else if (connection.holdDeadline - now <= 0) {
+                    it.remove();
+                    try {
+                        connection.releaseHold();
+                    } catch (Exception e) {
+                        connection.closeAll();
+                    }
+                }
+            }
+        }
+    }
+
+    private enum State {
+        HANDSHAKE,
+        CONNECTING,
+        AWAIT_TRANSPORT,
+        AWAIT_OKAY,
+        RELAY,
+        CLOSING,
+        HANDED_OFF
+    }
+
+    private class Connection implements WebSocketDecoder.Sink {
+
+        private final EventLoop loop;
+        private final SocketChannel webChannel;
+        private final SelectionKey webKey;
+
+        private SocketChannel adbChannel;
+        private SelectionKey adbKey;
+        // Whether adbChannel came from the transport pool
+        private boolean pooled = false;
+
+        private final ByteBuffer webIn = ByteBuffer.allocate(Math.max(HANDSHAKE_LIMIT, BUFFER_SIZE));
+        private final ByteBuffer webOut = ByteBuffer.allocateDirect(WEB_OUT_SIZE);
+        // Replaced by a buffer of the stream's frame size once the adb stream is open
+        private ByteBuffer adbIn = ByteBuffer.allocateDirect(NEGOTIATION_BUFFER_SIZE);
+        private ByteBuffer adbOut = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final ByteBuffer frameHeader = ByteBuffer.allocateDirect(MAX_HEADER_SIZE);
+        private final WebSocketDecoder decoder = new WebSocketDecoder();
+
+        // Once relaying, data read from adb is sent straight from adbIn with a gathering write.
+        // Any control frames are queued in webOut behind the current data frame.
+        private final ByteBuffer[] webOutput = {frameHeader, adbIn, webOut};
+        private boolean relaying = false;
+        // Set when a data frame is started while control frames are still being written, which
+        // then have to be written in full before the data frame
+        private boolean controlFirst = false;
+
+        private boolean deflate = false;
+        private ByteBuffer compressed;
+
+        // Buffers adb output for slow clients when the stream asks for it, see RelayQueue
+        private RelayQueue queue;
+        private RelayQueue.Chunk sending;
+
+        private SessionRecorder.Stream recording;
+
+        private long holdNanos;
+        private boolean holding = false;
+        private long holdDeadline;
+
+        private State state = State.HANDSHAKE;
+        private final long handshakeDeadline;
+        // Bytes of webIn already searched for the end of the request head
+        private int scanned = 0;
+        private ProxyServer.Handshake handshake;
+        private StreamRequest request;
+        private ProxyServer.LocalService localService;
+
+        private final long acceptNanos = System.nanoTime();
+        private long adbNanos;
+        private Metrics.Traffic traffic;
+        private long decodedFrames = 0;
+        // Recorded once the connection is closed
+        private String closeReason;
+        private boolean closed = false;
+
+        Connection(EventLoop loop, SocketChannel webChannel) throws IOException {
+            this.loop = loop;
+            this.webChannel = webChannel;
+            webChannel.configureBlocking(false);
+            webChannel.socket().setTcpNoDelay(true);
+            webKey = webChannel.register(loop.selector, SelectionKey.OP_READ, this);
+            handshakeDeadline = System.nanoTime() + HANDSHAKE_TIMEOUT_MS * 1_000_000L;
+            loop.handshakes.add(this);
+
+            // Output buffers are kept in read mode
+            webOut.flip();
+            adbOut.flip();
+            frameHeader.flip();
+        }
+
+        boolean inHandshake() {
+            return state == State.HANDSHAKE;
+        }
+
+        void handle(SelectionKey key) throws Exception {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key == webKey) {
+                if (key.isWritable()) {
+                    flushWeb();
+                    if (queue != null) {
+                        pumpQueue();
+                    }
+                }
+                if (key.isValid() && key.isReadable()) {
+                    onWebReadable();
+                }
+            } else {
+                if (key.isConnectable()) {
+                    onAdbConnected();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    flush(adbChannel, adbOut);
+                }
+                if (key.isValid() && key.isReadable()) {
+                    onAdbReadable();
+                }
+            }
+            updateInterest();
+        }
+
+        private void onWebReadable() throws Exception {
+            if (webChannel.read(webIn) == -1) {
+                setCloseReason(Metrics.CLOSE_CLIENT);
+                closeAll();
+                return;
+            }
+            if (state == State.HANDSHAKE) {
+                onHandshakeData();
+            } else if (state == State.RELAY) {
+                decodeWebInput();
+            }
+        }
+
+        private void onHandshakeData() throws Exception {
+            int end = HttpRequest.findHeaderEnd(webIn.array(), Math.max(0, scanned - 3), webIn.position());
+            scanned = webIn.position();
+            if (end < 0) {
+                if (!webIn.hasRemaining()) {
+                    throw new IOException("Handshake too large");
+                }
+                return;
+            }
+
+            HttpRequest http = HttpRequest.parse(webIn.array(), end);
+            // Keep any frames sent after the upgrade request for later
+            webIn.flip();
+            webIn.position(end + 4);
+            webIn.compact();
+
+            localService = proxy.findHttpService(http);
+            if (localService != null) {
+                state = State.HANDED_OFF;
+                webKey.cancel();
+                loop.handOff(this);
+                return;
+            }
+            handshake = proxy.processHandshake(http);
+            queueWeb(handshake.response, 0, handshake.response.length);
+            if (handshake.errorMessage != null) {
+                byte[] close = encodeClose(STANDARD_ERROR_CODE, handshake.errorMessage);
+                queueWeb(close, 0, close.length);
+                state = State.CLOSING;
+                return;
+            }
+            proxy.metrics.handshake.observeSince(acceptNanos);
+
+            request = handshake.request;
+            localService = proxy.findLocalService(request);
+            if (localService != null || proxy.isAdbdDevice(request.device) || proxy.isCachedQuery(request)) {
+                // Direct adbd streams and cached queries are relayed by threads, like local services
+                state = State.HANDED_OFF;
+                webKey.cancel();
+                loop.handOff(this);
+                return;
+            }
+            if (handshake.deflate) {
+                deflate = true;
+                decoder.enableInflate();
+            }
+            connectAdb();
+        }
+
+        private void connectAdb() throws IOException {
+            SocketChannel pooledChannel = request.device != null && proxy.transportPool != null
+                    ? proxy.transportPool.take(request.device) : null;
+            adbChannel = pooledChannel != null ? pooledChannel : SocketChannel.open();
+            adbChannel.configureBlocking(false);
+            adbKey = adbChannel.register(loop.selector, 0, this);
+            adbNanos = System.nanoTime();
+            if (pooledChannel != null) {
+                // The device is already selected
+                pooled = true;
+                state = State.AWAIT_OKAY;
+                queueAdb(prefixLength(request.command));
+                return;
+            }
+            state = State.CONNECTING;
+            if (adbChannel.connect(new InetSocketAddress(proxy.adbHost, proxy.adbPort))) {
+                onAdbConnected();
+            }
+        }
+
+        /**
+         * Drops a pooled adb connection which turned out to be closed, along with the device's
+         * other pooled connections, and connects the usual way instead. Returns false if the
+         * connection wasn't pooled.
+         */
+        private boolean retryUnpooled() {
+            if (!pooled || state != State.AWAIT_OKAY) {
+                return false;
+            }
+            pooled = false;
+            adbKey.cancel();
+            closeSafely(adbChannel);
+            proxy.transportPool.remove(request.device);
+            adbIn.clear();
+            adbOut.clear().flip();
+            try {
+                connectAdb();
+            } catch (IOException e) {
+                fail("Unable to connect to ADB server", Metrics.CLOSE_ADB_UNAVAILABLE);
+            }
+            return true;
+        }
+
+        private void onAdbConnected() {
+            try {
+                if (adbChannel.isConnectionPending()) {
+                    adbChannel.finishConnect();
+                }
+            } catch (IOException e) {
+                fail("Unable to connect to ADB server", Metrics.CLOSE_ADB_UNAVAILABLE);
+                return;
+            }
+            proxy.metrics.adbConnect.observeSince(adbNanos);
+            adbNanos = System.nanoTime();
+            if (request.device == null) {
+                queueAdb(prefixLength("host:" + request.command));
+                state = State.AWAIT_OKAY;
+            } else {
+                queueAdb(prefixLength("host:transport:" + request.device));
+                state = State.AWAIT_TRANSPORT;
+            }
+        }
+
+        private void onAdbReadable() throws Exception {
+            if (state == State.RELAY && queue != null) {
+                adbIn.clear();
+                if (adbChannel.read(adbIn) == -1) {
+                    setCloseReason(Metrics.CLOSE_ADB);
+                    state = State.CLOSING;
+                    closeSafely(adbChannel);
+                } else {
+                    adbIn.flip();
+                    if (recording != null) {
+                        recording.fromAdb(adbIn);
+                    }
+                    queue.offer(adbIn);
+                    pumpQueue();
+                }
+                return;
+            }
+            if (state == State.RELAY) {
+                if (!holding) {
+                    adbIn.clear();
+                }
+                int count = adbChannel.read(adbIn);
+                if (count > 0 && recording != null) {
+                    recording.fromAdb(adbIn.duplicate().flip().position(adbIn.position() - count));
+                }
+                if (count == -1) {
+                    // Send any held data before closing
+                    releaseHold();
+                    setCloseReason(Metrics.CLOSE_ADB);
+                    state = State.CLOSING;
+                    closeSafely(adbChannel);
+                } else if (holdNanos > 0 && adbIn.position() > 0 && adbIn.hasRemaining()) {
+                    if (!holding) {
+                        holding = true;
+                        holdDeadline = System.nanoTime() + holdNanos;
+                        loop.hold(this);
+                    }
+                } else {
+                    releaseHold();
+                }
+                return;
+            }
+
+            int read;
+            try {
+                read = adbChannel.read(adbIn);
+            } catch (IOException e) {
+                read = -1;
+            }
+            if (read == -1) {
+                if (!retryUnpooled()) {
+                    fail("ADB connection error", Metrics.CLOSE_ADB_REFUSED);
+                }
+                return;
+            }
+            if (adbIn.position() < 4) {
+                return;
+            }
+            adbIn.flip();
+            byte[] status = new byte[4];
+            adbIn.get(status);
+            adbIn.compact();
+            if (!new String(status, StandardCharsets.UTF_8).equalsIgnoreCase("OKAY")) {
+                fail("ADB connection error", Metrics.CLOSE_ADB_REFUSED);
+                return;
+            }
+
+            if (state == State.AWAIT_TRANSPORT) {
+                queueAdb(prefixLength(request.command));
+                state = State.AWAIT_OKAY;
+            } else {
+                state = State.RELAY;
+                proxy.metrics.adbOkay.observeSince(adbNanos);
+                if (pooled) {
+                    proxy.metrics.pooledStream();
+                }
+                traffic = proxy.metrics.openStream(request);
+                recording = proxy.record(request);
+                // Forward anything which arrived along with the OKAY, behind the handshake response
+                adbIn.flip();
+                if (recording != null) {
+                    recording.fromAdb(adbIn);
+                }
+                if (adbIn.hasRemaining()) {
+                    traffic.adbToWebBytes.add(adbIn.remaining());
+                    traffic.adbToWebFrames.increment();
+                    webOut.compact();
+                    putFrameHeader(webOut, adbIn.remaining());
+                    webOut.put(adbIn);
+                    webOut.flip();
+                }
+
+                adbIn = ByteBuffer.allocateDirect(request.maxFrame);
+                adbIn.flip();
+                webOutput[1] = adbIn;
+                holdNanos = request.holdMillis * 1_000_000L;
+                if (request.highWater > 0) {
+                    webChannel.socket().setSendBufferSize(StreamRequest.QUEUED_SEND_BUFFER);
+                    queue = new RelayQueue(request.maxFrame, 0, request.highWater, request.lowWater,
+                            request.dropToKeyFrame, traffic.droppedBytes);
+                }
+                relaying = true;
+                flushWeb();
+                decodeWebInput();
+            }
+        }
+
+        /**
+         * Switches the web socket to blocking mode and passes it to the proxy's local service
+         * handling or thread relay, along with any client data already read.
+         */
+        void completeHandOff() {
+            try {
+                webChannel.configureBlocking(true);
+                while (webOut.hasRemaining()) {
+                    webChannel.write(webOut);
+                }
+                InputStream in = webChannel.socket().getInputStream();
+                if (webIn.position() > 0) {
+                    in = new SequenceInputStream(
+                            new ByteArrayInputStream(webIn.array(), 0, webIn.position()), in);
+                }
+                if (localService != null) {
+                    proxy.serveLocally(localService, webChannel.socket(), in,
+                            webChannel.socket().getOutputStream(), handshake);
+                } else {
+                    proxy.relay(webChannel.socket(), in, webChannel.socket().getOutputStream(), handshake);
+                }
+            } catch (IOException e) {
+                closeSafely(webChannel);
+            }
+        }
+
+        /**
+         * Sends everything read from adb so far as a single frame
+         */
+        void releaseHold() throws IOException {
+            holding = false;
+            adbIn.flip();
+            if (adbIn.hasRemaining()) {
+                sendPayload(adbIn);
+            }
+            updateInterest();
+        }
+
+        /**
+         * Starts sending the next queued chunk whenever the previous frame has been written
+         */
+        private void pumpQueue() throws IOException {
+            while (!frameHeader.hasRemaining() && !webOutput[1].hasRemaining()) {
+                if (sending != null) {
+                    queue.recycle(sending);
+                    sending = null;
+                }
+                sending = queue.poll();
+                if (sending == null) {
+                    return;
+                }
+                String report = request.reportLag ? queue.lagReport() : null;
+                if (report != null) {
+                    byte[] data = report.getBytes(StandardCharsets.UTF_8);
+                    webOut.compact();
+                    // Lag reports are only advisory, skip them if control frames are backed up
+                    if (webOut.remaining() >= MAX_HEADER_SIZE + data.length) {
+                        putFrameHeader(webOut, WebSocketDecoder.OP_TEXT, data.length, false);
+                        webOut.put(data);
+                    }
+                    webOut.flip();
+                }
+                sending.buffer.clear().limit(sending.length);
+                sendPayload(sending.buffer);
+            }
+        }
+
+        /**
+         * Starts sending the remaining bytes of {@code payload} as a single frame, compressed if
+         * that makes it smaller
+         */
+        private void sendPayload(ByteBuffer payload) throws IOException {
+            int length = payload.remaining();
+            traffic.adbToWebBytes.add(length);
+            traffic.adbToWebFrames.increment();
+            if (deflate && length >= PerMessageDeflate.MIN_SIZE) {
+                if (compressed == null) {
+                    compressed = ByteBuffer.allocateDirect(request.maxFrame);
+                }
+                int start = payload.position();
+                compressed.clear().limit(length - 1);
+                if (PerMessageDeflate.compress(payload, compressed)) {
+                    compressed.flip();
+                    payload.position(payload.limit());
+                    payload = compressed;
+                } else {
+                    payload.position(start);
+                }
+            }
+            webOutput[1] = payload;
+            frameHeader.clear();
+            putFrameHeader(frameHeader, payload.remaining(), payload == compressed);
+            frameHeader.flip();
+            controlFirst = webOut.hasRemaining();
+            flushWeb();
+        }
+
+        private void decodeWebInput() throws IOException {
+            if (webIn.position() > 0) {
+                decoder.decode(webIn.array(), 0, webIn.position(), this);
+                traffic.webToAdbFrames.add(decoder.getDataFrames() - decodedFrames);
+                decodedFrames = decoder.getDataFrames();
+                webIn.clear();
+                flush(adbChannel, adbOut);
+            }
+        }
+
+        @Override
+        public void onData(byte[] data, int offset, int length) {
+            adbOut.compact();
+            if (adbOut.remaining() < length) {
+                // Inflated client messages can be larger than what was read
+                ByteBuffer larger = ByteBuffer.allocateDirect(adbOut.position() + length);
+                adbOut.flip();
+                larger.put(adbOut);
+                adbOut = larger;
+            }
+            adbOut.put(data, offset, length);
+            adbOut.flip();
+            traffic.webToAdbBytes.add(length);
+            if (recording != null) {
+                recording.toAdb(data, offset, length);
+            }
+        }
+
+        @Override
+        public void onControl(int opcode, byte[] payload, int length) throws IOException {
+            if (opcode == WebSocketDecoder.OP_CLOSE) {
+                if (holding) {
+                    // Nothing may follow the close frame
+                    releaseHold();
+                }
+                if (queue != null) {
+                    // Only the frame being written is completed, the rest of the queue is dropped
+                    queue.close();
+                    sending = null;
+                }
+                byte[] close = encodeClose(SAFE_CLOSE_CODE, "Safe close");
+                queueWeb(close, 0, close.length);
+                setCloseReason(Metrics.CLOSE_CLIENT);
+                state = State.CLOSING;
+                closeSafely(adbChannel);
+            } else if (opcode == WebSocketDecoder.OP_PING) {
+                webOut.compact();
+                webOut.put((byte) (128 | WebSocketDecoder.OP_PONG));
+                webOut.put((byte) length);
+                webOut.put(payload, 0, length);
+                webOut.flip();
+                flushWeb();
+            }
+        }
+
+        private void queueWeb(byte[] data, int offset, int length) throws IOException {
+            webOut.compact();
+            webOut.put(data, offset, length);
+            webOut.flip();
+            flushWeb();
+        }
+
+        private void queueAdb(String message) {
+            adbOut.compact();
+            adbOut.put(message.getBytes(StandardCharsets.UTF_8));
+            adbOut.flip();
+            try {
+                flush(adbChannel, adbOut);
+            } catch (IOException e) {
+                if (!retryUnpooled()) {
+                    fail("ADB connection error", Metrics.CLOSE_ADB_REFUSED);
+                }
+            }
+        }
+
+        private void fail(String message, String reason) {
+            setCloseReason(reason);
+            closeSafely(adbChannel);
+            byte[] close = encodeClose(STANDARD_ERROR_CODE, message);
+            webOut.compact();
+            webOut.put(close);
+            webOut.flip();
+            state = State.CLOSING;
+            try {
+                flushWeb();
+            } catch (IOException e) {
+                closeAll();
+            }
+        }
+
+        private boolean webPending() {
+            return webOut.hasRemaining() || (relaying && !holding
+                    && (frameHeader.hasRemaining() || webOutput[1].hasRemaining()))
+                    || (queue != null && !queue.isEmpty());
+        }
+
+        private void flushWeb() throws IOException {
+            if (!relaying || holding) {
+                // While a frame is held adbIn is still being filled, so control frames go out on
+                // their own. No data frame is in progress then, as holds only start once the
+                // previous one is written.
+                flush(webChannel, webOut);
+                return;
+            }
+            if (controlFirst) {
+                flush(webChannel, webOut);
+                if (webOut.hasRemaining()) {
+                    return;
+                }
+                controlFirst = false;
+            }
+            if (webPending()) {
+                webChannel.write(webOutput);
+            }
+        }
+
+        private void flush(SocketChannel channel, ByteBuffer buffer) throws IOException {
+            if (buffer.hasRemaining() && channel.isConnected()) {
+                channel.write(buffer);
+            }
+        }
+
+        /**
+         * Only read from one side when everything from the previous read has been written to the
+         * other side. This keeps the buffers bounded and pushes back on the sender via TCP.
+         */
+        private void updateInterest() throws ClosedChannelException {
+            if (state == State.CLOSING && !webPending()) {
+                closeAll();
+                return;
+            }
+            if (webKey.isValid()) {
+                int ops = webPending() ? SelectionKey.OP_WRITE : 0;
+                if (state == State.HANDSHAKE || (state == State.RELAY && !adbOut.hasRemaining())) {
+                    ops |= SelectionKey.OP_READ;
+                }
+                webKey.interestOps(ops);
+            }
+            if (adbKey != null && adbKey.isValid()) {
+                int ops = adbOut.hasRemaining() ? SelectionKey.OP_WRITE : 0;
+                if (state == State.CONNECTING) {
+                    ops = SelectionKey.OP_CONNECT;
+                } else if (state == State.AWAIT_TRANSPORT || state == State.AWAIT_OKAY
+                        || (state == State.RELAY && (queue != null ? !queue.isFull() : !webPending()))) {
+                    ops |= SelectionKey.OP_READ;
+                }
+                adbKey.interestOps(ops);
+            }
+        }
+
+        private void setCloseReason(String reason) {
+            if (closeReason == null) {
+                closeReason = reason;
+            }
+        }
+
+        void closeAll() {
+            if (!closed) {
+                closed = true;
+                if (traffic != null) {
+                    proxy.metrics.closeStream(closeReason != null ? closeReason : Metrics.CLOSE_ERROR);
+                } else {
+                    proxy.metrics.closed(closeReason != null ? closeReason : Metrics.CLOSE_HANDSHAKE_FAILED);
+                }
+            }
+            state = State.CLOSING;
+            holding = false;
+            webKey.cancel();
+            closeSafely(webChannel);
+            if (adbKey != null) {
+                adbKey.cancel();
+            }
+            if (adbChannel != null) {
+                closeSafely(adbChannel);
+            }
+            if (recording != null) {
+                recording.close();
+            }
+        }
+    }
+
+}
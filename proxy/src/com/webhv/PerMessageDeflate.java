@@ -0,0 +1,115 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Support for the permessage-deflate websocket extension (RFC 7692).
+ *
+ * Both directions are negotiated without context takeover, so every message is compressed on
+ * its own. This lets streams borrow a {@link Deflater} or {@link Inflater} for a single message
+ * from a shared pool instead of keeping one alive for their whole lifetime.
+ */
+class PerMessageDeflate {
+
+    static final String EXTENSION = "permessage-deflate";
+    static final String RESPONSE = EXTENSION + "; server_no_context_takeover; client_no_context_takeover";
+
+    /** Messages smaller than this are not worth compressing */
+    static final int MIN_SIZE = 256;
+
+    static final byte[] TAIL = {0, 0, (byte) 255, (byte) 255};
+
+    private static final int MAX_POOLED = 16;
+
+    private static final Queue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<>();
+    private static final Queue<Inflater> INFLATERS = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger DEFLATER_COUNT = new AtomicInteger();
+    private static final AtomicInteger INFLATER_COUNT = new AtomicInteger();
+
+    /**
+     * Returns true if the client offered permessage-deflate in its Sec-WebSocket-Extensions header
+     */
+    static boolean isOffered(String extensions) {
+        if (extensions == null) {
+            return false;
+        }
+        for (String offer : extensions.split(",")) {
+            if (offer.split(";")[0].trim().equalsIgnoreCase(EXTENSION)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compresses all remaining bytes of {@code src} into {@code dst} as a single message payload.
+     * Returns false, leaving the buffer positions undefined, if the result does not fit in the
+     * remaining space of {@code dst}. Callers limit {@code dst} to the uncompressed size so that
+     * only messages which actually shrink get sent compressed.
+     */
+    static boolean compress(ByteBuffer src, ByteBuffer dst) {
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        } else {
+            DEFLATER_COUNT.decrementAndGet();
+        }
+        try {
+            deflater.setInput(src);
+            int space = dst.remaining();
+            // A sync flush either completes within the available space or fills it up
+            if (deflater.deflate(dst, Deflater.SYNC_FLUSH) == space) {
+                return false;
+            }
+            // Strip the empty stored block added by the flush
+            dst.position(dst.position() - TAIL.length);
+            return true;
+        } finally {
+            deflater.reset();
+            if (DEFLATER_COUNT.incrementAndGet() <= MAX_POOLED) {
+                DEFLATERS.add(deflater);
+            } else {
+                DEFLATER_COUNT.decrementAndGet();
+                deflater.end();
+            }
+        }
+    }
+
+    static Inflater borrowInflater() {
+        Inflater inflater = INFLATERS.poll();
+        if (inflater == null) {
+            return new Inflater(true);
+        }
+        INFLATER_COUNT.decrementAndGet();
+        return inflater;
+    }
+
+    static void releaseInflater(Inflater inflater) {
+        inflater.reset();
+        if (INFLATER_COUNT.incrementAndGet() <= MAX_POOLED) {
+            INFLATERS.add(inflater);
+        } else {
+            INFLATER_COUNT.decrementAndGet();
+            inflater.end();
+        }
+    }
+}
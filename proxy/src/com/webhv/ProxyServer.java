@@ -14,40 +14,125 @@
 
 package com.webhv;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.URLDecoder;
+import java.net.SocketTimeoutException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.Scanner;
 import java.util.UUID;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ThreadFactory;
 
 public class ProxyServer {
 
-    private static final Executor HANDSHAKE_EXECUTOR = Executors.newFixedThreadPool(10);
+    private static final int HANDSHAKE_THREADS = 10;
+    static final int HANDSHAKE_TIMEOUT_MS = 5000;
+
+    private static final byte[] WEBSOCKET_GUID =
+            "258EAFA5-E914-47DA-95CA-C5AB0DC85B11".getBytes(StandardCharsets.ISO_8859_1);
+    private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
     private static final String HANDSHAKE_KEY = "handshake_key";
     private static final boolean DEBUG = false;
     private static final int VERSION = 1;
 
-    private static final int STANDARD_ERROR_CODE = 4010;
-    private static final int SAFE_CLOSE_CODE = 4015;
+    static final int STANDARD_ERROR_CODE = 4010;
+    static final int SAFE_CLOSE_CODE = 4015;
+
+    static final int MAX_HEADER_SIZE = 10;
+
+    static final int SERVER_PORT = 8000;
+    static final String ADB_HOST = "localhost";
+    static final int ADB_PORT = 5037;
+    // Idle connections kept per device which already selected its transport, off unless asked for
+    static final int DEFAULT_TRANSPORT_POOL_SIZE = 0;
 
     public static void main(String[] args) {
+        String mode = "threads";
+        int eventLoops = Runtime.getRuntime().availableProcessors();
+        boolean deviceCache = true;
+        int port = SERVER_PORT;
+        int adbPort = ADB_PORT;
+        int metricsPort = 0;
+        String recordFile = null;
+        String replayFile = null;
+        double replaySpeed = 1;
+        int transportPoolSize = DEFAULT_TRANSPORT_POOL_SIZE;
+        boolean shellCache = false;
+        boolean snapshots = false;
+        long snapshotsMaxSize = SnapshotService.DEFAULT_MAX_ARCHIVE_SIZE;
+        List<String> adbdDevices = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--mode=")) {
+                mode = arg.substring("--mode=".length());
+            } else if (arg.startsWith("--event-loops=")) {
+                eventLoops = Integer.parseInt(arg.substring("--event-loops=".length()));
+            } else if (arg.equals("--no-device-cache")) {
+                deviceCache = false;
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--adb-port=")) {
+                adbPort = Integer.parseInt(arg.substring("--adb-port=".length()));
+            } else if (arg.startsWith("--metrics-port=")) {
+                metricsPort = Integer.parseInt(arg.substring("--metrics-port=".length()));
+            } else if (arg.startsWith("--transport-pool=")) {
+                transportPoolSize = Integer.parseInt(arg.substring("--transport-pool=".length()));
+            } else if (arg.equals("--shell-cache")) {
+                shellCache = true;
+            } else if (arg.equals("--snapshots")) {
+                snapshots = true;
+            } else if (arg.startsWith("--snapshots-max-mb=")) {
+                snapshotsMaxSize = Long.parseLong(arg.substring("--snapshots-max-mb=".length())) << 20;
+            } else if (arg.startsWith("--adbd=")) {
+                adbdDevices.addAll(Arrays.asList(arg.substring("--adbd=".length()).split(",")));
+            } else if (arg.startsWith("--record=")) {
+                recordFile = arg.substring("--record=".length());
+            } else if (arg.startsWith("--replay=")) {
+                replayFile = arg.substring("--replay=".length());
+            } else if (arg.startsWith("--replay-speed=")) {
+                replaySpeed = Double.parseDouble(arg.substring("--replay-speed=".length()));
+            } else {
+                System.out.println("Unknown argument " + arg);
+                System.out.println("Usage: webhv-proxy [--mode=threads|virtual|nio] [--event-loops=N]"
+                        + " [--no-device-cache] [--port=N] [--adb-port=N] [--metrics-port=N] [--transport-pool=N]"
+                        + " [--shell-cache] [--snapshots] [--snapshots-max-mb=N]"
+                        + " [--adbd=HOST:PORT,...] [--record=FILE] [--replay=FILE] [--replay-speed=N]");
+                System.out.println("  --transport-pool=N keeps N idle adb connections per device to open"
+                        + " streams on, default " + DEFAULT_TRANSPORT_POOL_SIZE);
+                return;
+            }
+        }
+
+
         // Initialize signature
         File propsFile = new File(System.getProperty("user.home"), ".webhv_proxy");
 
@@ -70,83 +155,326 @@ public class ProxyServer {
             }
         }
 
-        new ProxyServer(key).doServerLoop();
+        ThreadFactory virtualThreads = "virtual".equals(mode) ? virtualThreadFactory() : null;
+        ProxyServer proxy;
+        if (virtualThreads != null) {
+            System.out.println("Using virtual threads");
+            proxy = new ProxyServer(key, r -> virtualThreads.newThread(r).start(), virtualThreads);
+        } else {
+            if ("virtual".equals(mode)) {
+                System.out.println("Virtual threads require Java 21, using platform threads");
+            }
+            proxy = new ProxyServer(key);
+        }
+        proxy.adbPort = adbPort;
+
+        if (replayFile != null) {
+            try {
+                SessionReplay replay = new SessionReplay(new File(replayFile), replaySpeed);
+                proxy.adbHost = InetAddress.getLoopbackAddress().getHostAddress();
+                proxy.adbPort = replay.start();
+                System.out.println("Replaying " + replay.size() + " streams from " + replayFile
+                        + " instead of adb");
+            } catch (IOException e) {
+                System.out.println("Unable to replay " + replayFile + ": " + e);
+                return;
+            }
+        }
+        if (recordFile != null) {
+            try {
+                SessionRecorder recorder = new SessionRecorder(new File(recordFile));
+                Runtime.getRuntime().addShutdownHook(new Thread(recorder::close, "recorder-close"));
+                proxy.recorder = recorder;
+                System.out.println("Recording to " + recordFile);
+            } catch (IOException e) {
+                System.out.println("Unable to record to " + recordFile + ": " + e);
+                return;
+            }
+        }
+
+        if (metricsPort > 0) {
+            try {
+                proxy.metrics.startServer(metricsPort);
+            } catch (IOException e) {
+                System.out.println("Unable to serve metrics at " + metricsPort + ": " + e);
+            }
+        }
+
+        if (!adbdDevices.isEmpty()) {
+            proxy.adbdDevices = new AdbdTransport.Devices(adbdDevices,
+                    AdbKey.load(new File(System.getProperty("user.home"), ".android/adbkey")),
+                    System.out::println);
+            System.out.println("Connecting to " + String.join(", ", adbdDevices) + " directly");
+        }
+
+        proxy.pushCache = new PushCache(proxy, new File(System.getProperty("user.home"), ".webhv_push_cache"));
+        proxy.pullService = new PullService(proxy);
+        proxy.viewTreeService = new ViewTreeService(proxy);
+        if (snapshots) {
+            File snapshotFile = new File(System.getProperty("user.home"), ".webhv_snapshots");
+            proxy.snapshotService = new SnapshotService(proxy, snapshotFile.toPath(), snapshotsMaxSize);
+            System.out.println("Keeping saved hierarchies in " + snapshotFile + ", up to "
+                    + (snapshotsMaxSize >> 20) + " MB");
+        }
+        proxy.videoBroadcaster = new VideoBroadcaster(proxy);
+        if (shellCache) {
+            proxy.shellCache = new ShellCache(proxy);
+        }
+
+        if (transportPoolSize > 0) {
+            proxy.transportPool = new TransportPool(proxy.adbHost, proxy.adbPort, transportPoolSize);
+            System.out.println("Keeping " + transportPoolSize + " idle adb connections per device");
+        }
+
+        if (deviceCache) {
+            proxy.deviceTracker = new DeviceTracker(proxy.adbHost, proxy.adbPort);
+            if (proxy.transportPool != null) {
+                proxy.deviceTracker.addListener(proxy.transportPool);
+            }
+            if (proxy.recorder != null) {
+                SessionRecorder recorder = proxy.recorder;
+                proxy.deviceTracker.addListener((before, after) -> recorder.devices(DeviceTracker.format(after, true)));
+            }
+            proxy.deviceTracker.start();
+        }
+
+        if ("nio".equals(mode)) {
+            new NioProxyServer(proxy, Math.max(1, eventLoops)).doServerLoop(port);
+        } else {
+            proxy.doServerLoop(port);
+        }
     }
 
     final String handshakeKey;
+    private final Executor handshakeExecutor;
+    final ThreadFactory relayThreads;
+
+    // Serves device lists from memory when set
+    DeviceTracker deviceTracker;
+    // Skips pushing files which devices already have when set
+    PushCache pushCache;
+    // Spools pulled files and serves them over HTTP when set
+    PullService pullService;
+    // Decodes view hierarchies for the client when set
+    ViewTreeService viewTreeService;
+    // Keeps saved hierarchies in an archive and serves it over HTTP when set
+    SnapshotService snapshotService;
+    // Shares video streams requested with frame=au between viewers when set
+    VideoBroadcaster videoBroadcaster;
+    // Records every relayed stream when set
+    SessionRecorder recorder;
+    // Devices whose streams bypass the adb server when set
+    AdbdTransport.Devices adbdDevices;
+    // Opens device streams on connections which already selected the device when set
+    TransportPool transportPool;
+    // Answers repeated shell queries from memory when set
+    ShellCache shellCache;
+
+    String adbHost = ADB_HOST;
+    int adbPort = ADB_PORT;
+
+    final Metrics metrics = new Metrics();
 
     ProxyServer(String handshakeKey) {
+        this(handshakeKey, Executors.newFixedThreadPool(HANDSHAKE_THREADS), Thread::new);
+    }
+
+    ProxyServer(String handshakeKey, Executor handshakeExecutor, ThreadFactory relayThreads) {
         System.out.println("Handshake key: " + handshakeKey);
         this.handshakeKey = VERSION + "-" + handshakeKey;
+        this.handshakeExecutor = handshakeExecutor;
+        this.relayThreads = relayThreads;
     }
 
-    private void doServerLoop() {
-        int portNumber = 8000;
+    /**
+     * Returns a factory for virtual threads, or null if the runtime does not support them.
+     * Looked up reflectively so that the proxy still builds and runs on older JDKs.
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+                    .getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private void doServerLoop(int portNumber) {
         System.out.println("Starting server at " + portNumber);
         try (ServerSocket server = new ServerSocket(portNumber)) {
-            while (true) {
-                Socket clientSocket = server.accept();
-                HANDSHAKE_EXECUTOR.execute(() -> handleWebRequestAsync(clientSocket));
-            }
+            doServerLoop(server);
         } catch (IOException e) {
             System.out.println("Closing server");
         }
     }
 
+    /**
+     * Accepts connections on an already bound socket until it is closed
+     */
+    void doServerLoop(ServerSocket server) throws IOException {
+        while (true) {
+            Socket clientSocket = server.accept();
+            handshakeExecutor.execute(() -> handleWebRequestAsync(clientSocket));
+        }
+    }
+
 
     private void handleWebRequestAsync(Socket webSocket) {
         InputStream webIn;
         OutputStream webOut;
-        String request;
+        Handshake handshake;
+        long startNanos = System.nanoTime();
 
         try {
-            webIn = webSocket.getInputStream();
+            // Buffered so that the request head can be parsed without reading past it
+            webIn = new BufferedInputStream(webSocket.getInputStream(), HttpRequest.MAX_SIZE);
             webOut = webSocket.getOutputStream();
-            request = doWebsocketHandshake(webIn, webOut);
+            // Don't let slow clients hold on to a handshake thread
+            webSocket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            HttpRequest http = HttpRequest.read(webIn);
+            LocalService httpService = findHttpService(http);
+            if (httpService != null) {
+                serveLocally(httpService, webSocket, webIn, webOut, null);
+                return;
+            }
+            handshake = doWebsocketHandshake(http, webOut);
+            webSocket.setSoTimeout(0);
         } catch (Exception e) {
             // Handshake failed
+            metrics.closed(Metrics.CLOSE_HANDSHAKE_FAILED);
             closeSafely(webSocket);
             return;
         }
+        metrics.handshake.observeSince(startNanos);
 
-        String device = null;
-        String command;
-
-        int split = request.indexOf('/');
-        if (split > 0) {
-            device = request.substring(0, split);
+        LocalService localService = findLocalService(handshake.request);
+        if (localService != null) {
+            serveLocally(localService, webSocket, webIn, webOut, handshake);
+            return;
         }
-        command = URLDecoder.decode(request.substring(split + 1), StandardCharsets.UTF_8);
+        relay(webSocket, webIn, webOut, handshake);
+    }
+
+    /**
+     * Opens the adb stream for a handshake and starts the threads which relay it
+     */
+    void relay(Socket webSocket, InputStream webIn, OutputStream webOut, Handshake handshake) {
+        StreamRequest streamRequest = handshake.request;
+        String device = streamRequest.device;
+        String command = streamRequest.command;
         if (DEBUG) {
             System.out.println("Making connection  " + device + ", " + command);
         }
 
-        // Device list
-        Socket adbSocket = null;
+        Socket adbSocket;
         InputStream adbIn;
         OutputStream adbOut;
 
         try {
+            adbSocket = openAdbStream(streamRequest);
+            adbIn = adbSocket.getInputStream();
+            adbOut = adbSocket.getOutputStream();
+            SessionRecorder.Stream recording = record(streamRequest);
+            if (recording != null) {
+                adbIn = recording.tee(adbIn);
+                adbOut = recording.tee(adbOut);
+            }
+        } catch (IOException e) {
+            // Error opening adb socket
             try {
-                adbSocket = new Socket("localhost", 5037);
-                adbIn = adbSocket.getInputStream();
-                adbOut = adbSocket.getOutputStream();
-            } catch (Exception e) {
-                throw new Exception("Unable to connect to ADB server", e);
+                webOut.write(encodeClose(STANDARD_ERROR_CODE, e.getMessage()));
+                webOut.flush();
+            } catch (IOException e2) { }
+            closeSafely(webSocket);
+            return;
+        }
+
+        // All done. Start connection threads
+        Metrics.Traffic traffic = metrics.openStream(streamRequest);
+        CancelSignal cancelSignal;
+        if (streamRequest.highWater > 0) {
+            // Adb is read into a queue which a separate thread sends from
+            try {
+                webSocket.setSendBufferSize(StreamRequest.QUEUED_SEND_BUFFER);
+            } catch (IOException e) { }
+            RelayQueue queue = new RelayQueue(streamRequest.maxFrame, MAX_HEADER_SIZE, streamRequest.highWater,
+                    streamRequest.lowWater, streamRequest.dropToKeyFrame, traffic.droppedBytes);
+            AdbToWebMapper mapper = new AdbToWebMapper(adbSocket, streamRequest.maxFrame, streamRequest.holdMillis,
+                    handshake.deflate, traffic, queue);
+            cancelSignal = new CancelSignal(metrics, webSocket, adbSocket, queue);
+            relayThreads.newThread(new InputOutputLoop("adbIn:" + command, null, adbIn,
+                    OutputStream.nullOutputStream(), cancelSignal, mapper)).start();
+            relayThreads.newThread(new QueueWriter("queue:" + command, queue, webOut, cancelSignal, mapper,
+                    streamRequest.reportLag)).start();
+        } else {
+            cancelSignal = new CancelSignal(metrics, webSocket, adbSocket);
+            relayThreads.newThread(new InputOutputLoop("adbIn:" + command, Metrics.CLOSE_ADB, adbIn, webOut,
+                    cancelSignal, new AdbToWebMapper(adbSocket, streamRequest.maxFrame, streamRequest.holdMillis,
+                            handshake.deflate, traffic, null))).start();
+        }
+        relayThreads.newThread(new InputOutputLoop("webIn:" + command, Metrics.CLOSE_CLIENT, webIn, adbOut,
+                cancelSignal, new WebToAdbMapper(webOut, handshake.deflate, traffic))).start();
+    }
+
+    /**
+     * Connects to adb and opens the stream for the request, or answers it from the shell cache.
+     * Failures are recorded as the reason for closing the connection, and thrown with a message
+     * for the client.
+     */
+    Socket openAdbStream(StreamRequest request) throws IOException {
+        if (isCachedQuery(request)) {
+            return shellCache.open(request);
+        }
+        return openUncachedStream(request);
+    }
+
+    /**
+     * Returns true if the stream is answered by the shell cache
+     */
+    boolean isCachedQuery(StreamRequest request) {
+        return shellCache != null && shellCache.accepts(request);
+    }
+
+    /**
+     * Opens the stream for the request like {@link #openAdbStream}, bypassing the shell cache
+     */
+    Socket openUncachedStream(StreamRequest request) throws IOException {
+        if (isAdbdDevice(request.device)) {
+            return openAdbdStream(request);
+        }
+        if (request.device != null && transportPool != null) {
+            Socket pooled = openPooledStream(request);
+            if (pooled != null) {
+                return pooled;
             }
+        }
+        Socket adbSocket;
+        try {
+            long connectNanos = System.nanoTime();
+            adbSocket = new Socket(adbHost, adbPort);
+            metrics.adbConnect.observeSince(connectNanos);
+        } catch (IOException e) {
+            metrics.closed(Metrics.CLOSE_ADB_UNAVAILABLE);
+            throw new IOException("Unable to connect to ADB server", e);
+        }
 
-            if (device == null) {
-                adbOut.write(prefixLength("host:" + command).getBytes());
+        try {
+            InputStream adbIn = adbSocket.getInputStream();
+            OutputStream adbOut = adbSocket.getOutputStream();
+            long negotiationNanos = System.nanoTime();
+            if (request.device == null) {
+                adbOut.write(prefixLength("host:" + request.command).getBytes());
                 adbOut.flush();
             } else {
-                adbOut.write(prefixLength("host:transport:" + device).getBytes());
+                adbOut.write(prefixLength("host:transport:" + request.device).getBytes());
                 adbOut.flush();
 
                 // Wait for first okay
                 if (!new String(adbIn.readNBytes(4)).equalsIgnoreCase("OKAY")) {
                     throw new IOException("ADB connection error");
                 }
-                adbOut.write(prefixLength(command).getBytes());
+                adbOut.write(prefixLength(request.command).getBytes());
                 adbOut.flush();
             }
 
@@ -154,72 +482,336 @@ public class ProxyServer {
             if (!new String(adbIn.readNBytes(4)).equalsIgnoreCase("OKAY")) {
                 throw new IOException("ADB connection error");
             }
-        } catch (Exception e) {
-            // Error opening adb socket
+            metrics.adbOkay.observeSince(negotiationNanos);
+            return adbSocket;
+        } catch (IOException e) {
+            metrics.closed(Metrics.CLOSE_ADB_REFUSED);
+            closeSafely(adbSocket);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns true if streams for the device are opened on adbd directly, rather than through
+     * the adb server
+     */
+    boolean isAdbdDevice(String device) {
+        return device != null && adbdDevices != null && adbdDevices.contains(device);
+    }
+
+    private Socket openAdbdStream(StreamRequest request) throws IOException {
+        AdbdTransport transport;
+        try {
+            long connectNanos = System.nanoTime();
+            transport = adbdDevices.transport(request.device);
+            metrics.adbConnect.observeSince(connectNanos);
+        } catch (IOException e) {
+            metrics.closed(Metrics.CLOSE_ADB_UNAVAILABLE);
+            throw new IOException("Unable to connect to " + request.device, e);
+        }
+        try {
+            long negotiationNanos = System.nanoTime();
+            Socket stream = transport.open(request.command);
+            metrics.adbOkay.observeSince(negotiationNanos);
+            return stream;
+        } catch (IOException e) {
+            metrics.closed(Metrics.CLOSE_ADB_REFUSED);
+            throw e;
+        }
+    }
+
+    /**
+     * Starts recording a stream which adb accepted, returns null if the session isn't recorded
+     */
+    SessionRecorder.Stream record(StreamRequest request) {
+        return recorder == null ? null : recorder.open(request);
+    }
+
+    /**
+     * Sends the command on a pooled connection for the device. Returns null if there is none, or
+     * if it turned out to be closed, so that the caller connects the usual way.
+     */
+    private Socket openPooledStream(StreamRequest request) throws IOException {
+        SocketChannel channel = transportPool.take(request.device);
+        if (channel == null) {
+            return null;
+        }
+        Socket adbSocket = channel.socket();
+        byte[] status;
+        long negotiationNanos = System.nanoTime();
+        try {
+            OutputStream adbOut = adbSocket.getOutputStream();
+            adbOut.write(prefixLength(request.command).getBytes());
+            adbOut.flush();
+            status = adbSocket.getInputStream().readNBytes(4);
+        } catch (IOException e) {
+            status = new byte[0];
+        }
+        if (status.length < 4) {
+            // Closed while idle, the others are likely stale too
+            closeSafely(adbSocket);
+            transportPool.remove(request.device);
+            return null;
+        }
+        if (!new String(status).equalsIgnoreCase("OKAY")) {
+            metrics.closed(Metrics.CLOSE_ADB_REFUSED);
+            closeSafely(adbSocket);
+            throw new IOException("ADB connection error");
+        }
+        metrics.adbOkay.observeSince(negotiationNanos);
+        metrics.pooledStream();
+        return adbSocket;
+    }
+
+    /**
+     * Opens a stream for a service on a device, for services the proxy uses itself
+     */
+    Socket openAdbStream(String device, String command) throws IOException {
+        return openAdbStream(new StreamRequest(device + "/" + URLEncoder.encode(command, StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Returns the handler for requests which the proxy answers itself instead of opening an adb
+     * stream, or null if the request should go to adb.
+     */
+    LocalService findLocalService(StreamRequest request) {
+        if (request.command.startsWith(MuxSession.SERVICE)) {
+            return (webIn, webOut, handshake) -> new MuxSession(this, webOut, handshake).serve(webIn);
+        }
+        if (request.device != null && pushCache != null && request.command.startsWith(PushCache.SERVICE)) {
+            return pushCache::serve;
+        }
+        if (request.device != null && pullService != null && request.command.startsWith(PullService.SERVICE)) {
+            return pullService::serve;
+        }
+        if (viewTreeService != null && request.command.startsWith(ViewTreeService.SERVICE)) {
+            return viewTreeService::serve;
+        }
+        if (snapshotService != null && request.command.startsWith(SnapshotService.SERVICE)) {
+            return snapshotService::serve;
+        }
+        if (request.accessUnits && videoBroadcaster != null) {
+            return videoBroadcaster::serve;
+        }
+        if (request.device == null && deviceTracker != null && deviceTracker.getDevices() != null) {
+            switch (request.command) {
+                case "devices":
+                case "devices-l":
+                    return this::sendDeviceList;
+                case "track-devices":
+                case "track-devices-l":
+                case "track-devices-delta":
+                    return this::trackDevices;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the handler for plain HTTP requests, which aren't websocket upgrades, or null if
+     * the request should be answered as a handshake.
+     */
+    LocalService findHttpService(HttpRequest http) {
+        if (pullService != null && http.getHeader("upgrade") == null && http.target.startsWith(PullService.PATH)) {
+            return (webIn, webOut, handshake) -> pullService.serveHttp(http, webOut);
+        }
+        if (snapshotService != null && http.getHeader("upgrade") == null
+                && http.target.startsWith(SnapshotService.PATH)) {
+            return (webIn, webOut, handshake) -> snapshotService.serveHttp(http, webOut);
+        }
+        return null;
+    }
+
+    void serveLocally(LocalService service, Socket webSocket, InputStream webIn, OutputStream webOut,
+            Handshake handshake) {
+        relayThreads.newThread(() -> {
             try {
-                webOut.write(encodeClose(STANDARD_ERROR_CODE, e.getMessage()));
-                webOut.flush();
-            } catch (IOException e2) { }
+                // Local services send small messages back to back, which shouldn't wait for acks
+                webSocket.setTcpNoDelay(true);
+                if (handshake != null && handshake.request.highWater > 0) {
+                    // As for queued relays, keep a slow client visible to the service's queue
+                    webSocket.setSendBufferSize(StreamRequest.QUEUED_SEND_BUFFER);
+                }
+                service.serve(webIn, webOut, handshake);
+            } catch (IOException e) {
+                // Client went away
+            }
             closeSafely(webSocket);
-            closeSafely(adbSocket);
-            return;
+        }).start();
+    }
+
+    private void sendDeviceList(InputStream webIn, OutputStream webOut, Handshake handshake)
+            throws IOException {
+        Map<String, String> devices = deviceTracker.getDevices();
+        String list = DeviceTracker.format(withAdbdDevices(devices == null ? Collections.emptyMap() : devices),
+                handshake.request.command.equals("devices-l"));
+        sendFrame(webOut, prefixLength(list).getBytes(StandardCharsets.UTF_8));
+        webOut.write(encodeClose(SAFE_CLOSE_CODE, "Safe close"));
+        webOut.flush();
+    }
+
+    /**
+     * Pushes the device list on every change, in the same format as the adb server. The
+     * track-devices-delta variant only sends the lines which changed, without length prefix.
+     * Changes are sent by a thread of their own, see {@link DeviceTracker.Subscription}.
+     */
+    private void trackDevices(InputStream webIn, OutputStream webOut, Handshake handshake)
+            throws IOException {
+        String command = handshake.request.command;
+        DeviceTracker.Subscription subscription = new DeviceTracker.Subscription();
+        deviceTracker.addListener(subscription);
+        Map<String, String> devices = deviceTracker.getDevices();
+        subscription.offer(devices == null ? Collections.emptyMap() : devices);
+
+        relayThreads.newThread(() -> {
+            Map<String, String> sent = null;
+            try {
+                Map<String, String> next;
+                while ((next = subscription.next(sent)) != null) {
+                    Map<String, String> before = withAdbdDevices(sent == null ? Collections.emptyMap() : sent);
+                    Map<String, String> after = withAdbdDevices(next);
+                    String message = command.equals("track-devices-delta")
+                            ? DeviceTracker.delta(before, after)
+                            : prefixLength(DeviceTracker.format(after, command.equals("track-devices-l")));
+                    sendFrame(webOut, message.getBytes(StandardCharsets.UTF_8));
+                    sent = next;
+                }
+            } catch (IOException | InterruptedException e) {
+                closeSafely(webIn);
+            }
+        }).start();
+        try {
+            awaitClose(webIn, webOut, handshake.deflate);
+        } finally {
+            deviceTracker.removeListener(subscription);
+            subscription.close();
         }
+    }
 
-        // All done. Start connection threads
-        CancelSignal cancelSignal = new CancelSignal(webSocket, adbSocket);
-        new InputOutputLoop("adbIn:" + command, adbIn, webOut, cancelSignal,  new AdbToWebMapper()).start();
-        new InputOutputLoop("webIn:"+command, webIn, adbOut, cancelSignal, this::transferWebToOut).start();
+    /**
+     * Adds the devices which are connected to directly to a device list from the adb server
+     */
+    private Map<String, String> withAdbdDevices(Map<String, String> devices) {
+        if (adbdDevices == null) {
+            return devices;
+        }
+        Map<String, String> result = new LinkedHashMap<>(devices);
+        result.putAll(adbdDevices.list());
+        return result;
     }
 
-    private static String prefixLength(String command) {
-        String prefix = Integer.toHexString(command.length());
-        while (prefix.length() < 4) prefix = "0" + prefix;
-        return prefix + command;
+    /**
+     * Reads and discards client data until the websocket is closed
+     */
+    static void awaitClose(InputStream webIn, OutputStream webOut, boolean deflate) {
+        IOMapper mapper = new WebToAdbMapper(webOut, deflate, null);
+        try {
+            while (true) {
+                mapper.map(webIn, OutputStream.nullOutputStream());
+            }
+        } catch (IOException e) {
+            // Closed
+        }
     }
 
-    private void transferWebToOut(InputStream in, OutputStream out) throws IOException {
-        byte[] header = in.readNBytes(2);
-        if (header[0] == (byte) 136) {
+    /**
+     * Reads exactly {@code size} bytes of client data, however it is split into frames
+     */
+    static byte[] readData(InputStream webIn, OutputStream webOut, boolean deflate, int size) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream(size);
+        IOMapper mapper = new WebToAdbMapper(webOut, deflate, null);
+        while (data.size() < size) {
+            mapper.map(webIn, data);
+        }
+        if (data.size() > size) {
+            throw new IOException("More data than expected");
+        }
+        return data.toByteArray();
+    }
+
+    /**
+     * Answers a close or ping frame from the client. Returns true if the client asked to close
+     * the connection.
+     */
+    static boolean answerControl(OutputStream webOut, int opcode, byte[] payload, int length)
+            throws IOException {
+        if (opcode == WebSocketDecoder.OP_CLOSE) {
             // Socket closed
             if (DEBUG) {
                 System.out.println("Close requested");
             }
-            out.write(encodeClose(SAFE_CLOSE_CODE, "Safe close"));
+            sendControl(webOut, encodeClose(SAFE_CLOSE_CODE, "Safe close"));
+            return true;
+        } else if (opcode == WebSocketDecoder.OP_PING) {
+            byte[] pong = new byte[length + 2];
+            pong[0] = (byte) (128 | WebSocketDecoder.OP_PONG);
+            pong[1] = (byte) length;
+            System.arraycopy(payload, 0, pong, 2, length);
+            sendControl(webOut, pong);
+        }
+        return false;
+    }
+
+    private static void sendControl(OutputStream webOut, byte[] frame) throws IOException {
+        synchronized (webOut) {
+            webOut.write(frame);
+            webOut.flush();
+        }
+    }
+
+    /**
+     * Sends data as a single binary frame
+     */
+    static void sendFrame(OutputStream out, byte[] data) throws IOException {
+        sendFrame(out, WebSocketDecoder.OP_BINARY, data);
+    }
+
+    static void sendFrame(OutputStream out, int opcode, byte[] data) throws IOException {
+        // A single write, as a separate header would wait for the client's delayed ack
+        ByteBuffer frame = ByteBuffer.allocate(MAX_HEADER_SIZE + data.length);
+        putFrameHeader(frame, opcode, data.length, false);
+        frame.put(data);
+        synchronized (out) {
+            out.write(frame.array(), 0, frame.position());
             out.flush();
-            out.close();
-            return;
         }
+    }
 
-        // header[0] => text or binary
-        byte op = (byte) 127;
-        byte rLength = (byte) (header[1] & op);
-        final int length;
-
-        if (rLength == (byte) 126) {
-            byte[] size = in.readNBytes(2);
-            length = (Byte.toUnsignedInt(size[0]) << 8)
-                    + Byte.toUnsignedInt(size[1]);
-        } else if (rLength == (byte) 127) {
-            byte[] size = in.readNBytes(8);
-            long longLength = (Byte.toUnsignedInt(size[0]) << 56)
-                    + (Byte.toUnsignedInt(size[1]) << 48)
-                    + (Byte.toUnsignedInt(size[2]) << 40)
-                    + (Byte.toUnsignedInt(size[3]) << 32)
-                    + (Byte.toUnsignedInt(size[4]) << 24)
-                    + (Byte.toUnsignedInt(size[5]) << 16)
-                    + (Byte.toUnsignedInt(size[6]) << 8)
-                    + Byte.toUnsignedInt(size[7]);
-            length = (int) longLength;
+    static String prefixLength(String command) {
+        String prefix = Integer.toHexString(command.length());
+        while (prefix.length() < 4) prefix = "0" + prefix;
+        return prefix + command;
+    }
+
+    static int frameHeaderSize(int length) {
+        return length <= 125 ? 2 : length <= 65535 ? 4 : MAX_HEADER_SIZE;
+    }
+
+    static void putFrameHeader(ByteBuffer dst, int length) {
+        putFrameHeader(dst, length, false);
+    }
+
+    /**
+     * Writes the header of a final binary frame with the given payload length. Compressed frames
+     * have the RSV1 bit set as per permessage-deflate.
+     */
+    static void putFrameHeader(ByteBuffer dst, int length, boolean compressed) {
+        putFrameHeader(dst, WebSocketDecoder.OP_BINARY, length, compressed);
+    }
+
+    static void putFrameHeader(ByteBuffer dst, int opcode, int length, boolean compressed) {
+        // 129 -> text, 130 bytes
+        dst.put((byte) (128 | opcode | (compressed ? 64 : 0)));
+        if (length <= 125) {
+            dst.put((byte) length);
+        } else if (length <= 65535) {
+            dst.put((byte) 126);
+            dst.putShort((short) length);
         } else {
-            length = (int) rLength;
+            // note an int is not big enough in java
+            dst.put((byte) 127);
+            dst.putLong(length);
         }
-        byte[] masks = in.readNBytes(4);
-        byte[] message = in.readNBytes(length);
-        for (int i = 0; i < length; i++) {
-            message[i] = (byte) (message[i] ^ masks[i % 4]);
-        }
-        out.write(message);
-        out.flush();
     }
 
     public static byte[] encodeClose(int code, String reason) {
@@ -233,17 +825,36 @@ public class ProxyServer {
         return reply;
     }
 
-    private String doWebsocketHandshake(InputStream in, OutputStream out) throws Exception {
-        String data = new Scanner(in, "UTF-8").useDelimiter("\\r\\n\\r\\n").next();
-        Matcher get = Pattern.compile("^GET .*").matcher(data);
-        if (!get.find()) {
+    Handshake doWebsocketHandshake(InputStream in, OutputStream out) throws Exception {
+        return doWebsocketHandshake(HttpRequest.read(in), out);
+    }
+
+    Handshake doWebsocketHandshake(HttpRequest http, OutputStream out) throws Exception {
+        Handshake handshake = processHandshake(http);
+
+        out.write(handshake.response, 0, handshake.response.length);
+        out.flush();
+
+        if (handshake.errorMessage != null) {
+            out.write(encodeClose(STANDARD_ERROR_CODE, handshake.errorMessage));
+            out.flush();
+            throw new IOException("Wrong client");
+        }
+        return handshake;
+    }
+
+    /**
+     * Validates the upgrade request headers and builds the handshake response
+     */
+    Handshake processHandshake(HttpRequest http) throws Exception {
+        if (!"GET".equals(http.method)) {
             throw new Exception("Unknown request type");
         }
 
         String errorMessage = null;
 
-        String key = getRequestParam(data, "Sec-WebSocket-Key");
-        String protocol = getRequestParam(data, "Sec-WebSocket-Protocol");
+        String key = http.getHeader("sec-websocket-key");
+        String protocol = http.getHeader("sec-websocket-protocol");
         if (key == null || protocol == null) {
             throw new Exception("Invalid socket header");
         }
@@ -254,48 +865,61 @@ public class ProxyServer {
             }
         }
 
+        String path = http.target;
+        if (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        StreamRequest request = new StreamRequest(path);
+
+        // Video streams are already compressed and opt out with compress=false
+        boolean deflate = !"false".equals(request.options.get("compress"))
+                && PerMessageDeflate.isOffered(http.getHeader("sec-websocket-extensions"));
+
+        MessageDigest sha1 = SHA1.get();
+        sha1.update(key.getBytes(StandardCharsets.ISO_8859_1));
+        sha1.update(WEBSOCKET_GUID);
+
         byte[] response = ("HTTP/1.1 101 Switching Protocols\r\n"
                 + "Connection: Upgrade\r\n"
                 + "Upgrade: websocket\r\n"
                 + "Sec-WebSocket-Protocol: " + protocol + "\r\n"
-                + "Sec-WebSocket-Accept: "
-                + Base64.getEncoder().encodeToString(
-                MessageDigest.getInstance("SHA-1").digest(
-                        (key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes("UTF-8")))
+                + (deflate ? "Sec-WebSocket-Extensions: " + PerMessageDeflate.RESPONSE + "\r\n" : "")
+                + "Sec-WebSocket-Accept: " + Base64.getEncoder().encodeToString(sha1.digest())
                 + "\r\n\r\n")
-                .getBytes("UTF-8");
+                .getBytes(StandardCharsets.ISO_8859_1);
 
-        out.write(response, 0, response.length);
-        out.flush();
+        return new Handshake(response, errorMessage, request, deflate);
+    }
 
-        if (errorMessage != null) {
-            out.write(encodeClose(STANDARD_ERROR_CODE, errorMessage));
-            out.flush();
-            throw new IOException("Wrong client");
-        }
+    static class Handshake {
 
-        String request = get.group().split("\\s+")[1];
-        if (request.startsWith("/")) {
-            request = request.substring(1);
-        }
-        return request;
-    }
+        final byte[] response;
+        final String errorMessage;
+        final StreamRequest request;
+        final boolean deflate;
 
-    private static String getRequestParam(String req, String paramKey) {
-        Matcher match = Pattern.compile(paramKey + ": (.*)").matcher(req);
-        return match.find() ? match.group(1) : null;
+        Handshake(byte[] response, String errorMessage, StreamRequest request, boolean deflate) {
+            this.response = response;
+            this.errorMessage = errorMessage;
+            this.request = request;
+            this.deflate = deflate;
+        }
     }
 
-    private static class InputOutputLoop extends Thread {
+    private static class InputOutputLoop implements Runnable {
 
         final String name;
+        // Close reason recorded when the input ends, or null if another thread finishes the stream
+        final String endOfInput;
         final InputStream input;
         final OutputStream output;
         final CancelSignal signal;
         final IOMapper mapper;
 
-        InputOutputLoop(String name, InputStream in, OutputStream out, CancelSignal signal, IOMapper mapper) {
+        InputOutputLoop(String name, String endOfInput, InputStream in, OutputStream out, CancelSignal signal,
+                IOMapper mapper) {
             this.name = name;
+            this.endOfInput = endOfInput;
             this.input = in;
             this.output = out;
             this.signal = signal;
@@ -304,67 +928,261 @@ public class ProxyServer {
 
         @Override
         public void run() {
+            String reason = Metrics.CLOSE_ERROR;
             try (InputStream in = input; OutputStream out = output) {
                 while (!signal.isCancelled()) {
                     mapper.map(in, out);
                 }
+            } catch (EOFException e) {
+                reason = endOfInput;
             } catch (Exception e) { }
-            signal.cancel(name);
+            if (reason != null) {
+                signal.cancel(name, reason);
+            }
         }
     }
 
-    private static class AdbToWebMapper implements IOMapper {
-        private final byte[] readBuffer = new byte[2048];
+    /**
+     * Sends the adb output queued by an {@link AdbToWebMapper}, until the queue is finished
+     */
+    private static class QueueWriter implements Runnable {
+
+        final String name;
+        final RelayQueue queue;
+        final OutputStream output;
+        final CancelSignal signal;
+        final AdbToWebMapper mapper;
+        final boolean reportLag;
+
+        QueueWriter(String name, RelayQueue queue, OutputStream out, CancelSignal signal, AdbToWebMapper mapper,
+                boolean reportLag) {
+            this.name = name;
+            this.queue = queue;
+            this.output = out;
+            this.signal = signal;
+            this.mapper = mapper;
+            this.reportLag = reportLag;
+        }
+
+        @Override
+        public void run() {
+            String reason = Metrics.CLOSE_ERROR;
+            try (OutputStream out = output) {
+                RelayQueue.Chunk chunk;
+                while ((chunk = queue.take()) != null) {
+                    mapper.writeFrame(out, chunk.buffer, chunk.length);
+                    queue.recycle(chunk);
+                    String report = reportLag ? queue.lagReport() : null;
+                    if (report != null) {
+                        sendFrame(out, WebSocketDecoder.OP_TEXT, report.getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+                reason = Metrics.CLOSE_ADB;
+            } catch (Exception e) { }
+            signal.cancel(name, reason);
+        }
+    }
+
+    static class AdbToWebMapper implements IOMapper {
+
+        private final Socket socket;
+        private final int maxFrame;
+        private final int holdMillis;
+
+        // Data is read after enough room to write the frame header in place, so that each
+        // frame goes out in a single write without any per-frame allocation
+        private final byte[] frame;
+        private final ByteBuffer header;
+
+        // Same layout as frame, holding the compressed payload when permessage-deflate is on
+        private final byte[] compressedFrame;
+        private final ByteBuffer compressedView;
+
+        private final Metrics.Traffic traffic;
+        // When set, frames are queued for a QueueWriter instead of being sent right away
+        private final RelayQueue queue;
+        private boolean endOfStream = false;
+
+        AdbToWebMapper(Socket socket, int maxFrame, int holdMillis, boolean deflate, Metrics.Traffic traffic,
+                RelayQueue queue) {
+            this.socket = socket;
+            this.traffic = traffic;
+            this.queue = queue;
+            this.maxFrame = maxFrame;
+            this.holdMillis = holdMillis;
+            this.frame = new byte[MAX_HEADER_SIZE + maxFrame];
+            this.header = ByteBuffer.wrap(frame);
+            this.compressedFrame = deflate ? new byte[MAX_HEADER_SIZE + maxFrame] : null;
+            this.compressedView = deflate ? ByteBuffer.wrap(compressedFrame) : null;
+        }
 
         @Override
         public void map(InputStream in, OutputStream out) throws IOException {
-            int count = in.read(readBuffer);
+            int count = endOfStream ? -1 : in.read(frame, MAX_HEADER_SIZE, maxFrame);
             if (count == -1) {
-                throw new IOException("Input closed");
+                if (queue != null) {
+                    queue.finish();
+                }
+                throw new EOFException("Input closed");
+            }
+            if (count > 0 && holdMillis > 0) {
+                count = coalesce(in, count);
+            }
+            if (count > 0 && queue != null) {
+                header.limit(MAX_HEADER_SIZE + count).position(MAX_HEADER_SIZE);
+                queue.put(header);
+                header.clear();
+            } else if (count > 0) {
+                writeFrame(out, header, count);
+            }
+        }
+
+        /**
+         * Sends {@code count} bytes stored after the header space of {@code buffer} as a single
+         * frame, compressed if that makes it smaller.
+         */
+        void writeFrame(OutputStream out, ByteBuffer buffer, int count) throws IOException {
+            traffic.adbToWebBytes.add(count);
+            traffic.adbToWebFrames.increment();
+            if (compressedFrame != null && count >= PerMessageDeflate.MIN_SIZE) {
+                buffer.limit(MAX_HEADER_SIZE + count).position(MAX_HEADER_SIZE);
+                compressedView.limit(MAX_HEADER_SIZE + count - 1).position(MAX_HEADER_SIZE);
+                boolean compressed = PerMessageDeflate.compress(buffer, compressedView);
+                buffer.clear();
+                if (compressed) {
+                    int length = compressedView.position() - MAX_HEADER_SIZE;
+                    int start = MAX_HEADER_SIZE - frameHeaderSize(length);
+                    compressedView.clear().position(start);
+                    putFrameHeader(compressedView, length, true);
+                    send(out, compressedFrame, start, MAX_HEADER_SIZE - start + length);
+                    return;
+                }
             }
-            if (count > 0) {
-                out.write(encode(readBuffer, count));
+            int start = encode(buffer, count);
+            send(out, buffer.array(), start, MAX_HEADER_SIZE - start + count);
+        }
+
+        private void send(OutputStream out, byte[] data, int offset, int length) throws IOException {
+            // Shared with control frames sent by WebToAdbMapper
+            synchronized (out) {
+                out.write(data, offset, length);
                 out.flush();
             }
         }
 
-        private byte[] encode(byte[] data, int length) {
-            final int frameCount;
+        /**
+         * Keeps reading into the current frame until it is full or no more data arrives within
+         * the hold time. Returns the total payload size.
+         */
+        private int coalesce(InputStream in, int count) throws IOException {
+            long deadline = System.nanoTime() + holdMillis * 1_000_000L;
+            try {
+                while (count < maxFrame) {
+                    int available = in.available();
+                    if (available <= 0) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        socket.setSoTimeout((int) Math.max(1, remaining / 1_000_000L));
+                        available = maxFrame - count;
+                    }
+                    int read = in.read(frame, MAX_HEADER_SIZE + count, Math.min(available, maxFrame - count));
+                    if (read == -1) {
+                        endOfStream = true;
+                        break;
+                    }
+                    count += read;
+                }
+            } catch (SocketTimeoutException e) {
+                // Hold time elapsed, send what we have
+            } finally {
+                socket.setSoTimeout(0);
+            }
+            return count;
+        }
 
-            byte[] frame = new byte[10];
-            // 129 -> text, 130 bytes
-            frame[0] = (byte) 130;
+        /**
+         * Writes the header for a payload of {@code length} bytes just before the payload and
+         * returns the offset at which the frame starts.
+         */
+        int encode(int length) {
+            return encode(header, length);
+        }
 
-            if (length <= 125) {
-                frame[1] = (byte) length;
-                frameCount = 2;
-            } else if (length >= 126 && length <= 65535) {
-                frame[1] = (byte) 126;
-                int len = length;
-                frame[2] = (byte) ((len >> 8) & (byte)255);
-                frame[3] = (byte) (len & (byte)255);
-                frameCount = 4;
-            } else {
-                frame[1] = (byte) 127;
-                long len = length; //note an int is not big enough in java
-                frame[2] = (byte) ((len >> 56 ) & (byte) 255);
-                frame[3] = (byte) ((len >> 48 ) & (byte) 255);
-                frame[4] = (byte) ((len >> 40 ) & (byte) 255);
-                frame[5] = (byte) ((len >> 32 ) & (byte) 255);
-                frame[6] = (byte) ((len >> 24 ) & (byte) 255);
-                frame[7] = (byte) ((len >> 16 ) & (byte) 255);
-                frame[8] = (byte) ((len >> 8 ) & (byte) 255);
-                frame[9] = (byte) (len & (byte) 255);
-                frameCount = 10;
+        private static int encode(ByteBuffer buffer, int length) {
+            int start = MAX_HEADER_SIZE - frameHeaderSize(length);
+            buffer.position(start);
+            putFrameHeader(buffer, length);
+            return start;
+        }
+    }
+
+    /**
+     * Streams client frames to adb through a fixed buffer as they arrive, and answers control
+     * frames on the websocket.
+     */
+    static class WebToAdbMapper implements IOMapper, WebSocketDecoder.Sink {
+
+        private final byte[] readBuffer = new byte[8192];
+        private final WebSocketDecoder decoder = new WebSocketDecoder();
+        private final OutputStream webOut;
+
+        // Null when the data is discarded
+        private final Metrics.Traffic traffic;
+
+        private OutputStream adbOut;
+        private boolean closeRequested = false;
+        private long frames = 0;
+        private long bytes = 0;
+
+        WebToAdbMapper(OutputStream webOut, boolean inflate, Metrics.Traffic traffic) {
+            this.webOut = webOut;
+            this.traffic = traffic;
+            if (inflate) {
+                decoder.enableInflate();
+            }
+        }
+
+        @Override
+        public void map(InputStream in, OutputStream out) throws IOException {
+            int count = in.read(readBuffer);
+            if (count == -1) {
+                throw new EOFException("Input closed");
             }
+            adbOut = out;
+            decoder.decode(readBuffer, 0, count, this);
+            out.flush();
+            if (traffic != null) {
+                traffic.webToAdbBytes.add(bytes);
+                traffic.webToAdbFrames.add(decoder.getDataFrames() - frames);
+                frames = decoder.getDataFrames();
+                bytes = 0;
+            }
+            if (closeRequested) {
+                throw new EOFException("Close requested");
+            }
+        }
 
-            byte[] reply = new byte[frameCount + length];
-            System.arraycopy(frame, 0, reply, 0, frameCount);
-            System.arraycopy(data, 0, reply, frameCount, length);
-            return reply;
+        @Override
+        public void onData(byte[] data, int offset, int length) throws IOException {
+            adbOut.write(data, offset, length);
+            bytes += length;
+        }
+
+        @Override
+        public void onControl(int opcode, byte[] payload, int length) throws IOException {
+            if (answerControl(webOut, opcode, payload, length)) {
+                closeRequested = true;
+            }
         }
     }
 
+    interface LocalService {
+
+        void serve(InputStream webIn, OutputStream webOut, Handshake handshake) throws IOException;
+    }
+
     private interface IOMapper {
         void map(InputStream in, OutputStream out) throws IOException;
     }
@@ -372,31 +1190,34 @@ public class ProxyServer {
     private static class CancelSignal {
 
         private boolean cancelled = false;
-        private final List<Socket> sockets;
+        private final Metrics metrics;
+        private final List<Closeable> resources;
 
-        public CancelSignal(Socket... sockets) {
-            this.sockets = Arrays.asList(sockets);
+        public CancelSignal(Metrics metrics, Closeable... resources) {
+            this.metrics = metrics;
+            this.resources = Arrays.asList(resources);
         }
 
         public boolean isCancelled() {
             return cancelled;
         }
 
-        public void cancel(String source) {
-            synchronized (sockets) {
+        public void cancel(String source, String reason) {
+            synchronized (resources) {
                 if (cancelled) {
                     return;
                 }
                 cancelled = true;
             }
-            sockets.forEach(ProxyServer::closeSafely);
+            metrics.closeStream(reason);
+            resources.forEach(ProxyServer::closeSafely);
             if (DEBUG) {
                 System.out.println("Socked closed by " + source);
             }
         }
     }
 
-    private static void closeSafely(Closeable c) {
+    static void closeSafely(Closeable c) {
         try {
             c.close();
         } catch (Exception e) {
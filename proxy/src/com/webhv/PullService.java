@@ -0,0 +1,288 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import static com.webhv.ProxyServer.SAFE_CLOSE_CODE;
+import static com.webhv.ProxyServer.awaitClose;
+import static com.webhv.ProxyServer.encodeClose;
+import static com.webhv.ProxyServer.sendFrame;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pulls files from devices into temp files, and serves them over plain HTTP so that large
+ * artifacts can be read in slices instead of through a websocket.
+ *
+ * A pull is requested with the service {@code webhv:pull:<path>} on a device. The proxy copies
+ * the file with the sync protocol into a memory mapped temp file, then answers
+ * {@code OKAY<size> /pull/<token>}, or FAIL followed by a message. The file can be fetched from
+ * that path, with Range requests, for as long as the websocket stays open. The token is random
+ * and only handed out over the websocket, so it also stands in for the handshake key.
+ */
+class PullService {
+
+    static final String SERVICE = "webhv:pull:";
+    static final String PATH = "/pull/";
+
+    // Mapped buffers are indexed by int
+    private static final int MAX_SIZE = Integer.MAX_VALUE;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String CORS_HEADERS = "Access-Control-Allow-Origin: *\r\n"
+            + "Access-Control-Expose-Headers: Accept-Ranges, Content-Length, Content-Range\r\n";
+
+    private final ProxyServer proxy;
+    private final Map<String, Spool> files = new ConcurrentHashMap<>();
+
+    PullService(ProxyServer proxy) {
+        this.proxy = proxy;
+    }
+
+    void serve(InputStream webIn, OutputStream webOut, ProxyServer.Handshake handshake) throws IOException {
+        Spool spool;
+        try {
+            spool = pull(handshake.request.device, handshake.request.command.substring(SERVICE.length()));
+        } catch (IOException e) {
+            sendFrame(webOut, ("FAIL" + e.getMessage()).getBytes(StandardCharsets.UTF_8));
+            synchronized (webOut) {
+                webOut.write(encodeClose(SAFE_CLOSE_CODE, "Safe close"));
+                webOut.flush();
+            }
+            return;
+        }
+
+        String token = UUID.randomUUID().toString();
+        files.put(token, spool);
+        try {
+            sendFrame(webOut, ("OKAY" + spool.length() + " " + PATH + token).getBytes(StandardCharsets.UTF_8));
+            awaitClose(webIn, webOut, handshake.deflate);
+        } finally {
+            files.remove(token);
+            spool.close();
+        }
+    }
+
+    private Spool pull(String device, String path) throws IOException {
+        if (device == null || path.isEmpty()) {
+            throw new IOException("Invalid pull request");
+        }
+        try (AdbSync sync = new AdbSync(proxy.openAdbStream(device, "sync:"))) {
+            AdbSync.Stat stat = sync.stat(path);
+            if (!stat.exists()) {
+                throw new IOException("No such file");
+            }
+            Spool spool = new Spool(stat.size);
+            try {
+                proxy.metrics.pulled(sync.receive(path, spool));
+                spool.finish();
+                return spool;
+            } catch (IOException e) {
+                spool.close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Answers a plain HTTP request for a pulled file
+     */
+    void serveHttp(HttpRequest http, OutputStream webOut) throws IOException {
+        Spool file = files.get(http.target.substring(PATH.length()));
+        if (file == null) {
+            serveHttp(http, webOut, 0, null);
+            return;
+        }
+        proxy.metrics.pullServed(serveHttp(http, webOut, file.length(),
+                (out, start, end) -> file.writeTo(out, (int) start, (int) end)));
+    }
+
+    /**
+     * Writes a range of a file served over HTTP
+     */
+    interface Content {
+        void writeTo(OutputStream out, long start, long end) throws IOException;
+    }
+
+    /**
+     * Answers a plain HTTP request for a file of the given size, or with 404 if the content is
+     * null, serving a single byte range if one is asked for. Returns the number of bytes served.
+     */
+    static long serveHttp(HttpRequest http, OutputStream webOut, long size, Content content) throws IOException {
+        if ("OPTIONS".equals(http.method)) {
+            // Preflight for fetches with a Range header, possibly from a public origin
+            respond(webOut, "204 No Content", "Access-Control-Allow-Methods: GET, HEAD\r\n"
+                    + "Access-Control-Allow-Headers: Range\r\n"
+                    + "Access-Control-Allow-Private-Network: true\r\n"
+                    + "Access-Control-Max-Age: 600\r\n", 0);
+            return 0;
+        }
+        boolean head = "HEAD".equals(http.method);
+        if (!head && !"GET".equals(http.method)) {
+            respond(webOut, "405 Method Not Allowed", "Allow: GET, HEAD, OPTIONS\r\n", 0);
+            return 0;
+        }
+        if (content == null) {
+            respond(webOut, "404 Not Found", "", 0);
+            return 0;
+        }
+
+        long[] range = parseRange(http.getHeader("range"), size);
+        if (range == null) {
+            respond(webOut, "200 OK", "Accept-Ranges: bytes\r\n"
+                    + "Content-Type: application/octet-stream\r\n", size);
+            range = new long[] {0, size};
+        } else if (range.length == 0) {
+            respond(webOut, "416 Range Not Satisfiable", "Content-Range: bytes */" + size + "\r\n", 0);
+            return 0;
+        } else {
+            respond(webOut, "206 Partial Content", "Accept-Ranges: bytes\r\n"
+                    + "Content-Type: application/octet-stream\r\n"
+                    + "Content-Range: bytes " + range[0] + "-" + (range[1] - 1) + "/" + size + "\r\n",
+                    range[1] - range[0]);
+        }
+        long served = 0;
+        if (!head) {
+            content.writeTo(webOut, range[0], range[1]);
+            served = range[1] - range[0];
+        }
+        webOut.flush();
+        return served;
+    }
+
+    private static void respond(OutputStream out, String status, String headers, long contentLength)
+            throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\n"
+                + CORS_HEADERS
+                + headers
+                + "Cache-Control: no-store\r\n"
+                + "Connection: close\r\n"
+                + "Content-Length: " + contentLength + "\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Returns the start and end, exclusive, of a single byte range in a Range header. Returns null
+     * if the whole file should be served instead, as for a missing, malformed or multi part
+     * range, and an empty array if the range can't be satisfied.
+     */
+    static long[] parseRange(String header, long size) {
+        if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                return suffix == 0 || size == 0 ? new long[0] : new long[] {Math.max(0, size - suffix), size};
+            }
+            long start = Long.parseLong(spec.substring(0, dash));
+            long end = dash == spec.length() - 1 ? Long.MAX_VALUE - 1 : Long.parseLong(spec.substring(dash + 1));
+            if (start < 0 || end < start) {
+                return null;
+            }
+            return start >= size ? new long[0] : new long[] {start, Math.min(end + 1, size)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Temp file which a pulled file is written to through a memory mapping, and read from once
+     * {@link #finish} is called. The file is deleted when the spool is closed, while the mapping
+     * stays readable until it is collected.
+     */
+    static class Spool extends OutputStream {
+
+        private final FileChannel channel;
+        private MappedByteBuffer map;
+        private ByteBuffer content;
+
+        Spool(long expectedSize) throws IOException {
+            channel = FileChannel.open(Files.createTempFile("webhv-pull", ".tmp"), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(expectedSize, MAX_SIZE));
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            if (map.remaining() < length) {
+                // The file grew since it was stat'ed
+                long required = (long) map.position() + length;
+                if (required > MAX_SIZE) {
+                    throw new IOException("File too large");
+                }
+                int position = map.position();
+                map = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                        Math.min(Math.max(required, map.capacity() * 2L), MAX_SIZE));
+                map.position(position);
+            }
+            map.put(data, offset, length);
+        }
+
+        /**
+         * Ends writing and makes the written data available to {@link #writeTo}
+         */
+        void finish() {
+            content = map.duplicate().flip().asReadOnlyBuffer();
+            map = null;
+        }
+
+        int length() {
+            return content.limit();
+        }
+
+        /**
+         * Returns the written data, which stays readable after the spool is closed
+         */
+        ByteBuffer content() {
+            return content.duplicate();
+        }
+
+        void writeTo(OutputStream out, int start, int end) throws IOException {
+            ByteBuffer data = content.duplicate().position(start).limit(end);
+            byte[] buffer = new byte[Math.min(BUFFER_SIZE, data.remaining())];
+            while (data.hasRemaining()) {
+                int count = Math.min(buffer.length, data.remaining());
+                data.get(buffer, 0, count);
+                out.write(buffer, 0, count);
+            }
+        }
+
+        @Override
+        public void close() {
+            ProxyServer.closeSafely(channel);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import static com.webhv.ProxyServer.SAFE_CLOSE_CODE;
+import static com.webhv.ProxyServer.encodeClose;
+import static com.webhv.ProxyServer.sendFrame;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+/**
+ * Pushes files to devices only when they don't have them already.
+ *
+ * A push is requested with the service {@code webhv:push:<sha256>:<size>:<octal mode>:<path>}
+ * on a device. The proxy answers OKAY if the device already has the file, or SEND to ask for the
+ * data, which it checks against the hash and pushes before answering OKAY. Errors are answered
+ * with FAIL followed by a message.
+ *
+ * A file counts as present when its size and modification time still match what was recorded
+ * when it was last pushed, or else when sha256sum on the device gives the same hash. Records are
+ * kept per device and path, and saved so that they outlive the proxy.
+ */
+class PushCache {
+
+    static final String SERVICE = "webhv:push:";
+
+    static final String RESULT_CACHED = "cached";
+    static final String RESULT_CHECKSUM = "checksum";
+    static final String RESULT_SENT = "sent";
+
+    private static final int MAX_SIZE = 64 << 20;
+    private static final Pattern SHA256 = Pattern.compile("[0-9a-f]{64}");
+
+    private final ProxyServer proxy;
+    private final File file;
+    private final Properties records = new Properties();
+
+    PushCache(ProxyServer proxy, File file) {
+        this.proxy = proxy;
+        this.file = file;
+        try (FileReader r = new FileReader(file)) {
+            records.load(r);
+        } catch (IOException e) {
+            // Nothing pushed yet
+        }
+    }
+
+    void serve(InputStream webIn, OutputStream webOut, ProxyServer.Handshake handshake) throws IOException {
+        String reply;
+        try {
+            reply = push(webIn, webOut, handshake);
+        } catch (IOException e) {
+            reply = "FAIL" + e.getMessage();
+        }
+        sendFrame(webOut, reply.getBytes(StandardCharsets.UTF_8));
+        synchronized (webOut) {
+            webOut.write(encodeClose(SAFE_CLOSE_CODE, "Safe close"));
+            webOut.flush();
+        }
+    }
+
+    private String push(InputStream webIn, OutputStream webOut, ProxyServer.Handshake handshake)
+            throws IOException {
+        String device = handshake.request.device;
+        String[] parts = handshake.request.command.substring(SERVICE.length()).split(":", 4);
+        if (device == null || parts.length < 4 || !SHA256.matcher(parts[0]).matches()) {
+            throw new IOException("Invalid push request");
+        }
+        String hash = parts[0];
+        int size;
+        int mode;
+        try {
+            size = Integer.parseInt(parts[1]);
+            mode = Integer.parseInt(parts[2], 8);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid push request");
+        }
+        if (size < 0 || size > MAX_SIZE) {
+            throw new IOException("Invalid file size");
+        }
+        String path = parts[3];
+        String key = device + ":" + path;
+
+        try (AdbSync sync = new AdbSync(proxy.openAdbStream(device, "sync:"))) {
+            AdbSync.Stat stat = sync.stat(path);
+            if (stat.exists() && stat.size == size) {
+                if (record(hash, size, stat.mtime).equals(records.getProperty(key))) {
+                    proxy.metrics.pushed(RESULT_CACHED, size);
+                    return "OKAY";
+                }
+                // Pushed by someone else, or before records were kept
+                if (hash.equals(remoteChecksum(device, path))) {
+                    save(key, record(hash, size, stat.mtime));
+                    proxy.metrics.pushed(RESULT_CHECKSUM, size);
+                    return "OKAY";
+                }
+            }
+
+            sendFrame(webOut, "SEND".getBytes(StandardCharsets.UTF_8));
+            byte[] data = ProxyServer.readData(webIn, webOut, handshake.deflate, size);
+            if (!hash.equals(sha256(data))) {
+                throw new IOException("Data does not match hash");
+            }
+            sync.send(path, mode, data, size, (int) (System.currentTimeMillis() / 1000));
+            save(key, record(hash, size, sync.stat(path).mtime));
+            proxy.metrics.pushed(RESULT_SENT, 0);
+            return "OKAY";
+        }
+    }
+
+    /**
+     * Returns the hash sha256sum reports for a remote file, or null if there is none
+     */
+    private String remoteChecksum(String device, String path) throws IOException {
+        String quoted = "'" + path.replace("'", "'\\''") + "'";
+        try (Socket socket = proxy.openAdbStream(device, "shell:sha256sum " + quoted)) {
+            byte[] output = socket.getInputStream().readNBytes(64);
+            String result = new String(output, StandardCharsets.US_ASCII);
+            return SHA256.matcher(result).matches() ? result : null;
+        }
+    }
+
+    private static String record(String hash, int size, int mtime) {
+        return hash + " " + size + " " + mtime;
+    }
+
+    private void save(String key, String record) {
+        synchronized (records) {
+            records.setProperty(key, record);
+            try (FileWriter w = new FileWriter(file)) {
+                records.store(w, "Files pushed by webhv-proxy");
+            } catch (IOException e) {
+                System.out.println("Error saving push records");
+            }
+        }
+    }
+
+    static String sha256(byte[] data) {
+        try {
+            StringBuilder result = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+                result.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,339 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded buffer for adb output waiting to be sent to a client.
+ *
+ * Once the queued data reaches the high watermark the queue reports itself full until the client
+ * has caught up to the low watermark, so that adb is only paused for a slow client after a burst
+ * has been absorbed. With the key frame drop policy, meant for H.264 Annex B streams, the queue
+ * never fills up. It instead discards whole NAL units from the next one on until an IDR or SPS
+ * unit arrives with the queue back at the low watermark, so that the client skips ahead to a
+ * fresh picture rather than falling further behind.
+ */
+class RelayQueue implements Closeable {
+
+    private static final int NAL_IDR = 5;
+    private static final int NAL_SPS = 7;
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    // Lag reports are sent while the client is behind by more than this, and once after
+    private static final long LAG_REPORT_THRESHOLD_NANOS = 100_000_000L;
+    private static final long LAG_REPORT_INTERVAL_NANOS = 500_000_000L;
+
+    private enum DropState {
+        // Queue everything
+        PASS,
+        // Queue the rest of the current NAL unit, then start dropping
+        CUT,
+        // Drop until a key frame can be queued
+        DROP
+    }
+
+    private final int chunkSize;
+    private final int headroom;
+    private final int highWater;
+    private final int lowWater;
+    private final boolean dropToKeyFrame;
+    private final LongAdder droppedCounter;
+
+    private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+    private final ArrayDeque<Chunk> free = new ArrayDeque<>();
+    private long queued = 0;
+    private long dropped = 0;
+    private boolean full = false;
+    private boolean finished = false;
+    private boolean closed = false;
+
+    private DropState dropState = DropState.PASS;
+    // Zero bytes seen right before the current position, for finding start codes across reads
+    private int zeros = 0;
+    private boolean afterStartCode = false;
+
+    private long lagNanos = 0;
+    private long lastReportNanos = System.nanoTime() - LAG_REPORT_INTERVAL_NANOS;
+    private long lastReportedLagNanos = 0;
+
+    /**
+     * @param chunkSize largest payload of a chunk, which leaves the queue as one frame
+     * @param headroom space left free before the payload of every chunk, for a frame header
+     * @param droppedCounter counts the bytes discarded by the drop policy
+     */
+    RelayQueue(int chunkSize, int headroom, int highWater, int lowWater, boolean dropToKeyFrame,
+            LongAdder droppedCounter) {
+        this.chunkSize = chunkSize;
+        this.headroom = headroom;
+        this.highWater = highWater;
+        this.lowWater = Math.min(lowWater, highWater);
+        this.dropToKeyFrame = dropToKeyFrame;
+        this.droppedCounter = droppedCounter;
+    }
+
+    /**
+     * Queues the remaining bytes of {@code src}, applying the drop policy. Callers without a drop
+     * policy should stop reading while {@link #isFull} returns true.
+     */
+    synchronized void offer(ByteBuffer src) throws IOException {
+        if (closed) {
+            throw new IOException("Queue closed");
+        }
+        if (!dropToKeyFrame) {
+            append(src, src.remaining());
+        } else {
+            filter(src);
+        }
+        if (queued >= highWater) {
+            full = true;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Queues data like {@link #offer}, blocking while the queue is full
+     */
+    synchronized void put(ByteBuffer src) throws IOException {
+        while (full && !dropToKeyFrame && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        offer(src);
+    }
+
+    /**
+     * Returns true from reaching the high watermark until draining to the low watermark. Never
+     * true with the drop policy, which keeps reading and discards data instead.
+     */
+    synchronized boolean isFull() {
+        return full && !dropToKeyFrame;
+    }
+
+    synchronized boolean isEmpty() {
+        return chunks.isEmpty();
+    }
+
+    /**
+     * Returns the oldest chunk, or null if there is none
+     */
+    synchronized Chunk poll() {
+        Chunk chunk = chunks.poll();
+        if (chunk != null) {
+            queued -= chunk.length;
+            lagNanos = System.nanoTime() - chunk.nanos;
+            if (full && queued <= lowWater) {
+                full = false;
+                notifyAll();
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * Returns the oldest chunk, waiting for one if needed. Returns null once the queue is
+     * finished and all data has been taken.
+     */
+    synchronized Chunk take() throws IOException {
+        while (chunks.isEmpty()) {
+            if (finished || closed) {
+                if (closed) {
+                    throw new IOException("Queue closed");
+                }
+                return null;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        return poll();
+    }
+
+    /**
+     * Returns a chunk returned by {@link #poll} or {@link #take} once its data has been sent
+     */
+    synchronized void recycle(Chunk chunk) {
+        // Enough chunks to hold the high watermark are worth keeping around
+        if ((long) free.size() * chunkSize < highWater) {
+            free.add(chunk);
+        }
+    }
+
+    /**
+     * Marks the end of the input. Queued data can still be taken.
+     */
+    synchronized void finish() {
+        finished = true;
+        notifyAll();
+    }
+
+    /**
+     * Discards all data and wakes up any waiting threads
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        chunks.clear();
+        notifyAll();
+    }
+
+    /**
+     * Returns a JSON lag report to send to the client, or null if none is due. Reports are sent
+     * periodically while the client is behind, and once more when it has caught up.
+     */
+    synchronized String lagReport() {
+        long now = System.nanoTime();
+        if (now - lastReportNanos < LAG_REPORT_INTERVAL_NANOS
+                || (lagNanos < LAG_REPORT_THRESHOLD_NANOS && lastReportedLagNanos < LAG_REPORT_THRESHOLD_NANOS)) {
+            return null;
+        }
+        lastReportNanos = now;
+        lastReportedLagNanos = lagNanos;
+        return "{\"lagMs\":" + lagNanos / 1_000_000L + ",\"queued\":" + queued + ",\"dropped\":" + dropped + "}";
+    }
+
+    /**
+     * Runs the drop policy over the input, queueing whatever should be kept
+     */
+    private void filter(ByteBuffer src) {
+        if (dropState == DropState.PASS && queued >= highWater) {
+            dropState = DropState.CUT;
+            zeros = 0;
+            afterStartCode = false;
+        }
+        if (dropState == DropState.PASS) {
+            append(src, src.remaining());
+            return;
+        }
+
+        while (src.hasRemaining()) {
+            int start = src.position();
+            int end = src.limit();
+            int pos = start;
+            // Position of the NAL header after a start code, or -1
+            int nal = -1;
+            for (; pos < end; pos++) {
+                byte b = src.get(pos);
+                if (afterStartCode) {
+                    afterStartCode = false;
+                    if (isBoundary(b)) {
+                        nal = pos;
+                        break;
+                    }
+                }
+                if (b == 0) {
+                    zeros++;
+                } else {
+                    afterStartCode = b == 1 && zeros >= 2;
+                    zeros = 0;
+                }
+            }
+
+            if (nal < 0) {
+                if (dropState == DropState.CUT) {
+                    append(src, end - start);
+                } else {
+                    drop(end - start);
+                    src.position(end);
+                }
+                return;
+            }
+
+            // The start code itself is replaced below, zeros already queued are harmless
+            int codeStart = Math.max(start, nal - 3);
+            while (codeStart < nal - 1 && src.get(codeStart) != 0) {
+                codeStart++;
+            }
+            if (dropState == DropState.CUT) {
+                append(src, codeStart - start);
+                dropState = DropState.DROP;
+            } else {
+                drop(codeStart - start);
+            }
+            src.position(nal);
+
+            if (dropState == DropState.DROP && queued <= lowWater && isKeyFrame(src.get(nal))) {
+                dropState = DropState.PASS;
+                append(ByteBuffer.wrap(START_CODE), START_CODE.length);
+                append(src, src.remaining());
+                return;
+            }
+            drop(src.position() - codeStart);
+        }
+    }
+
+    /**
+     * Returns true if a NAL header at this position ends the part being cut or dropped
+     */
+    private boolean isBoundary(byte nalHeader) {
+        return dropState == DropState.CUT || isKeyFrame(nalHeader);
+    }
+
+    private static boolean isKeyFrame(byte nalHeader) {
+        int type = nalHeader & 0x1f;
+        return type == NAL_IDR || type == NAL_SPS;
+    }
+
+    private void drop(int count) {
+        dropped += count;
+        droppedCounter.add(count);
+    }
+
+    /**
+     * Copies {@code count} bytes from {@code src} into the queue, filling up the newest chunk
+     * before starting another
+     */
+    private void append(ByteBuffer src, int count) {
+        while (count > 0) {
+            Chunk tail = chunks.peekLast();
+            if (tail == null || tail.length == chunkSize) {
+                tail = free.isEmpty() ? new Chunk(new byte[headroom + chunkSize]) : free.poll();
+                tail.length = 0;
+                tail.nanos = System.nanoTime();
+                chunks.add(tail);
+            }
+            int size = Math.min(count, chunkSize - tail.length);
+            src.get(tail.data, headroom + tail.length, size);
+            tail.length += size;
+            queued += size;
+            count -= size;
+        }
+    }
+
+    static class Chunk {
+
+        /** Payload starts after the headroom given to the queue */
+        final byte[] data;
+        final ByteBuffer buffer;
+        int length;
+        /** When the first byte was queued */
+        long nanos;
+
+        Chunk(byte[] data) {
+            this.data = data;
+            this.buffer = ByteBuffer.wrap(data);
+        }
+    }
+}
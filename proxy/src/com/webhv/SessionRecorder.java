@@ -0,0 +1,241 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Records the adb side of every relayed stream to an append-only log, which
+ * {@link SessionReplay} can serve in place of an adb server.
+ *
+ * The log starts with {@link #MAGIC} and the wall clock time of the recording in milliseconds,
+ * followed by records of a type byte, stream id, nanoseconds since the start of the recording,
+ * payload length and payload. A record's type is written last, and a zero type ends the log, so
+ * a log is readable up to the last complete record even if the proxy was killed. The file is
+ * written through memory mappings of {@link #REGION_SIZE} bytes. A record which doesn't fit in
+ * the rest of a region is preceded by {@link #NEXT_REGION}. While recording the file is a whole
+ * number of regions long, and {@link #close} truncates it after the zero type ending the log.
+ */
+class SessionRecorder {
+
+    static final byte[] MAGIC = "WEBHVLOG".getBytes(StandardCharsets.US_ASCII);
+    static final int FILE_HEADER_SIZE = 16;
+    static final int RECORD_HEADER_SIZE = 17;
+    static final int REGION_SIZE = 64 << 20;
+
+    // Record types
+    /** Payload is the device serial, empty for host services, a newline and the command */
+    static final byte OPEN = 1;
+    static final byte FROM_ADB = 2;
+    static final byte TO_ADB = 3;
+    static final byte CLOSE = 4;
+    /** Payload is the device list in the format of host:devices-l, stream id is 0 */
+    static final byte DEVICES = 5;
+    /** Continue at the start of the next region */
+    static final byte NEXT_REGION = 127;
+
+    // Larger payloads are split over several records
+    private static final int MAX_PAYLOAD = 1 << 20;
+
+    private final FileChannel channel;
+    private final long startNanos = System.nanoTime();
+
+    // Guarded by this
+    private MappedByteBuffer region;
+    private long regionStart = 0;
+    private int nextId = 1;
+
+    SessionRecorder(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        region = channel.map(FileChannel.MapMode.READ_WRITE, 0, REGION_SIZE);
+        region.put(MAGIC).putLong(System.currentTimeMillis());
+    }
+
+    /**
+     * Starts recording a stream which adb accepted
+     */
+    Stream open(StreamRequest request) {
+        int id;
+        synchronized (this) {
+            id = nextId++;
+        }
+        String device = request.device == null ? "" : request.device;
+        byte[] payload = (device + "\n" + request.command).getBytes(StandardCharsets.UTF_8);
+        append(OPEN, id, ByteBuffer.wrap(payload));
+        return new Stream(id);
+    }
+
+    /**
+     * Records the device list, so that a replay can show the same devices
+     */
+    void devices(String list) {
+        append(DEVICES, 0, ByteBuffer.wrap(list.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Appends a record for each {@link #MAX_PAYLOAD} bytes of the remaining data, without
+     * changing the position of {@code data}
+     */
+    private void append(byte type, int id, ByteBuffer data) {
+        ByteBuffer payload = data.duplicate();
+        do {
+            int length = Math.min(payload.remaining(), MAX_PAYLOAD);
+            ByteBuffer part = payload.duplicate();
+            part.limit(part.position() + length);
+            payload.position(payload.position() + length);
+            appendRecord(type, id, part);
+        } while (payload.hasRemaining());
+    }
+
+    private synchronized void appendRecord(byte type, int id, ByteBuffer payload) {
+        if (region == null) {
+            return;
+        }
+        try {
+            // Keep a byte for the next region marker
+            if (region.remaining() <= RECORD_HEADER_SIZE + payload.remaining()) {
+                region.put(NEXT_REGION);
+                regionStart += REGION_SIZE;
+                region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, REGION_SIZE);
+            }
+        } catch (IOException e) {
+            System.out.println("Recording stopped: " + e);
+            region = null;
+            return;
+        }
+        int start = region.position();
+        region.position(start + 1);
+        region.putInt(id).putLong(System.nanoTime() - startNanos).putInt(payload.remaining()).put(payload);
+        region.put(start, type);
+    }
+
+    /**
+     * Stops recording and truncates the file after the last record. Where the file can't be
+     * truncated while it is mapped, it is left as it is, which is still a complete log.
+     */
+    synchronized void close() {
+        if (region == null) {
+            return;
+        }
+        // Keep the zero type after the last record
+        long end = regionStart + region.position() + 1;
+        region.force();
+        region = null;
+        try {
+            channel.truncate(end);
+        } catch (IOException e) {
+            System.out.println("Unable to truncate the recording: " + e);
+        }
+        ProxyServer.closeSafely(channel);
+    }
+
+    /**
+     * Records the data of one stream, through {@link #tee} wrappers around the adb socket streams
+     * or by calling the record methods directly
+     */
+    class Stream {
+
+        private final int id;
+        private boolean closed = false;
+
+        private Stream(int id) {
+            this.id = id;
+        }
+
+        void fromAdb(ByteBuffer data) {
+            if (data.hasRemaining()) {
+                append(FROM_ADB, id, data);
+            }
+        }
+
+        void toAdb(byte[] data, int offset, int length) {
+            if (length > 0) {
+                append(TO_ADB, id, ByteBuffer.wrap(data, offset, length));
+            }
+        }
+
+        synchronized void close() {
+            if (!closed) {
+                closed = true;
+                append(CLOSE, id, ByteBuffer.allocate(0));
+            }
+        }
+
+        /**
+         * Returns a stream which records everything read from adb, and the close
+         */
+        InputStream tee(InputStream adbIn) {
+            return new FilterInputStream(adbIn) {
+
+                @Override
+                public int read() throws IOException {
+                    byte[] data = new byte[1];
+                    return read(data, 0, 1) == -1 ? -1 : data[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] data, int offset, int length) throws IOException {
+                    int count = super.read(data, offset, length);
+                    if (count > 0) {
+                        fromAdb(ByteBuffer.wrap(data, offset, count));
+                    }
+                    return count;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    Stream.this.close();
+                    super.close();
+                }
+            };
+        }
+
+        /**
+         * Returns a stream which records everything written to adb, and the close
+         */
+        OutputStream tee(OutputStream adbOut) {
+            return new FilterOutputStream(adbOut) {
+
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] data, int offset, int length) throws IOException {
+                    toAdb(data, offset, length);
+                    out.write(data, offset, length);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    Stream.this.close();
+                    super.close();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,371 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import static com.webhv.ProxyServer.closeSafely;
+import static com.webhv.ProxyServer.prefixLength;
+import static com.webhv.SessionRecorder.CLOSE;
+import static com.webhv.SessionRecorder.DEVICES;
+import static com.webhv.SessionRecorder.FROM_ADB;
+import static com.webhv.SessionRecorder.MAGIC;
+import static com.webhv.SessionRecorder.NEXT_REGION;
+import static com.webhv.SessionRecorder.OPEN;
+import static com.webhv.SessionRecorder.RECORD_HEADER_SIZE;
+import static com.webhv.SessionRecorder.REGION_SIZE;
+import static com.webhv.SessionRecorder.TO_ADB;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves a log written by {@link SessionRecorder} in place of an adb server, so that the proxy
+ * and the page can be exercised without devices.
+ *
+ * A stream opened for a device and command gets the next recorded stream with the same device
+ * and command, starting over once all have been played. Recorded adb output is only sent once
+ * the client has sent as much as had been sent to adb before it, so request and response
+ * protocols like jdwp replay in order. The gaps between events keep their recorded length,
+ * divided by the speed, or are skipped when the speed is 0.
+ */
+class SessionReplay {
+
+    private final double speed;
+    // Recordings keyed by device and command, in the order they were opened
+    private final Map<String, List<Recording>> recordings = new HashMap<>();
+    // Device line in long format, keyed by serial
+    private final Map<String, String> devices = new LinkedHashMap<>();
+
+    // Guarded by recordings
+    private final Map<String, Integer> nextRecording = new HashMap<>();
+
+    SessionReplay(File file, double speed) throws IOException {
+        this.speed = speed;
+        Map<Integer, Recording> open = new HashMap<>();
+        String recordedDevices = null;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long regionStart = 0;
+            ByteBuffer region = map(channel, regionStart, size);
+            byte[] magic = new byte[MAGIC.length];
+            if (region.remaining() < SessionRecorder.FILE_HEADER_SIZE) {
+                throw new IOException("Not a session recording");
+            }
+            region.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a session recording");
+            }
+            region.getLong();
+
+            while (region.hasRemaining()) {
+                byte type = region.get();
+                if (type == NEXT_REGION) {
+                    regionStart += REGION_SIZE;
+                    if (regionStart >= size) {
+                        break;
+                    }
+                    region = map(channel, regionStart, size);
+                    continue;
+                }
+                if (type == 0 || region.remaining() < RECORD_HEADER_SIZE - 1) {
+                    break;
+                }
+                int id = region.getInt();
+                long time = region.getLong();
+                int length = region.getInt();
+                if (length < 0 || length > region.remaining()) {
+                    break;
+                }
+                ByteBuffer payload = region.slice();
+                payload.limit(length);
+                region.position(region.position() + length);
+
+                if (type == OPEN) {
+                    String[] parts = StandardCharsets.UTF_8.decode(payload).toString().split("\n", 2);
+                    Recording recording = new Recording(time);
+                    open.put(id, recording);
+                    recordings.computeIfAbsent(key(parts[0], parts[1]), k -> new ArrayList<>()).add(recording);
+                    if (!parts[0].isEmpty()) {
+                        devices.putIfAbsent(parts[0], parts[0] + " device product:replay model:replay device:replay");
+                    }
+                } else if (type == FROM_ADB || type == TO_ADB || type == CLOSE) {
+                    Recording recording = type == CLOSE ? open.remove(id) : open.get(id);
+                    if (recording != null) {
+                        recording.events.add(new Event(type, time, payload));
+                    }
+                } else if (type == DEVICES) {
+                    recordedDevices = StandardCharsets.UTF_8.decode(payload).toString();
+                }
+            }
+        }
+
+        if (recordedDevices != null) {
+            // Prefer the descriptions of the devices which were recorded
+            devices.putAll(DeviceTracker.parse(recordedDevices));
+        }
+    }
+
+    private static ByteBuffer map(FileChannel channel, long start, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, size - start));
+    }
+
+    private static String key(String device, String command) {
+        return device + "\n" + command;
+    }
+
+    /**
+     * Number of recorded streams
+     */
+    int size() {
+        return recordings.values().stream().mapToInt(List::size).sum();
+    }
+
+    /**
+     * Starts serving on a loopback port, which is returned
+     */
+    int start() throws IOException {
+        ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptThread = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = server.accept();
+                    Thread thread = new Thread(() -> serve(socket), "replay");
+                    thread.setDaemon(true);
+                    thread.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }, "replay-server");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        return server.getLocalPort();
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            String request = readRequest(in);
+            String device = "";
+            if (request.startsWith("host:transport:")) {
+                device = request.substring("host:transport:".length());
+                if (!devices.containsKey(device)) {
+                    fail(out, "device '" + device + "' not found");
+                    return;
+                }
+                out.write("OKAY".getBytes(StandardCharsets.UTF_8));
+                request = readRequest(in);
+            } else if (request.startsWith("host:")) {
+                request = request.substring("host:".length());
+                switch (request) {
+                    case "devices":
+                    case "devices-l":
+                    case "track-devices":
+                    case "track-devices-l":
+                        String list = DeviceTracker.format(devices, request.endsWith("-l"));
+                        out.write(("OKAY" + prefixLength(list)).getBytes(StandardCharsets.UTF_8));
+                        if (request.startsWith("track-")) {
+                            // The list never changes
+                            while (in.read() != -1);
+                        }
+                        return;
+                }
+            }
+
+            Recording recording = next(key(device, request));
+            if (recording == null) {
+                fail(out, "No recording of " + request);
+                return;
+            }
+            out.write("OKAY".getBytes(StandardCharsets.UTF_8));
+            play(recording, in, out);
+        } catch (IOException e) {
+            // Client went away
+        } finally {
+            closeSafely(socket);
+        }
+    }
+
+    private Recording next(String key) {
+        synchronized (recordings) {
+            List<Recording> list = recordings.get(key);
+            if (list == null) {
+                return null;
+            }
+            int index = nextRecording.getOrDefault(key, 0);
+            nextRecording.put(key, (index + 1) % list.size());
+            return list.get(index);
+        }
+    }
+
+    private void play(Recording recording, InputStream in, OutputStream out) throws IOException {
+        InputCounter input = new InputCounter(in);
+        Thread inputThread = new Thread(input, "replay-input");
+        inputThread.setDaemon(true);
+        inputThread.start();
+
+        // Recorded time which corresponds to anchorNanos, moved whenever the client holds up replay
+        long anchorNanos = System.nanoTime();
+        long anchorTime = recording.openTime;
+        long inputNeeded = 0;
+        byte[] buffer = new byte[64 * 1024];
+        for (Event event : recording.events) {
+            if (event.type == TO_ADB) {
+                inputNeeded += event.data.remaining();
+                if (input.count() < inputNeeded) {
+                    if (!input.await(inputNeeded)) {
+                        return;
+                    }
+                    anchorNanos = System.nanoTime();
+                    anchorTime = event.time;
+                }
+                continue;
+            }
+
+            if (speed > 0) {
+                long delay = anchorNanos + (long) ((event.time - anchorTime) / speed) - System.nanoTime();
+                if (delay > 0) {
+                    try {
+                        Thread.sleep(delay / 1_000_000, (int) (delay % 1_000_000));
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+            if (event.type == CLOSE) {
+                return;
+            }
+            ByteBuffer data = event.data.duplicate();
+            while (data.hasRemaining()) {
+                int count = Math.min(buffer.length, data.remaining());
+                data.get(buffer, 0, count);
+                out.write(buffer, 0, count);
+            }
+        }
+    }
+
+    private static String readRequest(InputStream in) throws IOException {
+        byte[] length = in.readNBytes(4);
+        if (length.length < 4) {
+            throw new IOException("Connection closed");
+        }
+        try {
+            byte[] request = in.readNBytes(Integer.parseInt(new String(length, StandardCharsets.UTF_8), 16));
+            return new String(request, StandardCharsets.UTF_8);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid request");
+        }
+    }
+
+    private static void fail(OutputStream out, String message) throws IOException {
+        out.write(("FAIL" + prefixLength(message)).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static class Recording {
+
+        // Time the stream was opened, in nanoseconds since the start of the recording
+        final long openTime;
+        final List<Event> events = new ArrayList<>();
+
+        Recording(long openTime) {
+            this.openTime = openTime;
+        }
+    }
+
+    private static class Event {
+
+        final byte type;
+        final long time;
+        final ByteBuffer data;
+
+        Event(byte type, long time, ByteBuffer data) {
+            this.type = type;
+            this.time = time;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Counts the bytes the client sends, which are otherwise dropped
+     */
+    private static class InputCounter implements Runnable {
+
+        private final InputStream in;
+
+        // Guarded by this
+        private long count = 0;
+        private boolean closed = false;
+
+        InputCounter(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[8192];
+            try {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    synchronized (this) {
+                        count += read;
+                        notifyAll();
+                    }
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+        }
+
+        synchronized long count() {
+            return count;
+        }
+
+        /**
+         * Waits until at least {@code target} bytes were received, returns false if the client
+         * closed the stream before that
+         */
+        synchronized boolean await(long target) throws InterruptedIOException {
+            while (count < target && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            return count >= target;
+        }
+    }
+}
@@ -0,0 +1,351 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import static com.webhv.ProxyServer.closeSafely;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketImpl;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Answers idempotent shell queries, like getprop and wm size, from memory for a short while.
+ * Pages ask for the same ones over and over, often from several tabs at once.
+ *
+ * Only commands on an allowlist are cached, each for its own time. A query which arrives while
+ * the same one is running on the device waits for it instead of opening another adb stream, and
+ * every waiter gets the complete output. Output which is larger than the cache allows is passed
+ * through uncached.
+ */
+class ShellCache {
+
+    /**
+     * Cached commands with how long their output is kept, in milliseconds. Only the read-only
+     * forms which the viewer sends match, the same commands with arguments can change the device.
+     */
+    private static final Map<Pattern, Long> TTL_MILLIS = new LinkedHashMap<>();
+    static {
+        TTL_MILLIS.put(Pattern.compile("shell:getprop( [\\w.]+)?"), 5000L);
+        TTL_MILLIS.put(Pattern.compile("shell:wm size"), 5000L);
+        TTL_MILLIS.put(Pattern.compile("shell:wm density"), 5000L);
+        TTL_MILLIS.put(Pattern.compile("shell:pm list packages( -[A-Za-z]+)*"), 5000L);
+        TTL_MILLIS.put(Pattern.compile("shell:dumpsys window windows"), 1000L);
+    }
+    // Never cached, whatever the patterns allow, as the shell would run more than one command
+    private static final Pattern SHELL_METACHARACTERS = Pattern.compile("[;&|<>$`\\n]");
+
+    static final String HIT = "hit";
+    static final String SHARED = "shared";
+    static final String MISS = "miss";
+    // Too large to cache, or no room for another entry
+    static final String BYPASS = "bypass";
+
+    private static final int MAX_OUTPUT_SIZE = 1 << 20;
+    private static final int MAX_ENTRIES = 1024;
+
+    private final ProxyServer proxy;
+    // Keyed by device and command. Guarded by itself.
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    ShellCache(ProxyServer proxy) {
+        this.proxy = proxy;
+    }
+
+    /**
+     * Returns true if the request is answered by {@link #open}
+     */
+    boolean accepts(StreamRequest request) {
+        return request.device != null && ttlMillis(request.command) > 0;
+    }
+
+    private static long ttlMillis(String command) {
+        if (SHELL_METACHARACTERS.matcher(command).find()) {
+            return 0;
+        }
+        for (Map.Entry<Pattern, Long> entry : TTL_MILLIS.entrySet()) {
+            if (entry.getKey().matcher(command).matches()) {
+                return entry.getValue();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns a stream with the output of the command, which is only run on the device if it
+     * isn't cached or running already
+     */
+    Socket open(StreamRequest request) throws IOException {
+        String key = request.device + "\n" + request.command;
+        Entry entry;
+        String result;
+        synchronized (entries) {
+            long now = System.nanoTime();
+            entry = entries.get(key);
+            if (entry != null && entry.isFresh(now)) {
+                result = entry.isLoading() ? SHARED : HIT;
+            } else if (entries.size() < MAX_ENTRIES || removeExpired(now)) {
+                entry = new Entry();
+                entries.put(key, entry);
+                result = MISS;
+            } else {
+                entry = null;
+                result = BYPASS;
+            }
+        }
+
+        if (entry == null) {
+            proxy.metrics.shellCache(result);
+            return proxy.openUncachedStream(request);
+        }
+        if (!result.equals(MISS)) {
+            byte[] output = entry.await();
+            proxy.metrics.shellCache(output != null ? result : BYPASS);
+            return output != null ? new CachedStream(output, null) : proxy.openUncachedStream(request);
+        }
+
+        proxy.metrics.shellCache(MISS);
+        Socket adbSocket = null;
+        try {
+            adbSocket = proxy.openUncachedStream(request);
+            InputStream in = adbSocket.getInputStream();
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while (output.size() < MAX_OUTPUT_SIZE && (count = in.read(buffer)) != -1) {
+                output.write(buffer, 0, count);
+            }
+            if (output.size() >= MAX_OUTPUT_SIZE) {
+                // Send what was read so far, followed by the rest straight from adb
+                entry.complete(null, 0);
+                remove(key, entry);
+                return new CachedStream(output.toByteArray(), adbSocket);
+            }
+            closeSafely(adbSocket);
+            byte[] data = output.toByteArray();
+            entry.complete(data, System.nanoTime() + ttlMillis(request.command) * 1_000_000L);
+            return new CachedStream(data, null);
+        } catch (IOException e) {
+            if (adbSocket != null) {
+                closeSafely(adbSocket);
+            }
+            entry.fail(e);
+            remove(key, entry);
+            throw e;
+        }
+    }
+
+    private void remove(String key, Entry entry) {
+        synchronized (entries) {
+            entries.remove(key, entry);
+        }
+    }
+
+    /**
+     * Removes expired entries, returns true if any were
+     */
+    private boolean removeExpired(long now) {
+        boolean removed = false;
+        for (Iterator<Entry> i = entries.values().iterator(); i.hasNext(); ) {
+            if (!i.next().isFresh(now)) {
+                i.remove();
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    private static class Entry {
+
+        // Guarded by this
+        private boolean loading = true;
+        private byte[] output;
+        private IOException error;
+        private long expiryNanos;
+
+        synchronized boolean isLoading() {
+            return loading;
+        }
+
+        synchronized boolean isFresh(long now) {
+            return loading || (output != null && now - expiryNanos < 0);
+        }
+
+        /**
+         * Waits for the output, returns null if it isn't cached
+         */
+        synchronized byte[] await() throws IOException {
+            while (loading) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (error != null) {
+                throw new IOException(error.getMessage(), error);
+            }
+            return output;
+        }
+
+        synchronized void complete(byte[] output, long expiryNanos) {
+            this.output = output;
+            this.expiryNanos = expiryNanos;
+            loading = false;
+            notifyAll();
+        }
+
+        synchronized void fail(IOException error) {
+            this.error = error;
+            loading = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Stream which replays cached output, then continues with the adb stream if there is one.
+     * Only the socket methods which the proxy uses are supported.
+     */
+    private static class CachedStream extends Socket {
+
+        private final byte[] data;
+        private final Socket live;
+
+        // Guarded by this
+        private int position = 0;
+        private boolean closed = false;
+
+        private final InputStream input = new InputStream() {
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int offset, int length) throws IOException {
+                synchronized (CachedStream.this) {
+                    if (closed) {
+                        throw new SocketException("Socket closed");
+                    }
+                    if (position < data.length) {
+                        int count = Math.min(length, data.length - position);
+                        System.arraycopy(data, position, b, offset, count);
+                        position += count;
+                        return count;
+                    }
+                }
+                return live == null ? -1 : live.getInputStream().read(b, offset, length);
+            }
+
+            @Override
+            public int available() throws IOException {
+                synchronized (CachedStream.this) {
+                    if (position < data.length) {
+                        return data.length - position;
+                    }
+                }
+                return live == null ? 0 : live.getInputStream().available();
+            }
+        };
+
+        private final OutputStream output = new OutputStream() {
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int offset, int length) throws IOException {
+                // Queries don't read input, so it is dropped when there is no command running
+                if (live != null) {
+                    live.getOutputStream().write(b, offset, length);
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (live != null) {
+                    live.getOutputStream().flush();
+                }
+            }
+        };
+
+        CachedStream(byte[] data, Socket live) throws SocketException {
+            super((SocketImpl) null);
+            this.data = data;
+            this.live = live;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return input;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return output;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                closed = true;
+            }
+            if (live != null) {
+                closeSafely(live);
+            }
+        }
+
+        @Override
+        public synchronized boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public void setSoTimeout(int timeout) throws SocketException {
+            if (live != null) {
+                live.setSoTimeout(timeout);
+            }
+        }
+
+        @Override
+        public int getSoTimeout() throws SocketException {
+            return live == null ? 0 : live.getSoTimeout();
+        }
+
+        @Override
+        public void setTcpNoDelay(boolean on) { }
+
+        @Override
+        public void setSendBufferSize(int size) { }
+    }
+}
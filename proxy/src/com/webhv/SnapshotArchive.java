@@ -0,0 +1,845 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Saved hierarchies kept in one file, in which what snapshots have in common is only stored
+ * once. Consecutive captures of an app are mostly the same, so instead of a zip file each, a
+ * snapshot is split into records addressed by the hash of their content: the files of the
+ * saved zip, such as the view images, and the subtrees of hierarchy.txt. A small subtree is a
+ * record of its lines, and a larger one a record of its own line which refers to the records of
+ * its children, so that a changed view only adds the records of its subtree and ancestors.
+ *
+ * Records are deflated with a preset dictionary of lines from the first hierarchy, which holds
+ * the property names and common values a small record has too little of to compress well on
+ * its own. The footer lists the snapshots with a manifest record each, so that one snapshot is
+ * read from the footer, its manifest and its records, without inflating the rest.
+ *
+ * A snapshot is added by writing its new records over the footer, followed by the new footer.
+ * Everything before the old footer stays as it was, which {@link View} relies on.
+ *
+ * The file is little-endian:
+ * <pre>
+ * "WHSA" int32 version
+ * records: uint8 method, 16 byte hash, varint size, varint stored size, data
+ * footer:
+ *   varint dictionary record offset, varint dictionary record length
+ *   varint snapshot count
+ *   for each snapshot: int64 time, varint title length, UTF-8 title, varint manifest offset,
+ *   varint manifest length
+ * int64 footer offset, int32 version, "WHSA"
+ * </pre>
+ * The method is 0 for stored and 8 for deflated, as in zip files, and the hash is the start of
+ * the SHA-256 of the data before compression. A manifest holds the size of hierarchy.txt, the
+ * count of its top-level subtrees and a piece for each, then the count of the other files and
+ * for each its name, record offset and record length. A piece is the indent of the first line
+ * of a subtree, then the offset of its record and its length shifted left by one, with the low
+ * bit set for a node record. A subtree record holds its lines without the indent of the first,
+ * each ending with a newline. A node record holds the length of its line and the line, without
+ * indent, then the count of its children and a piece for each, with the indent relative to its
+ * own.
+ */
+class SnapshotArchive implements AutoCloseable {
+
+    static final int VERSION = 1;
+    static final String HIERARCHY = "hierarchy.txt";
+    static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+
+    private static final byte[] MAGIC = "WHSA".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_SIZE = MAGIC.length + 4;
+    private static final int TRAILER_SIZE = 8 + 4 + 4;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final int HASH_SIZE = 16;
+    private static final int MAX_RECORD_HEADER = 1 + HASH_SIZE + 10 + 10;
+    private static final int MAX_RECORD_SIZE = 256 << 20;
+    // Deflate looks back 32 KB, less the lookahead it keeps at the end of the window
+    private static final int DICTIONARY_SIZE = 32 * 1024 - 262;
+    // Subtrees nested deeper are a single record whatever their size
+    private static final int MAX_DEPTH = 256;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final int chunkSize;
+    private final MessageDigest sha256;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    // Offset and length of every record by hash
+    private final Map<ByteBuffer, long[]> records = new HashMap<>();
+    private final List<Snapshot> snapshots = new ArrayList<>();
+    // Set with the first snapshot
+    private byte[] dictionary;
+    private long dictionaryOffset = 0;
+    private long dictionaryLength = 0;
+    private long footerOffset;
+    private long length;
+
+    // Records of the snapshot being added, which are written with it
+    private final Encoder pending = new Encoder();
+    private final Map<ByteBuffer, long[]> pendingRecords = new HashMap<>();
+
+    private static class Snapshot {
+        final long time;
+        final String title;
+        final long manifestOffset;
+        final long manifestLength;
+
+        Snapshot(long time, String title, long manifestOffset, long manifestLength) {
+            this.time = time;
+            this.title = title;
+            this.manifestOffset = manifestOffset;
+            this.manifestLength = manifestLength;
+        }
+    }
+
+    private SnapshotArchive(FileChannel channel, int chunkSize) throws IOException {
+        this.channel = channel;
+        this.chunkSize = chunkSize;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        if (channel.size() == 0) {
+            Encoder header = new Encoder();
+            header.bytes(MAGIC, 0, MAGIC.length);
+            header.int32(VERSION);
+            channel.write(ByteBuffer.wrap(header.bytes, 0, header.size), 0);
+            footerOffset = HEADER_SIZE;
+            writeTail(new Encoder());
+            return;
+        }
+
+        long size = channel.size();
+        if (size < HEADER_SIZE + TRAILER_SIZE) {
+            throw new IOException("Not a snapshot archive");
+        }
+        ByteBuffer header = read(0, HEADER_SIZE);
+        ByteBuffer trailer = read(size - TRAILER_SIZE, TRAILER_SIZE);
+        if (!hasMagic(header, 0) || !hasMagic(trailer, TRAILER_SIZE - MAGIC.length)
+                || header.getInt(MAGIC.length) != VERSION || trailer.getInt(8) != VERSION) {
+            throw new IOException("Not a snapshot archive");
+        }
+        footerOffset = trailer.getLong(0);
+        length = size;
+        if (footerOffset < HEADER_SIZE || footerOffset > size - TRAILER_SIZE
+                || size - TRAILER_SIZE - footerOffset > MAX_RECORD_SIZE) {
+            throw new IOException("Invalid data");
+        }
+
+        try {
+            ByteBuffer footer = read(footerOffset, (int) (size - TRAILER_SIZE - footerOffset));
+            dictionaryOffset = readVarint(footer);
+            dictionaryLength = readVarint(footer);
+            int count = readCount(footer);
+            for (int i = 0; i < count; i++) {
+                long time = footer.getLong();
+                byte[] title = new byte[readCount(footer)];
+                footer.get(title);
+                snapshots.add(new Snapshot(time, new String(title, StandardCharsets.UTF_8), readVarint(footer),
+                        readVarint(footer)));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Invalid data", e);
+        }
+        if (dictionaryLength > 0) {
+            dictionary = readRecord(dictionaryOffset, dictionaryLength);
+        } else if (!snapshots.isEmpty()) {
+            dictionary = new byte[0];
+        }
+        scanRecords();
+    }
+
+    /**
+     * Opens an archive for reading and adding snapshots, and creates it if the file doesn't exist
+     */
+    static SnapshotArchive open(Path file) throws IOException {
+        return open(file, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Opens an archive which splits off subtrees of up to {@code chunkSize} bytes as records of
+     * their own
+     */
+    static SnapshotArchive open(Path file, int chunkSize) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE);
+        try {
+            return new SnapshotArchive(channel, chunkSize);
+        } catch (IOException | RuntimeException e) {
+            ProxyServer.closeSafely(channel);
+            throw e;
+        }
+    }
+
+    /**
+     * Indexes the records by hash, for snapshots added later to refer to
+     */
+    private void scanRecords() throws IOException {
+        long position = HEADER_SIZE;
+        while (position < footerOffset) {
+            ByteBuffer header = read(position, (int) Math.min(MAX_RECORD_HEADER, footerOffset - position));
+            try {
+                header.position(1);
+                byte[] hash = new byte[HASH_SIZE];
+                header.get(hash);
+                readVarint(header);
+                long storedSize = readVarint(header);
+                long recordLength = header.position() + storedSize;
+                records.put(ByteBuffer.wrap(hash), new long[] {position, recordLength});
+                position += recordLength;
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Invalid data", e);
+            }
+        }
+        if (position != footerOffset) {
+            throw new IOException("Invalid data");
+        }
+    }
+
+    private static boolean hasMagic(ByteBuffer data, int position) {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data.get(position + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    synchronized int size() {
+        return snapshots.size();
+    }
+
+    synchronized String title(int snapshot) {
+        return snapshots.get(snapshot).title;
+    }
+
+    synchronized long time(int snapshot) {
+        return snapshots.get(snapshot).time;
+    }
+
+    /**
+     * Returns the size of the archive file
+     */
+    synchronized long length() {
+        return length;
+    }
+
+    /**
+     * Adds a snapshot from the files of a saved hierarchy, named as in the zip file, and returns
+     * its index
+     */
+    synchronized int add(String title, long time, Map<String, byte[]> files) throws IOException {
+        byte[] hierarchy = files.get(HIERARCHY);
+        if (hierarchy == null) {
+            throw new IOException("Missing " + HIERARCHY);
+        }
+        pending.reset();
+        pendingRecords.clear();
+        boolean newDictionary = dictionary == null;
+        try {
+            if (newDictionary) {
+                dictionary = dictionary(hierarchy);
+                if (dictionary.length > 0) {
+                    long[] record = store(dictionary, false);
+                    dictionaryOffset = record[0];
+                    dictionaryLength = record[1];
+                }
+            }
+
+            Encoder manifest = new Encoder();
+            manifest.varint(hierarchy.length);
+            Lines lines = new Lines(hierarchy);
+            int count = 0;
+            for (int line = 0; line < lines.count; line = lines.subtreeEnds[line]) {
+                count++;
+            }
+            manifest.varint(count);
+            for (int line = 0; line < lines.count; line = lines.subtreeEnds[line]) {
+                long[] piece = storeSubtree(lines, line, 0);
+                manifest.varint(lines.indents[line]);
+                manifest.varint(piece[0]);
+                manifest.varint(piece[1]);
+            }
+
+            manifest.varint(files.size() - 1);
+            for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                if (!file.getKey().equals(HIERARCHY)) {
+                    byte[] name = file.getKey().getBytes(StandardCharsets.UTF_8);
+                    long[] record = store(file.getValue(), true);
+                    manifest.varint(name.length);
+                    manifest.bytes(name, 0, name.length);
+                    manifest.varint(record[0]);
+                    manifest.varint(record[1]);
+                }
+            }
+
+            long[] record = store(manifest.toByteArray(), true);
+            snapshots.add(new Snapshot(time, title, record[0], record[1]));
+            writeTail(pending);
+        } catch (IOException | RuntimeException e) {
+            if (snapshots.size() > 0 && snapshots.get(snapshots.size() - 1).manifestOffset >= footerOffset) {
+                snapshots.remove(snapshots.size() - 1);
+            }
+            if (newDictionary) {
+                dictionary = null;
+                dictionaryOffset = 0;
+                dictionaryLength = 0;
+            }
+            pendingRecords.clear();
+            try {
+                // Put back the footer, in case it was partly overwritten
+                writeTail(new Encoder());
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        records.putAll(pendingRecords);
+        pendingRecords.clear();
+        return snapshots.size() - 1;
+    }
+
+    /**
+     * Stores a subtree as a record, or as a node record if it is too large. Returns the offset of
+     * the record, and its length shifted left by one with the low bit set for a node record.
+     */
+    private long[] storeSubtree(Lines lines, int line, int depth) {
+        int end = lines.subtreeEnds[line];
+        int indent = lines.indents[line];
+        byte[] text = lines.text;
+        if (end == line + 1 || lines.starts[end] - lines.starts[line] <= chunkSize || depth >= MAX_DEPTH) {
+            Encoder subtree = new Encoder();
+            for (int i = line; i < end; i++) {
+                subtree.bytes(text, lines.starts[i] + indent, lines.ends[i] - lines.starts[i] - indent);
+                subtree.int8('\n');
+            }
+            long[] record = store(subtree.toByteArray(), true);
+            return new long[] {record[0], record[1] << 1};
+        }
+
+        Encoder node = new Encoder();
+        node.varint(lines.ends[line] - lines.starts[line] - indent);
+        node.bytes(text, lines.starts[line] + indent, lines.ends[line] - lines.starts[line] - indent);
+        int count = 0;
+        for (int child = line + 1; child < end; child = lines.subtreeEnds[child]) {
+            count++;
+        }
+        node.varint(count);
+        for (int child = line + 1; child < end; child = lines.subtreeEnds[child]) {
+            long[] piece = storeSubtree(lines, child, depth + 1);
+            node.varint(lines.indents[child] - indent);
+            node.varint(piece[0]);
+            node.varint(piece[1]);
+        }
+        long[] record = store(node.toByteArray(), true);
+        return new long[] {record[0], record[1] << 1 | 1};
+    }
+
+    /**
+     * Returns the offset and length of the record with the given data, which is added to the
+     * pending records unless the archive already has it
+     */
+    private long[] store(byte[] data, boolean compress) {
+        sha256.reset();
+        ByteBuffer hash = ByteBuffer.wrap(Arrays.copyOf(sha256.digest(data), HASH_SIZE));
+        long[] record = records.get(hash);
+        if (record == null) {
+            record = pendingRecords.get(hash);
+        }
+        if (record != null) {
+            return record;
+        }
+
+        byte[] stored = data;
+        int method = STORED;
+        if (compress) {
+            byte[] deflated = deflate(data);
+            if (deflated.length < data.length) {
+                stored = deflated;
+                method = DEFLATED;
+            }
+        }
+        long offset = footerOffset + pending.size;
+        pending.int8(method);
+        pending.bytes(hash.array(), 0, HASH_SIZE);
+        pending.varint(data.length);
+        pending.varint(stored.length);
+        pending.bytes(stored, 0, stored.length);
+        record = new long[] {offset, footerOffset + pending.size - offset};
+        pendingRecords.put(hash, record);
+        return record;
+    }
+
+    private byte[] deflate(byte[] data) {
+        deflater.reset();
+        if (dictionary.length > 0) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+        while (!deflater.finished()) {
+            int count = deflater.deflate(buffer);
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Picks lines of a hierarchy to prime the compression of every record with: a line of each
+     * class first, and then lines in order, without indent
+     */
+    private static byte[] dictionary(byte[] hierarchy) {
+        Lines lines = new Lines(hierarchy);
+        Encoder out = new Encoder();
+        Set<String> classes = new HashSet<>();
+        boolean[] used = new boolean[lines.count];
+        for (int i = 0; i < lines.count && out.size < DICTIONARY_SIZE; i++) {
+            int start = lines.starts[i] + lines.indents[i];
+            int end = start;
+            while (end < lines.ends[i] && hierarchy[end] != ' ' && hierarchy[end] != '@') {
+                end++;
+            }
+            if (classes.add(new String(hierarchy, start, end - start, StandardCharsets.UTF_8))) {
+                out.bytes(hierarchy, start, lines.ends[i] - start);
+                out.int8('\n');
+                used[i] = true;
+            }
+        }
+        for (int i = 0; i < lines.count && out.size < DICTIONARY_SIZE; i++) {
+            if (!used[i]) {
+                int start = lines.starts[i] + lines.indents[i];
+                out.bytes(hierarchy, start, lines.ends[i] - start);
+                out.int8('\n');
+            }
+        }
+        return Arrays.copyOf(out.bytes, Math.min(out.size, DICTIONARY_SIZE));
+    }
+
+    /**
+     * Writes records at the footer offset followed by the footer and trailer, and drops anything
+     * after them
+     */
+    private void writeTail(Encoder written) throws IOException {
+        long newFooterOffset = footerOffset + written.size;
+        Encoder tail = new Encoder();
+        tail.varint(dictionaryOffset);
+        tail.varint(dictionaryLength);
+        tail.varint(snapshots.size());
+        for (Snapshot snapshot : snapshots) {
+            byte[] title = snapshot.title.getBytes(StandardCharsets.UTF_8);
+            tail.int64(snapshot.time);
+            tail.varint(title.length);
+            tail.bytes(title, 0, title.length);
+            tail.varint(snapshot.manifestOffset);
+            tail.varint(snapshot.manifestLength);
+        }
+        tail.int64(newFooterOffset);
+        tail.int32(VERSION);
+        tail.bytes(MAGIC, 0, MAGIC.length);
+
+        write(written, footerOffset);
+        write(tail, newFooterOffset);
+        length = newFooterOffset + tail.size;
+        channel.truncate(length);
+        footerOffset = newFooterOffset;
+    }
+
+    private void write(Encoder data, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data.bytes, 0, data.size);
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Writes the snapshots from {@code first} on to a new archive, in which what the older
+     * snapshots alone referred to is gone. Returns the size of the new archive.
+     */
+    synchronized long copyTo(Path file, int first) throws IOException {
+        try (SnapshotArchive copy = open(file, chunkSize)) {
+            for (int i = first; i < snapshots.size(); i++) {
+                copy.add(title(i), time(i), read(i));
+            }
+            return copy.length();
+        }
+    }
+
+    /**
+     * Rebuilds the files of a snapshot, named as in the zip file it was added from
+     */
+    synchronized Map<String, byte[]> read(int index) throws IOException {
+        Snapshot snapshot = snapshots.get(index);
+        ByteBuffer manifest = ByteBuffer.wrap(readRecord(snapshot.manifestOffset, snapshot.manifestLength));
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        try {
+            long size = readVarint(manifest);
+            if (size > MAX_RECORD_SIZE) {
+                throw new IOException("Invalid data");
+            }
+            Output hierarchy = new Output((int) size);
+            int count = readCount(manifest);
+            for (int i = 0; i < count; i++) {
+                readPiece(hierarchy, readVarint(manifest), readVarint(manifest), readVarint(manifest), 0);
+            }
+            if (hierarchy.position != size) {
+                throw new IOException("Invalid data");
+            }
+            files.put(HIERARCHY, hierarchy.bytes);
+
+            count = readCount(manifest);
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[readCount(manifest)];
+                manifest.get(name);
+                files.put(new String(name, StandardCharsets.UTF_8), readRecord(readVarint(manifest),
+                        readVarint(manifest)));
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Invalid data", e);
+        }
+        return files;
+    }
+
+    private void readPiece(Output out, long indent, long offset, long lengthAndKind, int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new IOException("Invalid data");
+        }
+        ByteBuffer record = ByteBuffer.wrap(readRecord(offset, lengthAndKind >>> 1));
+        if ((lengthAndKind & 1) == 0) {
+            byte[] lines = record.array();
+            for (int start = 0; start < lines.length; ) {
+                int end = start;
+                while (lines[end] != '\n') {
+                    end++;
+                }
+                out.spaces(indent);
+                out.write(lines, start, end + 1 - start);
+                start = end + 1;
+            }
+            return;
+        }
+
+        int lineLength = readCount(record);
+        out.spaces(indent);
+        out.write(record.array(), record.position(), lineLength);
+        out.write(new byte[] {'\n'}, 0, 1);
+        record.position(record.position() + lineLength);
+        int count = readCount(record);
+        for (int i = 0; i < count; i++) {
+            readPiece(out, indent + readVarint(record), readVarint(record), readVarint(record), depth + 1);
+        }
+    }
+
+    /**
+     * Reads and inflates the data of a record
+     */
+    private byte[] readRecord(long offset, long recordLength) throws IOException {
+        if (offset < HEADER_SIZE || recordLength < 1 + HASH_SIZE + 2 || recordLength > MAX_RECORD_SIZE
+                || offset + recordLength > footerOffset) {
+            throw new IOException("Invalid data");
+        }
+        ByteBuffer record = read(offset, (int) recordLength);
+        try {
+            int method = record.get() & 0xff;
+            record.position(1 + HASH_SIZE);
+            long size = readVarint(record);
+            long storedSize = readVarint(record);
+            if (storedSize != record.remaining() || size > MAX_RECORD_SIZE) {
+                throw new IOException("Invalid data");
+            }
+            byte[] data = new byte[(int) size];
+            if (method == STORED && size == storedSize) {
+                record.get(data);
+            } else if (method == DEFLATED && dictionary != null) {
+                inflater.reset();
+                if (dictionary.length > 0) {
+                    inflater.setDictionary(dictionary);
+                }
+                inflater.setInput(record);
+                int count = 0;
+                while (count < data.length) {
+                    int inflated = inflater.inflate(data, count, data.length - count);
+                    if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                        throw new IOException("Invalid data");
+                    }
+                    count += inflated;
+                }
+            } else {
+                throw new IOException("Invalid data");
+            }
+            return data;
+        } catch (BufferUnderflowException | DataFormatException e) {
+            throw new IOException("Invalid data", e);
+        }
+    }
+
+    private ByteBuffer read(long position, int size) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (data.hasRemaining()) {
+            if (channel.read(data, position + data.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        return data.flip();
+    }
+
+    private static long readVarint(ByteBuffer in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            result |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw new IOException("Invalid data");
+    }
+
+    /**
+     * Reads a varint which counts bytes or items of the buffer, so can't be more than what is left
+     */
+    private static int readCount(ByteBuffer in) throws IOException {
+        long count = readVarint(in);
+        if (count > in.remaining()) {
+            throw new IOException("Invalid data");
+        }
+        return (int) count;
+    }
+
+    /**
+     * Returns the archive as it is now, to be served while snapshots are added
+     */
+    synchronized View view() throws IOException {
+        return new View(this, footerOffset, read(footerOffset, (int) (length - footerOffset)));
+    }
+
+    @Override
+    public synchronized void close() {
+        deflater.end();
+        inflater.end();
+        ProxyServer.closeSafely(channel);
+    }
+
+    /**
+     * The archive as it was at some point. Adding snapshots only writes from the footer on, so
+     * the rest is read from the file and the footer and trailer are kept as they were.
+     */
+    static class View {
+
+        final SnapshotArchive archive;
+        private final FileChannel channel;
+        private final long footerOffset;
+        private final ByteBuffer tail;
+
+        private View(SnapshotArchive archive, long footerOffset, ByteBuffer tail) {
+            this.archive = archive;
+            this.channel = archive.channel;
+            this.footerOffset = footerOffset;
+            this.tail = tail;
+        }
+
+        long length() {
+            return footerOffset + tail.limit();
+        }
+
+        void writeTo(OutputStream out, long start, long end) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, end - start)];
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            while (start < Math.min(end, footerOffset)) {
+                wrapped.clear().limit((int) Math.min(buffer.length, Math.min(end, footerOffset) - start));
+                int count = channel.read(wrapped, start);
+                if (count < 0) {
+                    throw new EOFException();
+                }
+                out.write(buffer, 0, count);
+                start += count;
+            }
+            if (start < end) {
+                ByteBuffer data = tail.duplicate().position((int) (start - footerOffset))
+                        .limit((int) (end - footerOffset));
+                while (data.hasRemaining()) {
+                    int count = Math.min(buffer.length, data.remaining());
+                    data.get(buffer, 0, count);
+                    out.write(buffer, 0, count);
+                }
+            }
+        }
+    }
+
+    /**
+     * Where the lines of a hierarchy start and end, and where their subtrees end
+     */
+    private static class Lines {
+
+        final byte[] text;
+        int count = 0;
+        int[] starts = new int[64];
+        // Before the newline
+        int[] ends = new int[64];
+        int[] indents = new int[64];
+        // Line after the last line of the subtree
+        int[] subtreeEnds;
+
+        Lines(byte[] text) {
+            this.text = text;
+            for (int start = 0; start < text.length; ) {
+                int end = start;
+                while (end < text.length && text[end] != '\n') {
+                    end++;
+                }
+                int indent = 0;
+                while (start + indent < end && text[start + indent] == ' ') {
+                    indent++;
+                }
+                if (count == starts.length - 1) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                    ends = Arrays.copyOf(ends, count * 2);
+                    indents = Arrays.copyOf(indents, count * 2);
+                }
+                starts[count] = start;
+                ends[count] = end;
+                indents[count] = indent;
+                count++;
+                start = end + 1;
+            }
+            starts[count] = text.length;
+
+            subtreeEnds = new int[count];
+            int[] open = new int[count];
+            int depth = 0;
+            for (int i = 0; i < count; i++) {
+                while (depth > 0 && indents[open[depth - 1]] >= indents[i]) {
+                    subtreeEnds[open[--depth]] = i;
+                }
+                open[depth++] = i;
+            }
+            while (depth > 0) {
+                subtreeEnds[open[--depth]] = count;
+            }
+        }
+    }
+
+    /**
+     * Rebuilt hierarchy of a known size, which drops the newline added after a last line which
+     * had none
+     */
+    private static class Output {
+
+        final byte[] bytes;
+        int position = 0;
+
+        Output(int size) {
+            bytes = new byte[size];
+        }
+
+        void spaces(long count) {
+            int end = (int) Math.min(bytes.length, position + Math.min(count, bytes.length));
+            Arrays.fill(bytes, position, end, (byte) ' ');
+            position = end;
+        }
+
+        void write(byte[] data, int offset, int length) {
+            int count = Math.min(length, bytes.length - position);
+            System.arraycopy(data, offset, bytes, position, count);
+            position += count;
+        }
+    }
+
+    /**
+     * Growable little-endian buffer for records and the footer
+     */
+    private static class Encoder {
+
+        private byte[] bytes = new byte[1024];
+        private int size = 0;
+
+        void reset() {
+            size = 0;
+        }
+
+        private void ensure(int count) {
+            if (bytes.length - size < count) {
+                bytes = Arrays.copyOf(bytes, Math.max(size + count, bytes.length * 2));
+            }
+        }
+
+        void int8(int value) {
+            ensure(1);
+            bytes[size++] = (byte) value;
+        }
+
+        void varint(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                bytes[size++] = (byte) (value | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void int32(int value) {
+            ensure(4);
+            for (int i = 0; i < 4; i++) {
+                bytes[size++] = (byte) (value >>> (8 * i));
+            }
+        }
+
+        void int64(long value) {
+            ensure(8);
+            for (int i = 0; i < 8; i++) {
+                bytes[size++] = (byte) (value >>> (8 * i));
+            }
+        }
+
+        void bytes(byte[] value, int offset, int length) {
+            ensure(length);
+            System.arraycopy(value, offset, bytes, size, length);
+            size += length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+}
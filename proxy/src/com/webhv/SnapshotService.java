@@ -0,0 +1,243 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import static com.webhv.ProxyServer.SAFE_CLOSE_CODE;
+import static com.webhv.ProxyServer.awaitClose;
+import static com.webhv.ProxyServer.encodeClose;
+import static com.webhv.ProxyServer.sendFrame;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Keeps hierarchies saved in the viewer in a {@link SnapshotArchive}, and serves the archive
+ * over plain HTTP so that a single snapshot can be loaded from it with Range requests.
+ *
+ * {@code webhv:snapshot:save:<size>:<title>} adds a snapshot: the proxy answers SEND, the client
+ * sends the zip file which it would otherwise save, and the proxy answers OKAY followed by the
+ * index of the snapshot, or FAIL followed by a message. {@code webhv:snapshot:list} answers OKAY
+ * followed by a line for each snapshot, oldest first, with its time in milliseconds and title
+ * separated by a space. {@code webhv:snapshot:open} answers {@code OKAY<size> /snapshots/<token>},
+ * and the archive as it was then can be fetched from that path for as long as the websocket stays
+ * open, as for {@link PullService}.
+ *
+ * Once the archive grows over its maximum size it is rebuilt with only the newest snapshots, the
+ * ones which fit in three quarters of it, so that it isn't rebuilt on every save. Archives which
+ * were replaced stay open until nothing serves them any more.
+ */
+class SnapshotService {
+
+    static final String SERVICE = "webhv:snapshot:";
+    static final String PATH = "/snapshots/";
+
+    static final long DEFAULT_MAX_ARCHIVE_SIZE = 256L << 20;
+
+    private static final String SAVE = "save:";
+    private static final String LIST = "list";
+    private static final String OPEN = "open";
+    // Largest zip file, and largest total of the files in it
+    private static final int MAX_SIZE = 256 << 20;
+
+    private final ProxyServer proxy;
+    private final Path file;
+    private final long maxArchiveSize;
+    private final Map<String, SnapshotArchive.View> views = new ConcurrentHashMap<>();
+    // Opened on first use
+    private SnapshotArchive archive;
+    // Archives replaced when pruning, which views still read from. Guarded by this.
+    private final List<SnapshotArchive> retired = new ArrayList<>();
+
+    SnapshotService(ProxyServer proxy, Path file, long maxArchiveSize) {
+        this.proxy = proxy;
+        this.file = file;
+        this.maxArchiveSize = maxArchiveSize;
+    }
+
+    private synchronized SnapshotArchive archive() throws IOException {
+        if (archive == null) {
+            archive = SnapshotArchive.open(file);
+        }
+        return archive;
+    }
+
+    void serve(InputStream webIn, OutputStream webOut, ProxyServer.Handshake handshake) throws IOException {
+        String argument = handshake.request.command.substring(SERVICE.length());
+        if (argument.equals(OPEN)) {
+            open(webIn, webOut, handshake);
+            return;
+        }
+        String reply;
+        try {
+            reply = "OKAY" + (argument.equals(LIST) ? list() : save(webIn, webOut, handshake, argument));
+        } catch (IOException e) {
+            reply = "FAIL" + e.getMessage();
+        }
+        replyAndClose(webOut, reply);
+    }
+
+    private synchronized String list() throws IOException {
+        SnapshotArchive archive = archive();
+        StringBuilder list = new StringBuilder();
+        for (int i = 0; i < archive.size(); i++) {
+            list.append(archive.time(i)).append(' ').append(archive.title(i).replace('\n', ' ')).append('\n');
+        }
+        return list.toString();
+    }
+
+    private void open(InputStream webIn, OutputStream webOut, ProxyServer.Handshake handshake) throws IOException {
+        String token = UUID.randomUUID().toString();
+        SnapshotArchive.View view;
+        try {
+            view = openView(token);
+        } catch (IOException e) {
+            replyAndClose(webOut, "FAIL" + e.getMessage());
+            return;
+        }
+        try {
+            sendFrame(webOut, ("OKAY" + view.length() + " " + PATH + token).getBytes(StandardCharsets.UTF_8));
+            awaitClose(webIn, webOut, handshake.deflate);
+        } finally {
+            views.remove(token);
+            closeRetired();
+        }
+    }
+
+    /**
+     * Registers a view of the archive as it is now, which keeps it open if it is replaced
+     */
+    private synchronized SnapshotArchive.View openView(String token) throws IOException {
+        SnapshotArchive.View view = archive().view();
+        views.put(token, view);
+        return view;
+    }
+
+    private static void replyAndClose(OutputStream webOut, String reply) throws IOException {
+        sendFrame(webOut, reply.getBytes(StandardCharsets.UTF_8));
+        synchronized (webOut) {
+            webOut.write(encodeClose(SAFE_CLOSE_CODE, "Safe close"));
+            webOut.flush();
+        }
+    }
+
+    private int save(InputStream webIn, OutputStream webOut, ProxyServer.Handshake handshake, String argument)
+            throws IOException {
+        String[] parts = argument.startsWith(SAVE) ? argument.substring(SAVE.length()).split(":", 2) : new String[0];
+        int size;
+        try {
+            size = Integer.parseInt(parts[0]);
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            throw new IOException("Invalid snapshot request");
+        }
+        if (size < 0 || size > MAX_SIZE || parts.length < 2) {
+            throw new IOException("Invalid snapshot request");
+        }
+
+        sendFrame(webOut, "SEND".getBytes(StandardCharsets.UTF_8));
+        InputStream data = new ViewTreeService.ClientData(webIn, webOut, handshake.deflate, size);
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        ZipInputStream zip = new ZipInputStream(data);
+        ZipEntry entry;
+        int inflated = 0;
+        while ((entry = zip.getNextEntry()) != null) {
+            if (!entry.isDirectory()) {
+                // Entry sizes in the zip can't be trusted, only read one byte past the limit
+                byte[] content = zip.readNBytes(MAX_SIZE - inflated + 1);
+                inflated += content.length;
+                if (inflated > MAX_SIZE) {
+                    throw new IOException("Snapshot too large");
+                }
+                files.put(entry.getName(), content);
+            }
+        }
+        // Skip the central directory, which the entries were already read without
+        data.transferTo(OutputStream.nullOutputStream());
+
+        return add(parts[1], size, files);
+    }
+
+    private synchronized int add(String title, long receivedBytes, Map<String, byte[]> files) throws IOException {
+        SnapshotArchive archive = archive();
+        long before = archive.length();
+        int index = archive.add(title, System.currentTimeMillis(), files);
+        proxy.metrics.snapshotSaved(receivedBytes, archive.length() - before);
+        if (archive.length() > maxArchiveSize && archive.size() > 1) {
+            prune();
+            index = this.archive.size() - 1;
+        }
+        return index;
+    }
+
+    /**
+     * Replaces the archive with one of its newest snapshots. Snapshots don't all take the same
+     * room, the first of an archive takes the most, so fewer are dropped each time as long as
+     * the result is too large.
+     */
+    private void prune() throws IOException {
+        SnapshotArchive old = archive;
+        Path copy = file.resolveSibling(file.getFileName() + ".tmp");
+        int count = old.size();
+        int first = Math.max(1, count - (int) (count * (maxArchiveSize * 3 / 4) / old.length()));
+        while (true) {
+            Files.deleteIfExists(copy);
+            long length = old.copyTo(copy, Math.min(first, count - 1));
+            if (length <= maxArchiveSize * 3 / 4 || first >= count - 1) {
+                break;
+            }
+            first += Math.max(1, (count - first) / 4);
+        }
+        Files.move(copy, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        archive = SnapshotArchive.open(file);
+        proxy.metrics.snapshotsPruned(Math.min(first, count - 1));
+        retired.add(old);
+        closeRetired();
+    }
+
+    private synchronized void closeRetired() {
+        for (Iterator<SnapshotArchive> it = retired.iterator(); it.hasNext(); ) {
+            SnapshotArchive old = it.next();
+            if (views.values().stream().noneMatch(view -> view.archive == old)) {
+                old.close();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Answers a plain HTTP request for the archive
+     */
+    void serveHttp(HttpRequest http, OutputStream webOut) throws IOException {
+        SnapshotArchive.View view = views.get(http.target.substring(PATH.length()));
+        if (view == null) {
+            PullService.serveHttp(http, webOut, 0, null);
+            return;
+        }
+        proxy.metrics.snapshotServed(PullService.serveHttp(http, webOut, view.length(), view::writeTo));
+    }
+}
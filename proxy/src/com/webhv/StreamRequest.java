@@ -0,0 +1,105 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A request path of the form [device[;option=value...]/]command
+ */
+class StreamRequest {
+
+    static final String FRAME_INTERACTIVE = "interactive";
+    static final String FRAME_BULK = "bulk";
+    static final String FRAME_ACCESS_UNIT = "au";
+    static final String DROP_IDR = "idr";
+
+    private static final int MAX_FRAME_LIMIT = 1 << 20;
+    private static final int MAX_HOLD_LIMIT = 100;
+    private static final int MAX_QUEUE_LIMIT = 64 << 20;
+
+    /**
+     * Socket send buffer for streams with a queue. Kernel buffers grow to several megabytes on
+     * their own, which would hide a slow client from the queue, and its watermarks along with it.
+     */
+    static final int QUEUED_SEND_BUFFER = 64 << 10;
+
+    final String device;
+    final String command;
+    final Map<String, String> options = new HashMap<>();
+
+    /** Largest payload sent in a single websocket frame */
+    final int maxFrame;
+    /** How long a partial frame may wait for more adb data before it is sent */
+    final int holdMillis;
+
+    /** Adb output queued for a slow client before adb is paused, or 0 to write straight through */
+    final int highWater;
+    /** Queue size at which a paused adb stream is resumed */
+    final int lowWater;
+    /** Skip ahead to the next H.264 key frame instead of pausing adb */
+    final boolean dropToKeyFrame;
+    /** Send lag reports as JSON text frames while the client is behind */
+    final boolean reportLag;
+    /**
+     * Send every H.264 access unit as one message, sharing the adb stream with other clients of
+     * the same command on the device, see {@link VideoBroadcaster}
+     */
+    final boolean accessUnits;
+
+    StreamRequest(String request) {
+        int split = request.indexOf('/');
+        command = URLDecoder.decode(request.substring(split + 1), StandardCharsets.UTF_8);
+
+        if (split < 0) {
+            device = null;
+        } else {
+            String[] parts = request.substring(0, split).split(";");
+            device = parts.length == 0 || parts[0].isEmpty() ? null : parts[0];
+            for (int i = 1; i < parts.length; i++) {
+                int eq = parts[i].indexOf('=');
+                if (eq > 0) {
+                    options.put(parts[i].substring(0, eq),
+                            URLDecoder.decode(parts[i].substring(eq + 1), StandardCharsets.UTF_8));
+                } else if (!parts[i].isEmpty()) {
+                    options.put(parts[i], "");
+                }
+            }
+        }
+
+        // Bulk streams trade a little latency for far fewer and larger frames
+        boolean bulk = FRAME_BULK.equals(options.get("frame"));
+        maxFrame = Math.max(1, Math.min(MAX_FRAME_LIMIT, getInt("maxFrame", bulk ? 65536 : 16384)));
+        holdMillis = Math.max(0, Math.min(MAX_HOLD_LIMIT, getInt("holdMs", bulk ? 2 : 0)));
+
+        // Video needs a queue to skip frames from, other streams only get one when asked for
+        accessUnits = device != null && FRAME_ACCESS_UNIT.equals(options.get("frame"));
+        dropToKeyFrame = accessUnits || DROP_IDR.equals(options.get("drop"));
+        highWater = Math.max(0, Math.min(MAX_QUEUE_LIMIT, getInt("highWater", dropToKeyFrame ? 256 << 10 : 0)));
+        lowWater = Math.max(0, Math.min(highWater, getInt("lowWater", highWater / 4)));
+        reportLag = highWater > 0 && "true".equals(options.get("lag"));
+    }
+
+    int getInt(String option, int defaultValue) {
+        try {
+            return Integer.parseInt(options.get(option));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Numbers distinct strings in the order they are first seen. Hierarchies repeat the same class
+ * names, property keys and most values thousands of times, so nodes refer to them by index.
+ *
+ * Strings can be looked up by a range of characters, so that parsers don't need to create a
+ * string for every occurrence. Not thread safe.
+ */
+class StringTable {
+
+    private final List<String> strings = new ArrayList<>();
+    // Open addressing, index + 1 of the string or 0 for a free slot
+    private int[] slots = new int[256];
+
+    /**
+     * Returns the index of a string, adding it if it is new
+     */
+    int intern(String s) {
+        return intern(s, 0, s.length());
+    }
+
+    /**
+     * Returns the index of the characters from start to end, adding them if they are new
+     */
+    int intern(CharSequence s, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + s.charAt(i);
+        }
+        int mask = slots.length - 1;
+        for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+            int entry = slots[slot];
+            if (entry == 0) {
+                strings.add(s.subSequence(start, end).toString());
+                slots[slot] = strings.size();
+                if (strings.size() * 2 > slots.length) {
+                    grow();
+                }
+                return strings.size() - 1;
+            }
+            String candidate = strings.get(entry - 1);
+            if (candidate.length() == end - start && regionEquals(candidate, s, start)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    private static boolean regionEquals(String candidate, CharSequence s, int start) {
+        for (int i = 0; i < candidate.length(); i++) {
+            if (candidate.charAt(i) != s.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private void grow() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int i = 0; i < strings.size(); i++) {
+            int slot = mix(strings.get(i).hashCode()) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = i + 1;
+        }
+    }
+
+    String get(int index) {
+        return strings.get(index);
+    }
+
+    int size() {
+        return strings.size();
+    }
+
+    /**
+     * Returns the strings as UTF-8, one after the other, with the end offset of each in
+     * {@code ends}, which must have room for {@link #size()} entries
+     */
+    byte[] toUtf8(int[] ends) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(strings.size() * 8);
+        for (int i = 0; i < strings.size(); i++) {
+            out.writeBytes(strings.get(i).getBytes(StandardCharsets.UTF_8));
+            ends[i] = out.size();
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,192 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import static com.webhv.ProxyServer.closeSafely;
+import static com.webhv.ProxyServer.prefixLength;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps a few connections to the adb server per device which already selected the device with
+ * host:transport, so that opening a stream only costs the service request and its OKAY.
+ *
+ * Connections are made in the background: for every device in the tracked list, or for a device
+ * the first time a stream is opened for it, and again after each one is taken. They are closed
+ * when the device leaves the list or goes offline. A pooled connection can still turn out to be
+ * dead, for example after the adb server restarted, in which case the caller drops the device's
+ * connections and connects the usual way.
+ */
+class TransportPool implements DeviceTracker.Listener {
+
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+
+    private final String adbHost;
+    private final int adbPort;
+    private final int size;
+    private final ExecutorService refiller = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "transport-pool");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Guarded by this. Idle connections of every pooled device, in blocking mode.
+    private final Map<String, Deque<SocketChannel>> idle = new HashMap<>();
+    // Guarded by this. Devices with a refill queued or running.
+    private final Set<String> refilling = new HashSet<>();
+
+    TransportPool(String adbHost, int adbPort, int size) {
+        this.adbHost = adbHost;
+        this.adbPort = adbPort;
+        this.size = size;
+    }
+
+    /**
+     * Returns a connection which already selected the device, in blocking mode, or null if there
+     * is none ready. Never blocks, so it can be called from an event loop.
+     */
+    SocketChannel take(String device) {
+        SocketChannel channel;
+        synchronized (this) {
+            channel = idle.computeIfAbsent(device, d -> new ArrayDeque<>()).pollFirst();
+        }
+        refill(device);
+        return channel;
+    }
+
+    /**
+     * Closes the idle connections of a device and stops pooling it until it is taken from or
+     * listed again
+     */
+    void remove(String device) {
+        Deque<SocketChannel> channels;
+        synchronized (this) {
+            channels = idle.remove(device);
+        }
+        if (channels != null) {
+            channels.forEach(ProxyServer::closeSafely);
+        }
+    }
+
+    @Override
+    public void onDevicesChanged(Map<String, String> before, Map<String, String> after) {
+        List<String> stale = new ArrayList<>();
+        synchronized (this) {
+            for (String device : idle.keySet()) {
+                if (!isOnline(after.get(device))) {
+                    stale.add(device);
+                }
+            }
+        }
+        // A device which reappears may have done so after the adb server restarted
+        for (Map.Entry<String, String> entry : after.entrySet()) {
+            if (isOnline(entry.getValue()) && !isOnline(before.get(entry.getKey()))) {
+                stale.add(entry.getKey());
+            }
+        }
+        stale.forEach(this::remove);
+
+        for (Map.Entry<String, String> entry : after.entrySet()) {
+            if (isOnline(entry.getValue())) {
+                synchronized (this) {
+                    idle.computeIfAbsent(entry.getKey(), d -> new ArrayDeque<>());
+                }
+                refill(entry.getKey());
+            }
+        }
+    }
+
+    private static boolean isOnline(String line) {
+        if (line == null) {
+            return false;
+        }
+        String[] parts = line.trim().split("\\s+");
+        return parts.length > 1 && parts[1].equals("device");
+    }
+
+    private void refill(String device) {
+        synchronized (this) {
+            if (!refilling.add(device)) {
+                return;
+            }
+        }
+        refiller.execute(() -> {
+            try {
+                while (needsConnection(device)) {
+                    SocketChannel channel;
+                    try {
+                        channel = connect(device);
+                    } catch (IOException e) {
+                        // Device or adb server not available, try again on the next take
+                        return;
+                    }
+                    if (!offer(device, channel)) {
+                        closeSafely(channel);
+                    }
+                }
+            } finally {
+                synchronized (this) {
+                    refilling.remove(device);
+                }
+            }
+        });
+    }
+
+    private synchronized boolean needsConnection(String device) {
+        Deque<SocketChannel> channels = idle.get(device);
+        return channels != null && channels.size() < size;
+    }
+
+    private synchronized boolean offer(String device, SocketChannel channel) {
+        Deque<SocketChannel> channels = idle.get(device);
+        if (channels == null || channels.size() >= size) {
+            return false;
+        }
+        channels.addLast(channel);
+        return true;
+    }
+
+    private SocketChannel connect(String device) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            Socket socket = channel.socket();
+            socket.connect(new InetSocketAddress(adbHost, adbPort), CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(CONNECT_TIMEOUT_MS);
+            socket.getOutputStream().write(prefixLength("host:transport:" + device).getBytes(StandardCharsets.UTF_8));
+            if (!new String(socket.getInputStream().readNBytes(4)).equalsIgnoreCase("OKAY")) {
+                throw new IOException("ADB connection error");
+            }
+            socket.setSoTimeout(0);
+            return channel;
+        } catch (IOException e) {
+            closeSafely(channel);
+            throw e;
+        }
+    }
+}
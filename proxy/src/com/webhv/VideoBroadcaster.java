@@ -0,0 +1,536 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import static com.webhv.ProxyServer.SAFE_CLOSE_CODE;
+import static com.webhv.ProxyServer.STANDARD_ERROR_CODE;
+import static com.webhv.ProxyServer.closeSafely;
+import static com.webhv.ProxyServer.encodeClose;
+import static com.webhv.ProxyServer.sendFrame;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shares one adb stream between all clients which request the same command on the same device
+ * with {@code frame=au}, so that a second viewer of a device doesn't start a second encoder on it.
+ *
+ * The H.264 Annex B output is split into access units, and every client gets each access unit as
+ * a single websocket message, which is how jmuxer expects to be fed. The latest SPS and PPS and
+ * the access units since the last IDR are kept, so that a client which joins later can start
+ * decoding right away instead of waiting for the next key frame. Every client has its own queue:
+ * one which falls behind by more than its high watermark skips ahead to the next key frame
+ * without holding up the others. Data sent by clients, like input events for DisplayServer, is
+ * written to the shared stream.
+ */
+class VideoBroadcaster {
+
+    private static final int NAL_SLICE = 1;
+    private static final int NAL_IDR = 5;
+    private static final int NAL_SEI = 6;
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+    private static final int NAL_AUD = 9;
+
+    private static final int READ_SIZE = 65536;
+    // Encoders write whole access units, so one is complete once adb pauses for this long
+    private static final int IDLE_FLUSH_MILLIS = 2;
+    // Output without access unit boundaries, like an error message, is sent in pieces of this size
+    private static final int MAX_UNIT_SIZE = 4 << 20;
+    // Access units since the last IDR kept for late joiners, beyond which they wait for the next one
+    private static final long MAX_CACHED_BYTES = 8 << 20;
+
+    // Lag reports are sent while the client is behind by more than this, and once after
+    private static final long LAG_REPORT_THRESHOLD_NANOS = 100_000_000L;
+    private static final long LAG_REPORT_INTERVAL_NANOS = 500_000_000L;
+
+    private final ProxyServer proxy;
+    // Guarded by itself
+    private final Map<String, Broadcast> broadcasts = new HashMap<>();
+
+    VideoBroadcaster(ProxyServer proxy) {
+        this.proxy = proxy;
+    }
+
+    void serve(InputStream webIn, OutputStream webOut, ProxyServer.Handshake handshake) throws IOException {
+        StreamRequest request = handshake.request;
+        String key = request.device + "\n" + request.command;
+        Viewer viewer = new Viewer(request, webOut);
+        Broadcast broadcast;
+        try {
+            while (true) {
+                synchronized (broadcasts) {
+                    broadcast = broadcasts.computeIfAbsent(key, k -> new Broadcast(k, request));
+                }
+                // Retry if it ended between looking it up and joining it
+                if (broadcast.join(viewer)) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            webOut.write(encodeClose(STANDARD_ERROR_CODE, e.getMessage()));
+            webOut.flush();
+            return;
+        }
+
+        viewer.traffic = proxy.metrics.openStream(request);
+        Broadcast joined = broadcast;
+        proxy.relayThreads.newThread(() -> {
+            ProxyServer.WebToAdbMapper mapper = new ProxyServer.WebToAdbMapper(webOut, handshake.deflate,
+                    viewer.traffic);
+            try {
+                while (true) {
+                    mapper.map(webIn, joined.input);
+                }
+            } catch (IOException e) {
+                viewer.close();
+            }
+        }).start();
+
+        String reason = Metrics.CLOSE_ADB;
+        try {
+            viewer.send();
+            synchronized (webOut) {
+                webOut.write(encodeClose(SAFE_CLOSE_CODE, "Safe close"));
+                webOut.flush();
+            }
+        } catch (IOException e) {
+            reason = Metrics.CLOSE_CLIENT;
+        } finally {
+            joined.leave(viewer);
+            proxy.metrics.closeStream(reason);
+        }
+    }
+
+    /**
+     * The shared adb stream, running until it ends or its last viewer leaves
+     */
+    private class Broadcast implements Runnable {
+
+        private final String key;
+        private final StreamRequest request;
+
+        private Socket adbSocket;
+        private InputStream adbIn;
+        private OutputStream adbOut;
+
+        /** Client data for adb, written by every viewer */
+        final OutputStream input = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                synchronized (this) {
+                    adbOut.write(b, off, len);
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                synchronized (this) {
+                    adbOut.flush();
+                }
+            }
+        };
+
+        // Guarded by this
+        private final List<Viewer> viewers = new ArrayList<>();
+        private boolean started = false;
+        private boolean ended = false;
+        // Parameter sets and anything else before the picture of the last unit with an SPS
+        private byte[] config;
+        // Units since the last IDR, starting with it, or empty if there is none or too many
+        private final List<byte[]> cached = new ArrayList<>();
+        private long cachedBytes = 0;
+
+        Broadcast(String key, StreamRequest request) {
+            this.key = key;
+            this.request = request;
+        }
+
+        /**
+         * Adds a viewer, opening the adb stream for the first one. Returns false if the broadcast
+         * already ended.
+         */
+        synchronized boolean join(Viewer viewer) throws IOException {
+            if (ended) {
+                return false;
+            }
+            if (!started) {
+                try {
+                    adbSocket = proxy.openAdbStream(request);
+                    adbIn = adbSocket.getInputStream();
+                    adbOut = adbSocket.getOutputStream();
+                    SessionRecorder.Stream recording = proxy.record(request);
+                    if (recording != null) {
+                        adbIn = recording.tee(adbIn);
+                        adbOut = recording.tee(adbOut);
+                    }
+                } catch (IOException e) {
+                    end();
+                    throw e;
+                }
+                started = true;
+                proxy.relayThreads.newThread(this).start();
+            }
+            long nanos = System.nanoTime();
+            for (int i = 0; i < cached.size(); i++) {
+                viewer.offer(cached.get(i), i == 0, nanos);
+            }
+            viewers.add(viewer);
+            return true;
+        }
+
+        /**
+         * Removes a viewer, and stops the adb stream once there are none left
+         */
+        void leave(Viewer viewer) {
+            synchronized (this) {
+                viewers.remove(viewer);
+                if (!viewers.isEmpty()) {
+                    return;
+                }
+            }
+            end();
+        }
+
+        private void end() {
+            List<Viewer> remaining;
+            synchronized (this) {
+                ended = true;
+                remaining = new ArrayList<>(viewers);
+                cached.clear();
+            }
+            synchronized (broadcasts) {
+                broadcasts.remove(key, this);
+            }
+            if (adbSocket != null) {
+                closeSafely(adbSocket);
+            }
+            remaining.forEach(Viewer::finish);
+        }
+
+        @Override
+        public void run() {
+            AccessUnitSplitter splitter = new AccessUnitSplitter(this::publish);
+            byte[] buffer = new byte[READ_SIZE];
+            try {
+                while (true) {
+                    int count;
+                    try {
+                        count = adbIn.read(buffer);
+                    } catch (SocketTimeoutException e) {
+                        splitter.flushPicture();
+                        adbSocket.setSoTimeout(0);
+                        continue;
+                    }
+                    if (count == -1) {
+                        break;
+                    }
+                    splitter.write(buffer, count);
+                    adbSocket.setSoTimeout(splitter.hasPicture() ? IDLE_FLUSH_MILLIS : 0);
+                }
+                splitter.flush();
+            } catch (IOException e) {
+                // Closed by the last viewer leaving
+            }
+            end();
+        }
+
+        private synchronized void publish(byte[] unit, int pictureStart, boolean idr) {
+            if (pictureStart > 0) {
+                config = Arrays.copyOf(unit, pictureStart);
+            }
+            if (idr) {
+                if (pictureStart == 0 && config != null) {
+                    // Decoders need the parameter sets, which encoders usually only send once
+                    byte[] withConfig = Arrays.copyOf(config, config.length + unit.length);
+                    System.arraycopy(unit, 0, withConfig, config.length, unit.length);
+                    unit = withConfig;
+                }
+                cached.clear();
+                cachedBytes = 0;
+            }
+            if (idr || !cached.isEmpty()) {
+                cached.add(unit);
+                cachedBytes += unit.length;
+                if (cachedBytes > MAX_CACHED_BYTES) {
+                    cached.clear();
+                }
+            }
+            long nanos = System.nanoTime();
+            for (Viewer viewer : viewers) {
+                viewer.offer(unit, idr, nanos);
+            }
+        }
+    }
+
+    /**
+     * A client of a broadcast, with its own queue of access units
+     */
+    private static class Viewer {
+
+        private final OutputStream webOut;
+        private final int highWater;
+        private final int lowWater;
+        private final boolean reportLag;
+        // Set once joined
+        volatile Metrics.Traffic traffic;
+
+        // Guarded by this
+        private final ArrayDeque<Unit> units = new ArrayDeque<>();
+        private long queued = 0;
+        private long dropped = 0;
+        private boolean skipping = false;
+        private boolean finished = false;
+        private boolean closed = false;
+
+        private long lagNanos = 0;
+        private long lastReportNanos = System.nanoTime() - LAG_REPORT_INTERVAL_NANOS;
+        private long lastReportedLagNanos = 0;
+
+        Viewer(StreamRequest request, OutputStream webOut) {
+            this.webOut = webOut;
+            highWater = request.highWater;
+            lowWater = request.lowWater;
+            reportLag = request.reportLag;
+        }
+
+        /**
+         * Queues an access unit, unless the viewer is behind and skipping to a key frame
+         */
+        synchronized void offer(byte[] data, boolean key, long nanos) {
+            if (closed || finished) {
+                return;
+            }
+            if (!skipping && queued + data.length > highWater) {
+                skipping = true;
+            }
+            if (skipping) {
+                if (!key || queued > lowWater) {
+                    dropped += data.length;
+                    Metrics.Traffic counters = traffic;
+                    if (counters != null) {
+                        counters.droppedBytes.add(data.length);
+                    }
+                    return;
+                }
+                skipping = false;
+            }
+            units.add(new Unit(data, nanos));
+            queued += data.length;
+            notifyAll();
+        }
+
+        /**
+         * Sends access units until the broadcast ends, or throws once the client is gone
+         */
+        void send() throws IOException {
+            while (true) {
+                Unit unit = take();
+                if (unit == null) {
+                    return;
+                }
+                sendFrame(webOut, unit.data);
+                traffic.adbToWebBytes.add(unit.data.length);
+                traffic.adbToWebFrames.increment();
+                String report = reportLag ? lagReport() : null;
+                if (report != null) {
+                    sendFrame(webOut, WebSocketDecoder.OP_TEXT, report.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+
+        private synchronized Unit take() throws IOException {
+            while (units.isEmpty()) {
+                if (closed) {
+                    throw new IOException("Client closed");
+                }
+                if (finished) {
+                    return null;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            Unit unit = units.poll();
+            queued -= unit.data.length;
+            lagNanos = System.nanoTime() - unit.nanos;
+            return unit;
+        }
+
+        /**
+         * Marks the end of the broadcast. Queued units are still sent.
+         */
+        synchronized void finish() {
+            finished = true;
+            notifyAll();
+        }
+
+        synchronized void close() {
+            closed = true;
+            units.clear();
+            notifyAll();
+        }
+
+        /**
+         * Returns a JSON lag report in the format of {@link RelayQueue#lagReport}, or null if none
+         * is due
+         */
+        private synchronized String lagReport() {
+            long now = System.nanoTime();
+            if (now - lastReportNanos < LAG_REPORT_INTERVAL_NANOS
+                    || (lagNanos < LAG_REPORT_THRESHOLD_NANOS && lastReportedLagNanos < LAG_REPORT_THRESHOLD_NANOS)) {
+                return null;
+            }
+            lastReportNanos = now;
+            lastReportedLagNanos = lagNanos;
+            return "{\"lagMs\":" + lagNanos / 1_000_000L + ",\"queued\":" + queued + ",\"dropped\":" + dropped + "}";
+        }
+    }
+
+    private static class Unit {
+
+        final byte[] data;
+        // When the unit was read from adb
+        final long nanos;
+
+        Unit(byte[] data, long nanos) {
+            this.data = data;
+            this.nanos = nanos;
+        }
+    }
+
+    /**
+     * Receives access units from an {@link AccessUnitSplitter}
+     */
+    interface UnitSink {
+
+        /**
+         * @param pictureStart offset of the first slice if the unit holds an SPS, otherwise 0
+         * @param idr whether the unit holds an IDR slice
+         */
+        void onUnit(byte[] unit, int pictureStart, boolean idr);
+    }
+
+    /**
+     * Splits an H.264 Annex B stream into access units. A unit ends where a NAL unit which can
+     * only start one, or the first slice of the next picture, follows a slice.
+     */
+    static class AccessUnitSplitter {
+
+        private final UnitSink sink;
+
+        private byte[] pending = new byte[READ_SIZE];
+        private int length = 0;
+        // Where to continue looking for start codes
+        private int scanned = 0;
+        // Offset of the first slice in the pending unit, or -1 before one was found
+        private int picture = -1;
+        private boolean sps = false;
+        private boolean idr = false;
+
+        AccessUnitSplitter(UnitSink sink) {
+            this.sink = sink;
+        }
+
+        /**
+         * Returns true if the pending unit holds a picture, which may be all of it
+         */
+        boolean hasPicture() {
+            return picture >= 0;
+        }
+
+        void write(byte[] data, int count) {
+            if (length + count > pending.length) {
+                pending = Arrays.copyOf(pending, Math.max(pending.length * 2, length + count));
+            }
+            System.arraycopy(data, 0, pending, length, count);
+            length += count;
+
+            // A start code is 00 00 01, and the NAL header after it is needed along with the
+            // first byte of a slice header
+            int i = Math.max(scanned, 2);
+            for (; i + 2 < length; i++) {
+                if (pending[i] != 1 || pending[i - 1] != 0 || pending[i - 2] != 0) {
+                    continue;
+                }
+                int nal = i + 1;
+                int type = pending[nal] & 0x1f;
+                int codeStart = i > 2 && pending[i - 3] == 0 ? i - 3 : i - 2;
+                boolean slice = type == NAL_SLICE || type == NAL_IDR;
+                if (picture >= 0 && (type == NAL_AUD || type == NAL_SEI || type == NAL_SPS || type == NAL_PPS
+                        || (type >= 14 && type <= 18) || (slice && (pending[nal + 1] & 0x80) != 0))) {
+                    emit(codeStart);
+                    i -= codeStart;
+                    codeStart = 0;
+                }
+                if (slice && picture < 0) {
+                    picture = codeStart;
+                }
+                sps |= type == NAL_SPS;
+                idr |= type == NAL_IDR;
+            }
+            scanned = i;
+            if (length >= MAX_UNIT_SIZE) {
+                flush();
+            }
+        }
+
+        /**
+         * Sends the pending unit if it holds a picture, for when no more data is on the way
+         */
+        void flushPicture() {
+            if (picture >= 0) {
+                flush();
+            }
+        }
+
+        /**
+         * Sends whatever is pending
+         */
+        void flush() {
+            if (length > 0) {
+                emit(length);
+            }
+        }
+
+        private void emit(int end) {
+            sink.onUnit(Arrays.copyOf(pending, end), sps ? Math.max(0, picture) : 0, idr);
+            System.arraycopy(pending, end, pending, 0, length - end);
+            length -= end;
+            scanned = Math.max(0, scanned - end);
+            picture = -1;
+            sps = false;
+            idr = false;
+        }
+    }
+}
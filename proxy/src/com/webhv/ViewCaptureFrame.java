@@ -0,0 +1,290 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import java.util.Arrays;
+
+/**
+ * One frame of a ViewCapture recording stored by column: the choreographer timestamp and the
+ * nodes of the view tree in pre-order, each with the fields of a ViewNode message. Class names
+ * and ids are indexes into a {@link StringTable} shared by all frames of a capture.
+ *
+ * Frames are refilled by {@link ViewCaptureReader} for every frame it reads, so they hold the
+ * largest tree seen so far rather than the whole recording.
+ */
+class ViewCaptureFrame {
+
+    static final int NO_PARENT = -1;
+    /** Index of a missing id, or of a class name outside the class table */
+    static final int NO_STRING = -1;
+
+    static final int WILL_NOT_DRAW = 1;
+    static final int CLIP_CHILDREN = 2;
+
+    long timestamp;
+
+    private int nodeCount = 0;
+    private int[] parents = new int[64];
+    private int[] classNames = new int[64];
+    private int[] hashcodes = new int[64];
+    private int[] ids = new int[64];
+    private int[] lefts = new int[64];
+    private int[] tops = new int[64];
+    private int[] widths = new int[64];
+    private int[] heights = new int[64];
+    private int[] scrollXs = new int[64];
+    private int[] scrollYs = new int[64];
+    private int[] visibilities = new int[64];
+    private float[] translationXs = new float[64];
+    private float[] translationYs = new float[64];
+    private float[] scaleXs = new float[64];
+    private float[] scaleYs = new float[64];
+    private float[] alphas = new float[64];
+    private float[] elevations = new float[64];
+    private byte[] flags = new byte[64];
+
+    void clear() {
+        timestamp = 0;
+        nodeCount = 0;
+    }
+
+    /**
+     * Adds a node with default fields after all nodes added so far, which must keep them in
+     * pre-order. Returns the index of the node.
+     */
+    int addNode(int parent) {
+        if (nodeCount == parents.length) {
+            grow(nodeCount * 2);
+        }
+        int node = nodeCount++;
+        parents[node] = parent;
+        classNames[node] = NO_STRING;
+        hashcodes[node] = 0;
+        ids[node] = NO_STRING;
+        lefts[node] = 0;
+        tops[node] = 0;
+        widths[node] = 0;
+        heights[node] = 0;
+        scrollXs[node] = 0;
+        scrollYs[node] = 0;
+        visibilities[node] = 0;
+        translationXs[node] = 0;
+        translationYs[node] = 0;
+        scaleXs[node] = 1;
+        scaleYs[node] = 1;
+        alphas[node] = 1;
+        elevations[node] = 0;
+        flags[node] = 0;
+        return node;
+    }
+
+    /**
+     * Adds a copy of a node of another frame, like {@link #addNode}
+     */
+    int copyNode(ViewCaptureFrame from, int source, int parent) {
+        int node = addNode(parent);
+        classNames[node] = from.classNames[source];
+        hashcodes[node] = from.hashcodes[source];
+        ids[node] = from.ids[source];
+        lefts[node] = from.lefts[source];
+        tops[node] = from.tops[source];
+        widths[node] = from.widths[source];
+        heights[node] = from.heights[source];
+        scrollXs[node] = from.scrollXs[source];
+        scrollYs[node] = from.scrollYs[source];
+        visibilities[node] = from.visibilities[source];
+        translationXs[node] = from.translationXs[source];
+        translationYs[node] = from.translationYs[source];
+        scaleXs[node] = from.scaleXs[source];
+        scaleYs[node] = from.scaleYs[source];
+        alphas[node] = from.alphas[source];
+        elevations[node] = from.elevations[source];
+        flags[node] = from.flags[source];
+        return node;
+    }
+
+    private void grow(int capacity) {
+        parents = Arrays.copyOf(parents, capacity);
+        classNames = Arrays.copyOf(classNames, capacity);
+        hashcodes = Arrays.copyOf(hashcodes, capacity);
+        ids = Arrays.copyOf(ids, capacity);
+        lefts = Arrays.copyOf(lefts, capacity);
+        tops = Arrays.copyOf(tops, capacity);
+        widths = Arrays.copyOf(widths, capacity);
+        heights = Arrays.copyOf(heights, capacity);
+        scrollXs = Arrays.copyOf(scrollXs, capacity);
+        scrollYs = Arrays.copyOf(scrollYs, capacity);
+        visibilities = Arrays.copyOf(visibilities, capacity);
+        translationXs = Arrays.copyOf(translationXs, capacity);
+        translationYs = Arrays.copyOf(translationYs, capacity);
+        scaleXs = Arrays.copyOf(scaleXs, capacity);
+        scaleYs = Arrays.copyOf(scaleYs, capacity);
+        alphas = Arrays.copyOf(alphas, capacity);
+        elevations = Arrays.copyOf(elevations, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+    }
+
+    int size() {
+        return nodeCount;
+    }
+
+    int parent(int node) {
+        return parents[node];
+    }
+
+    int className(int node) {
+        return classNames[node];
+    }
+
+    int hashcode(int node) {
+        return hashcodes[node];
+    }
+
+    int id(int node) {
+        return ids[node];
+    }
+
+    int left(int node) {
+        return lefts[node];
+    }
+
+    int top(int node) {
+        return tops[node];
+    }
+
+    int width(int node) {
+        return widths[node];
+    }
+
+    int height(int node) {
+        return heights[node];
+    }
+
+    int scrollX(int node) {
+        return scrollXs[node];
+    }
+
+    int scrollY(int node) {
+        return scrollYs[node];
+    }
+
+    int visibility(int node) {
+        return visibilities[node];
+    }
+
+    float translationX(int node) {
+        return translationXs[node];
+    }
+
+    float translationY(int node) {
+        return translationYs[node];
+    }
+
+    float scaleX(int node) {
+        return scaleXs[node];
+    }
+
+    float scaleY(int node) {
+        return scaleYs[node];
+    }
+
+    float alpha(int node) {
+        return alphas[node];
+    }
+
+    float elevation(int node) {
+        return elevations[node];
+    }
+
+    /**
+     * Returns the boolean fields as a combination of {@link #WILL_NOT_DRAW} and
+     * {@link #CLIP_CHILDREN}
+     */
+    int flags(int node) {
+        return flags[node];
+    }
+
+    void setClassName(int node, int value) {
+        classNames[node] = value;
+    }
+
+    void setHashcode(int node, int value) {
+        hashcodes[node] = value;
+    }
+
+    void setId(int node, int value) {
+        ids[node] = value;
+    }
+
+    void setLeft(int node, int value) {
+        lefts[node] = value;
+    }
+
+    void setTop(int node, int value) {
+        tops[node] = value;
+    }
+
+    void setWidth(int node, int value) {
+        widths[node] = value;
+    }
+
+    void setHeight(int node, int value) {
+        heights[node] = value;
+    }
+
+    void setScrollX(int node, int value) {
+        scrollXs[node] = value;
+    }
+
+    void setScrollY(int node, int value) {
+        scrollYs[node] = value;
+    }
+
+    void setVisibility(int node, int value) {
+        visibilities[node] = value;
+    }
+
+    void setTranslationX(int node, float value) {
+        translationXs[node] = value;
+    }
+
+    void setTranslationY(int node, float value) {
+        translationYs[node] = value;
+    }
+
+    void setScaleX(int node, float value) {
+        scaleXs[node] = value;
+    }
+
+    void setScaleY(int node, float value) {
+        scaleYs[node] = value;
+    }
+
+    void setAlpha(int node, float value) {
+        alphas[node] = value;
+    }
+
+    void setElevation(int node, float value) {
+        elevations[node] = value;
+    }
+
+    void setFlags(int node, int value) {
+        flags[node] = (byte) value;
+    }
+
+    void setFlag(int node, int flag, boolean value) {
+        flags[node] = (byte) (value ? flags[node] | flag : flags[node] & ~flag);
+    }
+}
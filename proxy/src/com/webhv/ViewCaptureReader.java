@@ -0,0 +1,449 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads ViewCapture exports, as described by protos/view_capture_multi_window.proto and
+ * protos/view_capture_magic_number.proto, one frame at a time.
+ *
+ * The export is a single ExportedData message whose class name table comes after all of the
+ * windows, so it is read from a buffer, normally a memory mapped file, instead of from a stream.
+ * Opening a capture only steps over the length prefixed windows and frames to find the class
+ * names, package and window titles. Frames are then decoded one after the other into the same
+ * {@link ViewCaptureFrame}, so that the heap holds the largest frame rather than the recording.
+ * Class names and ids are interned into a {@link StringTable} which the caller can share
+ * between captures.
+ */
+class ViewCaptureReader {
+
+    // Mapped buffers are indexed by int
+    private static final long MAX_SIZE = Integer.MAX_VALUE;
+    private static final int MAX_DEPTH = 1000;
+
+    private static final int VARINT = 0;
+    private static final int FIXED64 = 1;
+    private static final int LENGTH_DELIMITED = 2;
+    private static final int FIXED32 = 5;
+
+    // The magic_number format starts with this constant in a fixed64 field 1, which moves the
+    // other fields of ExportedData up by one
+    private static final long MAGIC_NUMBER = 0x6865827365906578L;
+    private static final int MAGIC_TAG = 1 << 3 | FIXED64;
+
+    private static final int WINDOW_FRAME = 1 << 3 | LENGTH_DELIMITED;
+    private static final int WINDOW_TITLE = 2 << 3 | LENGTH_DELIMITED;
+
+    private static final int FRAME_TIMESTAMP = 1 << 3 | VARINT;
+    private static final int FRAME_NODE = 2 << 3 | LENGTH_DELIMITED;
+
+    private static final int NODE_CLASSNAME_INDEX = 1 << 3 | VARINT;
+    private static final int NODE_HASHCODE = 2 << 3 | VARINT;
+    private static final int NODE_CHILDREN = 3 << 3 | LENGTH_DELIMITED;
+    private static final int NODE_ID = 4 << 3 | LENGTH_DELIMITED;
+    private static final int NODE_LEFT = 5 << 3 | VARINT;
+    private static final int NODE_TOP = 6 << 3 | VARINT;
+    private static final int NODE_WIDTH = 7 << 3 | VARINT;
+    private static final int NODE_HEIGHT = 8 << 3 | VARINT;
+    private static final int NODE_SCROLL_X = 9 << 3 | VARINT;
+    private static final int NODE_SCROLL_Y = 10 << 3 | VARINT;
+    private static final int NODE_TRANSLATION_X = 11 << 3 | FIXED32;
+    private static final int NODE_TRANSLATION_Y = 12 << 3 | FIXED32;
+    private static final int NODE_SCALE_X = 13 << 3 | FIXED32;
+    private static final int NODE_SCALE_Y = 14 << 3 | FIXED32;
+    private static final int NODE_ALPHA = 15 << 3 | FIXED32;
+    private static final int NODE_WILL_NOT_DRAW = 16 << 3 | VARINT;
+    private static final int NODE_CLIP_CHILDREN = 17 << 3 | VARINT;
+    private static final int NODE_VISIBILITY = 18 << 3 | VARINT;
+    private static final int NODE_ELEVATION = 19 << 3 | FIXED32;
+
+    interface Listener {
+
+        /**
+         * Called for every frame in order. The frame is refilled afterwards, so anything which
+         * is needed later has to be copied out.
+         */
+        void onFrame(int window, int index, ViewCaptureFrame frame) throws IOException;
+    }
+
+    private final ByteBuffer data;
+    private final StringTable strings;
+    private final List<Window> windows = new ArrayList<>();
+    // Index in strings of each entry of the class name table
+    private int[] classNames = new int[64];
+    private int classNameCount = 0;
+    private String packageName = "";
+
+    private static class Window {
+        final int start;
+        final int end;
+        String title = "";
+        int frameCount = 0;
+
+        Window(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Opens a capture which starts at the position of the buffer and ends at its limit
+     */
+    ViewCaptureReader(ByteBuffer data, StringTable strings) throws IOException {
+        this.data = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+        this.strings = strings;
+
+        Cursor in = new Cursor(this.data, 0);
+        int windowTag = 1 << 3 | LENGTH_DELIMITED;
+        int packageTag = 2 << 3 | LENGTH_DELIMITED;
+        int classNameTag = 3 << 3 | LENGTH_DELIMITED;
+        if (in.end >= 9 && in.data.get(0) == MAGIC_TAG && in.data.getLong(1) == MAGIC_NUMBER) {
+            windowTag += 1 << 3;
+            packageTag += 1 << 3;
+            classNameTag += 1 << 3;
+        }
+
+        while (in.pos < in.end) {
+            int tag = in.tag(in.end);
+            if (tag == windowTag) {
+                int end = in.end(in.end);
+                scanWindow(in, end);
+            } else if (tag == packageTag) {
+                packageName = in.string(in.end(in.end));
+            } else if (tag == classNameTag) {
+                int end = in.end(in.end);
+                if (classNameCount == classNames.length) {
+                    classNames = Arrays.copyOf(classNames, classNameCount * 2);
+                }
+                classNames[classNameCount++] = in.intern(end, strings);
+            } else {
+                in.skip(tag, in.end);
+            }
+        }
+    }
+
+    /**
+     * Records the window and steps over its frames without decoding them
+     */
+    private void scanWindow(Cursor in, int end) throws IOException {
+        Window window = new Window(in.pos, end);
+        while (in.pos < end) {
+            int tag = in.tag(end);
+            if (tag == WINDOW_FRAME) {
+                in.pos = in.end(end);
+                window.frameCount++;
+            } else if (tag == WINDOW_TITLE) {
+                window.title = in.string(in.end(end));
+            } else {
+                in.skip(tag, end);
+            }
+        }
+        windows.add(window);
+    }
+
+    /**
+     * Opens a capture file by mapping it into memory
+     */
+    static ViewCaptureReader open(Path file, StringTable strings) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > MAX_SIZE) {
+                throw new IOException("File too large");
+            }
+            // The mapping stays valid after the channel is closed
+            return new ViewCaptureReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), strings);
+        }
+    }
+
+    /**
+     * Opens a capture from a stream by copying it into a memory mapped temp file first. The file
+     * is deleted right away while the mapping stays readable.
+     */
+    static ViewCaptureReader open(InputStream in, long expectedSize, StringTable strings) throws IOException {
+        try (PullService.Spool spool = new PullService.Spool(expectedSize)) {
+            in.transferTo(spool);
+            spool.finish();
+            return new ViewCaptureReader(spool.content(), strings);
+        }
+    }
+
+    String packageName() {
+        return packageName;
+    }
+
+    int windowCount() {
+        return windows.size();
+    }
+
+    String title(int window) {
+        return windows.get(window).title;
+    }
+
+    int frameCount(int window) {
+        return windows.get(window).frameCount;
+    }
+
+    /**
+     * Returns the number of entries in the class name table of the capture
+     */
+    int classNameCount() {
+        return classNameCount;
+    }
+
+    /**
+     * Decodes the frames of all windows in order
+     */
+    void read(Listener listener) throws IOException {
+        for (int i = 0; i < windows.size(); i++) {
+            readWindow(i, listener);
+        }
+    }
+
+    /**
+     * Decodes the frames of one window in order
+     */
+    void readWindow(int index, Listener listener) throws IOException {
+        Window window = windows.get(index);
+        Cursor in = new Cursor(data, window.start);
+        ViewCaptureFrame frame = new ViewCaptureFrame();
+        int frameIndex = 0;
+        while (in.pos < window.end) {
+            int tag = in.tag(window.end);
+            if (tag != WINDOW_FRAME) {
+                in.skip(tag, window.end);
+                continue;
+            }
+            int end = in.end(window.end);
+            readFrame(in, end, frame);
+            listener.onFrame(index, frameIndex++, frame);
+        }
+    }
+
+    private void readFrame(Cursor in, int end, ViewCaptureFrame frame) throws IOException {
+        frame.clear();
+        while (in.pos < end) {
+            int tag = in.tag(end);
+            if (tag == FRAME_TIMESTAMP) {
+                frame.timestamp = in.varint(end);
+            } else if (tag == FRAME_NODE) {
+                readNode(in, in.end(end), ViewCaptureFrame.NO_PARENT, 0, frame);
+            } else {
+                in.skip(tag, end);
+            }
+        }
+    }
+
+    /**
+     * Adds a node and then its children, which keeps the frame in pre-order even though the
+     * fields of a node mostly come after its children
+     */
+    private void readNode(Cursor in, int end, int parent, int depth, ViewCaptureFrame frame) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new IOException("Invalid data");
+        }
+        int node = frame.addNode(parent);
+        // An absent classname_index is 0
+        frame.setClassName(node, className(0));
+        while (in.pos < end) {
+            int tag = in.tag(end);
+            switch (tag) {
+                case NODE_CLASSNAME_INDEX:
+                    frame.setClassName(node, className(in.varint(end)));
+                    break;
+                case NODE_HASHCODE:
+                    frame.setHashcode(node, (int) in.varint(end));
+                    break;
+                case NODE_CHILDREN:
+                    readNode(in, in.end(end), node, depth + 1, frame);
+                    break;
+                case NODE_ID:
+                    frame.setId(node, in.intern(in.end(end), strings));
+                    break;
+                case NODE_LEFT:
+                    frame.setLeft(node, (int) in.varint(end));
+                    break;
+                case NODE_TOP:
+                    frame.setTop(node, (int) in.varint(end));
+                    break;
+                case NODE_WIDTH:
+                    frame.setWidth(node, (int) in.varint(end));
+                    break;
+                case NODE_HEIGHT:
+                    frame.setHeight(node, (int) in.varint(end));
+                    break;
+                case NODE_SCROLL_X:
+                    frame.setScrollX(node, (int) in.varint(end));
+                    break;
+                case NODE_SCROLL_Y:
+                    frame.setScrollY(node, (int) in.varint(end));
+                    break;
+                case NODE_TRANSLATION_X:
+                    frame.setTranslationX(node, in.float32(end));
+                    break;
+                case NODE_TRANSLATION_Y:
+                    frame.setTranslationY(node, in.float32(end));
+                    break;
+                case NODE_SCALE_X:
+                    frame.setScaleX(node, in.float32(end));
+                    break;
+                case NODE_SCALE_Y:
+                    frame.setScaleY(node, in.float32(end));
+                    break;
+                case NODE_ALPHA:
+                    frame.setAlpha(node, in.float32(end));
+                    break;
+                case NODE_WILL_NOT_DRAW:
+                    frame.setFlag(node, ViewCaptureFrame.WILL_NOT_DRAW, in.varint(end) != 0);
+                    break;
+                case NODE_CLIP_CHILDREN:
+                    frame.setFlag(node, ViewCaptureFrame.CLIP_CHILDREN, in.varint(end) != 0);
+                    break;
+                case NODE_VISIBILITY:
+                    frame.setVisibility(node, (int) in.varint(end));
+                    break;
+                case NODE_ELEVATION:
+                    frame.setElevation(node, in.float32(end));
+                    break;
+                default:
+                    in.skip(tag, end);
+            }
+        }
+    }
+
+    private int className(long index) {
+        return index >= 0 && index < classNameCount ? classNames[(int) index] : ViewCaptureFrame.NO_STRING;
+    }
+
+    /**
+     * Position in the capture while decoding it. Every read is checked against the end of the
+     * enclosing message.
+     */
+    private static class Cursor {
+
+        final ByteBuffer data;
+        final int end;
+        int pos;
+        private final StringBuilder chars = new StringBuilder();
+
+        Cursor(ByteBuffer data, int pos) {
+            this.data = data;
+            this.end = data.limit();
+            this.pos = pos;
+        }
+
+        /**
+         * Reads the tag of the next field of a message which ends at {@code limit}
+         */
+        int tag(int limit) throws IOException {
+            long tag = varint(limit);
+            if (tag >>> 32 != 0 || tag >>> 3 == 0) {
+                throw new IOException("Invalid data");
+            }
+            return (int) tag;
+        }
+
+        long varint(int limit) throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64 && pos < limit; shift += 7) {
+                byte b = data.get(pos++);
+                result |= (long) (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return result;
+                }
+            }
+            throw new IOException("Invalid data");
+        }
+
+        float float32(int limit) throws IOException {
+            if (limit - pos < 4) {
+                throw new IOException("Invalid data");
+            }
+            float value = data.getFloat(pos);
+            pos += 4;
+            return value;
+        }
+
+        /**
+         * Reads the length of a length delimited field, returns where the field ends
+         */
+        int end(int limit) throws IOException {
+            long length = varint(limit);
+            // Ten byte varints decode to negative lengths
+            if (length < 0 || length > limit - pos) {
+                throw new IOException("Invalid data");
+            }
+            return pos + (int) length;
+        }
+
+        String string(int end) {
+            byte[] bytes = new byte[end - pos];
+            data.duplicate().position(pos).get(bytes);
+            pos = end;
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Interns a string field, without creating a string if it is ASCII and already known
+         */
+        int intern(int end, StringTable strings) {
+            chars.setLength(0);
+            for (int i = pos; i < end; i++) {
+                byte b = data.get(i);
+                if (b < 0) {
+                    return strings.intern(string(end));
+                }
+                chars.append((char) b);
+            }
+            pos = end;
+            return strings.intern(chars, 0, chars.length());
+        }
+
+        void skip(int tag, int limit) throws IOException {
+            switch (tag & 7) {
+                case VARINT:
+                    varint(limit);
+                    break;
+                case FIXED64:
+                    if (limit - pos < 8) {
+                        throw new IOException("Invalid data");
+                    }
+                    pos += 8;
+                    break;
+                case LENGTH_DELIMITED:
+                    pos = end(limit);
+                    break;
+                case FIXED32:
+                    if (limit - pos < 4) {
+                        throw new IOException("Invalid data");
+                    }
+                    pos += 4;
+                    break;
+                default:
+                    // Groups are not used by any of the messages
+                    throw new IOException("Invalid data");
+            }
+        }
+    }
+}
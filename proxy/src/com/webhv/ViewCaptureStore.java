@@ -0,0 +1,757 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ViewCapture recording stored for seeking, the way video is: every few frames a keyframe with
+ * the whole tree, and in between only what changed since the frame before. Any frame is rebuilt
+ * from its keyframe and at most {@code keyframeInterval - 1} deltas, found through an index of
+ * the frame timestamps, instead of by decoding the recording from the start.
+ *
+ * A delta first lists the nodes of the new frame in pre-order, as runs copied from the previous
+ * frame and as new nodes. Nodes are matched by hash code, and a run only continues while the
+ * parents match too, so moved views become new nodes. Then come the fields which changed in
+ * copied nodes. A keyframe is a delta from an empty frame.
+ *
+ * The file is little-endian:
+ * <pre>
+ * "VCST" int32 version
+ * frame records
+ * footer:
+ *   int32 string count S, int32[S] end offset of each string, UTF-8 bytes
+ *   int32 package, int32 window count
+ *   for each window: int32 title, int32 frame count F, int64[F] timestamp, int64[F + 1] record offset
+ * int64 footer offset, int32 keyframe interval, int32 version, "VCST"
+ * </pre>
+ * Records use varints: the node count, then operations of {@code count << 1 | kind} each. A copy
+ * is followed by where it starts in the previous frame, relative to where the last copy ended,
+ * as a zigzag varint. A new node is followed by the distance to its parent and its fields. The
+ * changed fields follow as the distance from the last changed node, ending with 0, and the
+ * fields. Fields are a bit mask and a value per bit: string index + 1 for the class name and
+ * id, the zigzag change for other integers, and raw bits for floats.
+ */
+class ViewCaptureStore {
+
+    static final int VERSION = 1;
+    static final int DEFAULT_KEYFRAME_INTERVAL = 32;
+
+    // Mapped buffers are indexed by int
+    private static final long MAX_SIZE = Integer.MAX_VALUE;
+    private static final byte[] MAGIC = "VCST".getBytes(StandardCharsets.US_ASCII);
+    private static final int TRAILER_SIZE = 8 + 4 + 4 + 4;
+
+    private static final int OP_COPY = 0;
+    private static final int OP_NEW = 1;
+
+    // Fields, in the order of the bits in a mask
+    private static final int CLASS_NAME = 0;
+    private static final int ID = 1;
+    private static final int HASHCODE = 2;
+    private static final int LEFT = 3;
+    private static final int TOP = 4;
+    private static final int WIDTH = 5;
+    private static final int HEIGHT = 6;
+    private static final int SCROLL_X = 7;
+    private static final int SCROLL_Y = 8;
+    private static final int VISIBILITY = 9;
+    private static final int FLAGS = 10;
+    private static final int TRANSLATION_X = 11;
+    private static final int TRANSLATION_Y = 12;
+    private static final int SCALE_X = 13;
+    private static final int SCALE_Y = 14;
+    private static final int ALPHA = 15;
+    private static final int ELEVATION = 16;
+    private static final int FIELD_COUNT = 17;
+
+    // A node with every field at its default, which new nodes are encoded against
+    private static final ViewCaptureFrame DEFAULTS = new ViewCaptureFrame();
+    static {
+        DEFAULTS.addNode(ViewCaptureFrame.NO_PARENT);
+    }
+
+    private final ByteBuffer data;
+    private final int keyframeInterval;
+    private final String packageName;
+    // Index in the shared table of every string of the store
+    private final int[] strings;
+    private final String[] titles;
+    private final int[] frameCounts;
+    // Where the timestamps and record offsets of each window are
+    private final int[] timestampTables;
+    private final int[] offsetTables;
+
+    // The frame which was read last, which the next one is built from if it can be
+    private ViewCaptureFrame current = new ViewCaptureFrame();
+    private ViewCaptureFrame next = new ViewCaptureFrame();
+    private int currentWindow = -1;
+    private int currentIndex = -1;
+    private int[] oldToNew = new int[64];
+
+    private ViewCaptureStore(ByteBuffer data, StringTable sharedStrings) throws IOException {
+        this.data = data.order(ByteOrder.LITTLE_ENDIAN);
+        int size = data.limit();
+        if (size < MAGIC.length + 4 + TRAILER_SIZE || !hasMagic(0) || !hasMagic(size - MAGIC.length)
+                || data.getInt(MAGIC.length) != VERSION || data.getInt(size - MAGIC.length - 4) != VERSION) {
+            throw new IOException("Not a capture store");
+        }
+        keyframeInterval = data.getInt(size - TRAILER_SIZE + 8);
+        long footer = data.getLong(size - TRAILER_SIZE);
+        if (keyframeInterval < 1 || footer < MAGIC.length + 4 || footer > size - TRAILER_SIZE) {
+            throw new IOException("Invalid data");
+        }
+
+        try {
+            ByteBuffer in = data.duplicate().order(ByteOrder.LITTLE_ENDIAN).position((int) footer);
+            int stringCount = in.getInt();
+            int[] ends = new int[stringCount];
+            for (int i = 0; i < stringCount; i++) {
+                ends[i] = in.getInt();
+            }
+            strings = new int[stringCount];
+            byte[] text = new byte[stringCount == 0 ? 0 : ends[stringCount - 1]];
+            in.get(text);
+            for (int i = 0, start = 0; i < stringCount; start = ends[i++]) {
+                strings[i] = sharedStrings.intern(new String(text, start, ends[i] - start, StandardCharsets.UTF_8));
+            }
+
+            packageName = sharedStrings.get(string(in.getInt()));
+            int windowCount = in.getInt();
+            titles = new String[windowCount];
+            frameCounts = new int[windowCount];
+            timestampTables = new int[windowCount];
+            offsetTables = new int[windowCount];
+            for (int i = 0; i < windowCount; i++) {
+                titles[i] = sharedStrings.get(string(in.getInt()));
+                frameCounts[i] = in.getInt();
+                if (frameCounts[i] < 0 || frameCounts[i] > in.remaining() / 16) {
+                    throw new IOException("Invalid data");
+                }
+                timestampTables[i] = in.position();
+                offsetTables[i] = in.position() + 8 * frameCounts[i];
+                in.position(offsetTables[i] + 8 * (frameCounts[i] + 1));
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new IOException("Invalid data", e);
+        }
+    }
+
+    private boolean hasMagic(int position) {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data.get(position + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the index in the shared table of a string of the store, or
+     * {@link ViewCaptureFrame#NO_STRING}
+     */
+    private int string(int index) throws IOException {
+        if (index == ViewCaptureFrame.NO_STRING) {
+            return ViewCaptureFrame.NO_STRING;
+        }
+        if (index < 0 || index >= strings.length) {
+            throw new IOException("Invalid data");
+        }
+        return strings[index];
+    }
+
+    /**
+     * Opens a store by mapping it into memory. Its strings are added to the given table, which
+     * the frames refer to.
+     */
+    static ViewCaptureStore open(Path file, StringTable strings) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > MAX_SIZE) {
+                throw new IOException("File too large");
+            }
+            return new ViewCaptureStore(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), strings);
+        }
+    }
+
+    /**
+     * Writes all frames of a capture to a new store
+     */
+    static void write(ViewCaptureReader capture, StringTable strings, Path file, int keyframeInterval)
+            throws IOException {
+        try (Writer writer = new Writer(Files.newOutputStream(file), strings, keyframeInterval)) {
+            for (int i = 0; i < capture.windowCount(); i++) {
+                writer.startWindow(capture.title(i));
+                capture.readWindow(i, writer);
+            }
+            writer.finish(capture.packageName());
+        }
+    }
+
+    String packageName() {
+        return packageName;
+    }
+
+    int keyframeInterval() {
+        return keyframeInterval;
+    }
+
+    int windowCount() {
+        return titles.length;
+    }
+
+    String title(int window) {
+        return titles[window];
+    }
+
+    int frameCount(int window) {
+        return frameCounts[window];
+    }
+
+    long timestamp(int window, int index) {
+        return data.getLong(timestampTables[window] + 8 * index);
+    }
+
+    /**
+     * Returns the last frame shown at the given time, which is the first frame for times before
+     * the recording started, or -1 if the window has no frames. Timestamps only go up within a
+     * window.
+     */
+    int frameAt(int window, long timestamp) {
+        if (frameCounts[window] == 0) {
+            return -1;
+        }
+        int low = 0;
+        int high = frameCounts[window] - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (timestamp(window, middle) <= timestamp) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Rebuilds a frame, from the frame read before if it comes later between the same
+     * keyframes, or else from its keyframe. The frame is reused by the next call.
+     */
+    ViewCaptureFrame readFrame(int window, int index) throws IOException {
+        if (index < 0 || index >= frameCounts[window]) {
+            throw new IndexOutOfBoundsException("No frame " + index);
+        }
+        int keyframe = index - index % keyframeInterval;
+        if (window != currentWindow || currentIndex > index || currentIndex < keyframe) {
+            currentWindow = -1;
+            current.clear();
+            currentIndex = keyframe - 1;
+        }
+        while (currentIndex < index) {
+            int frame = currentIndex + 1;
+            if (frame == keyframe) {
+                current.clear();
+            }
+            try {
+                applyRecord(record(window, frame), current, next);
+            } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                currentWindow = -1;
+                throw new IOException("Invalid data", e);
+            }
+            next.timestamp = timestamp(window, frame);
+            ViewCaptureFrame swap = current;
+            current = next;
+            next = swap;
+            currentWindow = window;
+            currentIndex = frame;
+        }
+        return current;
+    }
+
+    private ByteBuffer record(int window, int index) throws IOException {
+        long start = data.getLong(offsetTables[window] + 8 * index);
+        long end = data.getLong(offsetTables[window] + 8 * (index + 1));
+        if (start < MAGIC.length + 4 || end < start || end > data.limit()) {
+            throw new IOException("Invalid data");
+        }
+        return data.duplicate().position((int) start).limit((int) end).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void applyRecord(ByteBuffer in, ViewCaptureFrame from, ViewCaptureFrame to) throws IOException {
+        to.clear();
+        if (oldToNew.length < from.size()) {
+            oldToNew = new int[Math.max(from.size(), oldToNew.length * 2)];
+        }
+        int count = (int) readVarint(in);
+        int copyEnd = 0;
+        while (to.size() < count) {
+            int header = (int) readVarint(in);
+            int run = header >>> 1;
+            if (run == 0 || run > count - to.size()) {
+                throw new IOException("Invalid data");
+            }
+            if ((header & 1) == OP_COPY) {
+                int start = copyEnd + zigzagDecode(readVarint(in));
+                if (start < 0 || start + run > from.size()) {
+                    throw new IOException("Invalid data");
+                }
+                for (int source = start; source < start + run; source++) {
+                    int parent = from.parent(source);
+                    if (parent != ViewCaptureFrame.NO_PARENT) {
+                        // Copied earlier by this record
+                        parent = oldToNew[parent];
+                        if (parent < 0 || parent >= to.size()) {
+                            throw new IOException("Invalid data");
+                        }
+                    }
+                    oldToNew[source] = to.copyNode(from, source, parent);
+                }
+                copyEnd = start + run;
+            } else {
+                for (int i = 0; i < run; i++) {
+                    int node = to.size();
+                    int parent = node - (int) readVarint(in);
+                    if (parent < ViewCaptureFrame.NO_PARENT || parent >= node) {
+                        throw new IOException("Invalid data");
+                    }
+                    to.addNode(parent);
+                    readFields(in, to, node);
+                }
+            }
+        }
+        for (int node = -1; ; ) {
+            long gap = readVarint(in);
+            if (gap == 0) {
+                break;
+            }
+            node += (int) gap;
+            if (node >= to.size()) {
+                throw new IOException("Invalid data");
+            }
+            readFields(in, to, node);
+        }
+    }
+
+    private void readFields(ByteBuffer in, ViewCaptureFrame frame, int node) throws IOException {
+        int mask = (int) readVarint(in);
+        for (int field = 0; field < FIELD_COUNT; field++) {
+            if ((mask & 1 << field) == 0) {
+                continue;
+            }
+            if (field == CLASS_NAME || field == ID) {
+                setIntField(frame, field, node, string((int) readVarint(in) - 1));
+            } else if (field < TRANSLATION_X) {
+                setIntField(frame, field, node, intField(frame, field, node) + zigzagDecode(readVarint(in)));
+            } else {
+                setFloatField(frame, field, node, Float.intBitsToFloat(in.getInt()));
+            }
+        }
+    }
+
+    private static long readVarint(ByteBuffer in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            result |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw new IOException("Invalid data");
+    }
+
+    private static int zigzagDecode(long value) {
+        return (int) (value >>> 1) ^ -(int) (value & 1);
+    }
+
+    private static long zigzagEncode(int value) {
+        return (value << 1 ^ value >> 31) & 0xffffffffL;
+    }
+
+    private static int intField(ViewCaptureFrame frame, int field, int node) {
+        switch (field) {
+            case CLASS_NAME: return frame.className(node);
+            case ID: return frame.id(node);
+            case HASHCODE: return frame.hashcode(node);
+            case LEFT: return frame.left(node);
+            case TOP: return frame.top(node);
+            case WIDTH: return frame.width(node);
+            case HEIGHT: return frame.height(node);
+            case SCROLL_X: return frame.scrollX(node);
+            case SCROLL_Y: return frame.scrollY(node);
+            case VISIBILITY: return frame.visibility(node);
+            case FLAGS: return frame.flags(node);
+            default: throw new IllegalArgumentException("Not an int field: " + field);
+        }
+    }
+
+    private static void setIntField(ViewCaptureFrame frame, int field, int node, int value) {
+        switch (field) {
+            case CLASS_NAME: frame.setClassName(node, value); break;
+            case ID: frame.setId(node, value); break;
+            case HASHCODE: frame.setHashcode(node, value); break;
+            case LEFT: frame.setLeft(node, value); break;
+            case TOP: frame.setTop(node, value); break;
+            case WIDTH: frame.setWidth(node, value); break;
+            case HEIGHT: frame.setHeight(node, value); break;
+            case SCROLL_X: frame.setScrollX(node, value); break;
+            case SCROLL_Y: frame.setScrollY(node, value); break;
+            case VISIBILITY: frame.setVisibility(node, value); break;
+            case FLAGS: frame.setFlags(node, value); break;
+            default: throw new IllegalArgumentException("Not an int field: " + field);
+        }
+    }
+
+    private static float floatField(ViewCaptureFrame frame, int field, int node) {
+        switch (field) {
+            case TRANSLATION_X: return frame.translationX(node);
+            case TRANSLATION_Y: return frame.translationY(node);
+            case SCALE_X: return frame.scaleX(node);
+            case SCALE_Y: return frame.scaleY(node);
+            case ALPHA: return frame.alpha(node);
+            case ELEVATION: return frame.elevation(node);
+            default: throw new IllegalArgumentException("Not a float field: " + field);
+        }
+    }
+
+    private static void setFloatField(ViewCaptureFrame frame, int field, int node, float value) {
+        switch (field) {
+            case TRANSLATION_X: frame.setTranslationX(node, value); break;
+            case TRANSLATION_Y: frame.setTranslationY(node, value); break;
+            case SCALE_X: frame.setScaleX(node, value); break;
+            case SCALE_Y: frame.setScaleY(node, value); break;
+            case ALPHA: frame.setAlpha(node, value); break;
+            case ELEVATION: frame.setElevation(node, value); break;
+            default: throw new IllegalArgumentException("Not a float field: " + field);
+        }
+    }
+
+    /**
+     * Encodes frames as they are read from a capture, keeping only the previous frame and the
+     * index in memory
+     */
+    private static class Writer implements ViewCaptureReader.Listener, AutoCloseable {
+
+        private final OutputStream out;
+        private final StringTable sharedStrings;
+        private final int keyframeInterval;
+        private final StringTable strings = new StringTable();
+        // Index in strings + 1 of strings of the shared table, 0 if not added yet
+        private int[] toStore = new int[256];
+
+        private final Encoder record = new Encoder();
+        private long position;
+        private final Encoder footer = new Encoder();
+        private int windowCount = 0;
+        private int title;
+        private int frameCount;
+        private long[] timestamps = new long[1024];
+        private long[] offsets = new long[1025];
+
+        private final ViewCaptureFrame empty = new ViewCaptureFrame();
+        private ViewCaptureFrame previous = new ViewCaptureFrame();
+        private ViewCaptureFrame spare = new ViewCaptureFrame();
+        private int[] oldToNew = new int[64];
+        private int[] source = new int[64];
+        private final Map<Integer, Integer> byHashcode = new HashMap<>();
+
+        Writer(OutputStream out, StringTable sharedStrings, int keyframeInterval) throws IOException {
+            this.out = new BufferedOutputStream(out, 1 << 16);
+            this.sharedStrings = sharedStrings;
+            this.keyframeInterval = keyframeInterval;
+            Encoder header = new Encoder();
+            header.bytes(MAGIC);
+            header.int32(VERSION);
+            header.writeTo(this.out);
+            position = header.size();
+        }
+
+        void startWindow(String title) throws IOException {
+            endWindow();
+            this.title = strings.intern(title);
+            frameCount = 0;
+            windowCount++;
+        }
+
+        private void endWindow() {
+            if (windowCount == 0) {
+                return;
+            }
+            offsets[frameCount] = position;
+            footer.int32(title);
+            footer.int32(frameCount);
+            for (int i = 0; i < frameCount; i++) {
+                footer.int64(timestamps[i]);
+            }
+            for (int i = 0; i <= frameCount; i++) {
+                footer.int64(offsets[i]);
+            }
+        }
+
+        @Override
+        public void onFrame(int window, int index, ViewCaptureFrame frame) throws IOException {
+            if (frameCount + 1 == offsets.length) {
+                timestamps = Arrays.copyOf(timestamps, frameCount * 2);
+                offsets = Arrays.copyOf(offsets, frameCount * 2 + 1);
+            }
+            timestamps[frameCount] = frame.timestamp;
+            offsets[frameCount] = position;
+
+            record.reset();
+            encodeDelta(frameCount % keyframeInterval == 0 ? empty : previous, frame);
+            record.writeTo(out);
+            position += record.size();
+            frameCount++;
+
+            // The reader refills its frame, so keep a copy to encode the next one against
+            spare.clear();
+            for (int node = 0; node < frame.size(); node++) {
+                spare.copyNode(frame, node, frame.parent(node));
+            }
+            ViewCaptureFrame swap = previous;
+            previous = spare;
+            spare = swap;
+        }
+
+        private void encodeDelta(ViewCaptureFrame from, ViewCaptureFrame to) {
+            if (oldToNew.length < from.size()) {
+                oldToNew = new int[Math.max(from.size(), oldToNew.length * 2)];
+            }
+            if (source.length < to.size()) {
+                source = new int[Math.max(to.size(), source.length * 2)];
+            }
+            Arrays.fill(oldToNew, 0, from.size(), -1);
+            byHashcode.clear();
+
+            int count = to.size();
+            record.varint(count);
+            int copyEnd = 0;
+            int node = 0;
+            while (node < count) {
+                int match = match(from, to, node, copyEnd);
+                if (match < 0) {
+                    int start = node;
+                    do {
+                        source[node++] = -1;
+                    } while (node < count && match(from, to, node, copyEnd) < 0);
+                    record.varint((node - start) << 1 | OP_NEW);
+                    for (int i = start; i < node; i++) {
+                        record.varint(i - to.parent(i));
+                        encodeFields(DEFAULTS, 0, to, i);
+                    }
+                } else {
+                    int start = node;
+                    do {
+                        oldToNew[match] = node;
+                        source[node++] = match++;
+                    } while (node < count && match < from.size() && from.hashcode(match) == to.hashcode(node)
+                            && oldToNew[match] < 0 && parentMatches(from, to, node, match));
+                    record.varint((node - start) << 1 | OP_COPY);
+                    record.varint(zigzagEncode(source[start] - copyEnd));
+                    copyEnd = match;
+                }
+            }
+
+            int lastChanged = -1;
+            for (node = 0; node < count; node++) {
+                if (source[node] >= 0 && mask(from, source[node], to, node) != 0) {
+                    record.varint(node - lastChanged);
+                    encodeFields(from, source[node], to, node);
+                    lastChanged = node;
+                }
+            }
+            record.varint(0);
+        }
+
+        /**
+         * Returns the node of the previous frame which a node of the new one can be copied from,
+         * trying the one after the last copy first, or -1 if there is none
+         */
+        private int match(ViewCaptureFrame from, ViewCaptureFrame to, int node, int next) {
+            int hashcode = to.hashcode(node);
+            int candidate = -1;
+            if (next < from.size() && from.hashcode(next) == hashcode) {
+                candidate = next;
+            } else if (from.size() > 0) {
+                if (byHashcode.isEmpty()) {
+                    for (int i = from.size() - 1; i >= 0; i--) {
+                        byHashcode.put(from.hashcode(i), i);
+                    }
+                }
+                candidate = byHashcode.getOrDefault(hashcode, -1);
+            }
+            return candidate >= 0 && oldToNew[candidate] < 0 && parentMatches(from, to, node, candidate)
+                    ? candidate : -1;
+        }
+
+        /**
+         * Returns true if the parent of the candidate was copied to the parent of the node, so
+         * that the copy needs no parent of its own
+         */
+        private boolean parentMatches(ViewCaptureFrame from, ViewCaptureFrame to, int node, int candidate) {
+            int parent = from.parent(candidate);
+            if (parent == ViewCaptureFrame.NO_PARENT) {
+                return to.parent(node) == ViewCaptureFrame.NO_PARENT;
+            }
+            return oldToNew[parent] >= 0 && to.parent(node) == oldToNew[parent];
+        }
+
+        private static int mask(ViewCaptureFrame from, int fromNode, ViewCaptureFrame to, int toNode) {
+            int mask = 0;
+            for (int field = 0; field < TRANSLATION_X; field++) {
+                if (intField(from, field, fromNode) != intField(to, field, toNode)) {
+                    mask |= 1 << field;
+                }
+            }
+            for (int field = TRANSLATION_X; field < FIELD_COUNT; field++) {
+                if (Float.floatToRawIntBits(floatField(from, field, fromNode))
+                        != Float.floatToRawIntBits(floatField(to, field, toNode))) {
+                    mask |= 1 << field;
+                }
+            }
+            return mask;
+        }
+
+        private void encodeFields(ViewCaptureFrame from, int fromNode, ViewCaptureFrame to, int toNode) {
+            int mask = mask(from, fromNode, to, toNode);
+            record.varint(mask);
+            for (int field = 0; field < FIELD_COUNT; field++) {
+                if ((mask & 1 << field) == 0) {
+                    continue;
+                }
+                if (field == CLASS_NAME || field == ID) {
+                    record.varint(storeString(intField(to, field, toNode)) + 1);
+                } else if (field < TRANSLATION_X) {
+                    record.varint(zigzagEncode(intField(to, field, toNode) - intField(from, field, fromNode)));
+                } else {
+                    record.int32(Float.floatToRawIntBits(floatField(to, field, toNode)));
+                }
+            }
+        }
+
+        private int storeString(int shared) {
+            if (shared == ViewCaptureFrame.NO_STRING) {
+                return ViewCaptureFrame.NO_STRING;
+            }
+            if (shared >= toStore.length) {
+                toStore = Arrays.copyOf(toStore, Math.max(shared + 1, toStore.length * 2));
+            }
+            if (toStore[shared] == 0) {
+                toStore[shared] = strings.intern(sharedStrings.get(shared)) + 1;
+            }
+            return toStore[shared] - 1;
+        }
+
+        void finish(String packageName) throws IOException {
+            endWindow();
+            int packageIndex = strings.intern(packageName);
+            Encoder tables = footer;
+            Encoder head = new Encoder();
+            int[] ends = new int[strings.size()];
+            byte[] text = strings.toUtf8(ends);
+            head.int32(ends.length);
+            for (int end : ends) {
+                head.int32(end);
+            }
+            head.bytes(text);
+            head.int32(packageIndex);
+            head.int32(windowCount);
+            long footerOffset = position;
+            head.writeTo(out);
+            tables.writeTo(out);
+
+            Encoder trailer = new Encoder();
+            trailer.int64(footerOffset);
+            trailer.int32(keyframeInterval);
+            trailer.int32(VERSION);
+            trailer.bytes(MAGIC);
+            trailer.writeTo(out);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Growable little-endian buffer for records and tables
+     */
+    private static class Encoder {
+
+        private byte[] bytes = new byte[1024];
+        private int size = 0;
+
+        int size() {
+            return size;
+        }
+
+        void reset() {
+            size = 0;
+        }
+
+        private void ensure(int count) {
+            if (bytes.length - size < count) {
+                bytes = Arrays.copyOf(bytes, Math.max(size + count, bytes.length * 2));
+            }
+        }
+
+        void varint(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                bytes[size++] = (byte) (value | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void int32(int value) {
+            ensure(4);
+            for (int i = 0; i < 4; i++) {
+                bytes[size++] = (byte) (value >>> (8 * i));
+            }
+        }
+
+        void int64(long value) {
+            ensure(8);
+            for (int i = 0; i < 8; i++) {
+                bytes[size++] = (byte) (value >>> (8 * i));
+            }
+        }
+
+        void bytes(byte[] value) {
+            ensure(value.length);
+            System.arraycopy(value, 0, bytes, size, value.length);
+            size += value.length;
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            out.write(bytes, 0, size);
+        }
+    }
+}
@@ -0,0 +1,258 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A view hierarchy stored by column: nodes in pre-order, each with its parent, its name and a
+ * range of properties, and all strings in a {@link StringTable}. Properties of a node are sorted
+ * the way the viewer lists them, by type and then name.
+ *
+ * The encoded form, which js/ddmlib/parser_columnar.js reads, is little-endian:
+ * <pre>
+ * "TREE"
+ * int32 version, format, node count N, property count P, string count S, string bytes B
+ * int32 window x, window y, or {@link #NO_POSITION}
+ * int32[N] parent, -1 for the root
+ * int32[N] name
+ * int32[N + 1] first property
+ * int32[P] key
+ * int32[P] value
+ * int32[S] end offset of each string
+ * byte[B] strings as UTF-8
+ * </pre>
+ */
+class ViewTree {
+
+    static final int VERSION = 1;
+    /** Dumped by the view server as text, with property names like mLeft and getWidth() */
+    static final int FORMAT_V1 = 1;
+    /** Dumped by the hierarchy encoder, with property names like layout:left */
+    static final int FORMAT_V2 = 2;
+
+    static final int NO_PARENT = -1;
+    static final int NO_POSITION = Integer.MIN_VALUE;
+
+    private static final byte[] MAGIC = "TREE".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_SIZE = 4 + 8 * 4;
+
+    final int format;
+    final StringTable strings;
+
+    private int nodeCount = 0;
+    private int[] parents = new int[64];
+    private int[] names = new int[64];
+    private int[] propertyStarts = new int[65];
+
+    private int propertyCount = 0;
+    private int[] keys = new int[1024];
+    private int[] values = new int[1024];
+
+    private int windowX = NO_POSITION;
+    private int windowY = NO_POSITION;
+
+    ViewTree(int format, StringTable strings) {
+        this.format = format;
+        this.strings = strings;
+    }
+
+    /**
+     * Adds a node after all nodes added so far, which must keep them in pre-order. Returns the
+     * index of the node.
+     */
+    int addNode(int parent, int name) {
+        if (nodeCount == parents.length) {
+            parents = Arrays.copyOf(parents, nodeCount * 2);
+            names = Arrays.copyOf(names, nodeCount * 2);
+            propertyStarts = Arrays.copyOf(propertyStarts, nodeCount * 2 + 1);
+        }
+        parents[nodeCount] = parent;
+        names[nodeCount] = name;
+        propertyStarts[nodeCount] = propertyCount;
+        propertyStarts[nodeCount + 1] = propertyCount;
+        return nodeCount++;
+    }
+
+    /**
+     * Adds a property to the last node
+     */
+    void addProperty(int key, int value) {
+        if (propertyCount == keys.length) {
+            keys = Arrays.copyOf(keys, propertyCount * 2);
+            values = Arrays.copyOf(values, propertyCount * 2);
+        }
+        keys[propertyCount] = key;
+        values[propertyCount] = value;
+        propertyCount++;
+        propertyStarts[nodeCount] = propertyCount;
+    }
+
+    void setWindowPosition(int x, int y) {
+        windowX = x;
+        windowY = y;
+    }
+
+    int size() {
+        return nodeCount;
+    }
+
+    int parent(int node) {
+        return parents[node];
+    }
+
+    int name(int node) {
+        return names[node];
+    }
+
+    int propertyStart(int node) {
+        return propertyStarts[node];
+    }
+
+    int propertyEnd(int node) {
+        return propertyStarts[node + 1];
+    }
+
+    int key(int property) {
+        return keys[property];
+    }
+
+    int value(int property) {
+        return values[property];
+    }
+
+    int propertyCount() {
+        return propertyCount;
+    }
+
+    int windowX() {
+        return windowX;
+    }
+
+    int windowY() {
+        return windowY;
+    }
+
+    /**
+     * Sorts the properties of every node by type and name, like ViewNode.sortProperties
+     */
+    void sortProperties() {
+        int[] ranks = keyRanks();
+        long[] order = new long[16];
+        int[] sortedKeys = new int[16];
+        int[] sortedValues = new int[16];
+        for (int node = 0; node < nodeCount; node++) {
+            int start = propertyStarts[node];
+            int count = propertyStarts[node + 1] - start;
+            if (count < 2) {
+                continue;
+            }
+            if (order.length < count) {
+                order = new long[count];
+                sortedKeys = new int[count];
+                sortedValues = new int[count];
+            }
+            // Rank in the high bits, position in the low bits, so that equal keys keep their order
+            boolean sorted = true;
+            for (int i = 0; i < count; i++) {
+                order[i] = (long) ranks[keys[start + i]] << 32 | i;
+                sorted &= i == 0 || order[i] > order[i - 1];
+            }
+            if (sorted) {
+                continue;
+            }
+            Arrays.sort(order, 0, count);
+            for (int i = 0; i < count; i++) {
+                int from = start + (int) order[i];
+                sortedKeys[i] = keys[from];
+                sortedValues[i] = values[from];
+            }
+            System.arraycopy(sortedKeys, 0, keys, start, count);
+            System.arraycopy(sortedValues, 0, values, start, count);
+        }
+    }
+
+    /**
+     * Returns the sort position of every string used as a key, which is looked up by string
+     * index. Trees have far fewer distinct keys than properties, so they are compared only once.
+     */
+    private int[] keyRanks() {
+        boolean[] used = new boolean[strings.size()];
+        int distinct = 0;
+        for (int i = 0; i < propertyCount; i++) {
+            if (!used[keys[i]]) {
+                used[keys[i]] = true;
+                distinct++;
+            }
+        }
+        Integer[] sorted = new Integer[distinct];
+        String[] types = new String[strings.size()];
+        String[] shortNames = new String[strings.size()];
+        int next = 0;
+        for (int i = 0; i < used.length; i++) {
+            if (used[i]) {
+                sorted[next++] = i;
+                String key = strings.get(i);
+                int colon = key.indexOf(':');
+                if (colon > 0) {
+                    types[i] = Character.toUpperCase(key.charAt(0)) + key.substring(1, colon);
+                    shortNames[i] = key.substring(colon + 1);
+                } else {
+                    types[i] = "Uncategorized";
+                    shortNames[i] = key;
+                }
+            }
+        }
+        Arrays.sort(sorted, (a, b) -> {
+            int result = types[a].compareTo(types[b]);
+            return result != 0 ? result : shortNames[a].compareTo(shortNames[b]);
+        });
+        int[] ranks = new int[strings.size()];
+        for (int i = 0; i < distinct; i++) {
+            ranks[sorted[i]] = i;
+        }
+        return ranks;
+    }
+
+    /**
+     * Returns the tree in the encoded form described above
+     */
+    byte[] encode() {
+        int[] stringEnds = new int[strings.size()];
+        byte[] text = strings.toUtf8(stringEnds);
+        int size = HEADER_SIZE + 4 * (3 * nodeCount + 1 + 2 * propertyCount + stringEnds.length) + text.length;
+        ByteBuffer out = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        out.put(MAGIC);
+        out.putInt(VERSION).putInt(format).putInt(nodeCount).putInt(propertyCount)
+                .putInt(stringEnds.length).putInt(text.length).putInt(windowX).putInt(windowY);
+        out.asIntBuffer().put(parents, 0, nodeCount);
+        out.position(out.position() + 4 * nodeCount);
+        out.asIntBuffer().put(names, 0, nodeCount);
+        out.position(out.position() + 4 * nodeCount);
+        out.asIntBuffer().put(propertyStarts, 0, nodeCount + 1);
+        out.position(out.position() + 4 * (nodeCount + 1));
+        out.asIntBuffer().put(keys, 0, propertyCount);
+        out.position(out.position() + 4 * propertyCount);
+        out.asIntBuffer().put(values, 0, propertyCount);
+        out.position(out.position() + 4 * propertyCount);
+        out.asIntBuffer().put(stringEnds);
+        out.position(out.position() + 4 * stringEnds.length);
+        out.put(text);
+        return out.array();
+    }
+}
@@ -0,0 +1,724 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import static com.webhv.ProxyServer.SAFE_CLOSE_CODE;
+import static com.webhv.ProxyServer.encodeClose;
+import static com.webhv.ProxyServer.sendFrame;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes view hierarchy dumps as they arrive, so that the browser gets a {@link ViewTree} to
+ * map over instead of parsing dumps of thousands of nodes itself.
+ *
+ * {@code webhv:viewtree:dump:<window>} on a device asks the view server for a window's
+ * hierarchy. {@code webhv:viewtree:v1:<size>} and {@code webhv:viewtree:v2:<size>} decode a
+ * dump the client already has, in the view server's text format or the hierarchy encoder's
+ * binary one: the proxy answers SEND and the client sends the data. Either way the reply is the
+ * encoded tree, or FAIL followed by a message.
+ */
+class ViewTreeService {
+
+    static final String SERVICE = "webhv:viewtree:";
+
+    private static final String DUMP = "dump:";
+    private static final String V1 = "v1";
+    private static final String V2 = "v2";
+
+    private static final int VIEW_SERVER_PORT = 4939;
+    private static final int READ_TIMEOUT_MS = 10000;
+    private static final int MAX_SIZE = 256 << 20;
+
+    // Signatures of the hierarchy encoder, which match the JNI ones
+    private static final int SIG_BOOLEAN = 'Z';
+    private static final int SIG_BYTE = 'B';
+    private static final int SIG_SHORT = 'S';
+    private static final int SIG_INT = 'I';
+    private static final int SIG_LONG = 'J';
+    private static final int SIG_FLOAT = 'F';
+    private static final int SIG_DOUBLE = 'D';
+    private static final int SIG_STRING = 'R';
+    private static final int SIG_MAP = 'M';
+    private static final int SIG_END_MAP = 0;
+
+    private static final int SMALL_NUMBER_START = -128;
+    private static final int SMALL_NUMBER_LIMIT = 4096;
+
+    private final ProxyServer proxy;
+
+    ViewTreeService(ProxyServer proxy) {
+        this.proxy = proxy;
+    }
+
+    void serve(InputStream webIn, OutputStream webOut, ProxyServer.Handshake handshake) throws IOException {
+        byte[] reply;
+        try {
+            reply = decode(webIn, webOut, handshake).encode();
+        } catch (IOException e) {
+            reply = ("FAIL" + e.getMessage()).getBytes(StandardCharsets.UTF_8);
+        }
+        sendFrame(webOut, reply);
+        synchronized (webOut) {
+            webOut.write(encodeClose(SAFE_CLOSE_CODE, "Safe close"));
+            webOut.flush();
+        }
+    }
+
+    private ViewTree decode(InputStream webIn, OutputStream webOut, ProxyServer.Handshake handshake)
+            throws IOException {
+        String device = handshake.request.device;
+        String argument = handshake.request.command.substring(SERVICE.length());
+        ViewTree tree;
+        if (argument.startsWith(DUMP)) {
+            String window = argument.substring(DUMP.length());
+            if (device == null || window.isEmpty() || window.contains("\n")) {
+                throw new IOException("Invalid dump request");
+            }
+            try (Socket socket = proxy.openAdbStream(device, "tcp:" + VIEW_SERVER_PORT)) {
+                socket.setSoTimeout(READ_TIMEOUT_MS);
+                OutputStream out = socket.getOutputStream();
+                out.write(("DUMP " + window + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                tree = parseV1(reader(socket.getInputStream()), new StringTable());
+            }
+            proxy.metrics.viewTree(V1, tree.size());
+            return tree;
+        }
+
+        String[] parts = argument.split(":", 2);
+        int size;
+        try {
+            size = Integer.parseInt(parts[1]);
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            throw new IOException("Invalid decode request");
+        }
+        if (size < 0 || size > MAX_SIZE || !(parts[0].equals(V1) || parts[0].equals(V2))) {
+            throw new IOException("Invalid decode request");
+        }
+        sendFrame(webOut, "SEND".getBytes(StandardCharsets.UTF_8));
+        ClientData data = new ClientData(webIn, webOut, handshake.deflate, size);
+        tree = parts[0].equals(V1)
+                ? parseV1(reader(data), new StringTable())
+                : parseV2(data, new StringTable());
+        proxy.metrics.viewTree(parts[0], tree.size());
+        return tree;
+    }
+
+    private static BufferedReader reader(InputStream in) {
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 65536);
+    }
+
+    /**
+     * Parses the view server's text dump, one node per line, indented by depth, with properties
+     * of the form {@code key=length,value} separated by spaces. Stops at DONE, or at the end of
+     * the input.
+     */
+    static ViewTree parseV1(BufferedReader in, StringTable strings) throws IOException {
+        ViewTree tree = new ViewTree(ViewTree.FORMAT_V1, strings);
+        // Open ancestors of the next node, with their indents
+        int[] stack = new int[64];
+        int[] indents = new int[64];
+        int depth = 0;
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.equalsIgnoreCase("DONE") || line.equalsIgnoreCase("DONE.")) {
+                break;
+            }
+            int indent = 0;
+            int end = line.length();
+            while (indent < end && Character.isWhitespace(line.charAt(indent))) {
+                indent++;
+            }
+            while (end > indent && Character.isWhitespace(line.charAt(end - 1))) {
+                end--;
+            }
+            if (indent == end) {
+                continue;
+            }
+
+            while (depth > 0 && indents[depth - 1] >= indent) {
+                depth--;
+            }
+            if (depth == 0 && tree.size() > 0) {
+                throw new IOException("Invalid data");
+            }
+            int space = line.indexOf(' ', indent);
+            int nameEnd = space < 0 || space > end ? end : space;
+            int node = tree.addNode(depth == 0 ? ViewTree.NO_PARENT : stack[depth - 1],
+                    strings.intern(line, indent, nameEnd));
+            parseProperties(line, nameEnd + 1, end, tree);
+
+            if (depth == stack.length) {
+                stack = Arrays.copyOf(stack, depth * 2);
+                indents = Arrays.copyOf(indents, depth * 2);
+            }
+            stack[depth] = node;
+            indents[depth] = indent;
+            depth++;
+        }
+        if (tree.size() == 0) {
+            throw new IOException("Empty hierarchy");
+        }
+        tree.sortProperties();
+        return tree;
+    }
+
+    private static void parseProperties(String line, int start, int end, ViewTree tree) throws IOException {
+        while (start < end) {
+            int equals = line.indexOf('=', start);
+            int comma = equals < 0 ? -1 : line.indexOf(',', equals + 1);
+            if (comma < 0 || comma >= end) {
+                throw new IOException("Invalid data");
+            }
+            int length = 0;
+            for (int i = equals + 1; i < comma; i++) {
+                char c = line.charAt(i);
+                if (c < '0' || c > '9' || length > MAX_SIZE) {
+                    throw new IOException("Invalid data");
+                }
+                length = length * 10 + c - '0';
+            }
+            // The line was trimmed, which can cut values ending in spaces short
+            int valueEnd = Math.min(end, comma + 1 + length);
+            tree.addProperty(tree.strings.intern(line, start, equals),
+                    tree.strings.intern(line, comma + 1, valueEnd));
+            start = valueEnd + 1;
+        }
+    }
+
+    /**
+     * Parses the hierarchy encoder's binary dump: the root node as a map of property ids to
+     * values, with child nodes as nested maps, then window properties as id and value pairs, and
+     * finally the map of property ids to names.
+     */
+    static ViewTree parseV2(InputStream in, StringTable strings) throws IOException {
+        return new V2Parser(new BinaryReader(in), strings).parse();
+    }
+
+    private static class V2Parser {
+
+        private final BinaryReader in;
+        private final StringTable strings;
+
+        // Maps in the order they start, with the map they are nested in and the id they are under
+        private int mapCount = 0;
+        private int[] mapParents = new int[64];
+        private int[] mapSlots = new int[64];
+        private final List<Integer> topLevel = new ArrayList<>();
+
+        // Properties of all maps, as they are read
+        private int propertyCount = 0;
+        private int[] propertyMaps = new int[1024];
+        private int[] propertyIds = new int[1024];
+        private int[] propertyValues = new int[1024];
+
+        private final Map<Integer, Integer> windowProperties = new HashMap<>();
+
+        // Most values are small numbers or short ASCII strings, which are interned without
+        // creating a string each time
+        private final int[] smallNumbers = new int[SMALL_NUMBER_LIMIT - SMALL_NUMBER_START];
+        private byte[] bytes = new byte[256];
+        private final StringBuilder chars = new StringBuilder(256);
+
+        V2Parser(BinaryReader in, StringTable strings) {
+            this.in = in;
+            this.strings = strings;
+            Arrays.fill(smallNumbers, -1);
+        }
+
+        ViewTree parse() throws IOException {
+            int signature;
+            while ((signature = in.read()) != -1) {
+                if (signature == SIG_MAP) {
+                    topLevel.add(readMap(-1, -1));
+                } else {
+                    int id = readId(signature);
+                    signature = in.readUnsignedByte();
+                    if (signature == SIG_MAP) {
+                        readMap(-1, -1);
+                    } else {
+                        windowProperties.put(id, readValue(signature));
+                    }
+                }
+            }
+            if (topLevel.size() < 2) {
+                throw new IOException("Error reading data");
+            }
+            return build(topLevel.get(0), topLevel.get(topLevel.size() - 1));
+        }
+
+        private int readMap(int parent, int slot) throws IOException {
+            // Numbered before the children are read, so that the number can be filled in later
+            int map = mapCount++;
+            if (map == mapParents.length) {
+                mapParents = Arrays.copyOf(mapParents, map * 2);
+                mapSlots = Arrays.copyOf(mapSlots, map * 2);
+            }
+            mapParents[map] = parent;
+            mapSlots[map] = slot;
+            while (true) {
+                int id = readId(in.readUnsignedByte());
+                if (id == SIG_END_MAP) {
+                    return map;
+                }
+                int signature = in.readUnsignedByte();
+                if (signature == SIG_MAP) {
+                    readMap(map, id);
+                } else {
+                    addProperty(map, id, readValue(signature));
+                }
+            }
+        }
+
+        private void addProperty(int map, int id, int value) {
+            if (propertyCount == propertyMaps.length) {
+                propertyMaps = Arrays.copyOf(propertyMaps, propertyCount * 2);
+                propertyIds = Arrays.copyOf(propertyIds, propertyCount * 2);
+                propertyValues = Arrays.copyOf(propertyValues, propertyCount * 2);
+            }
+            propertyMaps[propertyCount] = map;
+            propertyIds[propertyCount] = id;
+            propertyValues[propertyCount] = value;
+            propertyCount++;
+        }
+
+        private int readId(int signature) throws IOException {
+            switch (signature) {
+                case SIG_BYTE:
+                    return in.readUnsignedByte();
+                case SIG_SHORT:
+                    return in.readShort();
+                case SIG_INT:
+                    return in.readInt();
+                default:
+                    throw new IOException("Invalid data");
+            }
+        }
+
+        /**
+         * Reads a value and returns its string index, with numbers written the way JavaScript
+         * does, so that values look the same as those of the browser's own parser
+         */
+        private int readValue(int signature) throws IOException {
+            switch (signature) {
+                case SIG_BOOLEAN:
+                    return strings.intern(in.readUnsignedByte() == 0 ? "false" : "true");
+                case SIG_BYTE:
+                    return number(in.readUnsignedByte());
+                case SIG_SHORT:
+                    return number(in.readShort());
+                case SIG_INT:
+                    return number(in.readInt());
+                case SIG_LONG:
+                    return number(in.readLong());
+                case SIG_FLOAT:
+                    return number(in.readFloat());
+                case SIG_DOUBLE:
+                    return number(in.readDouble());
+                case SIG_STRING:
+                    return string(in.readUnsignedShort());
+                default:
+                    throw new IOException("Invalid data");
+            }
+        }
+
+        private int number(long value) {
+            if (value >= SMALL_NUMBER_START && value < SMALL_NUMBER_LIMIT) {
+                int slot = (int) value - SMALL_NUMBER_START;
+                if (smallNumbers[slot] < 0) {
+                    smallNumbers[slot] = strings.intern(Long.toString(value));
+                }
+                return smallNumbers[slot];
+            }
+            return strings.intern(Long.toString(value));
+        }
+
+        private int number(double value) {
+            return value == (long) value && !(value == 0 && 1 / value < 0)
+                    ? number((long) value) : strings.intern(formatNumber(value));
+        }
+
+        private int string(int length) throws IOException {
+            if (bytes.length < length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            in.readFully(bytes, 0, length);
+            chars.setLength(0);
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] < 0) {
+                    return strings.intern(new String(bytes, 0, length, StandardCharsets.UTF_8));
+                }
+                chars.append((char) bytes[i]);
+            }
+            return strings.intern(chars, 0, length);
+        }
+
+        private ViewTree build(int root, int table) throws IOException {
+            // Names of property ids
+            String[] names = new String[0];
+            for (int i = 0; i < propertyCount; i++) {
+                if (propertyMaps[i] == table && propertyIds[i] >= 0) {
+                    if (propertyIds[i] >= names.length) {
+                        names = Arrays.copyOf(names, Math.max(propertyIds[i] + 1, names.length * 2));
+                    }
+                    names[propertyIds[i]] = strings.get(propertyValues[i]);
+                }
+            }
+            // String index of each property name, or -1 for ids which aren't shown
+            int[] keys = new int[names.length];
+            int nameId = -1;
+            int hashId = -1;
+            int windowLeft = -1;
+            int windowTop = -1;
+            int[] childNumbers = new int[names.length];
+            for (int id = 0; id < names.length; id++) {
+                String name = names[id];
+                keys[id] = name == null || name.startsWith("meta:") ? -1 : strings.intern(name);
+                childNumbers[id] = -1;
+                if (name == null) {
+                    continue;
+                }
+                if (name.equals("meta:__name__")) {
+                    nameId = id;
+                } else if (name.equals("meta:__hash__")) {
+                    hashId = id;
+                } else if (name.equals("window:left")) {
+                    windowLeft = id;
+                } else if (name.equals("window:top")) {
+                    windowTop = id;
+                } else if (name.startsWith("meta:__child__")) {
+                    try {
+                        childNumbers[id] = Integer.parseInt(name.substring("meta:__child__".length()));
+                    } catch (NumberFormatException e) {
+                        // Not a child
+                    }
+                }
+            }
+
+            // Group properties and children by map
+            int[] propertyStarts = new int[mapCount + 1];
+            for (int i = 0; i < propertyCount; i++) {
+                propertyStarts[propertyMaps[i] + 1]++;
+            }
+            for (int i = 0; i < mapCount; i++) {
+                propertyStarts[i + 1] += propertyStarts[i];
+            }
+            int[] properties = new int[propertyCount];
+            int[] next = Arrays.copyOf(propertyStarts, mapCount);
+            for (int i = 0; i < propertyCount; i++) {
+                properties[next[propertyMaps[i]]++] = i;
+            }
+            int[] childStarts = new int[mapCount + 1];
+            for (int i = 0; i < mapCount; i++) {
+                if (mapParents[i] >= 0) {
+                    childStarts[mapParents[i] + 1]++;
+                }
+            }
+            for (int i = 0; i < mapCount; i++) {
+                childStarts[i + 1] += childStarts[i];
+            }
+            int[] children = new int[childStarts[mapCount]];
+            next = Arrays.copyOf(childStarts, mapCount);
+            for (int i = 0; i < mapCount; i++) {
+                if (mapParents[i] >= 0) {
+                    children[next[mapParents[i]]++] = i;
+                }
+            }
+
+            ViewTree tree = new ViewTree(ViewTree.FORMAT_V2, strings);
+            // Maps still to add, with the node they are a child of
+            int[] pending = new int[64];
+            int[] pendingParents = new int[64];
+            int pendingCount = 1;
+            pending[0] = root;
+            pendingParents[0] = ViewTree.NO_PARENT;
+            long[] order = new long[16];
+            while (pendingCount > 0) {
+                pendingCount--;
+                int map = pending[pendingCount];
+                String name = "";
+                String hash = "";
+                for (int i = propertyStarts[map]; i < propertyStarts[map + 1]; i++) {
+                    int id = propertyIds[properties[i]];
+                    if (id == nameId) {
+                        name = strings.get(propertyValues[properties[i]]);
+                    } else if (id == hashId) {
+                        hash = hexHash(strings.get(propertyValues[properties[i]]));
+                    }
+                }
+                int node = tree.addNode(pendingParents[pendingCount], strings.intern(name + "@" + hash));
+                for (int i = propertyStarts[map]; i < propertyStarts[map + 1]; i++) {
+                    int id = propertyIds[properties[i]];
+                    if (id >= 0 && id < keys.length && keys[id] >= 0) {
+                        tree.addProperty(keys[id], propertyValues[properties[i]]);
+                    }
+                }
+
+                // Children in order of their number, pushed last first so that the first is added next
+                int count = 0;
+                for (int i = childStarts[map]; i < childStarts[map + 1]; i++) {
+                    int slot = mapSlots[children[i]];
+                    if (slot >= 0 && slot < childNumbers.length && childNumbers[slot] >= 0) {
+                        if (count == order.length) {
+                            order = Arrays.copyOf(order, count * 2);
+                        }
+                        order[count++] = (long) childNumbers[slot] << 32 | children[i];
+                    }
+                }
+                Arrays.sort(order, 0, count);
+                if (pendingCount + count > pending.length) {
+                    pending = Arrays.copyOf(pending, (pendingCount + count) * 2);
+                    pendingParents = Arrays.copyOf(pendingParents, pending.length);
+                }
+                for (int i = count - 1; i >= 0; i--) {
+                    pending[pendingCount] = (int) order[i];
+                    pendingParents[pendingCount] = node;
+                    pendingCount++;
+                }
+            }
+
+            Integer left = windowProperties.get(windowLeft);
+            Integer top = windowProperties.get(windowTop);
+            if (left != null && top != null) {
+                try {
+                    tree.setWindowPosition((int) parseLeadingInteger(strings.get(left)),
+                            (int) parseLeadingInteger(strings.get(top)));
+                } catch (NumberFormatException e) {
+                    // Leave the window position out
+                }
+            }
+            tree.sortProperties();
+            return tree;
+        }
+    }
+
+    /**
+     * Reads big-endian values, like an unsynchronized DataInputStream with its own buffer, as the
+     * binary format is read a byte or two at a time
+     */
+    private static class BinaryReader {
+
+        private final InputStream in;
+        private final byte[] buffer = new byte[65536];
+        private int position = 0;
+        private int limit = 0;
+
+        BinaryReader(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * Makes sure that at least count bytes are buffered, returns false at the end of the input
+         */
+        private boolean request(int count) throws IOException {
+            if (limit - position >= count) {
+                return true;
+            }
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+            while (limit < count) {
+                int read = in.read(buffer, limit, buffer.length - limit);
+                if (read == -1) {
+                    return false;
+                }
+                limit += read;
+            }
+            return true;
+        }
+
+        private void require(int count) throws IOException {
+            if (!request(count)) {
+                throw new EOFException();
+            }
+        }
+
+        /**
+         * Returns the next byte, or -1 at the end of the input
+         */
+        int read() throws IOException {
+            return request(1) ? buffer[position++] & 0xff : -1;
+        }
+
+        int readUnsignedByte() throws IOException {
+            require(1);
+            return buffer[position++] & 0xff;
+        }
+
+        int readUnsignedShort() throws IOException {
+            require(2);
+            int value = (buffer[position] & 0xff) << 8 | buffer[position + 1] & 0xff;
+            position += 2;
+            return value;
+        }
+
+        short readShort() throws IOException {
+            return (short) readUnsignedShort();
+        }
+
+        int readInt() throws IOException {
+            require(4);
+            int value = (buffer[position] & 0xff) << 24 | (buffer[position + 1] & 0xff) << 16
+                    | (buffer[position + 2] & 0xff) << 8 | buffer[position + 3] & 0xff;
+            position += 4;
+            return value;
+        }
+
+        long readLong() throws IOException {
+            return (long) readInt() << 32 | readInt() & 0xffffffffL;
+        }
+
+        float readFloat() throws IOException {
+            return Float.intBitsToFloat(readInt());
+        }
+
+        double readDouble() throws IOException {
+            return Double.longBitsToDouble(readLong());
+        }
+
+        void readFully(byte[] b, int offset, int length) throws IOException {
+            while (length > 0) {
+                require(1);
+                int count = Math.min(length, limit - position);
+                System.arraycopy(buffer, position, b, offset, count);
+                position += count;
+                offset += count;
+                length -= count;
+            }
+        }
+    }
+
+    /**
+     * Formats a number like JavaScript's Number.toString, e.g. 1 rather than 1.0
+     */
+    static String formatNumber(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        if (Double.isNaN(value)) {
+            return "NaN";
+        }
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "Infinity" : "-Infinity";
+        }
+        BigDecimal decimal = new BigDecimal(Double.toString(value)).stripTrailingZeros();
+        int exponent = decimal.precision() - decimal.scale() - 1;
+        if (exponent >= -7 && exponent < 21) {
+            return decimal.toPlainString();
+        }
+        String digits = decimal.unscaledValue().abs().toString();
+        return (value < 0 ? "-" : "") + digits.charAt(0)
+                + (digits.length() > 1 ? "." + digits.substring(1) : "")
+                + "e" + (exponent > 0 ? "+" : "") + exponent;
+    }
+
+    /**
+     * Returns a hash code in hex, like parseInt(value).toString(16)
+     */
+    private static String hexHash(String value) {
+        try {
+            return Long.toString(parseLeadingInteger(value), 16);
+        } catch (NumberFormatException e) {
+            return "nan";
+        }
+    }
+
+    private static long parseLeadingInteger(String value) {
+        int end = value.startsWith("-") ? 1 : 0;
+        while (end < value.length() && Character.isDigit(value.charAt(end))) {
+            end++;
+        }
+        return Long.parseLong(value.substring(0, end));
+    }
+
+    /**
+     * Client data of a known size, read from websocket frames as it is needed
+     */
+    static class ClientData extends InputStream {
+
+        private final InputStream webIn;
+        private final ProxyServer.WebToAdbMapper mapper;
+        private final Buffer buffer = new Buffer();
+        private int position = 0;
+        private int remaining;
+
+        ClientData(InputStream webIn, OutputStream webOut, boolean deflate, int size) {
+            this.webIn = webIn;
+            this.remaining = size;
+            mapper = new ProxyServer.WebToAdbMapper(webOut, deflate, null);
+        }
+
+        private boolean fill() throws IOException {
+            while (position == buffer.size()) {
+                if (remaining == 0) {
+                    return false;
+                }
+                buffer.reset();
+                position = 0;
+                mapper.map(webIn, buffer);
+                if (buffer.size() > remaining) {
+                    throw new IOException("More data than expected");
+                }
+                remaining -= buffer.size();
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? buffer.array()[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.size() - position);
+            System.arraycopy(buffer.array(), position, b, offset, count);
+            position += count;
+            return count;
+        }
+    }
+
+    private static class Buffer extends ByteArrayOutputStream {
+
+        Buffer() {
+            super(16384);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Incremental decoder for client-to-server websocket frames. Bytes can be fed in arbitrary
+ * chunks, payload data is unmasked in place and handed to the sink as soon as it arrives.
+ */
+class WebSocketDecoder {
+
+    static final int OP_CONTINUATION = 0;
+    static final int OP_TEXT = 1;
+    static final int OP_BINARY = 2;
+    static final int OP_CLOSE = 8;
+    static final int OP_PING = 9;
+    static final int OP_PONG = 10;
+
+    private static final int MAX_CONTROL_PAYLOAD = 125;
+
+    private static final VarHandle LONG_VIEW =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final byte[] header = new byte[14];
+    private int headerRead = 0;
+    private int headerSize = 2;
+
+    private boolean inPayload = false;
+    private int opcode;
+    private long remaining;
+    private long maskOffset;
+    private final byte[] mask = new byte[4];
+
+    private final byte[] control = new byte[MAX_CONTROL_PAYLOAD];
+    private int controlLength;
+
+    private boolean inflateEnabled = false;
+    private boolean finalFrame;
+    private boolean messageCompressed;
+    private Inflater inflater;
+    private byte[] inflated;
+
+    private long dataFrames = 0;
+
+    /**
+     * Inflates messages sent with the RSV1 bit once permessage-deflate has been negotiated
+     */
+    void enableInflate() {
+        inflateEnabled = true;
+    }
+
+    /**
+     * Returns the number of data frames started so far, including continuation frames
+     */
+    long getDataFrames() {
+        return dataFrames;
+    }
+
+    void decode(byte[] buffer, int offset, int length, Sink sink) throws IOException {
+        int end = offset + length;
+        while (offset < end) {
+            if (!inPayload) {
+                header[headerRead++] = buffer[offset++];
+                if (headerRead == 2) {
+                    int rLength = header[1] & 127;
+                    headerSize = 2 + (rLength == 126 ? 2 : rLength == 127 ? 8 : 0)
+                            + ((header[1] & 128) != 0 ? 4 : 0);
+                }
+                if (headerRead >= 2 && headerRead == headerSize) {
+                    startFrame(sink);
+                }
+                continue;
+            }
+
+            int count = (int) Math.min(remaining, end - offset);
+            unmask(buffer, offset, count);
+            if (opcode >= OP_CLOSE) {
+                System.arraycopy(buffer, offset, control, controlLength, count);
+                controlLength += count;
+            } else if (messageCompressed) {
+                inflate(buffer, offset, count, sink);
+            } else {
+                sink.onData(buffer, offset, count);
+            }
+            offset += count;
+            remaining -= count;
+            if (remaining == 0) {
+                endFrame(sink);
+            }
+        }
+    }
+
+    private void startFrame(Sink sink) throws IOException {
+        opcode = header[0] & 15;
+        finalFrame = (header[0] & 128) != 0;
+        if (opcode < OP_CLOSE) {
+            dataFrames++;
+        }
+        if (opcode == OP_TEXT || opcode == OP_BINARY) {
+            // RSV1 marks a compressed message, continuation frames keep the first frame's flag
+            messageCompressed = inflateEnabled && (header[0] & 64) != 0;
+        }
+        int rLength = header[1] & 127;
+        int pos = 2;
+        if (rLength == 126) {
+            remaining = ((header[2] & 255) << 8) | (header[3] & 255);
+            pos = 4;
+        } else if (rLength == 127) {
+            long len = 0;
+            for (int i = 0; i < 8; i++) {
+                len = (len << 8) | (header[2 + i] & 255);
+            }
+            if (len < 0) {
+                throw new IOException("Invalid frame length");
+            }
+            remaining = len;
+            pos = 10;
+        } else {
+            remaining = rLength;
+        }
+
+        if ((header[1] & 128) != 0) {
+            System.arraycopy(header, pos, mask, 0, 4);
+        } else {
+            mask[0] = mask[1] = mask[2] = mask[3] = 0;
+        }
+        if (opcode >= OP_CLOSE && remaining > MAX_CONTROL_PAYLOAD) {
+            throw new IOException("Control frame too large");
+        }
+
+        maskOffset = 0;
+        controlLength = 0;
+        headerRead = 0;
+        headerSize = 2;
+        inPayload = true;
+        if (remaining == 0) {
+            endFrame(sink);
+        }
+    }
+
+    private void endFrame(Sink sink) throws IOException {
+        inPayload = false;
+        if (opcode >= OP_CLOSE) {
+            sink.onControl(opcode, control, controlLength);
+        } else if (finalFrame) {
+            if (messageCompressed) {
+                inflate(PerMessageDeflate.TAIL, 0, PerMessageDeflate.TAIL.length, sink);
+                PerMessageDeflate.releaseInflater(inflater);
+                inflater = null;
+            }
+            sink.onMessageEnd();
+        }
+    }
+
+    private void inflate(byte[] data, int offset, int count, Sink sink) throws IOException {
+        if (inflater == null) {
+            inflater = PerMessageDeflate.borrowInflater();
+        }
+        if (inflated == null) {
+            inflated = new byte[8192];
+        }
+        inflater.setInput(data, offset, count);
+        try {
+            while (true) {
+                int size = inflater.inflate(inflated);
+                if (size > 0) {
+                    sink.onData(inflated, 0, size);
+                } else if (inflater.needsInput() || inflater.finished() || inflater.needsDictionary()) {
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed message", e);
+        }
+    }
+
+    /**
+     * Unmasks 8 bytes at a time. The mask repeats every 4 bytes so a single long, rotated to
+     * the current position in the frame, covers every step.
+     */
+    private void unmask(byte[] data, int offset, int count) {
+        int i = 0;
+        if (count >= 8) {
+            long wideMask = 0;
+            for (int j = 0; j < 8; j++) {
+                wideMask |= (mask[(int) ((maskOffset + j) & 3)] & 255L) << (8 * j);
+            }
+            for (; i + 8 <= count; i += 8) {
+                LONG_VIEW.set(data, offset + i, (long) LONG_VIEW.get(data, offset + i) ^ wideMask);
+            }
+        }
+        for (; i < count; i++) {
+            data[offset + i] ^= mask[(int) ((maskOffset + i) & 3)];
+        }
+        maskOffset += count;
+    }
+
+    interface Sink {
+
+        /**
+         * Called with unmasked payload of data frames, including continuation frames
+         */
+        void onData(byte[] data, int offset, int length) throws IOException;
+
+        /**
+         * Called after the last data of a message, for sinks which care about message boundaries
+         */
+        default void onMessageEnd() throws IOException { }
+
+        /**
+         * Called once a complete close, ping or pong frame has been received
+         */
+        void onControl(int opcode, byte[] payload, int length) throws IOException;
+    }
+}
@@ -0,0 +1,553 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.webhv;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Regression tests for the proxy, run with {@code gradle proxyTest} or as part of
+ * {@code gradle check}. Each test starts the proxies it needs in this process against the fake
+ * adb server of the benchmarks, or checks a part of the proxy on its own, and throws an
+ * {@link AssertionError} when it fails. An optional argument selects the tests to run by regular
+ * expression.
+ */
+public class ProxyTest {
+
+    private static final int TIMEOUT_MS = 5000;
+
+    private interface Test {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Pattern filter = Pattern.compile(args.length > 0 ? args[0] : ".*");
+        Map<String, Test> tests = new LinkedHashMap<>();
+        tests.put("nio ping while holding", ProxyTest::nioPingWhileHolding);
+        tests.put("nio close while holding", ProxyTest::nioCloseWhileHolding);
+        tests.put("nio close while queued", ProxyTest::nioCloseWhileQueued);
+        tests.put("snapshot archive pruned", ProxyTest::snapshotArchivePruned);
+        tests.put("device list emptied when adb goes away", ProxyTest::deviceListEmptiedWhenAdbGoesAway);
+        tests.put("hierarchy diff of a fixed pair", ProxyTest::hierarchyDiffFixedPair);
+        tests.put("hierarchy diff matches the full walk", ProxyTest::hierarchyDiffMatchesFullWalk);
+        tests.put("viewcapture negative length", ProxyTest::viewCaptureNegativeLength);
+        tests.put("recording truncated on close", ProxyTest::recordingTruncatedOnClose);
+
+        int failed = 0;
+        for (Map.Entry<String, Test> test : tests.entrySet()) {
+            if (!filter.matcher(test.getKey()).find()) {
+                continue;
+            }
+            try {
+                test.getValue().run();
+                System.out.println("PASS " + test.getKey());
+            } catch (Exception | AssertionError e) {
+                System.out.println("FAIL " + test.getKey() + ": " + e);
+                failed++;
+            }
+        }
+        if (failed > 0) {
+            throw new AssertionError(failed + " tests failed");
+        }
+    }
+
+    /**
+     * A ping which arrives while adb output is held for coalescing is answered on its own, and
+     * the held data follows as one frame
+     */
+    private static void nioPingWhileHolding() throws Exception {
+        try (FakeAdbServer adb = new FakeAdbServer();
+                WebClient client = new WebClient(startNio(adb), "device;frame=bulk;holdMs=100/echo")) {
+            client.send(WebSocketDecoder.OP_BINARY, bytes("hello"));
+            // Let the echo arrive and start the hold
+            Thread.sleep(20);
+            client.send(WebSocketDecoder.OP_PING, bytes("ping"));
+
+            client.expect(WebSocketDecoder.OP_PONG, bytes("ping"));
+            client.expect(WebSocketDecoder.OP_BINARY, bytes("hello"));
+        }
+    }
+
+    /**
+     * A close which arrives while adb output is held is answered after the held data
+     */
+    private static void nioCloseWhileHolding() throws Exception {
+        try (FakeAdbServer adb = new FakeAdbServer();
+                WebClient client = new WebClient(startNio(adb), "device;frame=bulk;holdMs=100/echo")) {
+            client.send(WebSocketDecoder.OP_BINARY, bytes("hello"));
+            Thread.sleep(20);
+            client.send(WebSocketDecoder.OP_CLOSE, new byte[0]);
+
+            client.expect(WebSocketDecoder.OP_BINARY, bytes("hello"));
+            byte[] close = ProxyServer.encodeClose(ProxyServer.SAFE_CLOSE_CODE, "Safe close");
+            client.expect(WebSocketDecoder.OP_CLOSE, Arrays.copyOfRange(close, 2, close.length));
+        }
+    }
+
+    /**
+     * A close which arrives while adb output is queued for a slow client ends the stream: the
+     * frame being written is completed, and nothing follows the close frame
+     */
+    private static void nioCloseWhileQueued() throws Exception {
+        try (FakeAdbServer adb = new FakeAdbServer();
+                WebClient client = new WebClient(startNio(adb), "device;highWater=1048576/bulk:67108864")) {
+            // Let the queue fill up while nothing is read
+            Thread.sleep(200);
+            client.send(WebSocketDecoder.OP_CLOSE, new byte[0]);
+
+            client.skipUntil(WebSocketDecoder.OP_CLOSE);
+            if (client.in.read() != -1) {
+                throw new AssertionError("Data after the close frame");
+            }
+        }
+    }
+
+    /**
+     * Tabs which track devices from the proxy's cache are sent an empty list once the adb server
+     * goes away, instead of keeping the last one
+     */
+    private static void deviceListEmptiedWhenAdbGoesAway() throws Exception {
+        String device = "fake-1 device product:fake model:fake device:fake\n";
+        CountDownLatch drop = new CountDownLatch(1);
+        try (ServerSocket adb = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+                ServerSocket server = new ServerSocket(0, 128, InetAddress.getLoopbackAddress())) {
+            // Answers the tracker's first subscription, then drops it
+            Thread adbThread = new Thread(() -> {
+                try (Socket socket = adb.accept()) {
+                    socket.getOutputStream().write(("OKAY" + ProxyServer.prefixLength(device))
+                            .getBytes(StandardCharsets.UTF_8));
+                    drop.await();
+                } catch (IOException | InterruptedException e) {
+                    // Closed at the end of the test
+                }
+            }, "test-adb");
+            adbThread.setDaemon(true);
+            adbThread.start();
+
+            ProxyServer proxy = new ProxyServer("test-key", Executors.newCachedThreadPool(), Thread::new);
+            proxy.deviceTracker = new DeviceTracker(InetAddress.getLoopbackAddress().getHostAddress(),
+                    adb.getLocalPort());
+            proxy.deviceTracker.start();
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (proxy.deviceTracker.getDevices() == null) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new AssertionError("No device list from adb");
+                }
+                Thread.sleep(10);
+            }
+            startThreads(proxy, server);
+
+            try (WebClient client = new WebClient(server.getLocalPort(), "track-devices-l")) {
+                client.expect(WebSocketDecoder.OP_BINARY, bytes(ProxyServer.prefixLength(device)));
+                drop.countDown();
+                client.expect(WebSocketDecoder.OP_BINARY, bytes(ProxyServer.prefixLength("")));
+            }
+        }
+    }
+
+    /**
+     * An archive over its maximum size keeps only its newest snapshots, and views opened before
+     * still serve the archive as it was
+     */
+    private static void snapshotArchivePruned() throws Exception {
+        Path directory = Files.createTempDirectory("webhv-test");
+        Path file = directory.resolve("snapshots");
+        try (ServerSocket server = new ServerSocket(0, 128, InetAddress.getLoopbackAddress())) {
+            ProxyServer proxy = new ProxyServer("test-key", Executors.newCachedThreadPool(), Thread::new);
+            proxy.snapshotService = new SnapshotService(proxy, file, 1 << 20);
+            startThreads(proxy, server);
+            int port = server.getLocalPort();
+
+            SnapshotGenerator snapshots = new SnapshotGenerator(500, 1);
+            save(port, "first", snapshots.next());
+            try (WebClient opened = new WebClient(port, SnapshotService.SERVICE + "open")) {
+                String[] reply = new String(opened.read(WebSocketDecoder.OP_BINARY), StandardCharsets.UTF_8)
+                        .substring(4).split(" ");
+                byte[] before = Files.readAllBytes(file);
+                if (Long.parseLong(reply[0]) != before.length) {
+                    throw new AssertionError("Served size " + reply[0] + " instead of " + before.length);
+                }
+
+                int count = 30;
+                for (int i = 1; i < count; i++) {
+                    save(port, "snapshot " + i, snapshots.next());
+                }
+                if (Files.size(file) > 1 << 20) {
+                    throw new AssertionError("Archive of " + Files.size(file) + " bytes");
+                }
+                String[] list = request(port, SnapshotService.SERVICE + "list").split("\n");
+                if (list.length >= count || !list[list.length - 1].endsWith(" snapshot " + (count - 1))) {
+                    throw new AssertionError("Unexpected snapshots " + Arrays.toString(list));
+                }
+                if (!Arrays.equals(httpGet(port, reply[1]), before)) {
+                    throw new AssertionError("View changed by pruning");
+                }
+            }
+        } finally {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path f : (Iterable<Path>) files::iterator) {
+                    Files.delete(f);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * Diffs a pair of frames from a small window where, between the two, a child was removed,
+     * one was added, two swapped places and a nested view moved
+     */
+    private static void hierarchyDiffFixedPair() throws Exception {
+        StringTable strings = new StringTable();
+        // Depth, class, hash code, left, top, width and height of each node in pre-order
+        ViewCaptureFrame older = frame(strings,
+                "0 com.android.internal.policy.DecorView 1 0 0 1080 1920",
+                "1 android.widget.LinearLayout 2 0 0 1080 1920",
+                "2 android.widget.TextView 3 0 0 1080 100",
+                "2 android.widget.Button 4 0 100 1080 100",
+                "2 android.widget.ImageView 5 0 200 1080 300",
+                "1 android.widget.FrameLayout 6 0 0 1080 1920",
+                "2 android.view.View 7 0 0 10 10");
+        ViewCaptureFrame newer = frame(strings,
+                "0 com.android.internal.policy.DecorView 1 0 0 1080 1920",
+                "1 android.widget.LinearLayout 2 0 0 1080 1920",
+                "2 android.widget.Button 4 0 100 1080 100",
+                "2 android.widget.TextView 3 0 0 1080 100",
+                "2 android.widget.EditText 8 0 300 1080 100",
+                "1 android.widget.FrameLayout 6 0 0 1080 1920",
+                "2 android.view.View 7 50 0 10 10");
+
+        HierarchyDiff engine = new HierarchyDiff(strings);
+        HierarchyDiff.Result result = engine.diff(engine.tree(newer), engine.tree(older));
+        check("new parents", new int[] {1}, result.newParents);
+        check("new children", new int[] {4}, result.newChildren);
+        check("removed parents", new int[] {1}, result.removedParents);
+        check("removed children", new int[] {4}, result.removedChildren);
+        check("moved", new int[] {6}, result.moved);
+        check("reordered", new int[] {1}, result.reordered);
+
+        FullTreeDiff expected = FullTreeDiff.compareNodes(FullTreeDiff.tree(newer, strings),
+                FullTreeDiff.tree(older, strings));
+        if (!expected.sameAs(result)) {
+            throw new AssertionError(result + " instead of " + expected);
+        }
+    }
+
+    /**
+     * Diffs consecutive frames of a generated ViewCapture export, and checks that they have the
+     * same differences as compareNodes of js/diff.js finds walking both trees in full
+     */
+    private static void hierarchyDiffMatchesFullWalk() throws Exception {
+        StringTable strings = new StringTable();
+        List<ViewCaptureFrame> frames = new ArrayList<>();
+        Path file = Files.createTempFile("webhv-test", ".vc");
+        try {
+            new ViewCaptureGenerator(500, 1).write(file, 4L << 20);
+            ViewCaptureReader.open(file, strings).readWindow(0, (window, index, frame) -> {
+                ViewCaptureFrame copy = new ViewCaptureFrame();
+                for (int node = 0; node < frame.size(); node++) {
+                    copy.copyNode(frame, node, frame.parent(node));
+                }
+                frames.add(copy);
+            });
+        } finally {
+            Files.delete(file);
+        }
+        if (frames.size() < 2) {
+            throw new AssertionError("Only " + frames.size() + " frames");
+        }
+
+        HierarchyDiff engine = new HierarchyDiff(strings);
+        for (int i = 1; i < frames.size(); i++) {
+            HierarchyDiff.Result result = engine.diff(engine.tree(frames.get(i)), engine.tree(frames.get(i - 1)));
+            FullTreeDiff expected = FullTreeDiff.compareNodes(FullTreeDiff.tree(frames.get(i), strings),
+                    FullTreeDiff.tree(frames.get(i - 1), strings));
+            if (!expected.sameAs(result)) {
+                throw new AssertionError("Frame " + i + " differs: " + result + " instead of " + expected);
+            }
+        }
+    }
+
+    /**
+     * A length delimited field whose ten byte length decodes to a negative number is rejected as
+     * invalid data, instead of moving the reader back before the start of the capture
+     */
+    private static void viewCaptureNegativeLength() throws Exception {
+        // An unknown length delimited field 5, with the length -100
+        byte[] capture = new byte[11];
+        capture[0] = 5 << 3 | 2;
+        long length = -100;
+        for (int i = 1; i < capture.length; i++, length >>>= 7) {
+            capture[i] = (byte) (i < capture.length - 1 ? length & 0x7f | 0x80 : length);
+        }
+        Path file = Files.createTempFile("webhv-test", ".vc");
+        try {
+            Files.write(file, capture);
+            ViewCaptureReader.open(file, new StringTable());
+            throw new AssertionError("Invalid capture was read");
+        } catch (IOException e) {
+            // Expected
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * A closed session recording is cut after its last record instead of filling a whole region,
+     * and still replays
+     */
+    private static void recordingTruncatedOnClose() throws Exception {
+        Path file = Files.createTempFile("webhv-test", ".log");
+        try {
+            SessionRecorder recorder = new SessionRecorder(file.toFile());
+            SessionRecorder.Stream stream = recorder.open(new StreamRequest("emulator-5554/shell:echo"));
+            stream.fromAdb(ByteBuffer.wrap(bytes("hello\n")));
+            stream.close();
+            recorder.close();
+
+            long size = Files.size(file);
+            if (size >= 4096) {
+                throw new AssertionError("Recording is " + size + " bytes");
+            }
+            SessionReplay replay = new SessionReplay(file.toFile(), 0);
+            if (replay.size() != 1) {
+                throw new AssertionError(replay.size() + " streams replayed");
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Builds a frame from lines of depth, class name, hash code and box
+     */
+    private static ViewCaptureFrame frame(StringTable strings, String... nodes) {
+        ViewCaptureFrame frame = new ViewCaptureFrame();
+        int[] parents = new int[nodes.length + 1];
+        for (String line : nodes) {
+            String[] fields = line.split(" ");
+            int depth = Integer.parseInt(fields[0]);
+            int node = frame.addNode(depth == 0 ? -1 : parents[depth - 1]);
+            parents[depth] = node;
+            frame.setClassName(node, strings.intern(fields[1]));
+            frame.setHashcode(node, Integer.parseInt(fields[2]));
+            frame.setLeft(node, Integer.parseInt(fields[3]));
+            frame.setTop(node, Integer.parseInt(fields[4]));
+            frame.setWidth(node, Integer.parseInt(fields[5]));
+            frame.setHeight(node, Integer.parseInt(fields[6]));
+        }
+        return frame;
+    }
+
+    private static void check(String what, int[] expected, int[] actual) {
+        if (!Arrays.equals(expected, actual)) {
+            throw new AssertionError(what + " " + Arrays.toString(actual) + " instead of "
+                    + Arrays.toString(expected));
+        }
+    }
+
+    private static void save(int port, String title, Map<String, byte[]> files) throws IOException {
+        byte[] zip = SnapshotGenerator.zip(files, ZipEntry.STORED);
+        try (WebClient client = new WebClient(port, SnapshotService.SERVICE + "save:" + zip.length + ":"
+                + URLEncoder.encode(title, StandardCharsets.UTF_8))) {
+            client.expect(WebSocketDecoder.OP_BINARY, bytes("SEND"));
+            client.send(WebSocketDecoder.OP_BINARY, zip);
+            String reply = new String(client.read(WebSocketDecoder.OP_BINARY), StandardCharsets.UTF_8);
+            if (!reply.startsWith("OKAY")) {
+                throw new AssertionError("Save failed: " + reply);
+            }
+        }
+    }
+
+    /**
+     * Returns the reply to a command which is answered with OKAY and some text
+     */
+    private static String request(int port, String command) throws IOException {
+        try (WebClient client = new WebClient(port, command)) {
+            String reply = new String(client.read(WebSocketDecoder.OP_BINARY), StandardCharsets.UTF_8);
+            if (!reply.startsWith("OKAY")) {
+                throw new AssertionError(command + " failed: " + reply);
+            }
+            return reply.substring(4);
+        }
+    }
+
+    private static byte[] httpGet(int port, String path) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setSoTimeout(TIMEOUT_MS);
+            socket.getOutputStream().write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            byte[] response = socket.getInputStream().readAllBytes();
+            int end = HttpRequest.findHeaderEnd(response, 0, response.length);
+            if (end < 0 || !new String(response, 0, 12, StandardCharsets.ISO_8859_1).endsWith("200")) {
+                throw new AssertionError("Unexpected response to GET " + path);
+            }
+            return Arrays.copyOfRange(response, end + 4, response.length);
+        }
+    }
+
+    private static void startThreads(ProxyServer proxy, ServerSocket server) {
+        Thread thread = new Thread(() -> {
+            try {
+                proxy.doServerLoop(server);
+            } catch (IOException e) {
+                // Closed at the end of the test
+            }
+        }, "test-proxy");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts a proxy in NIO mode with one event loop, returning its port once it accepts
+     * connections
+     */
+    private static int startNio(FakeAdbServer adb) throws Exception {
+        ProxyServer proxy = new ProxyServer("test-key", Executors.newCachedThreadPool(), Thread::new);
+        proxy.adbHost = InetAddress.getLoopbackAddress().getHostAddress();
+        proxy.adbPort = adb.getPort();
+        int port;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        Thread server = new Thread(() -> new NioProxyServer(proxy, 1).doServerLoop(port), "test-proxy");
+        server.setDaemon(true);
+        server.start();
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (true) {
+            try (Socket probe = new Socket()) {
+                probe.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+                return port;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Websocket client which checks the opcode and payload of the frames it reads
+     */
+    private static class WebClient implements AutoCloseable {
+
+        private final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+
+        WebClient(int port, String path) throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            socket.setSoTimeout(TIMEOUT_MS);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = socket.getOutputStream();
+            out.write(ProxyBenchmark.upgradeRequest(path, "1-test-key"));
+            HttpRequest.read(in);
+        }
+
+        void send(int opcode, byte[] payload) throws IOException {
+            byte[] frame = ProxyBenchmark.maskedFrame(payload);
+            frame[0] = (byte) (128 | opcode);
+            out.write(frame);
+            out.flush();
+        }
+
+        /**
+         * Reads the next frame, checks its opcode and returns its payload
+         */
+        byte[] read(int opcode) throws IOException {
+            int head = in.readUnsignedByte();
+            long length = in.readUnsignedByte() & 127;
+            if (length == 126) {
+                length = in.readUnsignedShort();
+            } else if (length == 127) {
+                length = in.readLong();
+            }
+            if ((head & 15) != opcode || length > 1 << 20) {
+                throw new AssertionError("Expected opcode " + opcode + ", got opcode " + (head & 15)
+                        + " with " + length + " bytes");
+            }
+            byte[] received = new byte[(int) length];
+            in.readFully(received);
+            return received;
+        }
+
+        /**
+         * Reads and discards frames up to and including the first one with {@code opcode}
+         */
+        void skipUntil(int opcode) throws IOException {
+            byte[] skipped = new byte[65536];
+            while (true) {
+                int head = in.readUnsignedByte();
+                long length = in.readUnsignedByte() & 127;
+                if (length == 126) {
+                    length = in.readUnsignedShort();
+                } else if (length == 127) {
+                    length = in.readLong();
+                }
+                for (long remaining = length; remaining > 0; ) {
+                    int count = (int) Math.min(skipped.length, remaining);
+                    in.readFully(skipped, 0, count);
+                    remaining -= count;
+                }
+                if ((head & 15) == opcode) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Reads the next frame and checks its opcode and payload
+         */
+        void expect(int opcode, byte[] payload) throws IOException {
+            byte[] received = read(opcode);
+            if (!Arrays.equals(received, payload)) {
+                throw new AssertionError("Unexpected payload "
+                        + new String(received, StandardCharsets.UTF_8));
+            }
+        }
+
+        @Override
+        public void close() {
+            ProxyServer.closeSafely(socket);
+        }
+    }
+}